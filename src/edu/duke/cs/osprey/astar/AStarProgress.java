@@ -54,6 +54,7 @@ public class AStarProgress implements Serializable {
 	private long numNodesExpanded;
 	private long numNodesInQueue;
 	private long numNodesQueuedThisReport;
+	private long numNodesForgotten;
 	private Stopwatch stopwatch;
 	private int msRunning;
 	private int numLeafNodes;
@@ -67,6 +68,7 @@ public class AStarProgress implements Serializable {
 		hscore = Double.POSITIVE_INFINITY;
 		numNodesInQueue = 0;
 		numNodesQueuedThisReport = 0;
+		numNodesForgotten = 0;
 		stopwatch = new Stopwatch();
 		msRunning = 0;
 		numLeafNodes = 0;
@@ -102,6 +104,22 @@ public class AStarProgress implements Serializable {
 		}
 	}
 	
+	/** for memory-bounded searches, ie SMA* */
+	public void reportForgottenNode() {
+		numNodesForgotten++;
+	}
+
+	public long getNumNodesForgotten() {
+		return numNodesForgotten;
+	}
+
+	private String makeForgottenReport() {
+		if (numNodesForgotten == 0) {
+			return "";
+		}
+		return String.format(", forgotten:%10d", numNodesForgotten);
+	}
+
 	public void printProgressReport() {
 		// TODO: configurable output? logging framework?
 		System.out.println(makeProgressReport());
@@ -109,10 +127,11 @@ public class AStarProgress implements Serializable {
 	
 	public String makeProgressReport() {
 		double diffMs = stopwatch.getTimeMs() - this.msRunning;
-		return String.format("A* g:%10.4f, h:%10.4f, f:%10.4f, level:%4d/%4d/%4d, expanded:%10d, queued:%10d, scored/sec:%5d, time:%s, heapMem:%s, extMem:%s",
+		return String.format("A* g:%10.4f, h:%10.4f, f:%10.4f, level:%4d/%4d/%4d, expanded:%10d, queued:%10d%s, scored/sec:%5d, time:%s, heapMem:%s, extMem:%s",
 			gscore, hscore, gscore + hscore,
 			level, deepestLevel, numLevels - 1,
 			numNodesExpanded, numNodesInQueue,
+			makeForgottenReport(),
 			(int)(numNodesQueuedThisReport*1000/diffMs),
 			stopwatch.getTime(2),
 			JvmMem.getOldPool(),
@@ -158,10 +177,11 @@ public class AStarProgress implements Serializable {
 
 	protected String makeLeafProgressReport() {
 		double diffMs = stopwatch.getTimeMs() - this.msRunning;
-		return String.format("A* leaf nodes:%10d, score:%14.8f, remaining:%14.8f, expanded:%10d, queued:%10d, scored/sec:%5d, time:%s, heapMem:%s, extMem:%s",
+		return String.format("A* leaf nodes:%10d, score:%14.8f, remaining:%14.8f, expanded:%10d, queued:%10d%s, scored/sec:%5d, time:%s, heapMem:%s, extMem:%s",
 			numLeafNodes,
 			gscore, goalScore - gscore,
 			numNodesExpanded, numNodesInQueue,
+			makeForgottenReport(),
 			(int)(numNodesQueuedThisReport*1000/diffMs),
 			stopwatch.getTime(2),
 			JvmMem.getOldPool(),
@@ -0,0 +1,473 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf;
+
+import edu.duke.cs.osprey.confspace.Conf;
+import edu.duke.cs.osprey.externalMemory.AssignmentsSerializer;
+import edu.duke.cs.osprey.tools.MathTools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/**
+ * A snapshot of an A* search: the open nodes, and how far the search has progressed.
+ *
+ * Long enumerations can resume from a checkpoint after a restart,
+ * rather than rebuild the search tree from the root and re-enumerate all the confs they already had.
+ *
+ * The scorers themselves aren't saved, since each node keeps its g and h scores,
+ * and the scorers rebuild their caches from whatever nodes they see next.
+ */
+public class ConfAStarCheckpoint {
+
+	public static class WrongCheckpointException extends RuntimeException {
+
+		private static final long serialVersionUID = 2164316583524918432L;
+
+		public WrongCheckpointException(String msg) {
+			super(msg);
+		}
+	}
+
+	private static final int Magic = 0x4153434b; // "ASCK"
+	private static final int Version = 1;
+
+	public final RCs rcs;
+	public final MathTools.Optimizer optimizer;
+
+	/** number of confs returned by the search so far */
+	public final long numConfs;
+
+	public final long numNodesExpanded;
+	public final long numChildrenScored;
+
+	/** assignments of the open nodes, with {@link Conf#Unassigned} for undefined positions */
+	private final int[][] confs;
+
+	/** raw node scores, already adjusted for the optimizer */
+	private final double[] gscores;
+	private final double[] hscores;
+
+	public ConfAStarCheckpoint(RCs rcs, MathTools.Optimizer optimizer, long numConfs, long numNodesExpanded, long numChildrenScored, List<ConfAStarNode> nodes) {
+
+		this.rcs = rcs;
+		this.optimizer = optimizer;
+		this.numConfs = numConfs;
+		this.numNodesExpanded = numNodesExpanded;
+		this.numChildrenScored = numChildrenScored;
+
+		int n = nodes.size();
+		confs = new int[n][];
+		gscores = new double[n];
+		hscores = new double[n];
+		for (int i=0; i<n; i++) {
+			ConfAStarNode node = nodes.get(i);
+			confs[i] = node.makeConf(rcs.getNumPos());
+			gscores[i] = node.getGScore();
+			hscores[i] = node.getHScore();
+		}
+	}
+
+	private ConfAStarCheckpoint(RCs rcs, MathTools.Optimizer optimizer, long numConfs, long numNodesExpanded, long numChildrenScored, int numNodes) {
+		this.rcs = rcs;
+		this.optimizer = optimizer;
+		this.numConfs = numConfs;
+		this.numNodesExpanded = numNodesExpanded;
+		this.numChildrenScored = numChildrenScored;
+		this.confs = new int[numNodes][];
+		this.gscores = new double[numNodes];
+		this.hscores = new double[numNodes];
+	}
+
+	public int getNumNodes() {
+		return confs.length;
+	}
+
+	private static class NodeSerializer extends AssignmentsSerializer {
+
+		NodeSerializer(RCs rcs) {
+			super(rcs, Double.BYTES*2);
+		}
+
+		void serialize(int[] conf, double gscore, double hscore, ByteBuffer buf) {
+			writeAssignments(conf, buf);
+			buf.putDouble(gscore);
+			buf.putDouble(hscore);
+		}
+
+		int[] deserialize(ByteBuffer buf, double[] scores) {
+			int[] conf = readAssignments(buf);
+			scores[0] = buf.getDouble();
+			scores[1] = buf.getDouble();
+			return conf;
+		}
+	}
+
+	private interface Writer {
+		void write(DataOutput out) throws IOException;
+	}
+
+	/**
+	 * Writes to a temporary file next to the given file first,
+	 * then moves it into place, so a crash while writing never destroys the last good checkpoint.
+	 */
+	private static void writeAtomically(File file, Writer writer) {
+
+		File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try {
+
+			try (FileOutputStream fout = new FileOutputStream(tempFile)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+				writer.write(out);
+				out.flush();
+
+				// make sure the bytes are actually on the disk before we replace the old checkpoint
+				fout.getFD().sync();
+			}
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (IOException ex) {
+			tempFile.delete();
+			throw new RuntimeException("can't write A* checkpoint to " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	public void write(File file) {
+		writeAtomically(file, this::write);
+	}
+
+	public void write(DataOutput out)
+	throws IOException {
+
+		NodeSerializer serializer = new NodeSerializer(rcs);
+		writeHeader(out, serializer, rcs, optimizer, numConfs, numNodesExpanded, numChildrenScored, confs.length);
+
+		// write the nodes in fixed-size entries, like the external memory queues
+		ByteBuffer buf = ByteBuffer.allocate(serializer.getEntrySize().numBytes);
+		for (int i=0; i<confs.length; i++) {
+			buf.clear();
+			serializer.serialize(confs[i], gscores[i], hscores[i], buf);
+			out.write(buf.array());
+		}
+	}
+
+	/**
+	 * Writes a checkpoint straight from the open nodes, one node at a time,
+	 * so the open nodes never need to fit in memory all at once.
+	 * The iterator must return exactly numNodes nodes.
+	 */
+	public static void write(File file, RCs rcs, MathTools.Optimizer optimizer, long numConfs, long numNodesExpanded, long numChildrenScored, long numNodes, Iterator<ConfAStarNode> nodes) {
+
+		if (numNodes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many open nodes for an A* checkpoint: " + numNodes);
+		}
+
+		writeAtomically(file, (out) -> {
+
+			NodeSerializer serializer = new NodeSerializer(rcs);
+			writeHeader(out, serializer, rcs, optimizer, numConfs, numNodesExpanded, numChildrenScored, (int)numNodes);
+
+			ByteBuffer buf = ByteBuffer.allocate(serializer.getEntrySize().numBytes);
+			long numWritten = 0;
+			while (nodes.hasNext()) {
+				ConfAStarNode node = nodes.next();
+				buf.clear();
+				serializer.serialize(node.makeConf(rcs.getNumPos()), node.getGScore(), node.getHScore(), buf);
+				out.write(buf.array());
+				numWritten++;
+			}
+
+			if (numWritten != numNodes) {
+				throw new IOException(String.format("expected %d open nodes, but got %d", numNodes, numWritten));
+			}
+		});
+	}
+
+	private static void writeHeader(DataOutput out, NodeSerializer serializer, RCs rcs, MathTools.Optimizer optimizer, long numConfs, long numNodesExpanded, long numChildrenScored, int numNodes)
+	throws IOException {
+		out.writeInt(Magic);
+		out.writeInt(Version);
+		writeRCs(out, rcs);
+		out.writeUTF(optimizer.name());
+		out.writeLong(numConfs);
+		out.writeLong(numNodesExpanded);
+		out.writeLong(numChildrenScored);
+		out.writeInt(numNodes);
+		out.writeInt(serializer.getEntrySize().numBytes);
+	}
+
+	public static ConfAStarCheckpoint read(File file, RCs rcs, MathTools.Optimizer optimizer) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			return read(in, rcs, optimizer);
+		} catch (IOException ex) {
+			throw new RuntimeException("can't read A* checkpoint from " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	public static ConfAStarCheckpoint read(DataInput in, RCs rcs, MathTools.Optimizer optimizer)
+	throws IOException {
+
+		NodeSerializer serializer = new NodeSerializer(rcs);
+		Header header = readHeader(in, serializer, rcs, optimizer);
+		ConfAStarCheckpoint checkpoint = new ConfAStarCheckpoint(rcs, optimizer, header.numConfs, header.numNodesExpanded, header.numChildrenScored, header.numNodes);
+
+		// read the nodes
+		ByteBuffer buf = ByteBuffer.allocate(serializer.getEntrySize().numBytes);
+		double[] scores = new double[2];
+		for (int i=0; i<checkpoint.confs.length; i++) {
+			in.readFully(buf.array());
+			buf.clear();
+			checkpoint.confs[i] = serializer.deserialize(buf, scores);
+			checkpoint.gscores[i] = scores[0];
+			checkpoint.hscores[i] = scores[1];
+		}
+
+		return checkpoint;
+	}
+
+	/**
+	 * Rebuilds the open nodes from a checkpoint file one at a time, starting from the given root node,
+	 * so the open nodes never need to fit in memory all at once.
+	 *
+	 * Unlike {@link #makeNodes}, nodes don't share ancestors, so this is best for queues that store nodes compactly anyway.
+	 */
+	public static void readNodes(File file, RCs rcs, MathTools.Optimizer optimizer, ConfAStarNode rootNode, Consumer<ConfAStarNode> func) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+			NodeSerializer serializer = new NodeSerializer(rcs);
+			int numNodes = readHeader(in, serializer, rcs, optimizer).numNodes;
+
+			ByteBuffer buf = ByteBuffer.allocate(serializer.getEntrySize().numBytes);
+			double[] scores = new double[2];
+			for (int i=0; i<numNodes; i++) {
+				in.readFully(buf.array());
+				buf.clear();
+				int[] conf = serializer.deserialize(buf, scores);
+				ConfAStarNode node = rootNode;
+				for (int pos=0; pos<conf.length; pos++) {
+					if (conf[pos] != Conf.Unassigned) {
+						node = node.assign(pos, conf[pos]);
+					}
+				}
+				node.setGScore(scores[0]);
+				node.setHScore(scores[1]);
+				func.accept(node);
+			}
+
+		} catch (IOException ex) {
+			throw new RuntimeException("can't read A* checkpoint from " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	private static class Header {
+
+		final long numConfs;
+		final long numNodesExpanded;
+		final long numChildrenScored;
+		final int numNodes;
+
+		Header(long numConfs, long numNodesExpanded, long numChildrenScored, int numNodes) {
+			this.numConfs = numConfs;
+			this.numNodesExpanded = numNodesExpanded;
+			this.numChildrenScored = numChildrenScored;
+			this.numNodes = numNodes;
+		}
+	}
+
+	/** reads the header and makes sure it matches this search */
+	private static Header readHeader(DataInput in, NodeSerializer serializer, RCs rcs, MathTools.Optimizer optimizer)
+	throws IOException {
+
+		if (in.readInt() != Magic) {
+			throw new WrongCheckpointException("not an A* checkpoint");
+		}
+		int version = in.readInt();
+		if (version != Version) {
+			throw new WrongCheckpointException("unsupported A* checkpoint version: " + version);
+		}
+		if (!readRCs(in, rcs)) {
+			throw new WrongCheckpointException("A* checkpoint was saved for a different conformation space");
+		}
+		String optimizerName = in.readUTF();
+		if (!optimizerName.equals(optimizer.name())) {
+			throw new WrongCheckpointException("A* checkpoint was saved for a search that used " + optimizerName + ", not " + optimizer.name());
+		}
+		long numConfs = in.readLong();
+		long numNodesExpanded = in.readLong();
+		long numChildrenScored = in.readLong();
+		int numNodes = in.readInt();
+		int entryBytes = in.readInt();
+		if (entryBytes != serializer.getEntrySize().numBytes) {
+			throw new WrongCheckpointException(String.format("A* checkpoint has %d-byte nodes, but expected %d-byte nodes",
+				entryBytes, serializer.getEntrySize().numBytes
+			));
+		}
+
+		return new Header(numConfs, numNodesExpanded, numChildrenScored, numNodes);
+	}
+
+	private static void writeRCs(DataOutput out, RCs rcs)
+	throws IOException {
+		out.writeInt(rcs.getNumPos());
+		for (int pos=0; pos<rcs.getNumPos(); pos++) {
+			int[] rcsAtPos = rcs.get(pos);
+			out.writeInt(rcsAtPos.length);
+			for (int rc : rcsAtPos) {
+				out.writeInt(rc);
+			}
+		}
+	}
+
+	private static boolean readRCs(DataInput in, RCs rcs)
+	throws IOException {
+
+		// read all the RCs, even if we find a mismatch, so the stream stays in a sane state
+		boolean matches = true;
+		int numPos = in.readInt();
+		matches &= numPos == rcs.getNumPos();
+		for (int pos=0; pos<numPos; pos++) {
+			int[] rcsAtPos = new int[in.readInt()];
+			for (int i=0; i<rcsAtPos.length; i++) {
+				rcsAtPos[i] = in.readInt();
+			}
+			matches &= pos < rcs.getNumPos() && Arrays.equals(rcsAtPos, rcs.get(pos));
+		}
+		return matches;
+	}
+
+	/**
+	 * Rebuilds the open nodes, starting from the given root node.
+	 *
+	 * Nodes are assigned in order of position, and open nodes that share a prefix of assignments
+	 * share the ancestor nodes too, so parent-linked nodes don't need a separate chain of ancestors for every open node.
+	 */
+	public List<ConfAStarNode> makeNodes(ConfAStarNode rootNode) {
+
+		int numPos = rcs.getNumPos();
+
+		// sort the nodes so shared prefixes are adjacent
+		Integer[] order = new Integer[confs.length];
+		for (int i=0; i<order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> compareAssignments(confs[a], confs[b]));
+
+		// keep a stack of ancestors for the current prefix
+		ConfAStarNode[] ancestors = new ConfAStarNode[numPos + 1];
+		int[] ancestorPos = new int[numPos];
+		int[] ancestorRCs = new int[numPos];
+		ancestors[0] = rootNode;
+		int numAncestors = 0;
+
+		List<ConfAStarNode> nodes = new ArrayList<>(confs.length);
+		for (int i : order) {
+			int[] conf = confs[i];
+
+			// how much of the prefix can we keep?
+			int depth = 0;
+			int keep = 0;
+			for (int pos=0; pos<numPos; pos++) {
+				if (conf[pos] == Conf.Unassigned) {
+					continue;
+				}
+				if (keep == depth && depth < numAncestors && ancestorPos[depth] == pos && ancestorRCs[depth] == conf[pos]) {
+					keep++;
+				}
+				depth++;
+			}
+
+			// assign the rest
+			ConfAStarNode node = ancestors[keep];
+			numAncestors = keep;
+			depth = 0;
+			for (int pos=0; pos<numPos; pos++) {
+				if (conf[pos] == Conf.Unassigned) {
+					continue;
+				}
+				if (depth >= keep) {
+					node = node.assign(pos, conf[pos]);
+					ancestorPos[depth] = pos;
+					ancestorRCs[depth] = conf[pos];
+					ancestors[depth + 1] = node;
+					numAncestors = depth + 1;
+				}
+				depth++;
+			}
+
+			node.setGScore(gscores[i]);
+			node.setHScore(hscores[i]);
+			nodes.add(node);
+		}
+
+		return nodes;
+	}
+
+	/** compares the sequences of assignments, in order of position, so prefixes come first */
+	private static int compareAssignments(int[] a, int[] b) {
+		for (int pos=0; pos<a.length; pos++) {
+			boolean aDefined = a[pos] != Conf.Unassigned;
+			boolean bDefined = b[pos] != Conf.Unassigned;
+			if (aDefined && bDefined) {
+				int diff = Integer.compare(a[pos], b[pos]);
+				if (diff != 0) {
+					return diff;
+				}
+			} else if (aDefined) {
+				// a assigns pos next, b assigns a later pos (or nothing)
+				return hasAssignmentsAfter(b, pos) ? -1 : 1;
+			} else if (bDefined) {
+				return hasAssignmentsAfter(a, pos) ? 1 : -1;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean hasAssignmentsAfter(int[] conf, int pos) {
+		for (pos++; pos<conf.length; pos++) {
+			if (conf[pos] != Conf.Unassigned) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -38,4 +38,12 @@ public interface ConfAStarFactory {
 	
 	Queue<ConfAStarNode> makeQueue(RCs rcs);
 	ConfAStarNode makeRootNode(int numPos);
+
+	/**
+	 * Makes the root node for a search that uses the given queue,
+	 * for factories whose nodes belong to their queue.
+	 */
+	default ConfAStarNode makeRootNode(Queue<ConfAStarNode> queue, int numPos) {
+		return makeRootNode(numPos);
+	}
 }
@@ -32,16 +32,22 @@
 
 package edu.duke.cs.osprey.astar.conf;
 
+import java.io.File;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import edu.duke.cs.osprey.astar.AStarProgress;
+import edu.duke.cs.osprey.astar.conf.arena.ArenaConfAStarFactory;
 import edu.duke.cs.osprey.astar.conf.linked.LinkedConfAStarFactory;
 import edu.duke.cs.osprey.astar.conf.order.*;
 import edu.duke.cs.osprey.astar.conf.pruning.AStarPruner;
+import edu.duke.cs.osprey.astar.conf.pruning.RCCompatibility;
 import edu.duke.cs.osprey.astar.conf.scoring.AStarScorer;
+import edu.duke.cs.osprey.astar.conf.scoring.DifferentialMPLPPairwiseHScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.MPLPPairwiseHScorer;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
 import edu.duke.cs.osprey.astar.conf.scoring.PairwiseGScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.TraditionalPairwiseHScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.mplp.EdgeUpdater;
@@ -50,12 +56,12 @@ import edu.duke.cs.osprey.astar.conf.scoring.mplp.NodeUpdater;
 import edu.duke.cs.osprey.astar.conf.smastar.ConfSMAStarNode;
 import edu.duke.cs.osprey.astar.conf.smastar.ConfSMAStarQueue;
 import edu.duke.cs.osprey.confspace.ConfSearch;
-import edu.duke.cs.osprey.confspace.RCTuple;
 import edu.duke.cs.osprey.confspace.SimpleConfSpace;
 import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 import edu.duke.cs.osprey.externalMemory.EMConfAStarFactory;
 import edu.duke.cs.osprey.externalMemory.ExternalMemory;
+import edu.duke.cs.osprey.externalMemory.HybridConfAStarFactory;
 import edu.duke.cs.osprey.externalMemory.Queue;
 import edu.duke.cs.osprey.lute.LUTEConfEnergyCalculator;
 import edu.duke.cs.osprey.lute.LUTEGScorer;
@@ -68,7 +74,7 @@ import edu.duke.cs.osprey.tools.ObjectPool;
 import edu.duke.cs.osprey.tools.ObjectPool.Checkout;
 
 
-public class ConfAStarTree implements ConfSearch {
+public class ConfAStarTree implements ConfSearch, AutoCloseable {
 
 	public static class Builder {
 		
@@ -86,6 +92,8 @@ public class ConfAStarTree implements ConfSearch {
 		private ConfAStarFactory factory = new LinkedConfAStarFactory();
 		private AStarPruner pruner = null;
 		private Long maxNumNodes = null;
+		private int expansionBatchSize = 1;
+		private File checkpointFile = null;
 
 		public Builder(EnergyMatrix emat, SimpleConfSpace confSpace) {
 			this(emat, new RCs(confSpace));
@@ -137,8 +145,9 @@ public class ConfAStarTree implements ConfSearch {
 				// SMA* can only use static orders
 				this.order = new StaticScoreHMeanAStarOrder();
 			}
-			this.gscorer = new PairwiseGScorer(emat, optimizer);
-			this.hscorer = new TraditionalPairwiseHScorer(emat, rcs, optimizer);
+			PairwiseEnergyTable table = new PairwiseEnergyTable(emat, rcs, PairwiseEnergyTable.Storage.Float64, optimizer);
+			this.gscorer = new PairwiseGScorer(table, optimizer);
+			this.hscorer = new TraditionalPairwiseHScorer(table, optimizer);
 			this.optimizer = optimizer;
 			return this;
 		}
@@ -161,13 +170,23 @@ public class ConfAStarTree implements ConfSearch {
 		
 		public Builder setMPLP(MPLPBuilder builder) {
 			order = new StaticScoreHMeanAStarOrder();
-			gscorer = new PairwiseGScorer(emat);
-			hscorer = new MPLPPairwiseHScorer(
-				builder.updater,
-				emat,
-				builder.numIterations,
-				builder.convergenceThreshold
-			);
+			PairwiseEnergyTable table = new PairwiseEnergyTable(emat, rcs);
+			gscorer = new PairwiseGScorer(table, MathTools.Optimizer.Minimize);
+			if (builder.warmStart) {
+				hscorer = new DifferentialMPLPPairwiseHScorer(
+					builder.updater,
+					table,
+					builder.numIterations,
+					builder.convergenceThreshold
+				);
+			} else {
+				hscorer = new MPLPPairwiseHScorer(
+					builder.updater,
+					table,
+					builder.numIterations,
+					builder.convergenceThreshold
+				);
+			}
 			return this;
 		}
 
@@ -200,6 +219,43 @@ public class ConfAStarTree implements ConfSearch {
 			return this;
 		}
 		
+		/**
+		 * Keep A* nodes in internal memory (eg, RAM) until the budget is reached,
+		 * then spill the worst nodes to sorted runs in external memory (eg, disk, SSD),
+		 * and read them back as the search needs them.
+		 *
+		 * Unlike {@link #useExternalMemory}, small searches never pay for external memory at all.
+		 * Runs are written to the directory set by {@link ExternalMemory#setTempDir},
+		 * or the JVM temp dir by default.
+		 *
+		 * @param internalMiB approximate amount of internal memory to use for nodes, in MiB
+		 */
+		public Builder useHybridMemory(int internalMiB) {
+
+			// just in case...
+			if (maxNumNodes != null) {
+				throw new IllegalArgumentException("hybrid memory is incompatible with bounded memory");
+			}
+
+			factory = new HybridConfAStarFactory(internalMiB);
+			return this;
+		}
+
+		/**
+		 * Use a custom factory for A* nodes and the node queue,
+		 * eg {@link ArenaConfAStarFactory} to store nodes more compactly.
+		 */
+		public Builder setFactory(ConfAStarFactory val) {
+
+			// just in case...
+			if (maxNumNodes != null) {
+				throw new IllegalArgumentException("custom node factories are incompatible with bounded memory");
+			}
+
+			factory = val;
+			return this;
+		}
+
 		public Builder setShowProgress(boolean val) {
 			showProgress = val;
 			return this;
@@ -213,7 +269,7 @@ public class ConfAStarTree implements ConfSearch {
 		public Builder setMaxNumNodes(Long val) {
 
 			// just in case...
-			if (val != null && factory instanceof EMConfAStarFactory) {
+			if (val != null && (factory instanceof EMConfAStarFactory || factory instanceof HybridConfAStarFactory)) {
 				throw new IllegalArgumentException("bounded memory is incompatible with external memory");
 			}
 
@@ -224,6 +280,45 @@ public class ConfAStarTree implements ConfSearch {
 		public Builder setMaxNumNodes(int val) {
 			return setMaxNumNodes(Long.valueOf(val));
 		}
+
+		/**
+		 * Expand the best few nodes in the queue together, and score all of their children
+		 * in one parallel batch, rather than expanding one node at a time.
+		 *
+		 * When scoring children is cheap (eg, with MPLP), the children of a single node
+		 * aren't enough work to keep many threads busy. Batching nodes gives the threads more work
+		 * per synchronization point. Conformations are still returned in exact score order,
+		 * since leaf nodes are only returned when no open node has a better score.
+		 *
+		 * Use {@link #ExpansionBatchSizeAdaptive} to pick the batch size automatically
+		 * based on the parallelism and the observed number of children per node.
+		 *
+		 * Only has an effect for unbounded-memory A*.
+		 */
+		public Builder setExpansionBatchSize(int val) {
+
+			// just in case...
+			if (val < 0) {
+				throw new IllegalArgumentException("expansion batch size must be non-negative");
+			}
+
+			expansionBatchSize = val;
+			return this;
+		}
+
+		/**
+		 * Resume the search from a checkpoint saved by {@link ConfAStarTree#saveCheckpoint},
+		 * instead of starting over from the root node.
+		 *
+		 * The checkpoint must have been saved by a search with the same RCs and optimizer,
+		 * and the heuristics should match too, or the scores of the saved nodes won't mean the same thing.
+		 *
+		 * Only unbounded-memory A* can be resumed.
+		 */
+		public Builder resumeFrom(File val) {
+			checkpointFile = val;
+			return this;
+		}
 		
 		public ConfAStarTree build() {
 			ConfAStarTree tree = new ConfAStarTree(
@@ -234,11 +329,15 @@ public class ConfAStarTree implements ConfSearch {
 				rcs,
 				factory,
 				pruner,
-				maxNumNodes
+				maxNumNodes,
+				expansionBatchSize
 			);
 			if (showProgress) {
 				tree.initProgress();
 			}
+			if (checkpointFile != null) {
+				tree.resume(checkpointFile);
+			}
 			return tree;
 		}
 	}
@@ -286,6 +385,18 @@ public class ConfAStarTree implements ConfSearch {
 		 * large numbers of MPLP iterations, optimizing this value may increase performance though.
 		 */
 		private double convergenceThreshold = 0.0001;
+
+		/**
+		 * Start MPLP for each child node from the converged messages of its parent node,
+		 * rather than from the traditional A* heuristic.
+		 *
+		 * This value doesn't affect the accuracy of the conformation search, only the speed.
+		 *
+		 * Warm-started messages are usually much closer to convergence, so the same number
+		 * of iterations gives tighter bounds. The parent's messages are computed once per
+		 * node expansion though, so this works best with several iterations per node.
+		 */
+		private boolean warmStart = false;
 		
 		public MPLPBuilder setUpdater(MPLPUpdater val) {
 			updater = val;
@@ -301,11 +412,19 @@ public class ConfAStarTree implements ConfSearch {
 			convergenceThreshold = val;
 			return this;
 		}
+
+		public MPLPBuilder setWarmStart(boolean val) {
+			warmStart = val;
+			return this;
+		}
 	}
 
 	public static MPLPBuilder MPLPBuilder() {
 		return new MPLPBuilder();
 	}
+
+	/** Pass to {@link Builder#setExpansionBatchSize} to pick the batch size automatically */
+	public static final int ExpansionBatchSizeAdaptive = 0;
 		
 	private static class ScoreContext {
 		public ConfIndex index;
@@ -328,7 +447,7 @@ public class ConfAStarTree implements ConfSearch {
 	private TaskExecutor tasks;
 	private ObjectPool<ScoreContext> contexts;
 	
-	private ConfAStarTree(AStarOrder order, AStarScorer gscorer, AStarScorer hscorer, MathTools.Optimizer optimizer, RCs rcs, ConfAStarFactory factory, AStarPruner pruner, Long maxNumNodes) {
+	private ConfAStarTree(AStarOrder order, AStarScorer gscorer, AStarScorer hscorer, MathTools.Optimizer optimizer, RCs rcs, ConfAStarFactory factory, AStarPruner pruner, Long maxNumNodes, int expansionBatchSize) {
 		this.order = order;
 		this.gscorer = gscorer;
 		this.hscorer = hscorer;
@@ -340,7 +459,7 @@ public class ConfAStarTree implements ConfSearch {
 		if (maxNumNodes != null) {
 			this.impl = new SimplifiedBoundedImpl(maxNumNodes);
 		} else {
-			this.impl = new UnboundedImpl();
+			this.impl = new UnboundedImpl(expansionBatchSize);
 		}
 		this.confIndex = new ConfIndex(this.rcs.getNumPos());
 		
@@ -390,7 +509,62 @@ public class ConfAStarTree implements ConfSearch {
 	public ScoredConf nextConf() {
 		return impl.nextConf();
 	}
+
+	/**
+	 * Releases anything the node queue holds outside of the heap, eg spilled runs on disk.
+	 * The search can't be continued afterwards.
+	 */
+	@Override
+	public void close() {
+		impl.close();
+	}
 	
+	/**
+	 * Takes a snapshot of the open nodes and the progress of the search, in memory.
+	 * Use {@link #saveCheckpoint} instead for searches whose open nodes don't fit in memory.
+	 *
+	 * Queues that can't be read in place (see {@link Queue#peekIterator}) are briefly emptied to read them,
+	 * so this can't be called while the search is running on another thread.
+	 *
+	 * Only unbounded-memory A* supports checkpoints.
+	 */
+	public ConfAStarCheckpoint makeCheckpoint() {
+		return getUnboundedImpl().makeCheckpoint();
+	}
+
+	/**
+	 * Saves a snapshot of the search to a file, so the search can be resumed later,
+	 * eg after a restart, with {@link Builder#resumeFrom}.
+	 *
+	 * The open nodes are streamed to the file one at a time, so they never need to fit in memory.
+	 * Queues that can't be read in place are emptied into the file, then refilled from it.
+	 */
+	public void saveCheckpoint(File file) {
+		getUnboundedImpl().saveCheckpoint(file);
+	}
+
+	/**
+	 * Resumes the search from a snapshot. The search must not have been started yet.
+	 */
+	public void resume(ConfAStarCheckpoint checkpoint) {
+		getUnboundedImpl().resume(checkpoint);
+	}
+
+	public void resume(File file) {
+		resume(ConfAStarCheckpoint.read(file, rcs, optimizer));
+	}
+
+	public boolean supportsCheckpoints() {
+		return impl instanceof UnboundedImpl;
+	}
+
+	private UnboundedImpl getUnboundedImpl() {
+		if (!supportsCheckpoints()) {
+			throw new UnsupportedOperationException("only unbounded-memory A* supports checkpoints");
+		}
+		return (UnboundedImpl)impl;
+	}
+
 	@Override
 	public List<ScoredConf> nextConfs(double thresholdEnergy) {
 
@@ -416,67 +590,152 @@ public class ConfAStarTree implements ConfSearch {
 		return confs;
 	}
 	
-	private boolean isPruned(ConfIndex confIndex, int nextPos, int nextRc) {
-		
-		// do we even have pruned pairs?
-		PruningMatrix pmat = rcs.getPruneMat();
-		if (pmat == null) {
-			return false;
+	private interface AStarImpl {
+
+		ScoredConf nextConf();
+
+		default void close() {
+			// nothing to release
 		}
-		
-		for (int i=0; i<confIndex.numDefined; i++) {
-			int pos = confIndex.definedPos[i];
-			int rc = confIndex.definedRCs[i];
-			assert (pos != nextPos || rc != nextRc);
-			if (pmat.getPairwise(pos, rc, nextPos, nextRc)) {
-				return true;
-			}
+	}
+
+	/**
+	 * An implementation of the classic A* that uses unbounded memory.
+	 */
+	private class UnboundedImpl implements AStarImpl {
+
+		// don't let adaptive batches get too big, or we'll do lots of work that exact A* would have skipped
+		private static final int MaxAdaptiveBatchSizePerThread = 4;
+
+		// try to give each thread at least this many children to score per batch
+		private static final int TargetChildrenPerThread = 8;
+
+		private final Queue<ConfAStarNode> queue;
+		private final int expansionBatchSize;
+		private final List<ConfAStarNode> batch = new ArrayList<>();
+
+		private ConfAStarNode rootNode = null;
+		private long numConfs = 0;
+		private long numNodesExpanded = 0;
+		private long numChildrenScored = 0;
+
+		// precomputed pruned pairs and triples, and space to collect the surviving children
+		private RCCompatibility compatibility = null;
+		private int[] nextRCs = null;
+
+		UnboundedImpl(int expansionBatchSize) {
+			this.queue = factory.makeQueue(rcs);
+			this.expansionBatchSize = expansionBatchSize;
+		}
+
+		@Override
+		public void close() {
+			queue.close();
 		}
 
-		// check triples
-		if (pmat.hasHigherOrderTuples()) {
+		private ConfAStarNode makeStartNode() {
 
-			RCTuple tuple = new RCTuple(0, 0, 0, 0, 0, 0);
+			// pick all the single-rotamer positions now, regardless of order chosen
+			// if we do them first, we basically get them for free
+			// so we don't have to worry about them later in the search at all
+			ConfAStarNode node = rootNode;
+			for (int pos=0; pos<rcs.getNumPos(); pos++) {
+				if (rcs.getNum(pos) == 1) {
+					node = node.assign(pos, rcs.get(pos)[0]);
+				}
+			}
+			assert (node.getLevel() == rcs.getNumTrivialPos());
 
-			for (int i1=0; i1<confIndex.numDefined; i1++) {
-				int pos1 = confIndex.definedPos[i1];
-				int rc1 = confIndex.definedRCs[i1];
-				assert (pos1 != nextPos || rc1 != nextRc);
+			// score the tail node of the chain we just created
+			node.index(confIndex);
+			node.setGScore(gscorer.calc(confIndex, rcs), optimizer);
+			node.setHScore(hscorer.calc(confIndex, rcs), optimizer);
+			return node;
+		}
 
-				for (int i2=0; i2<i1; i2++) {
-					int pos2 = confIndex.definedPos[i2];
-					int rc2 = confIndex.definedRCs[i2];
-					assert (pos2 != nextPos || rc2 != nextRc);
+		ConfAStarCheckpoint makeCheckpoint() {
 
-					tuple.set(pos1, rc1, pos2, rc2, nextPos, nextRc);
-					tuple.sortPositions();
+			// a search that hasn't started yet has no open nodes, but it's not done either
+			if (rootNode == null) {
+				throw new IllegalStateException("can't checkpoint a search that hasn't started yet");
+			}
 
-					if (pmat.getTuple(tuple)) {
-						return true;
-					}
+			List<ConfAStarNode> nodes = new ArrayList<>();
+			Iterator<ConfAStarNode> iter = queue.peekIterator();
+			if (iter != null) {
+				iter.forEachRemaining(nodes::add);
+			} else {
+				// read the open nodes by emptying the queue, then put them back
+				while (!queue.isEmpty()) {
+					nodes.add(queue.poll());
 				}
+				queue.pushAll(nodes);
 			}
+
+			return new ConfAStarCheckpoint(rcs, optimizer, numConfs, numNodesExpanded, numChildrenScored, nodes);
 		}
 
-		return false;
-	}
+		void saveCheckpoint(File file) {
 
-	private interface AStarImpl {
+			// a search that hasn't started yet has no open nodes, but it's not done either
+			if (rootNode == null) {
+				throw new IllegalStateException("can't checkpoint a search that hasn't started yet");
+			}
 
-		ScoredConf nextConf();
-	}
+			Iterator<ConfAStarNode> iter = queue.peekIterator();
+			if (iter != null) {
+				ConfAStarCheckpoint.write(file, rcs, optimizer, numConfs, numNodesExpanded, numChildrenScored, queue.size(), iter);
+			} else {
+				// the queue can't be read in place, so use the checkpoint file as the temporary storage
+				ConfAStarCheckpoint.write(file, rcs, optimizer, numConfs, numNodesExpanded, numChildrenScored, queue.size(), queue.iterator());
+				ConfAStarCheckpoint.readNodes(file, rcs, optimizer, rootNode, queue::push);
+			}
+		}
 
-	/**
-	 * An implementation of the classic A* that uses unbounded memory.
-	 */
-	private class UnboundedImpl implements AStarImpl {
+		void resume(ConfAStarCheckpoint checkpoint) {
 
-		private final Queue<ConfAStarNode> queue;
+			// just in case...
+			if (rootNode != null) {
+				throw new IllegalStateException("can't resume a search that has already started");
+			}
+			if (checkpoint.optimizer != optimizer) {
+				throw new IllegalArgumentException("checkpoint was saved for a search that used " + checkpoint.optimizer);
+			}
 
-		private ConfAStarNode rootNode = null;
+			rootNode = factory.makeRootNode(queue, rcs.getNumPos());
 
-		UnboundedImpl() {
-			this.queue = factory.makeQueue(rcs);
+			// static position orders are picked from the first node the order sees,
+			// so show the order the same node the original search started with
+			ConfAStarNode startNode = makeStartNode();
+			if (startNode.getLevel() < rcs.getNumPos()) {
+				startNode.index(confIndex);
+				order.getNextPos(confIndex, rcs);
+			}
+
+			queue.pushAll(checkpoint.makeNodes(rootNode));
+			numConfs = checkpoint.numConfs;
+			numNodesExpanded = checkpoint.numNodesExpanded;
+			numChildrenScored = checkpoint.numChildrenScored;
+		}
+
+		private int getBatchSize() {
+
+			if (expansionBatchSize != ExpansionBatchSizeAdaptive) {
+				return expansionBatchSize;
+			}
+
+			// no parallelism? no point in batching
+			int numThreads = tasks.getParallelism();
+			if (numThreads <= 1) {
+				return 1;
+			}
+
+			// pick enough nodes so their children keep all the threads busy
+			double childrenPerNode = numNodesExpanded > 0
+				? Math.max(1.0, (double)numChildrenScored/numNodesExpanded)
+				: 1.0;
+			int size = (int)Math.ceil(numThreads*TargetChildrenPerThread/childrenPerNode);
+			return Math.max(1, Math.min(size, numThreads*MaxAdaptiveBatchSizePerThread));
 		}
 
 		@Override
@@ -490,24 +749,18 @@ public class ConfAStarTree implements ConfSearch {
 					return null;
 				}
 
-				rootNode = factory.makeRootNode(rcs.getNumPos());
+				rootNode = factory.makeRootNode(queue, rcs.getNumPos());
+				queue.push(makeStartNode());
+			}
 
-				// pick all the single-rotamer positions now, regardless of order chosen
-				// if we do them first, we basically get them for free
-				// so we don't have to worry about them later in the search at all
-				ConfAStarNode node = rootNode;
+			// index the pruning matrix so we can filter children quickly
+			if (compatibility == null) {
+				compatibility = new RCCompatibility(rcs);
+				int maxNumRCs = 0;
 				for (int pos=0; pos<rcs.getNumPos(); pos++) {
-					if (rcs.getNum(pos) == 1) {
-						node = node.assign(pos, rcs.get(pos)[0]);
-					}
+					maxNumRCs = Math.max(maxNumRCs, rcs.getNum(pos));
 				}
-				assert (node.getLevel() == rcs.getNumTrivialPos());
-
-				// score and add the tail node of the chain we just created
-				node.index(confIndex);
-				node.setGScore(gscorer.calc(confIndex, rcs), optimizer);
-				node.setHScore(hscorer.calc(confIndex, rcs), optimizer);
-				queue.push(node);
+				nextRCs = new int[maxNumRCs];
 			}
 
 			while (true) {
@@ -532,60 +785,92 @@ public class ConfAStarTree implements ConfSearch {
 						progress.reportLeafNode(node.getGScore(optimizer), queue.size());
 					}
 
+					numConfs++;
 					return new ScoredConf(
 						node.makeConf(rcs.getNumPos()),
 						node.getGScore(optimizer)
 					);
 				}
 
-				// which pos to expand next?
-				int numChildren = 0;
-				node.index(confIndex);
-				int nextPos = order.getNextPos(confIndex, rcs);
-				assert (!confIndex.isDefined(nextPos));
-				assert (confIndex.isUndefined(nextPos));
+				// collect more nodes for the batch, if needed
+				batch.clear();
+				batch.add(node);
+				int batchSize = getBatchSize();
+				while (batch.size() < batchSize && !queue.isEmpty()) {
 
-				// score child nodes with tasks (possibly in parallel)
-				List<ConfAStarNode> children = new ArrayList<>();
-				for (int nextRc : rcs.get(nextPos)) {
+					ConfAStarNode other = queue.peek();
 
-					// if this child was pruned by the pruning matrix, then skip it
-					if (isPruned(confIndex, nextPos, nextRc)) {
-						continue;
+					// stop at leaf nodes, they need to wait at the top of the queue until they're the best open node
+					if (other.getLevel() == rcs.getNumPos()) {
+						break;
 					}
 
-					// if this child was pruned dynamically, then don't score it
-					if (pruner != null && pruner.isPruned(node, nextPos, nextRc)) {
+					queue.pop();
+
+					if (pruner != null && pruner.isPruned(other)) {
 						continue;
 					}
 
-					tasks.submit(() -> {
-
-						try (Checkout<ScoreContext> checkout = contexts.autoCheckout()) {
-							ScoreContext context = checkout.get();
+					batch.add(other);
+				}
 
-							// score the child node differentially against the parent node
-							node.index(context.index);
-							ConfAStarNode child = node.assign(nextPos, nextRc);
-							child.setGScore(context.gscorer.calcDifferential(context.index, rcs, nextPos, nextRc), optimizer);
-							child.setHScore(context.hscorer.calcDifferential(context.index, rcs, nextPos, nextRc), optimizer);
-							return child;
+				// score child nodes for the whole batch with tasks (possibly in parallel)
+				List<ConfAStarNode> children = new ArrayList<>();
+				int[] numChildren = new int[batch.size()];
+				for (int i=0; i<batch.size(); i++) {
+					ConfAStarNode parent = batch.get(i);
+					int parenti = i;
+
+					// which pos to expand next?
+					parent.index(confIndex);
+					int nextPos = order.getNextPos(confIndex, rcs);
+					assert (!confIndex.isDefined(nextPos));
+					assert (confIndex.isUndefined(nextPos));
+
+					// skip children pruned by the pruning matrix
+					int numNextRCs = compatibility.getCompatibleRCs(confIndex, nextPos, nextRCs);
+
+					for (int i2=0; i2<numNextRCs; i2++) {
+						int nextRc = nextRCs[i2];
+
+						// if this child was pruned dynamically, then don't score it
+						if (pruner != null && pruner.isPruned(parent, nextPos, nextRc)) {
+							continue;
 						}
 
-					}, (ConfAStarNode child) -> {
+						tasks.submit(() -> {
 
-						// collect the possible children
-						if (Double.isFinite(child.getScore())) {
-							children.add(child);
-						}
-					});
+							try (Checkout<ScoreContext> checkout = contexts.autoCheckout()) {
+								ScoreContext context = checkout.get();
+
+								// score the child node differentially against the parent node
+								parent.index(context.index);
+								ConfAStarNode child = parent.assign(nextPos, nextRc);
+								child.setGScore(context.gscorer.calcDifferential(context.index, rcs, nextPos, nextRc), optimizer);
+								child.setHScore(context.hscorer.calcDifferential(context.index, rcs, nextPos, nextRc), optimizer);
+								return child;
+							}
+
+						}, (ConfAStarNode child) -> {
+
+							// collect the possible children
+							numChildrenScored++;
+							if (Double.isFinite(child.getScore())) {
+								children.add(child);
+								numChildren[parenti]++;
+							}
+						});
+					}
 				}
 				tasks.waitForFinish();
-				numChildren += children.size();
 				queue.pushAll(children);
+				numNodesExpanded += batch.size();
 
 				if (progress != null) {
-					progress.reportInternalNode(node.getLevel(), node.getGScore(optimizer), node.getHScore(optimizer), queue.size(), numChildren);
+					for (int i=0; i<batch.size(); i++) {
+						ConfAStarNode parent = batch.get(i);
+						progress.reportInternalNode(parent.getLevel(), parent.getGScore(optimizer), parent.getHScore(optimizer), queue.size(), numChildren[i]);
+					}
 				}
 			}
 		}
@@ -626,8 +911,39 @@ public class ConfAStarTree implements ConfSearch {
 			numNodes++;
 		}
 
-		// TODO: progress reporting?
-		// TODO: parallelism?
+		/**
+		 * Scores all the children of a node at once (possibly in parallel), and caches the scores in the node.
+		 * Child scores only depend on the parent node, so the search proceeds exactly as if the
+		 * children were scored one at a time. Re-spawning a forgotten child then doesn't need any re-scoring either.
+		 */
+		private void scoreChildren(ConfSMAStarNode node, int pos) {
+
+			int numChildren = rcs.getNum(pos);
+			node.allocateChildScores(numChildren);
+
+			for (int i=0; i<numChildren; i++) {
+				int index = i;
+				int rc = rcs.get(pos)[i];
+
+				tasks.submit(() -> {
+
+					try (Checkout<ScoreContext> checkout = contexts.autoCheckout()) {
+						ScoreContext context = checkout.get();
+
+						// score the child node differentially against the parent node
+						node.index(context.index);
+						return new double[] {
+							context.gscorer.calcDifferential(context.index, rcs, pos, rc),
+							context.hscorer.calcDifferential(context.index, rcs, pos, rc)
+						};
+					}
+
+				}, (double[] scores) -> {
+					node.setChildScores(index, scores[0], scores[1]);
+				});
+			}
+			tasks.waitForFinish();
+		}
 
 		@Override
 		public ScoredConf nextConf() {
@@ -674,6 +990,11 @@ public class ConfAStarTree implements ConfSearch {
 					numNodes -= node.parent.finishChild(node, q);
 
 					if (conf != null) {
+
+						if (progress != null) {
+							progress.reportLeafNode(node.getGScore(optimizer), numNodes);
+						}
+
 						return new ScoredConf(conf, node.getGScore(optimizer));
 					} else {
 						continue;
@@ -689,16 +1010,28 @@ public class ConfAStarTree implements ConfSearch {
 				int index = node.getNextChildIndex(rcs.getNum(pos));
 				int rc = rcs.get(pos)[index];
 
-				// score the child
+				// score the children, if needed
+				boolean isNewExpansion = !node.hasChildScores();
+				if (isNewExpansion) {
+					scoreChildren(node, pos);
+				}
+
+				// spawn the child
 				ConfSMAStarNode child = node.spawnChild(pos, rc, index);
-				child.setGScore(gscorer.calcDifferential(confIndex, rcs, pos, rc), optimizer);
-				child.setHScore(hscorer.calcDifferential(confIndex, rcs, pos, rc), optimizer);
+				child.setGScore(node.getChildGScore(index), optimizer);
+				child.setHScore(node.getChildHScore(index), optimizer);
 
 				// don't let the fscore go past the parent though
 				child.setScore(optimizer.reverse().opt(node.getScore(optimizer), child.getGScore(optimizer) + child.getHScore(optimizer)), optimizer);
 
 				numNodes++;
 
+				if (progress != null) {
+					// report the backed-up fscore as the bound, rather than the node's own g+h
+					double gscore = node.getGScore(optimizer);
+					progress.reportInternalNode(node.depth, gscore, node.getScore(optimizer) - gscore, numNodes, isNewExpansion ? rcs.getNum(pos) : 0);
+				}
+
 				// if we've seen all the node's children, backup the fscore
 				node.backup(q);
 
@@ -723,6 +1056,10 @@ public class ConfAStarTree implements ConfSearch {
 					}
 
 					numNodes--;
+
+					if (progress != null) {
+						progress.reportForgottenNode();
+					}
 				}
 
 				// add the child to the queue
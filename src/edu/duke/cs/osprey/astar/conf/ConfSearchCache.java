@@ -35,10 +35,16 @@ package edu.duke.cs.osprey.astar.conf;
 
 import edu.duke.cs.osprey.confspace.ConfSearch;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.math.BigInteger;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
 
@@ -50,6 +56,12 @@ import java.util.function.Supplier;
  *
  * Collected trees will be re-instantiated and enumerated to their
  * last known position when accessed again.
+ *
+ * If a checkpoint directory is given, {@link ConfAStarTree} instances are saved
+ * to a checkpoint file when they're exposed to garbage collection, so collected trees
+ * can be resumed from the checkpoint instead of re-enumerated from the root.
+ * Checkpoints are saved on a background thread, and only if the tree has enumerated
+ * more confs since its last checkpoint. The tree can't be collected until its checkpoint is saved.
  */
 public class ConfSearchCache {
 
@@ -61,6 +73,11 @@ public class ConfSearchCache {
 		private boolean isExhausted = false;
 		private ConfSearch strongRef = null;
 		private SoftReference<ConfSearch> softRef = null;
+		private File checkpointFile = null;
+		private long checkpointNumConfs = 0;
+
+		/** the checkpoint being saved in the background, if any. Returns the number of confs in the checkpoint */
+		private Future<Long> pendingCheckpoint = null;
 
 		private Entry(Supplier<ConfSearch> factory) {
 			this.factory = factory;
@@ -69,6 +86,9 @@ public class ConfSearchCache {
 
 		private ConfSearch getOrMakeTree() {
 
+			// don't touch the tree or the checkpoint file until any pending save is done
+			waitForCheckpoint();
+
 			// check the soft ref to see if we still have a tree
 			// (it could have been collected by the GC)
 			if (softRef != null) {
@@ -82,8 +102,13 @@ public class ConfSearchCache {
 			// don't have a tree, make a new one
 			ConfSearch tree = factory.get();
 
-			// and put it back to where it was
-			for (int i=0; i<numConfs; i++) {
+			// and put it back to where it was, using the checkpoint if we can
+			long numConfsToSkip = numConfs;
+			if (checkpointFile != null && tree instanceof ConfAStarTree) {
+				((ConfAStarTree)tree).resume(checkpointFile);
+				numConfsToSkip = numConfs - checkpointNumConfs;
+			}
+			for (long i=0; i<numConfsToSkip; i++) {
 				tree.nextConf();
 			}
 
@@ -110,17 +135,72 @@ public class ConfSearchCache {
 					Iterator<Entry> iter = recentEntries.iterator();
 
 					// get rid of the strong reference, so we only have the soft reference
-					iter.next().strongRef = null;
+					iter.next().expose();
 					iter.remove();
 				}
 			}
 		}
 
+		private void expose() {
+
+			// save a checkpoint first, in case the tree gets collected
+			// (unless the last checkpoint is still current)
+			if (checkpointDir != null && numConfs > checkpointNumConfs && strongRef instanceof ConfAStarTree) {
+				ConfAStarTree tree = (ConfAStarTree)strongRef;
+				if (tree.supportsCheckpoints()) {
+					try {
+						if (checkpointFile == null) {
+							checkpointFile = File.createTempFile("astar.", ".checkpoint", checkpointDir);
+							checkpointFile.deleteOnExit();
+						}
+					} catch (IOException ex) {
+						throw new RuntimeException("can't make A* checkpoint file in " + checkpointDir.getAbsolutePath(), ex);
+					}
+
+					// save off the caller's thread, the task keeps the tree alive until it's done
+					File file = checkpointFile;
+					long numConfsAtSave = numConfs;
+					pendingCheckpoint = getCheckpointer().submit(() -> {
+						tree.saveCheckpoint(file);
+						return numConfsAtSave;
+					});
+				}
+			}
+
+			strongRef = null;
+		}
+
+		private void waitForCheckpoint() {
+
+			if (pendingCheckpoint == null) {
+				return;
+			}
+
+			try {
+				checkpointNumConfs = pendingCheckpoint.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted while saving A* checkpoint", ex);
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("can't save A* checkpoint", ex.getCause());
+			} finally {
+				pendingCheckpoint = null;
+			}
+		}
+
 		public void clearRefs() {
 			softRef = null;
 			strongRef = null;
 		}
 
+		private void deleteCheckpoint() {
+			waitForCheckpoint();
+			if (checkpointFile != null) {
+				checkpointFile.delete();
+				checkpointFile = null;
+			}
+		}
+
 		public boolean isProtected() {
 			return strongRef != null;
 		}
@@ -139,14 +219,19 @@ public class ConfSearchCache {
 			}
 
 			// get the next conf
-			ScoredConf conf = getOrMakeTree().nextConf();
+			ConfSearch tree = getOrMakeTree();
+			ScoredConf conf = tree.nextConf();
 
 			// and keep track of which conf we're on
 			if (conf == null) {
 				isExhausted = true;
 
-				// and let GC take the tree
+				// release the tree's files now, and let GC take the rest of the tree
+				if (tree instanceof ConfAStarTree) {
+					((ConfAStarTree)tree).close();
+				}
 				clearRefs();
+				deleteCheckpoint();
 
 			} else {
 				numConfs++;
@@ -158,14 +243,33 @@ public class ConfSearchCache {
 
 
 	public final Integer minCapacity;
+	public final File checkpointDir;
 
 	private final LinkedHashSet<Entry> recentEntries = new LinkedHashSet<>();
+	private ExecutorService checkpointer = null;
 
 	public ConfSearchCache(Integer minCapacity) {
+		this(minCapacity, null);
+	}
+
+	public ConfSearchCache(Integer minCapacity, File checkpointDir) {
 		this.minCapacity = minCapacity;
+		this.checkpointDir = checkpointDir;
 	}
 
 	public Entry make(Supplier<ConfSearch> factory) {
 		return new Entry(factory);
 	}
+
+	private ExecutorService getCheckpointer() {
+		if (checkpointer == null) {
+			checkpointer = Executors.newSingleThreadExecutor((runnable) -> {
+				Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+				thread.setDaemon(true);
+				thread.setName("ConfSearchCache-checkpointer");
+				return thread;
+			});
+		}
+		return checkpointer;
+	}
 }
@@ -0,0 +1,163 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf.arena;
+
+import java.util.Arrays;
+
+import edu.duke.cs.osprey.astar.conf.ConfAStarNode;
+import edu.duke.cs.osprey.astar.conf.ConfIndex;
+
+/**
+ * A lightweight handle to an A* node stored in a {@link NodeArena}.
+ *
+ * Handles are cheap to create and aren't stored anywhere by the search,
+ * so many handles can refer to the same node.
+ */
+public class ArenaConfAStarNode implements ConfAStarNode {
+
+	public final NodeArena arena;
+	public final int index;
+
+	public ArenaConfAStarNode(NodeArena arena, int index) {
+		this.arena = arena;
+		this.index = index;
+	}
+
+	@Override
+	public ArenaConfAStarNode assign(int pos, int rc) {
+		return new ArenaConfAStarNode(arena, arena.add(index, pos, rc, getLevel() + 1));
+	}
+
+	@Override
+	public double getGScore() {
+		return arena.getGScore(index);
+	}
+
+	@Override
+	public void setGScore(double val) {
+		arena.setGScore(index, val);
+	}
+
+	@Override
+	public double getHScore() {
+		return arena.getHScore(index);
+	}
+
+	@Override
+	public void setHScore(double val) {
+		arena.setHScore(index, val);
+	}
+
+	@Override
+	public double getScore() {
+		return arena.getScore(index);
+	}
+
+	@Override
+	public int getLevel() {
+		return arena.getLevel(index);
+	}
+
+	@Override
+	public void getConf(int[] conf) {
+		Arrays.fill(conf, -1);
+		int i = index;
+		while (arena.getParent(i) != NodeArena.NoParent) {
+			conf[arena.getPos(i)] = arena.getRC(i);
+			i = arena.getParent(i);
+		}
+	}
+
+	@Override
+	public void index(ConfIndex index) {
+
+		// is this node already indexed?
+		if (index.node == this) {
+			return;
+		}
+		index.node = this;
+
+		// use local vars so the (JIT)compiler can use stack/registers instead of field accesses
+		NodeArena arena = this.arena;
+		int numPos = index.numPos;
+		int numDefined = 0;
+		int[] dpos = index.definedPos;
+		int[] rcs = index.definedRCs;
+		int numUndefined = 0;
+		int[] upos = index.undefinedPos;
+
+		// do one pass through the parent chain to get the defined positions
+		int i = this.index;
+		while (arena.getParent(i) != NodeArena.NoParent) {
+			dpos[numDefined] = arena.getPos(i);
+			rcs[numDefined] = arena.getRC(i);
+			numDefined++;
+			i = arena.getParent(i);
+		}
+
+		// sort the defined positions using a simple insertion sort
+		// assignments arrays are always small (n << 100), so insertion sort should be fast enough
+		// NOTE: we need to sort two arrays simultaneously, so we can't use any library sorts
+		for (int j=1; j<numDefined; j++) {
+
+			int tempPos = dpos[j];
+			int tempRC = rcs[j];
+
+			int k;
+			for (k=j; k>=1 && tempPos < dpos[k-1]; k--) {
+				dpos[k] = dpos[k-1];
+				rcs[k] = rcs[k-1];
+			}
+			dpos[k] = tempPos;
+			rcs[k] = tempRC;
+		}
+
+		// now figure out the undefined positions
+		int d = 0;
+		for (int pos=0; pos<numPos; pos++) {
+			if (d < numDefined && pos == dpos[d]) {
+				d++;
+			} else {
+				upos[numUndefined] = pos;
+				numUndefined++;
+			}
+		}
+
+		assert (numDefined + numUndefined == numPos);
+
+		// copy vars back to the index
+		index.numDefined = numDefined;
+		index.numUndefined = numUndefined;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf.arena;
+
+import edu.duke.cs.osprey.astar.conf.ConfAStarNode;
+import edu.duke.cs.osprey.externalMemory.IntDoubleHeap;
+import edu.duke.cs.osprey.externalMemory.Queue;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A min-heap of node indices in a {@link NodeArena}, ordered by node score.
+ *
+ * Only the integer node indices and their scores are stored in the heap,
+ * so the queue needs no per-node objects at all.
+ */
+public class ArenaNodeQueue implements Queue<ConfAStarNode> {
+
+	public final NodeArena arena;
+
+	private final IntDoubleHeap heap;
+
+	public ArenaNodeQueue(NodeArena arena) {
+		this.arena = arena;
+		this.heap = new IntDoubleHeap();
+	}
+
+	/**
+	 * Makes a new root node in this queue's arena.
+	 */
+	public ArenaConfAStarNode makeRootNode() {
+		return new ArenaConfAStarNode(arena, arena.addRoot());
+	}
+
+	private int checkNode(ConfAStarNode node) {
+
+		// just in case...
+		if (!(node instanceof ArenaConfAStarNode)) {
+			throw new IllegalArgumentException("node is not from an arena: " + node.getClass().getName());
+		}
+		ArenaConfAStarNode arenaNode = (ArenaConfAStarNode)node;
+		if (arenaNode.arena != arena) {
+			throw new IllegalArgumentException("node is from a different arena");
+		}
+
+		return arenaNode.index;
+	}
+
+	@Override
+	public void push(ConfAStarNode node) {
+		int index = checkNode(node);
+		heap.push(arena.getScore(index), index);
+	}
+
+	@Override
+	public ConfAStarNode peek() {
+		if (heap.isEmpty()) {
+			return null;
+		}
+		return new ArenaConfAStarNode(arena, heap.peekHandle());
+	}
+
+	@Override
+	public void pop() {
+		if (!heap.isEmpty()) {
+			heap.pop();
+		}
+	}
+
+	@Override
+	public long size() {
+		return heap.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return heap.isEmpty();
+	}
+
+	@Override
+	public Iterator<ConfAStarNode> peekIterator() {
+		return new Iterator<ConfAStarNode>() {
+
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < heap.size();
+			}
+
+			@Override
+			public ConfAStarNode next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return new ArenaConfAStarNode(arena, heap.getHandle(i++));
+			}
+		};
+	}
+}
@@ -0,0 +1,257 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf.arena;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stores A* nodes as fixed-size records in large chunks of memory,
+ * rather than as individual objects on the heap.
+ *
+ * Each record holds the index of the parent record, the assigned position and RC,
+ * the level, and the g and h scores. Nodes are referred to by their integer index.
+ *
+ * Nodes are never freed individually, the whole arena is released at once when it's garbage collected.
+ */
+public class NodeArena {
+
+	public static enum Precision {
+
+		/** Scores are stored exactly */
+		Double(java.lang.Double.BYTES) {
+
+			@Override
+			public double read(ByteBuffer buf, int offset) {
+				return buf.getDouble(offset);
+			}
+
+			@Override
+			public void write(ByteBuffer buf, int offset, double val) {
+				buf.putDouble(offset, val);
+			}
+		},
+
+		/**
+		 * Scores are rounded to single precision, which saves space,
+		 * but might change the order of nodes with very similar scores.
+		 */
+		Float(java.lang.Float.BYTES) {
+
+			@Override
+			public double read(ByteBuffer buf, int offset) {
+				return buf.getFloat(offset);
+			}
+
+			@Override
+			public void write(ByteBuffer buf, int offset, double val) {
+				buf.putFloat(offset, (float)val);
+			}
+		};
+
+		public final int numBytes;
+
+		private Precision(int numBytes) {
+			this.numBytes = numBytes;
+		}
+
+		public abstract double read(ByteBuffer buf, int offset);
+		public abstract void write(ByteBuffer buf, int offset, double val);
+	}
+
+	public static class FullException extends RuntimeException {
+
+		private static final long serialVersionUID = 3946728468591384756L;
+
+		public FullException(long maxNumNodes) {
+			super("A* node arena is full, can't store more than " + maxNumNodes + " nodes");
+		}
+	}
+
+	public static final int NoParent = -1;
+
+	// chunks of 1M nodes are big enough to amortize allocation, but small enough to not waste much space
+	private static final int ChunkBits = 20;
+	private static final int ChunkSize = 1 << ChunkBits;
+	private static final int ChunkMask = ChunkSize - 1;
+	private static final int MaxNumChunks = Integer.MAX_VALUE/ChunkSize + 1;
+
+	// record layout
+	private static final int ParentOffset = 0;
+	private static final int PosOffset = ParentOffset + Integer.BYTES;
+	private static final int RCOffset = PosOffset + Short.BYTES;
+	private static final int LevelOffset = RCOffset + Short.BYTES;
+	private static final int GScoreOffset = LevelOffset + Short.BYTES;
+
+	public final Precision precision;
+	public final boolean offHeap;
+	public final int recordBytes;
+
+	private final int hscoreOffset;
+	private final AtomicReferenceArray<ByteBuffer> chunks;
+	private final AtomicInteger numNodes;
+
+	public NodeArena(Precision precision, boolean offHeap) {
+
+		this.precision = precision;
+		this.offHeap = offHeap;
+
+		hscoreOffset = GScoreOffset + precision.numBytes;
+		recordBytes = hscoreOffset + precision.numBytes;
+
+		chunks = new AtomicReferenceArray<>(MaxNumChunks);
+		numNodes = new AtomicInteger(0);
+	}
+
+	/** the number of nodes ever allocated in this arena */
+	public int size() {
+		return numNodes.get();
+	}
+
+	/** the number of bytes allocated for node storage */
+	public long getNumBytes() {
+		long numChunks = (size() + ChunkSize - 1) >>> ChunkBits;
+		return numChunks*ChunkSize*recordBytes;
+	}
+
+	/**
+	 * Allocates a new node. Safe to call from multiple threads at once.
+	 */
+	public int add(int parent, int pos, int rc, int level) {
+
+		// the record only has room for shorts, and the root uses -1 for pos and rc
+		checkShort("pos", pos, -1);
+		checkShort("rc", rc, -1);
+		checkShort("level", level, 0);
+
+		int index = numNodes.getAndIncrement();
+		if (index < 0) {
+			throw new FullException(Integer.MAX_VALUE);
+		}
+
+		ByteBuffer chunk = getOrMakeChunk(index >>> ChunkBits);
+		int offset = offset(index);
+		chunk.putInt(offset + ParentOffset, parent);
+		chunk.putShort(offset + PosOffset, (short)pos);
+		chunk.putShort(offset + RCOffset, (short)rc);
+		chunk.putShort(offset + LevelOffset, (short)level);
+		precision.write(chunk, offset + GScoreOffset, java.lang.Double.NaN);
+		precision.write(chunk, offset + hscoreOffset, java.lang.Double.NaN);
+		return index;
+	}
+
+	private static void checkShort(String name, int val, int min) {
+		if (val < min || val > Short.MAX_VALUE) {
+			throw new IllegalArgumentException(name + " " + val + " is outside the range the arena can store: [" + min + "," + Short.MAX_VALUE + "]");
+		}
+	}
+
+	public int addRoot() {
+		return add(NoParent, -1, -1, 0);
+	}
+
+	private ByteBuffer getOrMakeChunk(int chunki) {
+
+		// fast path: the chunk already exists
+		// (the atomic read guarantees we see the fully-initialized chunk made by another thread)
+		ByteBuffer chunk = chunks.get(chunki);
+		if (chunk != null) {
+			return chunk;
+		}
+
+		// slow path: only one thread should make the chunk
+		synchronized (chunks) {
+			chunk = chunks.get(chunki);
+			if (chunk == null) {
+				int numBytes = ChunkSize*recordBytes;
+				if (offHeap) {
+					chunk = ByteBuffer.allocateDirect(numBytes);
+				} else {
+					chunk = ByteBuffer.allocate(numBytes);
+				}
+				chunk.order(ByteOrder.nativeOrder());
+				chunks.set(chunki, chunk);
+			}
+			return chunk;
+		}
+	}
+
+	private ByteBuffer chunk(int index) {
+		return chunks.get(index >>> ChunkBits);
+	}
+
+	private int offset(int index) {
+		return (index & ChunkMask)*recordBytes;
+	}
+
+	public int getParent(int index) {
+		return chunk(index).getInt(offset(index) + ParentOffset);
+	}
+
+	public int getPos(int index) {
+		return chunk(index).getShort(offset(index) + PosOffset);
+	}
+
+	public int getRC(int index) {
+		return chunk(index).getShort(offset(index) + RCOffset);
+	}
+
+	public int getLevel(int index) {
+		return chunk(index).getShort(offset(index) + LevelOffset);
+	}
+
+	public double getGScore(int index) {
+		return precision.read(chunk(index), offset(index) + GScoreOffset);
+	}
+
+	public void setGScore(int index, double val) {
+		precision.write(chunk(index), offset(index) + GScoreOffset, val);
+	}
+
+	public double getHScore(int index) {
+		return precision.read(chunk(index), offset(index) + hscoreOffset);
+	}
+
+	public void setHScore(int index, double val) {
+		precision.write(chunk(index), offset(index) + hscoreOffset, val);
+	}
+
+	public double getScore(int index) {
+		ByteBuffer chunk = chunk(index);
+		int offset = offset(index);
+		return precision.read(chunk, offset + GScoreOffset) + precision.read(chunk, offset + hscoreOffset);
+	}
+}
@@ -41,7 +41,7 @@ public class LinkedConfAStarFactory implements ConfAStarFactory {
 	
 	@Override
 	public Queue<ConfAStarNode> makeQueue(RCs rcs) {
-		return Queue.PriorityFactory.of(null);
+		return Queue.DoublePriorityFactory.of(ConfAStarNode::getScore);
 	}
 	
 	@Override
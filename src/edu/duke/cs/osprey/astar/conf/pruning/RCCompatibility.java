@@ -0,0 +1,354 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf.pruning;
+
+import edu.duke.cs.osprey.astar.conf.ConfIndex;
+import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.confspace.PackedTupleIndex;
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.pruning.PruningMatrix;
+
+import java.util.Arrays;
+
+
+/**
+ * Precomputed lookup of which RCs are still compatible with a partial conformation,
+ * according to the pruned pairs and triples in a pruning matrix.
+ *
+ * For each RC, we keep a bitset of the compatible RCs at every other position,
+ * so filtering the children of an A* node costs only a few word-wise ANDs per defined position,
+ * rather than one pruning matrix lookup per defined position per child.
+ * Bits are indexed by the position of the RC in {@link RCs#get(int)}, not by the RC number.
+ *
+ * Pruned triples are kept in a {@link PackedTupleIndex},
+ * so checking them doesn't allocate and sort an {@link RCTuple}.
+ *
+ * Instances are not thread-safe, since they keep scratch space for filtering.
+ */
+public class RCCompatibility {
+
+	private static final int NoIndex = -1;
+
+	public final RCs rcs;
+
+	private final int numPos;
+
+	/** maps [pos][rc] to the index of the rc in rcs.get(pos), or NoIndex */
+	private final int[][] rcIndices;
+
+	/** offset of the mask words for each position, within the masks of one RC */
+	private final int[] wordOffsets;
+	private final int[] numWords;
+	private final int wordsPerRC;
+
+	/** [pos][rcIndex*wordsPerRC + wordOffsets[pos2] + word], or null if nothing is pruned */
+	private final long[][] masks;
+
+	/** maps (pos, rc) to a global RC number */
+	private final int[] rcOffsets;
+
+	/** pruned triples, or null if there aren't any */
+	private final PackedTupleIndex triples;
+
+	/** which global RCs appear in any pruned triple */
+	private final boolean[] inTriple;
+
+	private final long[] scratchWords;
+	private final int[] scratchTriplePos;
+	private final int[] scratchTripleRCs;
+
+	public RCCompatibility(RCs rcs) {
+		this(rcs, rcs.getPruneMat());
+	}
+
+	public RCCompatibility(RCs rcs, PruningMatrix pmat) {
+
+		this.rcs = rcs;
+		this.numPos = rcs.getNumPos();
+
+		// index the unpruned RCs at each position
+		int maxNumConfs = 0;
+		rcIndices = new int[numPos][];
+		wordOffsets = new int[numPos];
+		numWords = new int[numPos];
+		int words = 0;
+		for (int pos=0; pos<numPos; pos++) {
+			int[] rcsAtPos = rcs.get(pos);
+			int numConfs = 0;
+			for (int rc : rcsAtPos) {
+				numConfs = Math.max(numConfs, rc + 1);
+			}
+			if (pmat != null) {
+				numConfs = Math.max(numConfs, pmat.getNumConfAtPos(pos));
+			}
+			maxNumConfs = Math.max(maxNumConfs, numConfs);
+			rcIndices[pos] = new int[numConfs];
+			Arrays.fill(rcIndices[pos], NoIndex);
+			for (int i=0; i<rcsAtPos.length; i++) {
+				rcIndices[pos][rcsAtPos[i]] = i;
+			}
+			wordOffsets[pos] = words;
+			numWords[pos] = (rcsAtPos.length + 63) >>> 6;
+			words += numWords[pos];
+		}
+		wordsPerRC = words;
+		scratchWords = new long[wordsPerRC];
+		scratchTriplePos = new int[numPos];
+		scratchTripleRCs = new int[numPos];
+
+		// assign global numbers to all the RCs
+		rcOffsets = new int[numPos];
+		int n = 0;
+		for (int pos=0; pos<numPos; pos++) {
+			rcOffsets[pos] = n;
+			n += rcIndices[pos].length;
+		}
+
+		if (pmat == null) {
+			masks = null;
+			triples = null;
+			inTriple = null;
+			return;
+		}
+
+		masks = makeMasks(pmat);
+
+		if (pmat.hasHigherOrderTuples()) {
+			inTriple = new boolean[n];
+			triples = makeTriples(pmat);
+		} else {
+			inTriple = null;
+			triples = null;
+		}
+	}
+
+	private long[][] makeMasks(PruningMatrix pmat) {
+
+		long[][] masks = new long[numPos][];
+		boolean anyPruned = false;
+
+		for (int pos1=0; pos1<numPos; pos1++) {
+			int[] rcs1 = rcs.get(pos1);
+			masks[pos1] = new long[rcs1.length*wordsPerRC];
+
+			for (int i1=0; i1<rcs1.length; i1++) {
+				int rc1 = rcs1[i1];
+				int base = i1*wordsPerRC;
+
+				for (int pos2=0; pos2<numPos; pos2++) {
+					if (pos2 == pos1) {
+						continue;
+					}
+					int[] rcs2 = rcs.get(pos2);
+					int offset = base + wordOffsets[pos2];
+
+					for (int i2=0; i2<rcs2.length; i2++) {
+						if (pmat.getPairwise(pos1, rc1, pos2, rcs2[i2])) {
+							anyPruned = true;
+						} else {
+							masks[pos1][offset + (i2 >>> 6)] |= 1L << i2;
+						}
+					}
+				}
+			}
+		}
+
+		// no pruned pairs? skip the masks entirely
+		if (!anyPruned) {
+			return null;
+		}
+		return masks;
+	}
+
+	private PackedTupleIndex makeTriples(PruningMatrix pmat) {
+
+		int[] numConfAtPos = new int[numPos];
+		for (int pos=0; pos<numPos; pos++) {
+			numConfAtPos[pos] = rcIndices[pos].length;
+		}
+
+		PackedTupleIndex triples = new PackedTupleIndex(numConfAtPos);
+		pmat.forEachHigherOrderTuple((tuple, isPruned) -> {
+			if (tuple.size() != 3 || !Boolean.TRUE.equals(isPruned)) {
+				return;
+			}
+			triples.add(tuple);
+			for (int i=0; i<3; i++) {
+				inTriple[globalRC(tuple.pos.get(i), tuple.RCs.get(i))] = true;
+			}
+		});
+
+		if (triples.size() == 0) {
+			return null;
+		}
+		return triples;
+	}
+
+	private int globalRC(int pos, int rc) {
+		return rcOffsets[pos] + rc;
+	}
+
+	public boolean hasPrunedPairs() {
+		return masks != null;
+	}
+
+	public boolean hasPrunedTriples() {
+		return triples != null;
+	}
+
+	/**
+	 * Is the pair of RCs pruned? Both RCs must be unpruned singles in the RCs.
+	 */
+	public boolean isPairPruned(int pos1, int rc1, int pos2, int rc2) {
+		if (masks == null) {
+			return false;
+		}
+		int i2 = rcIndices[pos2][rc2];
+		long word = masks[pos1][rcIndices[pos1][rc1]*wordsPerRC + wordOffsets[pos2] + (i2 >>> 6)];
+		return (word & (1L << i2)) == 0;
+	}
+
+	/**
+	 * Is the triple of RCs pruned? The positions can be in any order.
+	 */
+	public boolean isTriplePruned(int pos1, int rc1, int pos2, int rc2, int pos3, int rc3) {
+
+		if (triples == null) {
+			return false;
+		}
+
+		return triples.find(pos1, rc1, pos2, rc2, pos3, rc3) != PackedTupleIndex.NotFound;
+	}
+
+	/**
+	 * Finds the RCs at nextPos that aren't pruned by any pair or triple
+	 * with the RCs already assigned in the conf index.
+	 *
+	 * @param out receives the compatible RCs, in the same order as rcs.get(nextPos).
+	 *            Must have room for at least rcs.getNum(nextPos) elements.
+	 * @return the number of compatible RCs written to out
+	 */
+	public int getCompatibleRCs(ConfIndex confIndex, int nextPos, int[] out) {
+
+		int[] nextRCs = rcs.get(nextPos);
+
+		// no pruned pairs? everything is compatible (except maybe triples)
+		if (masks == null) {
+			if (triples == null) {
+				System.arraycopy(nextRCs, 0, out, 0, nextRCs.length);
+				return nextRCs.length;
+			}
+			int numTriplePos = collectTripleRCs(confIndex);
+			int numOut = 0;
+			for (int nextRc : nextRCs) {
+				if (numTriplePos <= 1 || !isTriplePruned(numTriplePos, nextPos, nextRc)) {
+					out[numOut++] = nextRc;
+				}
+			}
+			return numOut;
+		}
+
+		// AND together the masks for all the defined RCs
+		int offset = wordOffsets[nextPos];
+		int numWords = this.numWords[nextPos];
+		Arrays.fill(scratchWords, 0, numWords, -1L);
+		for (int i=0; i<confIndex.numDefined; i++) {
+			int pos = confIndex.definedPos[i];
+			int base = rcIndices[pos][confIndex.definedRCs[i]]*wordsPerRC + offset;
+			long[] posMasks = masks[pos];
+			for (int w=0; w<numWords; w++) {
+				scratchWords[w] &= posMasks[base + w];
+			}
+		}
+
+		// collect the surviving RCs
+		int numTriplePos = collectTripleRCs(confIndex);
+		int numOut = 0;
+		for (int w=0; w<numWords; w++) {
+			long word = scratchWords[w];
+			while (word != 0) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+
+				// the top word can have extra bits set past the end of the RCs
+				if (i >= nextRCs.length) {
+					break;
+				}
+
+				int nextRc = nextRCs[i];
+				if (numTriplePos > 1 && isTriplePruned(numTriplePos, nextPos, nextRc)) {
+					continue;
+				}
+				out[numOut++] = nextRc;
+			}
+		}
+		return numOut;
+	}
+
+	/** collect the defined RCs that appear in any pruned triple, so we don't have to check the others */
+	private int collectTripleRCs(ConfIndex confIndex) {
+		if (triples == null) {
+			return 0;
+		}
+		int n = 0;
+		for (int i=0; i<confIndex.numDefined; i++) {
+			int pos = confIndex.definedPos[i];
+			int rc = confIndex.definedRCs[i];
+			if (inTriple[globalRC(pos, rc)]) {
+				scratchTriplePos[n] = pos;
+				scratchTripleRCs[n] = rc;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private boolean isTriplePruned(int numTriplePos, int nextPos, int nextRc) {
+		if (!inTriple[globalRC(nextPos, nextRc)]) {
+			return false;
+		}
+		for (int i1=0; i1<numTriplePos; i1++) {
+			for (int i2=0; i2<i1; i2++) {
+				if (isTriplePruned(
+					scratchTriplePos[i1], scratchTripleRCs[i1],
+					scratchTriplePos[i2], scratchTripleRCs[i2],
+					nextPos, nextRc
+				)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
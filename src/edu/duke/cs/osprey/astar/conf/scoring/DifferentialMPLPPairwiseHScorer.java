@@ -0,0 +1,200 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf.scoring;
+
+import edu.duke.cs.osprey.astar.conf.ConfAStarNode;
+import edu.duke.cs.osprey.astar.conf.ConfIndex;
+import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.astar.conf.scoring.mplp.MPLPUpdater;
+import edu.duke.cs.osprey.astar.conf.scoring.mplp.MessageVars;
+import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Just like {@link MPLPPairwiseHScorer}, except child nodes start MPLP from
+ * the converged messages of their parent node, instead of from the traditional A* heuristic.
+ *
+ * Children differ from their parent by only one assignment, so most of the parent's messages
+ * are still good starting points. The parent's messages are computed once per node expansion
+ * and shared by all of its children, so more MPLP iterations can be afforded per node.
+ *
+ * All the scorers made by {@link #make()} share the parent messages, so when children of the same parent
+ * are scored by different scorers on different threads, the parent messages are still only computed once.
+ */
+public class DifferentialMPLPPairwiseHScorer implements AStarScorer {
+
+	/**
+	 * Remember the messages for the most recently expanded nodes.
+	 * Children are scored roughly in the order they're submitted, so when an expansion batch
+	 * has fewer parents than this, the oldest parent's children are usually done before it's evicted.
+	 * That's not guaranteed though, eg for bigger batches. A child whose parent was already evicted
+	 * just recomputes the parent's messages, so scores are the same either way, only the work isn't.
+	 */
+	private static final int MaxNumParents = 64;
+
+	/** the converged messages for one parent node, computed by whichever scorer needs them first */
+	private static class ParentMessages {
+
+		final RCs rcs;
+		MessageVars lambdas = null;
+
+		ParentMessages(RCs rcs) {
+			this.rcs = rcs;
+		}
+	}
+
+	private static class ParentCache extends LinkedHashMap<ConfAStarNode,ParentMessages> {
+
+		private static final long serialVersionUID = 2860916374725173105L;
+
+		ParentCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ConfAStarNode,ParentMessages> eldest) {
+			return size() > MaxNumParents;
+		}
+
+		synchronized ParentMessages getOrMake(ConfAStarNode node, RCs rcs) {
+			ParentMessages messages = get(node);
+			if (messages == null || messages.rcs != rcs) {
+				messages = new ParentMessages(rcs);
+				put(node, messages);
+			}
+			return messages;
+		}
+	}
+
+	private final MPLPUpdater updater;
+	private final EnergyMatrix emat;
+	private final int maxNumIterations;
+	private final double epsilon;
+	private final ParentCache parents;
+	private PairwiseEnergyTable table = null;
+
+	public DifferentialMPLPPairwiseHScorer(MPLPUpdater updater, EnergyMatrix emat, int maxNumIterations, double epsilon) {
+		this(updater, emat, maxNumIterations, epsilon, new ParentCache());
+	}
+
+	public DifferentialMPLPPairwiseHScorer(MPLPUpdater updater, PairwiseEnergyTable table, int maxNumIterations, double epsilon) {
+		this(updater, table.emat, maxNumIterations, epsilon);
+		this.table = table;
+	}
+
+	private DifferentialMPLPPairwiseHScorer(MPLPUpdater updater, EnergyMatrix emat, int maxNumIterations, double epsilon, ParentCache parents) {
+		this.updater = updater;
+		this.emat = emat;
+		this.maxNumIterations = maxNumIterations;
+		this.epsilon = epsilon;
+		this.parents = parents;
+	}
+
+	@Override
+	public DifferentialMPLPPairwiseHScorer make() {
+		DifferentialMPLPPairwiseHScorer other = new DifferentialMPLPPairwiseHScorer(updater, emat, maxNumIterations, epsilon, parents);
+		other.table = table;
+		return other;
+	}
+
+	private PairwiseEnergyTable getTable(RCs rcs) {
+		if (table == null || table.rcs != rcs) {
+			table = new PairwiseEnergyTable(emat, rcs);
+		}
+		return table;
+	}
+
+	@Override
+	public double calc(ConfIndex confIndex, RCs rcs) {
+
+		// init lambdas using the traditional A* heuristic
+		MessageVars lambdas = new MessageVars(rcs, confIndex);
+		PairwiseEnergyTable table = getTable(rcs);
+		lambdas.initTraditionalAStar(table);
+
+		return run(lambdas, table);
+	}
+
+	@Override
+	public double calcDifferential(ConfIndex confIndex, RCs rcs, int nextPos, int nextRc) {
+
+		// without a node, we can't tell when the parent changes, so don't bother caching
+		if (confIndex.node == null) {
+			return calc(confIndex.assign(nextPos, nextRc), rcs);
+		}
+
+		// get the converged messages for the parent node
+		MessageVars parentLambdas = getParentLambdas(confIndex, rcs);
+
+		// start the child from the parent's messages
+		MessageVars lambdas = new MessageVars(rcs, confIndex.assign(nextPos, nextRc));
+		PairwiseEnergyTable table = getTable(rcs);
+		lambdas.initFromParent(parentLambdas, table, nextPos, nextRc);
+
+		return run(lambdas, table);
+	}
+
+	private MessageVars getParentLambdas(ConfIndex confIndex, RCs rcs) {
+
+		ParentMessages messages = parents.getOrMake(confIndex.node, rcs);
+
+		// only the first scorer to get here runs MPLP for the parent, the rest wait for it
+		// (the lambdas are never modified after that, so they can be read by all the scorers at once)
+		synchronized (messages) {
+			if (messages.lambdas == null) {
+				MessageVars lambdas = new MessageVars(rcs, new ConfIndex(confIndex));
+				PairwiseEnergyTable table = getTable(rcs);
+				lambdas.initTraditionalAStar(table);
+				run(lambdas, table);
+				messages.lambdas = lambdas;
+			}
+			return messages.lambdas;
+		}
+	}
+
+	private double run(MessageVars lambdas, PairwiseEnergyTable table) {
+		double energy = lambdas.getTotalEnergy();
+		for (int i=0; i<maxNumIterations; i++) {
+			updater.update(lambdas, table);
+			double newEnergy = lambdas.getTotalEnergy();
+			if (Math.abs(newEnergy - energy) < epsilon) {
+				break;
+			}
+			energy = newEnergy;
+		}
+		return energy;
+	}
+}
@@ -44,6 +44,7 @@ public class MPLPPairwiseHScorer implements AStarScorer {
 	private EnergyMatrix emat;
 	private int maxNumIterations;
 	private double epsilon;
+	private PairwiseEnergyTable table = null;
 
 	public MPLPPairwiseHScorer(MPLPUpdater updater, EnergyMatrix emat, int maxNumIterations, double epsilon) {
 		this.updater = updater;
@@ -51,10 +52,24 @@ public class MPLPPairwiseHScorer implements AStarScorer {
 		this.maxNumIterations = maxNumIterations;
 		this.epsilon = epsilon;
 	}
+
+	public MPLPPairwiseHScorer(MPLPUpdater updater, PairwiseEnergyTable table, int maxNumIterations, double epsilon) {
+		this(updater, table.emat, maxNumIterations, epsilon);
+		this.table = table;
+	}
 	
 	@Override
 	public MPLPPairwiseHScorer make() {
-		return new MPLPPairwiseHScorer(updater, emat, maxNumIterations, epsilon);
+		MPLPPairwiseHScorer other = new MPLPPairwiseHScorer(updater, emat, maxNumIterations, epsilon);
+		other.table = table;
+		return other;
+	}
+
+	private PairwiseEnergyTable getTable(RCs rcs) {
+		if (table == null || table.rcs != rcs) {
+			table = new PairwiseEnergyTable(emat, rcs);
+		}
+		return table;
 	}
 
 	@Override
@@ -63,12 +78,13 @@ public class MPLPPairwiseHScorer implements AStarScorer {
 		// init lambdas using the traditional A* heuristic
 		// NOTE: we must use these initial values for early stopping to be sound
 		MessageVars lambdas = new MessageVars(rcs, confIndex);
-		lambdas.initTraditionalAStar(emat);
+		PairwiseEnergyTable table = getTable(rcs);
+		lambdas.initTraditionalAStar(table);
 		
 		// run MPLP
 		double energy = lambdas.getTotalEnergy();
 		for (int i=0; i<maxNumIterations; i++) {
-			updater.update(lambdas, emat);
+			updater.update(lambdas, table);
 			double newEnergy = lambdas.getTotalEnergy();
 			if (Math.abs(newEnergy - energy) < epsilon) {
 				break;
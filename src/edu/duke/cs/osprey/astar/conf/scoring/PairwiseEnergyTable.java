@@ -0,0 +1,268 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar.conf.scoring;
+
+import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.ematrix.SparseEnergyMatrix;
+import edu.duke.cs.osprey.tools.MathTools;
+
+import java.util.Arrays;
+
+/**
+ * A read-only copy of the one-body and pairwise energies of an {@link EnergyMatrix},
+ * laid out for the pairwise A* scorers.
+ *
+ * Only the RCs in the {@link RCs} are copied, and they're indexed by their place in the RCs list
+ * (ie, rcs.get(pos, i) is RC index i) rather than by RC number.
+ *
+ * Pairwise energies are stored in both orientations, so for each RC at a position,
+ * the energies with every RC at every other position make one contiguous row in unboxed storage.
+ * The A* scorers always hold one RC fixed and sweep over the RCs at other positions,
+ * so they can walk a row using {@link #getRow} and {@link #getPairwise(int, int)}
+ * without boxing or any per-energy index math. The price is twice the memory of the pairwise
+ * energies for the RCs copied, or about the same memory as the energy matrix with {@link Storage#Float32}.
+ *
+ * If the energy matrix is a {@link SparseEnergyMatrix}, rows only have energies for neighboring positions,
+ * and the scorers should skip the other positions, whose pair energies are all zero (see {@link #isNeighbor}).
+ *
+ * The table is a snapshot, so later changes to the energy matrix aren't seen by the table.
+ * Higher-order terms aren't copied.
+ */
+public class PairwiseEnergyTable {
+
+	public static enum Storage {
+
+		/** energies are stored exactly */
+		Float64,
+
+		/**
+		 * energies are stored in half the space, but rounded in the optimizer's direction
+		 * (eg, down when minimizing), so A* scores computed from the table are still bounds
+		 */
+		Float32
+	}
+
+	public final EnergyMatrix emat;
+	public final RCs rcs;
+	public final Storage storage;
+	public final double constTerm;
+
+	private final int numPos;
+	private final boolean[][] neighbors; // indexed by pos1, pos2
+	private final int[][] indices; // indexed by pos, RC number, gives index into rcs.get(pos), or -1
+	private final double[][] oneBody; // indexed by pos, RC index
+	private final int[] rowSizes; // indexed by pos1
+	private final int[][] rowOffsets; // indexed by pos1, pos2, gives offset into the row for pos1
+	private final double[][] pairwise64; // indexed by pos1, row index
+	private final float[][] pairwise32; // indexed by pos1, row index
+
+	public PairwiseEnergyTable(EnergyMatrix emat, RCs rcs) {
+		this(emat, rcs, Storage.Float64, MathTools.Optimizer.Minimize);
+	}
+
+	public PairwiseEnergyTable(EnergyMatrix emat, RCs rcs, Storage storage, MathTools.Optimizer optimizer) {
+
+		if (rcs.getNumPos() != emat.getNumPos()) {
+			throw new IllegalArgumentException(String.format("RCs has %d positions, but energy matrix has %d",
+				rcs.getNumPos(), emat.getNumPos()
+			));
+		}
+
+		this.emat = emat;
+		this.rcs = rcs;
+		this.storage = storage;
+		this.constTerm = emat.getConstTerm();
+
+		numPos = rcs.getNumPos();
+
+		// only sparse energy matrices have non-neighbors
+		neighbors = new boolean[numPos][numPos];
+		for (int pos1=0; pos1<numPos; pos1++) {
+			for (int pos2=0; pos2<numPos; pos2++) {
+				if (pos2 != pos1) {
+					neighbors[pos1][pos2] = !(emat instanceof SparseEnergyMatrix) || ((SparseEnergyMatrix)emat).isNeighbor(pos1, pos2);
+				}
+			}
+		}
+
+		// map RC numbers to RC indices
+		indices = new int[numPos][];
+		for (int pos=0; pos<numPos; pos++) {
+			indices[pos] = new int[emat.getNumConfAtPos(pos)];
+			Arrays.fill(indices[pos], -1);
+			int[] rcsAtPos = rcs.get(pos);
+			for (int i=0; i<rcsAtPos.length; i++) {
+				indices[pos][rcsAtPos[i]] = i;
+			}
+		}
+
+		// copy the one-body energies
+		oneBody = new double[numPos][];
+		for (int pos=0; pos<numPos; pos++) {
+			int[] rcsAtPos = rcs.get(pos);
+			oneBody[pos] = new double[rcsAtPos.length];
+			for (int i=0; i<rcsAtPos.length; i++) {
+				oneBody[pos][i] = emat.getOneBody(pos, rcsAtPos[i]);
+			}
+		}
+
+		// lay out the rows
+		rowSizes = new int[numPos];
+		rowOffsets = new int[numPos][numPos];
+		for (int pos1=0; pos1<numPos; pos1++) {
+			int offset = 0;
+			for (int pos2=0; pos2<numPos; pos2++) {
+				if (!neighbors[pos1][pos2]) {
+					rowOffsets[pos1][pos2] = -1;
+				} else {
+					rowOffsets[pos1][pos2] = offset;
+					offset += rcs.getNum(pos2);
+				}
+			}
+			rowSizes[pos1] = offset;
+		}
+
+		// allocate the pairwise storage
+		switch (storage) {
+			case Float64:
+				pairwise64 = new double[numPos][];
+				pairwise32 = null;
+				for (int pos1=0; pos1<numPos; pos1++) {
+					pairwise64[pos1] = new double[rcs.getNum(pos1)*rowSizes[pos1]];
+				}
+			break;
+			case Float32:
+				pairwise64 = null;
+				pairwise32 = new float[numPos][];
+				for (int pos1=0; pos1<numPos; pos1++) {
+					pairwise32[pos1] = new float[rcs.getNum(pos1)*rowSizes[pos1]];
+				}
+			break;
+			default:
+				throw new UnsupportedOperationException("unknown storage: " + storage);
+		}
+
+		// copy the pairwise energies, reading each one from the energy matrix just once
+		for (int pos1=0; pos1<numPos; pos1++) {
+			int[] rcs1 = rcs.get(pos1);
+			for (int pos2=0; pos2<pos1; pos2++) {
+				if (!neighbors[pos1][pos2]) {
+					continue;
+				}
+				int[] rcs2 = rcs.get(pos2);
+				for (int i1=0; i1<rcs1.length; i1++) {
+					for (int i2=0; i2<rcs2.length; i2++) {
+						double energy = emat.getPairwise(pos1, rcs1[i1], pos2, rcs2[i2]);
+						set(pos1, getRow(pos1, i1, pos2) + i2, energy, optimizer);
+						set(pos2, getRow(pos2, i2, pos1) + i1, energy, optimizer);
+					}
+				}
+			}
+		}
+	}
+
+	private void set(int pos1, int index, double energy, MathTools.Optimizer optimizer) {
+		if (pairwise64 != null) {
+			pairwise64[pos1][index] = energy;
+		} else {
+			pairwise32[pos1][index] = round(energy, optimizer);
+		}
+	}
+
+	private static float round(double energy, MathTools.Optimizer optimizer) {
+		float rounded = (float)energy;
+		if (optimizer == MathTools.Optimizer.Minimize) {
+			if (rounded > energy) {
+				rounded = Math.nextDown(rounded);
+			}
+		} else {
+			if (rounded < energy) {
+				rounded = Math.nextUp(rounded);
+			}
+		}
+		return rounded;
+	}
+
+	public int getNumPos() {
+		return numPos;
+	}
+
+	/** number of RCs at the position */
+	public int getNum(int pos) {
+		return oneBody[pos].length;
+	}
+
+	/** index of the RC in rcs.get(pos), or -1 if the RC isn't in the table */
+	public int getIndex(int pos, int rc) {
+		return indices[pos][rc];
+	}
+
+	public double getOneBody(int pos, int i) {
+		return oneBody[pos][i];
+	}
+
+	/**
+	 * True if the rows for pos1 have energies for pos2.
+	 * Otherwise, the pair energies between the two positions are all zero.
+	 */
+	public boolean isNeighbor(int pos1, int pos2) {
+		return neighbors[pos1][pos2];
+	}
+
+	/**
+	 * Index of the energy between RC index i1 at pos1 and RC index 0 at pos2, in the row storage for pos1.
+	 * The energy with RC index i2 at pos2 is at getRow(pos1, i1, pos2) + i2.
+	 * The positions must be neighbors.
+	 */
+	public int getRow(int pos1, int i1, int pos2) {
+		return i1*rowSizes[pos1] + rowOffsets[pos1][pos2];
+	}
+
+	/** the pairwise energy at the index in the row storage for pos1, see {@link #getRow} */
+	public double getPairwise(int pos1, int index) {
+		if (pairwise64 != null) {
+			return pairwise64[pos1][index];
+		} else {
+			return pairwise32[pos1][index];
+		}
+	}
+
+	public double getPairwise(int pos1, int i1, int pos2, int i2) {
+		if (!neighbors[pos1][pos2]) {
+			return 0.0;
+		}
+		return getPairwise(pos1, getRow(pos1, i1, pos2) + i2);
+	}
+}
@@ -42,6 +42,10 @@ public class PairwiseGScorer implements AStarScorer {
 	public final EnergyMatrix emat;
 	public final MathTools.Optimizer optimizer;
 
+	// differential scoring reads energies from the table,
+	// but don't make one until we need it, since full scoring can just use the energy matrix
+	private PairwiseEnergyTable table;
+
 	public PairwiseGScorer(EnergyMatrix emat) {
 		this(emat, MathTools.Optimizer.Minimize);
 	}
@@ -49,11 +53,29 @@ public class PairwiseGScorer implements AStarScorer {
 	public PairwiseGScorer(EnergyMatrix emat, MathTools.Optimizer optimizer) {
 		this.emat = emat;
 		this.optimizer = optimizer;
+		this.table = null;
+	}
+
+	public PairwiseGScorer(PairwiseEnergyTable table, MathTools.Optimizer optimizer) {
+		this.emat = table.emat;
+		this.optimizer = optimizer;
+		this.table = table;
 	}
 	
 	@Override
 	public PairwiseGScorer make() {
-		return new PairwiseGScorer(emat, optimizer);
+		PairwiseGScorer other = new PairwiseGScorer(emat, optimizer);
+		other.table = table;
+		return other;
+	}
+
+	private PairwiseEnergyTable getTable(RCs rcs) {
+		if (table == null) {
+			table = new PairwiseEnergyTable(emat, rcs, PairwiseEnergyTable.Storage.Float64, optimizer);
+		} else if (table.rcs != rcs) {
+			table = new PairwiseEnergyTable(emat, rcs, table.storage, optimizer);
+		}
+		return table;
 	}
 
 	@Override
@@ -89,17 +111,23 @@ public class PairwiseGScorer implements AStarScorer {
 	@Override
 	public double calcDifferential(ConfIndex confIndex, RCs rcs, int nextPos, int nextRc) {
 
+		PairwiseEnergyTable table = getTable(rcs);
+		int nextIndex = table.getIndex(nextPos, nextRc);
+
     	// modify the parent node's g-score
     	double gscore = confIndex.node.getGScore(optimizer);
     	
     	// add the new one-body energy
-    	gscore += emat.getOneBody(nextPos, nextRc);
+    	gscore += table.getOneBody(nextPos, nextIndex);
     	
-    	// add the new pairwise energies
+    	// add the new pairwise energies, all from the row for the next RC
     	for (int i=0; i<confIndex.numDefined; i++) {
     		int pos = confIndex.definedPos[i];
+    		if (!table.isNeighbor(nextPos, pos)) {
+    			continue;
+    		}
     		int rc = confIndex.definedRCs[i];
-    		gscore += emat.getPairwise(pos, rc, nextPos, nextRc);
+    		gscore += table.getPairwise(nextPos, table.getRow(nextPos, nextIndex, pos) + table.getIndex(pos, rc));
     	}
     	
     	return gscore;
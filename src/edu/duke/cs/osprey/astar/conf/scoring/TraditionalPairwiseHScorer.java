@@ -30,70 +30,146 @@
 ** Bruce Donald, Professor of Computer Science
 */
 
+
 package edu.duke.cs.osprey.astar.conf.scoring;
 
 import edu.duke.cs.osprey.astar.conf.ConfAStarNode;
 import edu.duke.cs.osprey.astar.conf.ConfIndex;
 import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.confspace.Conf;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 import edu.duke.cs.osprey.tools.MathTools;
 
+import java.util.Arrays;
+
 public class TraditionalPairwiseHScorer implements AStarScorer {
-	
+
+	// after this many incremental cache updates in a row, recompute the cache from scratch,
+	// so rounding error can't pile up
+	private static final int MaxIncrementalUpdates = 32;
+
 	public final EnergyMatrix emat;
 	public final RCs rcs;
 	public final MathTools.Optimizer optimizer;
+	public final PairwiseEnergyTable table;
 	
-	private double[][][] undefinedEnergies; // indexed by (pos1,pos2), rc at pos1
+	private final double[][][] undefinedEnergies; // indexed by pos1, pos2 < pos1, rc at pos1
+	private final boolean[][] interacts; // indexed by (pos1,pos2), true if any pair energies are non-zero
+	private final boolean isFinite; // can't update the cache incrementally if any energies are infinite
+
+	// per-RC energies for the undefined positions of the cached conf,
+	// and the optimal energy at each position
+	private final int[] cachedConf;
+	private final double[][] cachedEnergies;
+	private final double[] cachedOptEnergies;
+	private boolean hasCache;
 	private ConfAStarNode cachedNode;
-	private double[][] cachedEnergies;
+	private int numIncrementalUpdates;
+
+	// scratch space for cache updates
+	private final int[] conf;
+	private final int[] changedPos;
 	
 	public TraditionalPairwiseHScorer(EnergyMatrix emat, RCs rcs) {
 		this(emat, rcs, MathTools.Optimizer.Minimize);
 	}
 
 	public TraditionalPairwiseHScorer(EnergyMatrix emat, RCs rcs, MathTools.Optimizer optimizer) {
-		this.emat = emat;
-		this.rcs = rcs;
+		this(new PairwiseEnergyTable(emat, rcs, PairwiseEnergyTable.Storage.Float64, optimizer), optimizer);
+	}
+
+	public TraditionalPairwiseHScorer(PairwiseEnergyTable table, MathTools.Optimizer optimizer) {
+		this.emat = table.emat;
+		this.rcs = table.rcs;
 		this.optimizer = optimizer;
+		this.table = table;
 		
-		int numPos = emat.getNumPos();
+		int numPos = table.getNumPos();
+		boolean isFinite = true;
 		
 		// pre-compute all undefined energy terms
 		undefinedEnergies = new double[numPos][][];
+		interacts = new boolean[numPos][numPos];
 		for (int pos1=0; pos1<numPos; pos1++) {
 			
-			int numRCs = rcs.get(pos1).length;
-			undefinedEnergies[pos1] = new double[numRCs][];
-			
+			int numRCs = table.getNum(pos1);
+			undefinedEnergies[pos1] = new double[pos1][];
+
 			for (int i=0; i<numRCs; i++) {
-				int rc1 = rcs.get(pos1)[i];
-				
-				undefinedEnergies[pos1][i] = new double[numPos];
+				isFinite &= Double.isFinite(table.getOneBody(pos1, i));
+			}
 			
-				for (int pos2=0; pos2<pos1; pos2++) {
+			for (int pos2=0; pos2<pos1; pos2++) {
+				
+				int numRCs2 = table.getNum(pos2);
+				double[] energies = new double[numRCs];
+				boolean posInteracts = table.isNeighbor(pos1, pos2) && (numRCs == 0 || numRCs2 == 0);
+				
+				for (int i=0; i<numRCs; i++) {
 					
 					// optimize over rc2
 					double optEnergy = optimizer.initDouble();
-					for (int rc2 : rcs.get(pos2)) {
-						optEnergy = optimizer.opt(optEnergy, emat.getPairwise(pos1, rc1, pos2, rc2));
+					for (int i2=0; i2<numRCs2; i2++) {
+						double energy = table.getPairwise(pos1, i, pos2, i2);
+						optEnergy = optimizer.opt(optEnergy, energy);
+						posInteracts |= energy != 0.0;
+
+						// swapping out an infinite pair energy would give inf - inf = NaN
+						isFinite &= Double.isFinite(energy);
 					}
 					
-					undefinedEnergies[pos1][i][pos2] = optEnergy;
+					energies[i] = optEnergy;
+					isFinite &= Double.isFinite(optEnergy);
 				}
+
+				undefinedEnergies[pos1][pos2] = energies;
+				interacts[pos1][pos2] = posInteracts;
+				interacts[pos2][pos1] = posInteracts;
 			}
 		}
 		
+		this.isFinite = isFinite;
+
 		// allocate space for the cache
-		cachedNode = null;
+		cachedConf = new int[numPos];
 		cachedEnergies = new double[numPos][];
 		for (int pos=0; pos<numPos; pos++) {
 			cachedEnergies[pos] = new double[rcs.get(pos).length];
 		}
+		cachedOptEnergies = new double[numPos];
+		hasCache = false;
+		cachedNode = null;
+		conf = new int[numPos];
+		changedPos = new int[numPos];
+	}
+
+	private TraditionalPairwiseHScorer(TraditionalPairwiseHScorer other) {
+		this.emat = other.emat;
+		this.rcs = other.rcs;
+		this.optimizer = other.optimizer;
+
+		// the table and pre-computed energies are read-only, so share them
+		this.table = other.table;
+		this.undefinedEnergies = other.undefinedEnergies;
+		this.interacts = other.interacts;
+		this.isFinite = other.isFinite;
+
+		// but make a new cache
+		int numPos = other.cachedConf.length;
+		cachedConf = new int[numPos];
+		cachedEnergies = new double[numPos][];
+		for (int pos=0; pos<numPos; pos++) {
+			cachedEnergies[pos] = new double[other.cachedEnergies[pos].length];
+		}
+		cachedOptEnergies = new double[numPos];
+		hasCache = false;
+		cachedNode = null;
+		conf = new int[numPos];
+		changedPos = new int[numPos];
 	}
 	
 	public TraditionalPairwiseHScorer make() {
-		return new TraditionalPairwiseHScorer(emat, rcs, optimizer);
+		return new TraditionalPairwiseHScorer(this);
 	}
 
 	@Override
@@ -102,19 +178,11 @@ public class TraditionalPairwiseHScorer implements AStarScorer {
     	// bound energy of undefined conf
     	double hscore = 0;
     	
-    	calcCachedEnergies(confIndex, rcs);
+    	updateCache(confIndex, rcs, false);
     	
 		// for each undefined pos...
 		for (int i=0; i<confIndex.numUndefined; i++) {
-			int pos = confIndex.undefinedPos[i];
-			
-			// optimize over rcs at this pos
-			double optRCEnergy = optimizer.initDouble();
-			for (int j=0; j<rcs.get(pos).length; j++) {
-				optRCEnergy = optimizer.opt(optRCEnergy, cachedEnergies[pos][j]);
-			}
-			
-			hscore += optRCEnergy;
+			hscore += cachedOptEnergies[confIndex.undefinedPos[i]];
 		}
 		
 		return hscore;
@@ -126,11 +194,11 @@ public class TraditionalPairwiseHScorer implements AStarScorer {
 		// OPTIMIZATION: this function gets hit a LOT!
 		// so even really pedantic optimizations can make an impact
 		
-		// if the intermediate energies aren't cached, calculate them now
-		if (cachedNode != confIndex.node) {
-			calcCachedEnergies(confIndex, rcs);
-			cachedNode = confIndex.node;
-		}
+		// make sure the intermediate energies are cached
+		updateCache(confIndex, rcs, true);
+
+		// the energies with the next RC are all in one row of the table
+		int nextIndex = table.getIndex(nextPos, nextRc);
 		
     	// compute the h-score
     	double hscore = 0;
@@ -141,28 +209,33 @@ public class TraditionalPairwiseHScorer implements AStarScorer {
     		if (pos == nextPos) {
     			continue;
     		}
+
+    		// if this pos doesn't interact with nextPos, none of the energies change
+    		if (!interacts[pos][nextPos]) {
+    			hscore += cachedOptEnergies[pos];
+    			continue;
+    		}
     		
     		// optimize energy over all rcs
     		double optRCEnergy = optimizer.initDouble();
     		
     		double[] cachedEnergiesAtPos = cachedEnergies[pos];
-    		double[][] undefinedEnergiesAtPos = undefinedEnergies[pos];
+    		double[] undefinedEnergiesAtPos = pos > nextPos ? undefinedEnergies[pos][nextPos] : null;
+    		int row = table.getRow(nextPos, nextIndex, pos);
     		
 			// for each rc at this pos...
-			int[] rcsAtPos = rcs.get(pos);
-			int n = rcsAtPos.length;
+			int n = cachedEnergiesAtPos.length;
 			for (int j=0; j<n; j++) {
-				int rc = rcsAtPos[j];
 				
 				double rcEnergy = cachedEnergiesAtPos[j];
 				
 				// subtract undefined contribution
-				if (pos > nextPos) {
-					rcEnergy -= undefinedEnergiesAtPos[j][nextPos];
+				if (undefinedEnergiesAtPos != null) {
+					rcEnergy -= undefinedEnergiesAtPos[j];
 				}
 				
 				// add defined contribution
-				rcEnergy += emat.getPairwise(pos, rc, nextPos, nextRc);
+				rcEnergy += table.getPairwise(nextPos, row + j);
 				
 				optRCEnergy = optimizer.opt(optRCEnergy, rcEnergy);
 			}
@@ -173,40 +246,135 @@ public class TraditionalPairwiseHScorer implements AStarScorer {
     	return hscore;
 	}
 
+	private void updateCache(ConfIndex confIndex, RCs rcs, boolean checkNode) {
+
+		// is this node already cached?
+		if (checkNode && hasCache && confIndex.node != null && confIndex.node == cachedNode) {
+			return;
+		}
+
+		int numPos = conf.length;
+		Arrays.fill(conf, Conf.Unassigned);
+		for (int i=0; i<confIndex.numDefined; i++) {
+			conf[confIndex.definedPos[i]] = confIndex.definedRCs[i];
+		}
+
+		// find the positions that changed since the cached conf
+		int numChanged = numPos;
+		if (hasCache) {
+			numChanged = 0;
+			for (int pos=0; pos<numPos; pos++) {
+				if (conf[pos] != cachedConf[pos]) {
+					changedPos[numChanged++] = pos;
+				}
+			}
+		}
+
+		// when the cached conf is close to this one (eg, it's the parent), just update the energies that changed,
+		// otherwise, recompute everything
+		if (isFinite && hasCache && numIncrementalUpdates < MaxIncrementalUpdates && numChanged*2 < numPos) {
+			if (numChanged > 0) {
+				updateCachedEnergies(confIndex, rcs, numChanged);
+				numIncrementalUpdates++;
+			}
+		} else {
+			calcCachedEnergies(confIndex, rcs);
+			numIncrementalUpdates = 0;
+		}
+
+		System.arraycopy(conf, 0, cachedConf, 0, numPos);
+		cachedNode = confIndex.node;
+		hasCache = true;
+	}
+
 	private void calcCachedEnergies(ConfIndex confIndex, RCs rcs) {
-		
-		// for each undefined pos...
 		for (int i=0; i<confIndex.numUndefined; i++) {
-			int pos1 = confIndex.undefinedPos[i];
+			calcCachedEnergies(confIndex, rcs, confIndex.undefinedPos[i]);
+		}
+	}
+
+	private void calcCachedEnergies(ConfIndex confIndex, RCs rcs, int pos1) {
+
+		double optEnergy = optimizer.initDouble();
 			
-			// for each rc...
-			int[] rcs1 = rcs.get(pos1);
-			int n1 = rcs1.length;
-			for (int j=0; j<n1; j++) {
-				int rc1 = rcs1[j];
-				
-				// start with the one-body energy
-				double energy = emat.getOneBody(pos1, rc1);
-				
-				// add defined energies
-				for (int k=0; k<confIndex.numDefined; k++) {
-					int pos2 = confIndex.definedPos[k];
-					int rc2 = confIndex.definedRCs[k];
-					
-					energy += emat.getPairwise(pos1, rc1, pos2, rc2);
+		// for each rc...
+		int n1 = table.getNum(pos1);
+		double[][] undefinedEnergies1 = undefinedEnergies[pos1];
+		for (int j=0; j<n1; j++) {
+			
+			// start with the one-body energy
+			double energy = table.getOneBody(pos1, j);
+			
+			// add defined energies
+			for (int k=0; k<confIndex.numDefined; k++) {
+				int pos2 = confIndex.definedPos[k];
+				if (!table.isNeighbor(pos1, pos2)) {
+					continue;
 				}
+				int rc2 = confIndex.definedRCs[k];
 				
-				// add undefined energies
-				double[] energies = undefinedEnergies[pos1][j];
-				for (int k=0; k<confIndex.numUndefined; k++) {
-					int pos2 = confIndex.undefinedPos[k];
-					if (pos2 < pos1) {
-						energy += energies[pos2];
-					}
+				energy += table.getPairwise(pos1, table.getRow(pos1, j, pos2) + table.getIndex(pos2, rc2));
+			}
+			
+			// add undefined energies
+			for (int k=0; k<confIndex.numUndefined; k++) {
+				int pos2 = confIndex.undefinedPos[k];
+				if (pos2 < pos1) {
+					energy += undefinedEnergies1[pos2][j];
 				}
-				
-				cachedEnergies[pos1][j] = energy;
 			}
+			
+			cachedEnergies[pos1][j] = energy;
+			optEnergy = optimizer.opt(optEnergy, energy);
+		}
+
+		cachedOptEnergies[pos1] = optEnergy;
+	}
+
+	private void updateCachedEnergies(ConfIndex confIndex, RCs rcs, int numChanged) {
+
+		// for each undefined pos...
+		for (int i=0; i<confIndex.numUndefined; i++) {
+			int pos1 = confIndex.undefinedPos[i];
+
+			// if pos1 was defined before, there's nothing to update, so compute it from scratch
+			if (cachedConf[pos1] != Conf.Unassigned) {
+				calcCachedEnergies(confIndex, rcs, pos1);
+				continue;
+			}
+
+			int n1 = table.getNum(pos1);
+			double[] energies = cachedEnergies[pos1];
+
+			// swap out the energies for the positions that changed
+			for (int k=0; k<numChanged; k++) {
+				int pos2 = changedPos[k];
+				if (pos2 == pos1 || !interacts[pos1][pos2]) {
+					continue;
+				}
+				int oldRc = cachedConf[pos2];
+				int newRc = conf[pos2];
+				for (int j=0; j<n1; j++) {
+					energies[j] += getEnergy(pos1, j, pos2, newRc) - getEnergy(pos1, j, pos2, oldRc);
+				}
+			}
+
+			double optEnergy = optimizer.initDouble();
+			for (int j=0; j<n1; j++) {
+				optEnergy = optimizer.opt(optEnergy, energies[j]);
+			}
+			cachedOptEnergies[pos1] = optEnergy;
+		}
+	}
+
+	/** the energy between undefined pos1 and pos2, whether pos2 is defined or not */
+	private double getEnergy(int pos1, int j1, int pos2, int rc2) {
+		if (rc2 != Conf.Unassigned) {
+			return table.getPairwise(pos2, table.getRow(pos2, table.getIndex(pos2, rc2), pos1) + j1);
+		} else if (pos2 < pos1) {
+			return undefinedEnergies[pos1][pos2][j1];
+		} else {
+			return 0.0;
 		}
 	}
 }
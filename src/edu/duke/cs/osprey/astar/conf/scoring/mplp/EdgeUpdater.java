@@ -34,12 +34,12 @@ package edu.duke.cs.osprey.astar.conf.scoring.mplp;
 
 import edu.duke.cs.osprey.astar.conf.ConfIndex;
 import edu.duke.cs.osprey.astar.conf.RCs;
-import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
 
 public class EdgeUpdater implements MPLPUpdater {
 	
 	@Override
-	public void update(MessageVars lambdas, EnergyMatrix emat) {
+	public void update(MessageVars lambdas, PairwiseEnergyTable table) {
 		
 		// lambda_ji(xi) = -0.5*lambda_{i-j}(xi) + 0.5*max_xj [ lamda_{j-i}(xj) + theta_ij(xi,xj) ]
 		// and with i,j reversed
@@ -75,28 +75,28 @@ public class EdgeUpdater implements MPLPUpdater {
 					continue;
 				}
 				
-				update(lambdas, emat, posi1, posi2);
-				update(lambdas, emat, posi2, posi1);
+				update(lambdas, table, posi1, posi2);
+				update(lambdas, table, posi2, posi1);
 			}
 		}
 	}
 	
-	private void update(MessageVars lambdas, EnergyMatrix emat, int posi1, int posi2) {
+	private void update(MessageVars lambdas, PairwiseEnergyTable table, int posi1, int posi2) {
 
 		RCs rcs = lambdas.getRCs();
 		ConfIndex confIndex = lambdas.getConfIndex();
 		
 		int pos1 = confIndex.undefinedPos[posi1];
 		int pos2 = confIndex.undefinedPos[posi2];
+		boolean isNeighbor = table.isNeighbor(pos1, pos2);
 
 		for (int rci1=0; rci1<rcs.getNum(pos1); rci1++) {
-			int rc1 = rcs.get(pos1, rci1);
+			int row = isNeighbor ? table.getRow(pos1, rci1, pos2) : -1;
 			
 			double minEnergy = Double.POSITIVE_INFINITY;
 			for (int rci2=0; rci2<rcs.getNum(pos2); rci2++) {
-				int rc2 = rcs.get(pos2, rci2);
 				double energy = lambdas.getEnergyWithout(posi2, rci2, posi1)
-					+ emat.getPairwise(pos1, rc1, pos2, rc2);
+					+ (isNeighbor ? table.getPairwise(pos1, row + rci2) : 0.0);
 				minEnergy = Math.min(minEnergy, energy);
 			}
 			
@@ -32,9 +32,12 @@
 
 package edu.duke.cs.osprey.astar.conf.scoring.mplp;
 
-import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
 
 public interface MPLPUpdater {
 	
-	void update(MessageVars lambdas, EnergyMatrix emat); 
+	/**
+	 * The table must be made from the same RCs as the messages.
+	 */
+	void update(MessageVars lambdas, PairwiseEnergyTable table);
 }
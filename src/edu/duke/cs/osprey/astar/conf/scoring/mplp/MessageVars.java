@@ -36,6 +36,7 @@ import java.util.Arrays;
 
 import edu.duke.cs.osprey.astar.conf.ConfIndex;
 import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 
 public class MessageVars {
@@ -85,19 +86,30 @@ public class MessageVars {
 	}
 	
 	public void initTraditionalAStar(EnergyMatrix emat) {
+		initTraditionalAStar(new PairwiseEnergyTable(emat, rcs));
+	}
+
+	/**
+	 * The table must be made from the same RCs as these messages.
+	 */
+	public void initTraditionalAStar(PairwiseEnergyTable table) {
+
+		assert (table.rcs == rcs);
 		
 		for (int posi1=0; posi1<confIndex.numUndefined; posi1++) {
 			int pos1 = confIndex.undefinedPos[posi1];
 			
 			for (int rci1=0; rci1<rcs.getNum(pos1); rci1++) {
-				int rc1 = rcs.get(pos1, rci1);
 				
 				// init i,i messages with single and defined-undefined energies
-				double sum = emat.getOneBody(pos1, rc1);
+				double sum = table.getOneBody(pos1, rci1);
 				for (int posi2=0; posi2<confIndex.numDefined; posi2++) {
 					int pos2 = confIndex.definedPos[posi2];
+					if (!table.isNeighbor(pos1, pos2)) {
+						continue;
+					}
 					int rc2 = confIndex.definedRCs[posi2];
-					sum += emat.getPairwise(pos1, rc1, pos2, rc2);
+					sum += table.getPairwise(pos1, table.getRow(pos1, rci1, pos2) + table.getIndex(pos2, rc2));
 				}
 				set(posi1, posi1, rci1, sum);
 				
@@ -109,8 +121,8 @@ public class MessageVars {
 					
 						// min over the other RC
 						double minEnergy = Double.POSITIVE_INFINITY;
-						for (int rc2 : rcs.get(pos2)) {
-							minEnergy = Math.min(minEnergy, emat.getPairwise(pos1, rc1, pos2, rc2));
+						for (int rci2=0; rci2<rcs.getNum(pos2); rci2++) {
+							minEnergy = Math.min(minEnergy, table.getPairwise(pos1, rci1, pos2, rci2));
 						}
 						set(posi2, posi1, rci1, minEnergy);
 					
@@ -132,6 +144,64 @@ public class MessageVars {
 		}
 	}
 	
+	/**
+	 * Initializes the messages for a child node by re-using the messages of its parent node.
+	 *
+	 * The child has one more assigned position than the parent. Messages between positions
+	 * that are still unassigned are copied from the parent unchanged. The messages to and from
+	 * the newly-assigned position are replaced by the exact pairwise energies with its assigned RC,
+	 * which get folded into the single-position messages. Any messages that satisfy the MPLP
+	 * dual constraints give a lower bound, so the bound stays admissible.
+	 */
+	public void initFromParent(MessageVars parent, PairwiseEnergyTable table, int nextPos, int nextRc) {
+
+		assert (table.rcs == rcs);
+
+		ConfIndex parentIndex = parent.getConfIndex();
+		int nextIndex = table.getIndex(nextPos, nextRc);
+
+		// map undefined positions in the child to undefined positions in the parent
+		int[] parentPosis = new int[confIndex.numUndefined];
+		for (int posi1=0; posi1<confIndex.numUndefined; posi1++) {
+			parentPosis[posi1] = parentIndex.findUndefined(confIndex.undefinedPos[posi1]);
+			assert (parentPosis[posi1] >= 0);
+		}
+
+		for (int posi1=0; posi1<confIndex.numUndefined; posi1++) {
+			int pos1 = confIndex.undefinedPos[posi1];
+			int parentPosi1 = parentPosis[posi1];
+
+			boolean isNeighbor = table.isNeighbor(nextPos, pos1);
+			int row = isNeighbor ? table.getRow(nextPos, nextIndex, pos1) : -1;
+
+			for (int rci1=0; rci1<rcs.getNum(pos1); rci1++) {
+
+				// fold the energy with the newly-defined position into the i,i messages
+				double sum = parent.get(parentPosi1, parentPosi1, rci1);
+				if (isNeighbor && Double.isFinite(sum)) {
+					sum += table.getPairwise(nextPos, row + rci1);
+				}
+				set(posi1, posi1, rci1, sum);
+
+				// keep the i,j messages between undefined positions
+				for (int posi2=0; posi2<confIndex.numUndefined; posi2++) {
+					if (posi2 != posi1) {
+						set(posi2, posi1, rci1, parent.get(parentPosis[posi2], parentPosi1, rci1));
+					}
+				}
+
+				if (canUsePrecomputedSums(posi1, rci1)) {
+
+					sum = 0;
+					for (int posi2=0; posi2<confIndex.numUndefined; posi2++) {
+						sum += get(posi2, posi1, rci1);
+					}
+					sums[posi1][rci1] = sum;
+				}
+			}
+		}
+	}
+
 	public RCs getRCs() {
 		return rcs;
 	}
@@ -34,12 +34,12 @@ package edu.duke.cs.osprey.astar.conf.scoring.mplp;
 
 import edu.duke.cs.osprey.astar.conf.ConfIndex;
 import edu.duke.cs.osprey.astar.conf.RCs;
-import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
 
 public class NodeUpdater implements MPLPUpdater {
 	
 	@Override
-	public void update(MessageVars lambdas, EnergyMatrix emat) {
+	public void update(MessageVars lambdas, PairwiseEnergyTable table) {
 		
 		// corrected NMPLP (in the notation of the correction paper)
 		
@@ -108,15 +108,15 @@ public class NodeUpdater implements MPLPUpdater {
 				if (pos2 == pos1) {
 					continue;
 				}
+				boolean isNeighbor = table.isNeighbor(pos1, pos2);
 				
 				for (int rci1=0; rci1<rcs.getNum(pos1); rci1++) {
-					int rc1 = rcs.get(pos1, rci1);
+					int row = isNeighbor ? table.getRow(pos1, rci1, pos2) : -1;
 					
 					double minVal = Double.POSITIVE_INFINITY;
 					for (int rci2=0; rci2<rcs.getNum(pos2); rci2++) {
-						int rc2 = rcs.get(pos2, rci2);
 						
-						double theta = emat.getPairwise(pos1, rc1, pos2, rc2);
+						double theta = isNeighbor ? table.getPairwise(pos1, row + rci2) : 0.0;
 						double delta = lambdas.getEnergyWithout(posi2, rci2, posi1);
 						
 						minVal = Math.min(minVal, theta + delta);
@@ -158,13 +158,14 @@ public class NodeUpdater implements MPLPUpdater {
 				//    ]
 				//    - delta_{posi2-posi1}(rci2)
 				// ]/2
+				// the table stores pairs in both orientations, so walk the row for rci2 at pos2
+				boolean isNeighbor = table.isNeighbor(pos2, pos1);
 				for (int rci2=0; rci2<rcs.getNum(pos2); rci2++) {
-					int rc2 = rcs.get(pos2, rci2);
+					int row = isNeighbor ? table.getRow(pos2, rci2, pos1) : -1;
 					
 					double minVal = Double.POSITIVE_INFINITY;
 					for (int rci1=0; rci1<rcs.getNum(pos1); rci1++) {
-						int rc1 = rcs.get(pos1, rci1);
-						double theta = emat.getPairwise(pos1, rc1, pos2, rc2);
+						double theta = isNeighbor ? table.getPairwise(pos2, row + rci1) : 0.0;
 						double gamma1 = gammas.getEnergy(posi1, rci1);
 						double gamma2 = gammas.get(posi2, posi1, rci1);
 						if (Double.isFinite(theta) && Double.isFinite(gamma1) && Double.isFinite(gamma2)) {
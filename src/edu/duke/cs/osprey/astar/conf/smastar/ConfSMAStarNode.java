@@ -63,6 +63,8 @@ public class ConfSMAStarNode implements ConfAStarNode {
 		so 1 GiB of memory could fit ~5.8 M nodes with 1 child each,
 			or ~420 K nodes with 100 children each
 
+		expanded nodes also cache the g and h scores of all their children, another 16 bytes per child
+
 		the SMA* queue uses roughly 250 bytes per node also
 		only a portion of the nodes are in the queue at any one time though
 	*/
@@ -80,6 +82,8 @@ public class ConfSMAStarNode implements ConfAStarNode {
 	private ConfSMAStarNode[] spawnedChildren = null;
 	private State[] childStates = null;
 	private double[] forgottenScores = null;
+	private double[] childGScores = null;
+	private double[] childHScores = null;
 
 
 	/** make the root node */
@@ -203,6 +207,31 @@ public class ConfSMAStarNode implements ConfAStarNode {
 		throw new Error("No more children to spawn");
 	}
 
+	/** ie, have the scores for all the children been computed yet? */
+	public boolean hasChildScores() {
+		return childGScores != null;
+	}
+
+	public void allocateChildScores(int numChildren) {
+		childGScores = new double[numChildren];
+		Arrays.fill(childGScores, Double.NaN);
+		childHScores = new double[numChildren];
+		Arrays.fill(childHScores, Double.NaN);
+	}
+
+	public void setChildScores(int index, double gscore, double hscore) {
+		childGScores[index] = gscore;
+		childHScores[index] = hscore;
+	}
+
+	public double getChildGScore(int index) {
+		return childGScores[index];
+	}
+
+	public double getChildHScore(int index) {
+		return childHScores[index];
+	}
+
 	@Override
 	public ConfAStarNode assign(int pos, int rc) {
 		throw new UnsupportedOperationException("need the child index, call spawnChild instead");
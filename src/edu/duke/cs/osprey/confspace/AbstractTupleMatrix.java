@@ -72,9 +72,14 @@ public abstract class AbstractTupleMatrix<T> implements TupleMatrix<T>, Serializ
     private T defaultHigherInteraction;//We only mark sparse higher interactions;
     //if unmarked we assume this value (e.g., 0 for energy, false for pruning)
 
-	// TupleTrees are several times faster than HigherTupleFinder for both dense and sparse cases
+	/** only kept so we can read matrices serialized before the higher-order tuple index */
+	@Deprecated
 	private TupleTree<T>[] tupleTrees = null;
 
+	// higher-order tuples live in one packed hash index for the whole matrix,
+	// subclasses keep the values in primitive arrays indexed by the index entry
+	private PackedTupleIndex higherOrderIndex = null;
+
     
     protected AbstractTupleMatrix() {
     	// do nothing
@@ -149,6 +154,12 @@ public abstract class AbstractTupleMatrix<T> implements TupleMatrix<T>, Serializ
     }
     
     protected abstract void allocate(int numOneBody, int numPairwise);
+
+	/** returns the value of the higher-order tuple at the entry in the higher-order tuple index */
+	protected abstract T getHigherOrderValue(int entry);
+
+	/** sets the value of the higher-order tuple at the entry in the higher-order tuple index */
+	protected abstract void setHigherOrderValue(int entry, T val);
     
     public double getPruningInterval() {
         return pruningInterval;
@@ -338,35 +349,146 @@ public abstract class AbstractTupleMatrix<T> implements TupleMatrix<T>, Serializ
 
     @Override
 	public boolean hasHigherOrderTuples() {
-		return tupleTrees != null;
+		return higherOrderIndex != null;
+	}
+
+	/** returns the index of all the higher-order tuples, or null if there aren't any */
+	public PackedTupleIndex getHigherOrderIndex() {
+		return higherOrderIndex;
 	}
 
+	/**
+	 * returns a new TupleTree containing copies of the higher-order tuples whose lowest pair is the given pair,
+	 * or null if none
+	 *
+	 * Higher-order tuples aren't stored in tuple trees anymore, so this is slow.
+	 * Use {@link #getTuple(RCTuple)} or {@link #forEachHigherOrderTuple} instead.
+	 */
 	@Override
+	@Deprecated
 	public TupleTree<T> getHigherOrderTuples(int pos1, int rc1, int pos2, int rc2) {
-    	if (tupleTrees == null) {
-    		return null;
+
+		if (higherOrderIndex == null) {
+			return null;
+		}
+
+		TupleTree<T> tree = new TupleTree<>(new RCTuple(pos1, rc1, pos2, rc2).sorted());
+		int[] numTuples = { 0 };
+		higherOrderIndex.forEachWithLowestPair(pos1, rc1, pos2, rc2, (entry) -> {
+			tree.put(higherOrderIndex.getTuple(entry), getHigherOrderValue(entry));
+			numTuples[0]++;
+		});
+		if (numTuples[0] == 0) {
+			return null;
 		}
-		return tupleTrees[getPairwiseIndex(pos1, rc1, pos2, rc2)];
+		return tree;
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
-	public TupleTree<T> getOrMakeHigherOrderTuples(int pos1, int rc1, int pos2, int rc2) {
+	public T getTuple(RCTuple tuple) {
+		if (tuple.size() <= 2) {
+			return TupleMatrix.super.getTuple(tuple);
+		}
+		tuple.checkSortedPositions();
+		if (higherOrderIndex == null) {
+			return null;
+		}
+		int entry = higherOrderIndex.find(tuple);
+		if (entry == PackedTupleIndex.NotFound) {
+			return null;
+		}
+		return getHigherOrderValue(entry);
+	}
 
-    	// lazy allocation
-		if (tupleTrees == null) {
-			tupleTrees = (TupleTree<T>[])new TupleTree[numPairwiseTerms];
+	/**
+	 * returns the value of the triple, or null if the triple isn't in the matrix
+	 *
+	 * positions can be in any order
+	 */
+	public T getTuple(int pos1, int rc1, int pos2, int rc2, int pos3, int rc3) {
+		if (higherOrderIndex == null) {
+			return null;
 		}
+		int entry = higherOrderIndex.find(pos1, rc1, pos2, rc2, pos3, rc3);
+		if (entry == PackedTupleIndex.NotFound) {
+			return null;
+		}
+		return getHigherOrderValue(entry);
+	}
 
-		int index = getPairwiseIndex(pos1, rc1, pos2, rc2);
+	@Override
+	public void setTuple(RCTuple tuple, T val) {
+		if (tuple.size() <= 2) {
+			TupleMatrix.super.setTuple(tuple, val);
+			return;
+		}
 
-		TupleTree<T> tree = tupleTrees[index];
-		if (tree == null) {
-			tree = new TupleTree<>(new RCTuple(pos1, rc1, pos2, rc2).sorted());
-			tupleTrees[index] = tree;
+		// lazy allocation
+		if (higherOrderIndex == null) {
+			higherOrderIndex = new PackedTupleIndex(numConfAtPos);
 		}
 
-		return tree;
+		// the index keeps its own copy of the tuple, so callers can reuse tuple instances
+		setHigherOrderValue(higherOrderIndex.add(tuple), val);
+	}
+
+	@Override
+	public void forEachHigherOrderTuple(BiConsumer<RCTuple,T> callback) {
+		if (higherOrderIndex == null) {
+			return;
+		}
+		higherOrderIndex.forEach((entry) -> callback.accept(higherOrderIndex.getTuple(entry), getHigherOrderValue(entry)));
+	}
+
+	@Override
+	public void forEachHigherOrderTupleIn(int[] conf, BiConsumer<RCTuple,T> callback) {
+		if (higherOrderIndex == null) {
+			return;
+		}
+		higherOrderIndex.forEachIn(conf, (entry) -> callback.accept(higherOrderIndex.getTuple(entry), getHigherOrderValue(entry)));
+	}
+
+	@Override
+	public void forEachHigherOrderTupleIn(int[] conf, int posa, BiConsumer<RCTuple,T> callback) {
+		if (higherOrderIndex == null) {
+			return;
+		}
+		higherOrderIndex.forEachIn(conf, (entry) -> {
+			if (higherOrderIndex.contains(entry, posa)) {
+				callback.accept(higherOrderIndex.getTuple(entry), getHigherOrderValue(entry));
+			}
+		});
+	}
+
+	@Override
+	public void forEachHigherOrderTupleIn(int[] conf, int posa, int posb, BiConsumer<RCTuple,T> callback) {
+		if (higherOrderIndex == null) {
+			return;
+		}
+		higherOrderIndex.forEachIn(conf, (entry) -> {
+			if (higherOrderIndex.contains(entry, posa) && higherOrderIndex.contains(entry, posb)) {
+				callback.accept(higherOrderIndex.getTuple(entry), getHigherOrderValue(entry));
+			}
+		});
+	}
+
+	protected Object readResolve() {
+
+		// move any tuples from old tuple trees into the index
+		// (wait until the subclass fields are deserialized too, since the values live there)
+		if (tupleTrees != null) {
+			TupleTree<T>[] trees = tupleTrees;
+			tupleTrees = null;
+			for (TupleTree<T> tree : trees) {
+				if (tree != null) {
+					for (RCTuple tuple : tree.makeTuplesList()) {
+						setTuple(tuple, tree.get(tuple));
+					}
+				}
+			}
+		}
+
+		return this;
 	}
 
 	public String toString(int cellWidth, Function<T,String> formatter) {
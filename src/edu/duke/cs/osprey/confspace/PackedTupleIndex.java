@@ -0,0 +1,446 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.confspace;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+
+/**
+ * Open-addressing hash index for higher-order (n>2) RC tuples.
+ *
+ * Each tuple is encoded as the sequence of its global RC numbers (ie, the RC's offset
+ * among all the RCs in the conf space), sorted by position, and all the sequences are
+ * packed into one int array. So the index doesn't need any objects per tuple,
+ * and lookups don't allocate.
+ *
+ * The index doesn't store values itself. Instead, each tuple gets an entry number
+ * (assigned in insertion order, starting at 0), and callers keep their values in
+ * primitive arrays indexed by entry number.
+ *
+ * Entries are also chained by the lowest pair in the tuple, so the tuples in
+ * a conformation can be found without enumerating all subsets of the conformation.
+ *
+ * Instances are not thread-safe for writes, but concurrent reads are fine.
+ */
+public class PackedTupleIndex implements Serializable {
+
+	private static final long serialVersionUID = 2461834298471027431L;
+
+	public static final int NotFound = -1;
+
+	public final int numPos;
+
+	/** global RC number of the first RC at each position */
+	private final int[] rcOffsets;
+
+	/** position of each global RC number */
+	private final int[] positions;
+
+	/** the sorted global RC numbers of all the tuples, concatenated */
+	private int[] keys = new int[64];
+
+	/** where each entry starts in keys, starts[numEntries] is the end of the last entry */
+	private int[] starts = new int[17];
+
+	private int[] hashes = new int[16];
+
+	/** the next entry with the same lowest pair, or NotFound */
+	private int[] pairNexts = new int[16];
+
+	private int numEntries = 0;
+
+	/** open-addressing table of entry numbers, or NotFound */
+	private int[] table;
+
+	/** open-addressing table of lowest pairs, keyed by the two global RC numbers */
+	private long[] pairKeys;
+	private int[] pairHeads;
+	private int numPairs = 0;
+
+	private static final long NoPair = -1L;
+
+	public PackedTupleIndex(int[] numConfAtPos) {
+
+		numPos = numConfAtPos.length;
+
+		rcOffsets = new int[numPos];
+		int numRCs = 0;
+		for (int pos=0; pos<numPos; pos++) {
+			rcOffsets[pos] = numRCs;
+			numRCs += numConfAtPos[pos];
+		}
+
+		positions = new int[numRCs];
+		for (int pos=0; pos<numPos; pos++) {
+			Arrays.fill(positions, rcOffsets[pos], rcOffsets[pos] + numConfAtPos[pos], pos);
+		}
+
+		table = new int[32];
+		Arrays.fill(table, NotFound);
+
+		pairKeys = new long[32];
+		Arrays.fill(pairKeys, NoPair);
+		pairHeads = new int[32];
+	}
+
+	public PackedTupleIndex(PackedTupleIndex other) {
+		this.numPos = other.numPos;
+		this.rcOffsets = other.rcOffsets;
+		this.positions = other.positions;
+		this.keys = other.keys.clone();
+		this.starts = other.starts.clone();
+		this.hashes = other.hashes.clone();
+		this.pairNexts = other.pairNexts.clone();
+		this.numEntries = other.numEntries;
+		this.table = other.table.clone();
+		this.pairKeys = other.pairKeys.clone();
+		this.pairHeads = other.pairHeads.clone();
+		this.numPairs = other.numPairs;
+	}
+
+	/** returns the number of tuples in the index */
+	public int size() {
+		return numEntries;
+	}
+
+	private int globalRC(int pos, int rc) {
+		return rcOffsets[pos] + rc;
+	}
+
+	private static int mix(int hash, int val) {
+		return (hash ^ val)*0x9E3779B9;
+	}
+
+	private static int finish(int hash) {
+		// spread out the high bits, so masking by the table size keeps good entropy
+		return hash ^ (hash >>> 16);
+	}
+
+	private static long pairKey(int grc1, int grc2) {
+		return ((long)grc1 << 32) | (grc2 & 0xffffffffL);
+	}
+
+	private static int pairSlot(long key, int mask) {
+		// Fibonacci hashing, to spread out keys that differ only in the low bits
+		return (int)((key*0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+
+	/**
+	 * Returns the entry for the tuple, or NotFound.
+	 * Positions in the tuple must be sorted in increasing order.
+	 */
+	public int find(RCTuple tuple) {
+
+		int size = tuple.size();
+		int hash = size;
+		for (int i=0; i<size; i++) {
+			hash = mix(hash, globalRC(tuple.pos.get(i), tuple.RCs.get(i)));
+		}
+		hash = finish(hash);
+
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (true) {
+			int entry = table[slot];
+			if (entry == NotFound) {
+				return NotFound;
+			}
+			if (hashes[entry] == hash && matches(entry, tuple)) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Returns the entry for the triple, or NotFound.
+	 * Positions can be in any order.
+	 */
+	public int find(int pos1, int rc1, int pos2, int rc2, int pos3, int rc3) {
+
+		// sort the global RCs, which also sorts the positions
+		int a = globalRC(pos1, rc1);
+		int b = globalRC(pos2, rc2);
+		int c = globalRC(pos3, rc3);
+		int swap;
+		if (a > b) { swap = a; a = b; b = swap; }
+		if (b > c) { swap = b; b = c; c = swap; }
+		if (a > b) { swap = a; a = b; b = swap; }
+
+		int hash = finish(mix(mix(mix(3, a), b), c));
+
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (true) {
+			int entry = table[slot];
+			if (entry == NotFound) {
+				return NotFound;
+			}
+			if (hashes[entry] == hash) {
+				int start = starts[entry];
+				if (starts[entry + 1] - start == 3 && keys[start] == a && keys[start + 1] == b && keys[start + 2] == c) {
+					return entry;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean matches(int entry, RCTuple tuple) {
+		int start = starts[entry];
+		int size = tuple.size();
+		if (starts[entry + 1] - start != size) {
+			return false;
+		}
+		for (int i=0; i<size; i++) {
+			if (keys[start + i] != globalRC(tuple.pos.get(i), tuple.RCs.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the entry for the tuple, adding it to the index first if needed.
+	 * Positions in the tuple must be sorted in increasing order.
+	 */
+	public int add(RCTuple tuple) {
+
+		tuple.checkSortedPositions();
+		if (tuple.size() < 3) {
+			throw new IllegalArgumentException("only higher-order tuples (n>2) are indexed, not " + tuple);
+		}
+
+		int entry = find(tuple);
+		if (entry != NotFound) {
+			return entry;
+		}
+
+		// append the key
+		entry = numEntries++;
+		int size = tuple.size();
+		int start = starts[entry];
+		if (numEntries + 1 > starts.length) {
+			int capacity = starts.length*2;
+			starts = Arrays.copyOf(starts, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			pairNexts = Arrays.copyOf(pairNexts, capacity);
+		}
+		if (start + size > keys.length) {
+			keys = Arrays.copyOf(keys, Math.max(keys.length*2, start + size));
+		}
+		int hash = size;
+		for (int i=0; i<size; i++) {
+			int grc = globalRC(tuple.pos.get(i), tuple.RCs.get(i));
+			keys[start + i] = grc;
+			hash = mix(hash, grc);
+		}
+		starts[entry + 1] = start + size;
+		hashes[entry] = finish(hash);
+
+		// keep the load factor at or below 1/2
+		if (numEntries*2 > table.length) {
+			table = new int[table.length*2];
+			Arrays.fill(table, NotFound);
+			for (int i=0; i<entry; i++) {
+				insert(i);
+			}
+		}
+		insert(entry);
+
+		// chain the entry to its lowest pair
+		addToPair(entry);
+
+		return entry;
+	}
+
+	private void insert(int entry) {
+		int mask = table.length - 1;
+		int slot = hashes[entry] & mask;
+		while (table[slot] != NotFound) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = entry;
+	}
+
+	private void addToPair(int entry) {
+
+		if ((numPairs + 1)*2 > pairKeys.length) {
+			long[] oldKeys = pairKeys;
+			int[] oldHeads = pairHeads;
+			pairKeys = new long[oldKeys.length*2];
+			Arrays.fill(pairKeys, NoPair);
+			pairHeads = new int[oldKeys.length*2];
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i] != NoPair) {
+					int slot = findPairSlot(oldKeys[i]);
+					pairKeys[slot] = oldKeys[i];
+					pairHeads[slot] = oldHeads[i];
+				}
+			}
+		}
+
+		int start = starts[entry];
+		long key = pairKey(keys[start], keys[start + 1]);
+		int slot = findPairSlot(key);
+		if (pairKeys[slot] == NoPair) {
+			pairKeys[slot] = key;
+			pairNexts[entry] = NotFound;
+			numPairs++;
+		} else {
+			pairNexts[entry] = pairHeads[slot];
+		}
+		pairHeads[slot] = entry;
+	}
+
+	private int findPairSlot(long key) {
+		int mask = pairKeys.length - 1;
+		int slot = pairSlot(key, mask);
+		while (pairKeys[slot] != NoPair && pairKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/** returns the first entry whose lowest pair is the given pair, or NotFound */
+	private int getPairHead(int pos1, int rc1, int pos2, int rc2) {
+		int grc1 = globalRC(pos1, rc1);
+		int grc2 = globalRC(pos2, rc2);
+		long key = grc1 < grc2 ? pairKey(grc1, grc2) : pairKey(grc2, grc1);
+		int slot = findPairSlot(key);
+		if (pairKeys[slot] == NoPair) {
+			return NotFound;
+		}
+		return pairHeads[slot];
+	}
+
+	/** returns the number of RCs in the tuple for the entry */
+	public int getSize(int entry) {
+		return starts[entry + 1] - starts[entry];
+	}
+
+	public int getPos(int entry, int i) {
+		return positions[keys[starts[entry] + i]];
+	}
+
+	public int getRC(int entry, int i) {
+		int grc = keys[starts[entry] + i];
+		return grc - rcOffsets[positions[grc]];
+	}
+
+	/** makes a new tuple for the entry */
+	public RCTuple getTuple(int entry) {
+		int size = getSize(entry);
+		RCTuple tuple = new RCTuple();
+		for (int i=0; i<size; i++) {
+			tuple.pos.add(getPos(entry, i));
+			tuple.RCs.add(getRC(entry, i));
+		}
+		return tuple;
+	}
+
+	/** returns true if every RC in the entry's tuple is assigned in the conformation */
+	private boolean isIn(int entry, int[] conf) {
+		for (int i=starts[entry]; i<starts[entry + 1]; i++) {
+			int grc = keys[i];
+			int pos = positions[grc];
+			if (conf[pos] != grc - rcOffsets[pos]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** returns true if the entry's tuple contains the position */
+	public boolean contains(int entry, int pos) {
+		for (int i=starts[entry]; i<starts[entry + 1]; i++) {
+			if (positions[keys[i]] == pos) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** visits all the entries, in insertion order */
+	public void forEach(IntConsumer callback) {
+		for (int entry=0; entry<numEntries; entry++) {
+			callback.accept(entry);
+		}
+	}
+
+	/** visits all the entries whose lowest pair of positions is the given pair */
+	public void forEachWithLowestPair(int pos1, int rc1, int pos2, int rc2, IntConsumer callback) {
+		for (int entry = getPairHead(pos1, rc1, pos2, rc2); entry != NotFound; entry = pairNexts[entry]) {
+			callback.accept(entry);
+		}
+	}
+
+	/**
+	 * Visits all the entries whose tuples are in the conformation.
+	 * Unassigned positions in the conformation should be {@link Conf#Unassigned}.
+	 */
+	public void forEachIn(int[] conf, IntConsumer callback) {
+
+		if (numEntries == 0) {
+			return;
+		}
+
+		for (int pos1=1; pos1<numPos; pos1++) {
+			int rc1 = conf[pos1];
+			if (rc1 == Conf.Unassigned) {
+				continue;
+			}
+			for (int pos2=0; pos2<pos1; pos2++) {
+				int rc2 = conf[pos2];
+				if (rc2 == Conf.Unassigned) {
+					continue;
+				}
+				for (int entry = getPairHead(pos1, rc1, pos2, rc2); entry != NotFound; entry = pairNexts[entry]) {
+					if (isIn(entry, conf)) {
+						callback.accept(entry);
+					}
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		numEntries = 0;
+		numPairs = 0;
+		Arrays.fill(table, NotFound);
+		Arrays.fill(pairKeys, NoPair);
+	}
+}
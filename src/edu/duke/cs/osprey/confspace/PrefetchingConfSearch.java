@@ -0,0 +1,277 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.confspace;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Runs a conformation search on a dedicated thread, and buffers conformations ahead of demand.
+ *
+ * Callers that alternate between enumerating conformations and submitting minimizations
+ * (eg, partition function calculators and GMEC finders) otherwise leave the minimizers waiting
+ * whenever the search is busy, and vice versa. Wrapping the search hides the enumeration latency
+ * behind the minimizations.
+ *
+ * The buffer is bounded, so the search thread waits when the buffer is full,
+ * rather than enumerating far more conformations than the caller will ever use.
+ *
+ * The wrapped search must not be used by anything else while this wrapper is open.
+ * Only one thread should consume conformations from the wrapper.
+ */
+public class PrefetchingConfSearch implements ConfSearch, AutoCloseable {
+
+	/** signals the end of the conformations in the buffer */
+	private static final Object End = new Object();
+
+	/** signals the search thread failed */
+	private static class Failure {
+
+		final Throwable cause;
+
+		Failure(Throwable cause) {
+			this.cause = cause;
+		}
+	}
+
+	public static class SearchFailedException extends RuntimeException {
+
+		private static final long serialVersionUID = 6421718023874591287L;
+
+		public SearchFailedException(Throwable cause) {
+			super("conformation search failed on the prefetch thread", cause);
+		}
+	}
+
+	public final ConfSearch source;
+	public final int bufferSize;
+
+	private final BlockingQueue<Object> buffer;
+	private final Semaphore confPermits;
+	private final Thread thread;
+	private final List<Object> drained = new ArrayList<>();
+
+	private volatile boolean isCancelled = false;
+	private boolean isExhausted = false;
+
+	/** a search failure held back until the confs enumerated before it are returned */
+	private Failure deferredFailure = null;
+
+	/**
+	 * @param source the conformation search to run on the prefetch thread
+	 * @param bufferSize the most conformations to enumerate ahead of demand
+	 */
+	public PrefetchingConfSearch(ConfSearch source, int bufferSize) {
+
+		// just in case...
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("buffer size must be positive");
+		}
+
+		this.source = source;
+		this.bufferSize = bufferSize;
+
+		// the search thread needs a permit to enumerate each conf, and gets it back when the conf is taken,
+		// so there are never more than bufferSize confs in the buffer,
+		// and there's always room left for the end (or failure) signal, so the search thread never blocks on it
+		confPermits = new Semaphore(bufferSize);
+		buffer = new ArrayBlockingQueue<>(bufferSize + 1);
+
+		thread = new Thread(this::enumerate);
+		thread.setName("ConfSearchPrefetcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void enumerate() {
+		try {
+			while (!isCancelled) {
+
+				// wait for room in the buffer before enumerating anything else
+				confPermits.acquire();
+
+				ScoredConf conf = source.nextConf();
+				if (conf == null) {
+					buffer.put(End);
+					break;
+				}
+
+				buffer.put(conf);
+			}
+		} catch (InterruptedException ex) {
+			// cancelled, just stop
+		} catch (Throwable t) {
+			// pass the error to the consumer, at the position where it happened
+			// (if we're cancelled, no one is listening anyway)
+			if (!isCancelled) {
+				try {
+					buffer.put(new Failure(t));
+				} catch (InterruptedException ex) {
+					// cancelled, just stop
+				}
+			}
+		}
+	}
+
+	@Override
+	public BigInteger getNumConformations() {
+		return source.getNumConformations();
+	}
+
+	/**
+	 * Returns the number of conformations enumerated ahead of demand, right now.
+	 */
+	public int getNumBuffered() {
+		return buffer.size();
+	}
+
+	@Override
+	public ScoredConf nextConf() {
+
+		throwDeferredFailure();
+
+		if (isExhausted || isCancelled) {
+			return null;
+		}
+
+		return unwrap(take());
+	}
+
+	private Object take() {
+		try {
+			return buffer.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for conformations", ex);
+		}
+	}
+
+	private ScoredConf unwrap(Object item) {
+		if (item == End) {
+			isExhausted = true;
+			return null;
+		} else if (item instanceof Failure) {
+			isExhausted = true;
+			throw new SearchFailedException(((Failure)item).cause);
+		} else {
+			confPermits.release();
+			return (ScoredConf)item;
+		}
+	}
+
+	private void throwDeferredFailure() {
+		if (deferredFailure != null) {
+			Failure failure = deferredFailure;
+			deferredFailure = null;
+			throw new SearchFailedException(failure.cause);
+		}
+	}
+
+	/**
+	 * Get the next `num` conformations in the conformation space.
+	 *
+	 * Waits until `num` conformations are available or the search runs out,
+	 * but takes everything already in the buffer at once, rather than one conformation at a time.
+	 *
+	 * If the search fails after some conformations were already collected by this call,
+	 * those conformations are returned, and the failure is thrown by the next call instead.
+	 */
+	@Override
+	public List<ScoredConf> nextConfs(int num) {
+
+		throwDeferredFailure();
+
+		List<ScoredConf> confs = new ArrayList<>(Math.min(num, bufferSize));
+		while (confs.size() < num && !isExhausted && !isCancelled) {
+
+			// grab whatever is ready, or wait for the next one if nothing is ready
+			drained.clear();
+			buffer.drainTo(drained, num - confs.size());
+			if (drained.isEmpty()) {
+				drained.add(take());
+			}
+
+			for (Object item : drained) {
+				if (item instanceof Failure && !confs.isEmpty()) {
+					// don't lose the confs we already have, report the failure next time
+					deferredFailure = (Failure)item;
+					isExhausted = true;
+					break;
+				}
+				ScoredConf conf = unwrap(item);
+				if (conf == null) {
+					break;
+				}
+				confs.add(conf);
+			}
+		}
+		drained.clear();
+		return confs;
+	}
+
+	/**
+	 * Stops the search thread. Any buffered conformations are discarded,
+	 * and subsequent calls to {@link #nextConf()} return null.
+	 *
+	 * The search thread stops after the current call to the source search finishes,
+	 * so this method doesn't wait for it. Use {@link #close()} to wait.
+	 */
+	public void cancel() {
+		isCancelled = true;
+		thread.interrupt();
+		buffer.clear();
+	}
+
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * Cancels the search and waits for the search thread to stop.
+	 */
+	@Override
+	public void close() {
+		cancel();
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
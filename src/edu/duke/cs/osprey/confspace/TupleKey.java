@@ -0,0 +1,115 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.confspace;
+
+import java.util.Arrays;
+
+
+/**
+ * A compact, immutable hash key for an {@link RCTuple}.
+ *
+ * Positions and RCs are packed into a single primitive array, sorted by position,
+ * so tuples that differ only in the order of their positions map to the same key.
+ * Cheaper to hash and compare than an RCTuple (which boxes every entry) or its string listing,
+ * and safe to share between threads.
+ */
+public final class TupleKey {
+
+	private final int[] entries;
+	private final int hashCode;
+
+	public TupleKey(RCTuple tuple) {
+
+		int n = tuple.size();
+		entries = new int[n*2];
+
+		// insertion sort by position, like RCTuple.sortPositions(), but without touching the tuple
+		for (int i=0; i<n; i++) {
+
+			int pos = tuple.pos.get(i);
+			int rc = tuple.RCs.get(i);
+
+			int j;
+			for (j=i; j>=1 && pos < entries[(j-1)*2]; j--) {
+				entries[j*2] = entries[(j-1)*2];
+				entries[j*2 + 1] = entries[(j-1)*2 + 1];
+			}
+			entries[j*2] = pos;
+			entries[j*2 + 1] = rc;
+		}
+
+		hashCode = Arrays.hashCode(entries);
+	}
+
+	public int size() {
+		return entries.length/2;
+	}
+
+	public int getPos(int i) {
+		return entries[i*2];
+	}
+
+	public int getRC(int i) {
+		return entries[i*2 + 1];
+	}
+
+	public RCTuple toTuple() {
+		RCTuple tuple = new RCTuple();
+		for (int i=0; i<size(); i++) {
+			tuple.pos.add(getPos(i));
+			tuple.RCs.add(getRC(i));
+		}
+		return tuple;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof TupleKey && equals((TupleKey)other);
+	}
+
+	public boolean equals(TupleKey other) {
+		return this.hashCode == other.hashCode
+			&& Arrays.equals(this.entries, other.entries);
+	}
+
+	@Override
+	public String toString() {
+		return toTuple().toString();
+	}
+}
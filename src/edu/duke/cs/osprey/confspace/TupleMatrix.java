@@ -174,6 +174,32 @@ public interface TupleMatrix<T> {
 		}
 	}
 
+	/**
+	 * iterate over all higher-order (n>2) tuples
+	 */
+	default void forEachHigherOrderTuple(BiConsumer<RCTuple,T> callback) {
+
+		if (!hasHigherOrderTuples()) {
+			return;
+		}
+
+		int numPos = getNumPos();
+		for (int pos1=1; pos1<numPos; pos1++) {
+			for (int rc1=0; rc1<getNumConfAtPos(pos1); rc1++) {
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<getNumConfAtPos(pos2); rc2++) {
+						TupleTree<T> tree = getHigherOrderTuples(pos1, rc1, pos2, rc2);
+						if (tree != null) {
+							for (RCTuple tuple : tree.makeTuplesList()) {
+								callback.accept(tuple, tree.get(tuple));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * iterate over all higher-order (n>2) tuples matching the conformation
 	 */
@@ -44,6 +44,7 @@ public class TupleMatrixBoolean extends AbstractTupleMatrix<Boolean> {
     //note: tuples are sets not ordered pairs, i.e. E(i_r,j_s) = E(j_s,i_r), and pruning (i_r,j_s) means pruning (j_s,i_r)
 	private BitSet oneBody; // indices: res1, RC1
 	private BitSet pairwise; // indices: res1, res2, RC1, RC2 where res1>res2
+	private BitSet higherOrder = null; // indices: entry in the higher-order tuple index
 	
 	protected TupleMatrixBoolean() {
 		// do nothing
@@ -114,6 +115,19 @@ public class TupleMatrixBoolean extends AbstractTupleMatrix<Boolean> {
     	}
     }
 
+    @Override
+    protected Boolean getHigherOrderValue(int entry) {
+    	return higherOrder.get(entry);
+    }
+
+    @Override
+    protected void setHigherOrderValue(int entry, Boolean val) {
+    	if (higherOrder == null) {
+    		higherOrder = new BitSet();
+    	}
+    	higherOrder.set(entry, val);
+    }
+
 	@Override
 	public String toString() {
 		return toString(6, (isPruned) -> {
@@ -33,6 +33,7 @@
 package edu.duke.cs.osprey.confspace;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.apache.commons.collections4.iterators.ArrayIterator;
 
@@ -44,6 +45,7 @@ public class TupleMatrixDouble extends AbstractTupleMatrix<Double> {
     //note: tuples are sets not ordered pairs, i.e. E(i_r,j_s) = E(j_s,i_r), and pruning (i_r,j_s) means pruning (j_s,i_r)
 	private double[] oneBody; // indices: res1, RC1
 	private double[] pairwise; // indices: res1, res2, RC1, RC2 where res1>res2
+	private double[] higherOrder = null; // indices: entry in the higher-order tuple index
     
     public TupleMatrixDouble(ConfSpace cSpace, double pruningInterval, double defaultHigherInteraction) {
     	super(cSpace, pruningInterval, defaultHigherInteraction);
@@ -63,8 +65,32 @@ public class TupleMatrixDouble extends AbstractTupleMatrix<Double> {
     
     public TupleMatrixDouble(TupleMatrixDouble other) {
     	super(other);
-    	this.oneBody = other.oneBody.clone();
-    	this.pairwise = other.pairwise.clone();
+    	if (other.oneBody != null) {
+    		this.oneBody = other.oneBody.clone();
+    		this.pairwise = other.pairwise.clone();
+    	} else {
+    		// the other matrix keeps its values somewhere else (eg a proxy or a mapped file), copy them one at a time
+    		int numOneBody = 0;
+    		int numPairwise = 0;
+    		for (int res1=0; res1<getNumPos(); res1++) {
+    			numOneBody += getNumConfAtPos(res1);
+    			for (int res2=0; res2<res1; res2++) {
+    				numPairwise += getNumConfAtPos(res1)*getNumConfAtPos(res2);
+    			}
+    		}
+    		this.oneBody = new double[numOneBody];
+    		this.pairwise = new double[numPairwise];
+    		for (int res1=0; res1<getNumPos(); res1++) {
+    			for (int conf1=0; conf1<getNumConfAtPos(res1); conf1++) {
+    				oneBody[getOneBodyIndex(res1, conf1)] = other.getOneBody(res1, conf1);
+    				for (int res2=0; res2<res1; res2++) {
+    					for (int conf2=0; conf2<getNumConfAtPos(res2); conf2++) {
+    						pairwise[getPairwiseIndex(res1, conf1, res2, conf2)] = other.getPairwise(res1, conf1, res2, conf2);
+    					}
+    				}
+    			}
+    		}
+    	}
     }
     
     @Override
@@ -112,6 +138,21 @@ public class TupleMatrixDouble extends AbstractTupleMatrix<Double> {
     	}
     }
     
+    @Override
+    protected Double getHigherOrderValue(int entry) {
+    	return higherOrder[entry];
+    }
+
+    @Override
+    protected void setHigherOrderValue(int entry, Double val) {
+    	if (higherOrder == null) {
+    		higherOrder = new double[16];
+    	} else if (entry >= higherOrder.length) {
+    		higherOrder = Arrays.copyOf(higherOrder, Math.max(entry + 1, higherOrder.length*2));
+    	}
+    	higherOrder[entry] = val;
+    }
+    
     public void fill(double[] vals) {
     	ArrayIterator<Double> iter = new ArrayIterator<>(vals);
     	fill(iter);
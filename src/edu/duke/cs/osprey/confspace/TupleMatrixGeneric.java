@@ -40,6 +40,7 @@ public class TupleMatrixGeneric<T> extends AbstractTupleMatrix<T> {
 	
 	private ArrayList<T> oneBody; // indices: res1, RC1
 	private ArrayList<T> pairwise; // indices: res1, res2, RC1, RC2 where res1>res2
+	private ArrayList<T> higherOrder = null; // indices: entry in the higher-order tuple index
 	
 	protected TupleMatrixGeneric() {
 		// do nothing
@@ -110,4 +111,20 @@ public class TupleMatrixGeneric<T> extends AbstractTupleMatrix<T> {
     		}
     	}
     }
+
+    @Override
+    protected T getHigherOrderValue(int entry) {
+    	return higherOrder.get(entry);
+    }
+
+    @Override
+    protected void setHigherOrderValue(int entry, T val) {
+    	if (higherOrder == null) {
+    		higherOrder = new ArrayList<>();
+    	}
+    	while (higherOrder.size() <= entry) {
+    		higherOrder.add(null);
+    	}
+    	higherOrder.set(entry, val);
+    }
 }
@@ -33,6 +33,10 @@ public class AssignedCoords {
 	/** degrees of freedom that modify the atom coords */
 	public final List<DegreeOfFreedom> dofs;
 
+	/** which positions have had atoms moved by the degrees of freedom, since their coords were last copied */
+	private final boolean[] movedPos;
+	private boolean movedStatic = false;
+
 	public AssignedCoords(ConfSpace confSpace, int[] assignments) {
 
 		this.confSpace = confSpace;
@@ -48,25 +52,89 @@ public class AssignedCoords {
 		}
 
 		coords = new CoordsList(confSpace.staticCoords.size + numConfCoords);
+		movedPos = new boolean[confSpace.positions.length];
 
 		// copy over the static atoms first, so DoFs can modify them
 		coords.copyFrom(confSpace.staticCoords, 0);
 
 		// then copy the conformation coords
 		for (ConfSpace.Pos pos : confSpace.positions) {
+			copyConfCoords(pos);
+		}
 
-			// get the conf, or skip this position if nothing was assigned
-			int confi = assignments[pos.index];
-			if (confi == ConfSpace.NotAssigned) {
-				continue;
+		dofs = new ArrayList<>();
+		makeDofs();
+	}
+
+	/**
+	 * Reuses these coords for a new conformation, to avoid allocating a new copy of the coords.
+	 *
+	 * Only atoms that need it get copied from the conf space again:
+	 * the static atoms and any positions whose atoms were moved by the degrees of freedom,
+	 * and any positions whose assignments changed.
+	 * Then the degrees of freedom are rebuilt from the restored coords.
+	 * Afterwards, all the coords are exactly the same as newly-made coords with the same assignments,
+	 * including the unused atom slots of each position, which are zero.
+	 *
+	 * NOTE: this overwrites the assignments array passed to the constructor,
+	 * so don't share that array with anything else.
+	 */
+	public void reassign(int[] assignments) {
+
+		if (assignments.length != this.assignments.length) {
+			throw new IllegalArgumentException("expected " + this.assignments.length + " assignments, not " + assignments.length);
+		}
+
+		// restore the static atoms first, so DoFs can modify them
+		if (movedStatic) {
+			coords.copyFrom(confSpace.staticCoords, 0);
+			movedStatic = false;
+		}
+
+		// then restore the conformation coords that changed
+		for (ConfSpace.Pos pos : confSpace.positions) {
+			if (movedPos[pos.index] || assignments[pos.index] != this.assignments[pos.index]) {
+				this.assignments[pos.index] = assignments[pos.index];
+				copyConfCoords(pos);
+				movedPos[pos.index] = false;
 			}
-			ConfSpace.Conf conf = pos.confs[confi];
+		}
+
+		dofs.clear();
+		makeDofs();
+	}
+
+	/**
+	 * Motions call this when they move atoms, so {@link #reassign} knows which coords to restore.
+	 * Use {@link PosInter#StaticPos} for the static atoms.
+	 */
+	public void markMoved(int posi) {
+		if (posi == PosInter.StaticPos) {
+			movedStatic = true;
+		} else {
+			movedPos[posi] = true;
+		}
+	}
+
+	private void copyConfCoords(ConfSpace.Pos pos) {
+
+		int offset = atomOffsetsByPos[pos.index];
 
-			// copy over the coords
-			coords.copyFrom(conf.coords, atomOffsetsByPos[pos.index]);
+		// get the conf, or clear this position if nothing was assigned
+		// (so reassigned coords don't keep the atoms of the previous conf)
+		int confi = assignments[pos.index];
+		if (confi == ConfSpace.NotAssigned) {
+			coords.clear(offset, offset + pos.maxNumAtoms);
+			return;
 		}
+		ConfSpace.Conf conf = pos.confs[confi];
 
-		dofs = new ArrayList<>();
+		// copy over the coords, and clear any leftover atoms from a bigger conf
+		coords.copyFrom(conf.coords, offset);
+		coords.clear(offset + conf.coords.size, offset + pos.maxNumAtoms);
+	}
+
+	private void makeDofs() {
 
 		// first, make the molecule motions and convert them into degrees of freedom
 		for (int moli=0; moli<confSpace.molInfos.length; moli++) {
@@ -4,6 +4,8 @@ package edu.duke.cs.osprey.confspace.compiled;
 import org.joml.Vector3d;
 import org.joml.Vector3dc;
 
+import java.util.Arrays;
+
 /**
  * A supremely efficient representation for atomic coordinates.
  *
@@ -68,4 +70,9 @@ public class CoordsList {
 	public void copyFrom(CoordsList src, int destIndex) {
 		System.arraycopy(src.coords, 0, coords, destIndex*3, src.size*3);
 	}
+
+	/** sets coords from startIndex (inclusive) to endIndex (exclusive) to zero */
+	public void clear(int startIndex, int endIndex) {
+		Arrays.fill(coords, startIndex*3, endIndex*3, 0.0);
+	}
 }
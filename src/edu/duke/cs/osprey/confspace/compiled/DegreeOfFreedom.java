@@ -23,4 +23,13 @@ public interface DegreeOfFreedom {
 	Set<Integer> modifiedPosIndices();
 
 	double initialStepSize();
+
+	/**
+	 * Given the gradient of an energy with respect to the atom coordinates
+	 * (in the same layout as {@link CoordsList}), returns the derivative of the energy with respect to this DoF,
+	 * or NaN if this DoF can't compute analytic derivatives.
+	 */
+	default double calcDerivative(double[] coordsGradient) {
+		return Double.NaN;
+	}
 }
@@ -0,0 +1,143 @@
+package edu.duke.cs.osprey.confspace.compiled;
+
+
+import java.util.function.BiPredicate;
+
+/**
+ * Lower bounds on the distances between the atoms of pairs of design positions,
+ * over all the conformations at both positions.
+ *
+ * Each conformation is enclosed by a sphere around its atoms, and the distance between two positions
+ * is bounded below by the distance between the closest pair of spheres.
+ *
+ * The bounds only describe the conformation coordinates in the conf space.
+ * Continuous motions can move atoms closer together, so cutoffs for minimized
+ * energies should leave some room for the motions.
+ */
+public class PosDistances {
+
+	public final ConfSpace confSpace;
+
+	private final double[] distances; // indexed by posi1*(posi1 - 1)/2 + posi2, where posi1 > posi2
+
+	public PosDistances(ConfSpace confSpace) {
+
+		this.confSpace = confSpace;
+
+		int numPos = confSpace.positions.length;
+
+		// bound every conf with a sphere
+		double[][][] spheres = new double[numPos][][]; // indexed by posi, confi, then x,y,z,r
+		for (int posi=0; posi<numPos; posi++) {
+			ConfSpace.Conf[] confs = confSpace.positions[posi].confs;
+			spheres[posi] = new double[confs.length][];
+			for (int confi=0; confi<confs.length; confi++) {
+				spheres[posi][confi] = boundingSphere(confs[confi].coords);
+			}
+		}
+
+		// find the closest spheres between every pair of positions
+		distances = new double[numPos*(numPos - 1)/2];
+		for (int posi1=0; posi1<numPos; posi1++) {
+			for (int posi2=0; posi2<posi1; posi2++) {
+
+				double dist = Double.POSITIVE_INFINITY;
+				for (double[] sphere1 : spheres[posi1]) {
+					if (sphere1 == null) {
+						continue;
+					}
+					for (double[] sphere2 : spheres[posi2]) {
+						if (sphere2 == null) {
+							continue;
+						}
+						double dx = sphere1[0] - sphere2[0];
+						double dy = sphere1[1] - sphere2[1];
+						double dz = sphere1[2] - sphere2[2];
+						double d = Math.sqrt(dx*dx + dy*dy + dz*dz) - sphere1[3] - sphere2[3];
+						dist = Math.min(dist, Math.max(0.0, d));
+					}
+				}
+
+				distances[index(posi1, posi2)] = dist;
+			}
+		}
+	}
+
+	/** returns x,y,z,r, or null if there are no atoms */
+	private static double[] boundingSphere(CoordsList coords) {
+
+		if (coords.size <= 0) {
+			return null;
+		}
+
+		// center on the centroid
+		double x = 0.0;
+		double y = 0.0;
+		double z = 0.0;
+		for (int i=0; i<coords.size; i++) {
+			x += coords.x(i);
+			y += coords.y(i);
+			z += coords.z(i);
+		}
+		x /= coords.size;
+		y /= coords.size;
+		z /= coords.size;
+
+		// the radius reaches the farthest atom
+		double r2 = 0.0;
+		for (int i=0; i<coords.size; i++) {
+			double dx = coords.x(i) - x;
+			double dy = coords.y(i) - y;
+			double dz = coords.z(i) - z;
+			r2 = Math.max(r2, dx*dx + dy*dy + dz*dz);
+		}
+
+		return new double[] { x, y, z, Math.sqrt(r2) };
+	}
+
+	private static int index(int posi1, int posi2) {
+		if (posi1 < posi2) {
+			int swap = posi1;
+			posi1 = posi2;
+			posi2 = swap;
+		}
+		return posi1*(posi1 - 1)/2 + posi2;
+	}
+
+	/**
+	 * Returns a lower bound on the distance between any atom at posi1 and any atom at posi2, in Angstroms.
+	 * Positions without any atoms are infinitely far away.
+	 */
+	public double get(int posi1, int posi2) {
+		if (posi1 == posi2) {
+			throw new IllegalArgumentException("no distance from a position to itself: " + posi1);
+		}
+		return distances[index(posi1, posi2)];
+	}
+
+	/**
+	 * Returns true if some atoms at the two positions might be within the cutoff distance of each other.
+	 */
+	public boolean isWithin(int posi1, int posi2, double cutoff) {
+		return get(posi1, posi2) <= cutoff;
+	}
+
+	/**
+	 * Returns true for pairs of positions that might be within the cutoff distance of each other,
+	 * eg for {@link edu.duke.cs.osprey.ematrix.SparseEnergyMatrix}.
+	 */
+	public BiPredicate<Integer,Integer> neighbors(double cutoff) {
+		return (posi1, posi2) -> isWithin(posi1, posi2, cutoff);
+	}
+
+	/** counts the pairs of positions within the cutoff distance */
+	public int countWithin(double cutoff) {
+		int count = 0;
+		for (double dist : distances) {
+			if (dist <= cutoff) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -62,6 +62,7 @@ public class DihedralAngle implements ContinuousMotion {
 	private final int ci;
 	private final int di;
 	private final int []ri;
+	private final boolean rotatesStatic;
 
 	public final double initialAngleRadians;
 	public final double minAngleRadians;
@@ -80,9 +81,14 @@ public class DihedralAngle implements ContinuousMotion {
 		ci = getAtomIndex(desc.c);
 		di = getAtomIndex(desc.d);
 		ri = new int[desc.rotated.length];
+		boolean rotatesStatic = false;
 		for (int i=0; i<ri.length; i++) {
 			ri[i] = getAtomIndex(desc.rotated[i]);
+			if (posi == PosInter.StaticPos || desc.rotated[i] < 0) {
+				rotatesStatic = true;
+			}
 		}
+		this.rotatesStatic = rotatesStatic;
 
 		// TODO: profile and optimize this
 
@@ -185,6 +191,14 @@ public class DihedralAngle implements ContinuousMotion {
 			temp.add(b);
 			coords.coords.set(i, temp);
 		}
+
+		// tell the coords which atoms we moved
+		if (posi != PosInter.StaticPos) {
+			coords.markMoved(posi);
+		}
+		if (rotatesStatic) {
+			coords.markMoved(PosInter.StaticPos);
+		}
 	}
 
 	/**
@@ -263,6 +277,46 @@ public class DihedralAngle implements ContinuousMotion {
 		public double initialStepSize() {
 			return 0.004363323; // 0.25 degrees
 		}
+
+		@Override
+		public double calcDerivative(double[] coordsGradient) {
+			return DihedralAngle.this.calcDerivative(coordsGradient);
+		}
+	}
+
+	/**
+	 * Returns the derivative of an energy with respect to the dihedral angle (in radians),
+	 * given the gradient of the energy with respect to the atom coordinates.
+	 */
+	public double calcDerivative(double[] coordsGradient) {
+
+		CoordsList c = coords.coords;
+
+		// the rotated atoms turn about the b->c axis
+		double bx = c.x(bi);
+		double by = c.y(bi);
+		double bz = c.z(bi);
+		double ax = c.x(ci) - bx;
+		double ay = c.y(ci) - by;
+		double az = c.z(ci) - bz;
+
+		// so sum up the torque about that axis
+		double tx = 0.0;
+		double ty = 0.0;
+		double tz = 0.0;
+		for (int i : ri) {
+			double rx = c.x(i) - bx;
+			double ry = c.y(i) - by;
+			double rz = c.z(i) - bz;
+			double gx = coordsGradient[i*3];
+			double gy = coordsGradient[i*3 + 1];
+			double gz = coordsGradient[i*3 + 2];
+			tx += ry*gz - rz*gy;
+			ty += rz*gx - rx*gz;
+			tz += rx*gy - ry*gx;
+		}
+
+		return (ax*tx + ay*ty + az*tz)/Math.sqrt(ax*ax + ay*ay + az*az);
 	}
 
 	@Override
@@ -49,6 +49,7 @@ public class TranslationRotation implements ContinuousMotion {
 	private final List<Integer> atomIndices = new ArrayList<>();
 	private final Set<Integer> modifiedPosIndices = new HashSet<>();
 
+	/** original coords for just our atoms, parallel to atomIndices */
 	private final CoordsList originalCoords;
 
 	private final Dof dofPsi;
@@ -92,9 +93,13 @@ public class TranslationRotation implements ContinuousMotion {
 			}
 		}
 
-		// copy all the coordinates for our absolute referencing
-		originalCoords = new CoordsList(coords.coords.size);
-		originalCoords.copyFrom(coords.coords, 0);
+		// copy the coordinates of our atoms for our absolute referencing
+		originalCoords = new CoordsList(atomIndices.size());
+		Vector3d pos = new Vector3d();
+		for (int i=0; i<atomIndices.size(); i++) {
+			coords.coords.get(atomIndices.get(i), pos);
+			originalCoords.set(i, pos);
+		}
 
 		// make the dofs
 		// for the rotations, we'll use x-y-z Tait-Bryan angles
@@ -118,8 +123,9 @@ public class TranslationRotation implements ContinuousMotion {
 		Vector3d t = new Vector3d(dofX.value, dofY.value, dofZ.value);
 
 		// transform each atom
-		for (int atomi : atomIndices) {
-			originalCoords.get(atomi, pos);
+		for (int i=0; i<atomIndices.size(); i++) {
+			int atomi = atomIndices.get(i);
+			originalCoords.get(i, pos);
 			pos.sub(desc.centroid);
 			pos.rotate(qPsi);
 			pos.rotate(qTheta);
@@ -128,6 +134,11 @@ public class TranslationRotation implements ContinuousMotion {
 			pos.add(t);
 			coords.coords.set(atomi, pos);
 		}
+
+		// tell the coords which atoms we moved
+		for (int posi : modifiedPosIndices) {
+			coords.markMoved(posi);
+		}
 	}
 
 
@@ -182,6 +193,59 @@ public class TranslationRotation implements ContinuousMotion {
 		public double initialStepSize() {
 			return step;
 		}
+
+		@Override
+		public double calcDerivative(double[] coordsGradient) {
+			return TranslationRotation.this.calcDerivative(this, coordsGradient);
+		}
+	}
+
+	private double calcDerivative(Dof dof, double[] coordsGradient) {
+
+		// translations move every atom the same way
+		if (dof == dofX || dof == dofY || dof == dofZ) {
+			int d = dof == dofX ? 0 : dof == dofY ? 1 : 2;
+			double derivative = 0.0;
+			for (int atomi : atomIndices) {
+				derivative += coordsGradient[atomi*3 + d];
+			}
+			return derivative;
+		}
+
+		// rotations turn the atoms about the translated centroid,
+		// around the axis of the angle after the later rotations have been applied
+		Vector3d axis;
+		if (dof == dofPsi) {
+			axis = new Vector3d(1, 0, 0)
+				.rotate(new Quaterniond().rotationY(dofTheta.value))
+				.rotate(new Quaterniond().rotationZ(dofPhi.value));
+		} else if (dof == dofTheta) {
+			axis = new Vector3d(0, 1, 0)
+				.rotate(new Quaterniond().rotationZ(dofPhi.value));
+		} else {
+			axis = new Vector3d(0, 0, 1);
+		}
+
+		// so sum up the torque about the axis
+		double cx = desc.centroid.x + dofX.value;
+		double cy = desc.centroid.y + dofY.value;
+		double cz = desc.centroid.z + dofZ.value;
+		double tx = 0.0;
+		double ty = 0.0;
+		double tz = 0.0;
+		for (int atomi : atomIndices) {
+			double rx = coords.coords.x(atomi) - cx;
+			double ry = coords.coords.y(atomi) - cy;
+			double rz = coords.coords.z(atomi) - cz;
+			double gx = coordsGradient[atomi*3];
+			double gy = coordsGradient[atomi*3 + 1];
+			double gz = coordsGradient[atomi*3 + 2];
+			tx += ry*gz - rz*gy;
+			ty += rz*gx - rx*gz;
+			tz += rx*gy - ry*gx;
+		}
+
+		return axis.x*tx + axis.y*ty + axis.z*tz;
 	}
 
 	@Override
@@ -32,6 +32,7 @@
 
 package edu.duke.cs.osprey.dof;
 
+import edu.duke.cs.osprey.energy.AtomGradients;
 import edu.duke.cs.osprey.structure.Molecule;
 import edu.duke.cs.osprey.structure.Residue;
 import java.io.Serializable;
@@ -66,6 +67,11 @@ public abstract class DegreeOfFreedom implements Serializable {
     //Used in setting up partial energy functions (see MultiTermEnergyFunction)
     public Residue getResidue() { return null; }
     
+    //Given the gradients of an energy with respect to atom coordinates,
+    //return the derivative of the energy with respect to this DOF (in the DOF's own units)
+    //DOFs that can't compute this analytically return NaN, and callers should fall back to finite differences
+    public double calcDerivative(AtomGradients gradients) { return Double.NaN; }
+    
     // enables parallel molecule manipulation without data races
     // these two methods are only implemented for perturbations that aren't part of a block
     // (DOFBlock.copyForNewMolecule handle these operations in that case)
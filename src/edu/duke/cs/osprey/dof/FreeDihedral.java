@@ -32,6 +32,7 @@
 
 package edu.duke.cs.osprey.dof;
 
+import edu.duke.cs.osprey.energy.AtomGradients;
 import edu.duke.cs.osprey.structure.Molecule;
 import edu.duke.cs.osprey.structure.Residue;
 import edu.duke.cs.osprey.tools.Protractor;
@@ -137,6 +138,41 @@ public class FreeDihedral extends DegreeOfFreedom {
         curVal = angleDegrees;
     }
     
+    @Override
+    public double calcDerivative(AtomGradients gradients) {
+        
+        double[] gradient = gradients.get(res);
+        if (gradient == null) {
+            return 0;
+        }
+        
+        // the dihedral rotates atoms about the axis from the second to the third defining atom,
+        // so dE/dangle is the torque about that axis, projected onto the axis
+        updateDihedralCoords();
+        double[] origin = dihedralCoords[2];
+        double ax = origin[0] - dihedralCoords[1][0];
+        double ay = origin[1] - dihedralCoords[1][1];
+        double az = origin[2] - dihedralCoords[1][2];
+        double alen = Math.sqrt(ax*ax + ay*ay + az*az);
+        
+        double tx = 0, ty = 0, tz = 0;
+        for(int index : res.template.getDihedralRotatedAtoms(dihedralNum)) {
+            int i = index*3;
+            double rx = res.coords[i] - origin[0];
+            double ry = res.coords[i + 1] - origin[1];
+            double rz = res.coords[i + 2] - origin[2];
+            double gx = gradient[i];
+            double gy = gradient[i + 1];
+            double gz = gradient[i + 2];
+            tx += ry*gz - rz*gy;
+            ty += rz*gx - rx*gz;
+            tz += rx*gy - ry*gx;
+        }
+        
+        // angles are in degrees
+        return (ax*tx + ay*ty + az*tz)/alen*Math.PI/180;
+    }
+    
     @Override
     public Residue getResidue() {
         return res;
@@ -108,14 +108,20 @@ public class MoveableStrand implements Serializable, DOFBlock {
         //but this is OK because we can still reach any rotation we want
         
         
+        curRotMatrix = calcRotMatrix(curAngles);
+    }
+    
+    
+    static RotationMatrix calcRotMatrix(double[] angles){
+        
         //first, rotate by the first angle about the x-axis
-        RotationMatrix rot1 = new RotationMatrix(1, 0, 0, curAngles[0], false);
+        RotationMatrix rot1 = new RotationMatrix(1, 0, 0, angles[0], false);
         //then y and z
-        RotationMatrix rot2 = new RotationMatrix(0, 1, 0, curAngles[1], false);
-        RotationMatrix rot3 = new RotationMatrix(0, 0, 1, curAngles[2], false);
+        RotationMatrix rot2 = new RotationMatrix(0, 1, 0, angles[1], false);
+        RotationMatrix rot3 = new RotationMatrix(0, 0, 1, angles[2], false);
         
         //perform rot1, then 2 and 3
-        curRotMatrix = rot3.multiply( rot2.multiply(rot1) );
+        return rot3.multiply( rot2.multiply(rot1) );
     }
     
     
@@ -32,6 +32,7 @@
 
 package edu.duke.cs.osprey.dof;
 
+import edu.duke.cs.osprey.energy.AtomGradients;
 import edu.duke.cs.osprey.structure.Residue;
 import edu.duke.cs.osprey.tools.RigidBodyMotion;
 import edu.duke.cs.osprey.tools.RotationMatrix;
@@ -73,6 +74,51 @@ public class StrandRotation extends DegreeOfFreedom {
             motion.transform(res.coords);
     }
     
+    @Override
+    public double calcDerivative(AtomGradients gradients) {
+        
+        //changing our angle rotates the strand about its center with angular velocity omega,
+        //where [omega]_x = (dR/dangle) R^T
+        //the Tait-Bryan derivative is messy to write out, so differentiate the rotation matrix numerically
+        double h = 1e-4;//degrees
+        double[] angles = strand.curAngles.clone();
+        angles[angleNum] = strand.curAngles[angleNum] + h;
+        RotationMatrix plus = MoveableStrand.calcRotMatrix(angles);
+        angles[angleNum] = strand.curAngles[angleNum] - h;
+        RotationMatrix minus = MoveableStrand.calcRotMatrix(angles);
+        
+        double[][] cols = new double[3][];
+        for(int j=0; j<3; j++){
+            double[] basis = new double[3];
+            basis[j] = 1;
+            double[] v = strand.curRotMatrix.unrotateVector(basis);
+            cols[j] = VectorAlgebra.scale(VectorAlgebra.subtract(plus.rotateVector(v), minus.rotateVector(v)), 0.5/h);
+        }
+        double wx = cols[1][2];
+        double wy = cols[2][0];
+        double wz = cols[0][1];
+        
+        //then dE/dangle is the torque about the center, projected onto omega
+        double[] center = VectorAlgebra.add(strand.initCenter, strand.curTrans);
+        double tx = 0, ty = 0, tz = 0;
+        for(Residue res : strand.res){
+            double[] gradient = gradients.get(res);
+            if(gradient == null)
+                continue;
+            int numAtoms = res.atoms.size();
+            for(int atomNum=0; atomNum<numAtoms; atomNum++){
+                int i = 3*atomNum;
+                double rx = res.coords[i] - center[0];
+                double ry = res.coords[i+1] - center[1];
+                double rz = res.coords[i+2] - center[2];
+                tx += ry*gradient[i+2] - rz*gradient[i+1];
+                ty += rz*gradient[i] - rx*gradient[i+2];
+                tz += rx*gradient[i+1] - ry*gradient[i];
+            }
+        }
+        return wx*tx + wy*ty + wz*tz;
+    }
+    
     public MoveableStrand getMoveableStrand(){
         return strand;
     }
@@ -32,6 +32,7 @@
 
 package edu.duke.cs.osprey.dof;
 
+import edu.duke.cs.osprey.energy.AtomGradients;
 import edu.duke.cs.osprey.structure.Residue;
 
 /**
@@ -67,6 +68,22 @@ public class StrandTranslation extends DegreeOfFreedom {
         strand.curTrans[coordNum] = paramVal;
     }
     
+    @Override
+    public double calcDerivative(AtomGradients gradients) {
+        
+        //translation moves every atom of the strand the same way
+        double derivative = 0;
+        for(Residue res : strand.res){
+            double[] gradient = gradients.get(res);
+            if(gradient == null)
+                continue;
+            int numAtoms = res.atoms.size();
+            for(int atomNum=0; atomNum<numAtoms; atomNum++)
+                derivative += gradient[3*atomNum+coordNum];
+        }
+        return derivative;
+    }
+    
     public MoveableStrand getMoveableStrand(){
         return strand;
     }
@@ -34,6 +34,7 @@ package edu.duke.cs.osprey.ematrix;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import edu.duke.cs.osprey.confspace.*;
 import edu.duke.cs.osprey.tools.ObjectIO;
@@ -59,6 +60,22 @@ public class EnergyMatrix extends TupleMatrixDouble implements FragmentEnergies
 		ObjectIO.write(emat, file);
 	}
 
+	/**
+	 * Writes the energy matrix in a binary format that can be memory-mapped by {@link #map(File)}.
+	 */
+	public static void writeMappable(EnergyMatrix emat, File file)
+	throws CantWriteException {
+		MappedEnergyMatrix.write(emat, file);
+	}
+
+	/**
+	 * Maps the energy matrix in the file written by {@link #writeMappable(EnergyMatrix, File)}.
+	 */
+	public static MappedEnergyMatrix map(File file)
+	throws BadFileException {
+		return MappedEnergyMatrix.open(file);
+	}
+
 	private double constTerm = 0;
     
     //we may want to have reference energies associated with this matrix
@@ -178,6 +195,19 @@ public class EnergyMatrix extends TupleMatrixDouble implements FragmentEnergies
             }
         }
         
+        // add the higher-order tuples in the packed index that are inside this tuple
+        PackedTupleIndex index = getHigherOrderIndex();
+        if (index != null && numPosInTuple > 2) {
+        	int[] conf = new int[getNumPos()];
+        	Arrays.fill(conf, Conf.Unassigned);
+        	for(int indexInTuple=0; indexInTuple<numPosInTuple; indexInTuple++){
+        		conf[tuppos.get(indexInTuple)] = tupRCs.get(indexInTuple);
+        	}
+        	double[] higherEnergy = { 0 };
+        	index.forEachIn(conf, (entry) -> higherEnergy[0] += getHigherOrderValue(entry));
+        	energy += higherEnergy[0];
+        }
+        
         return energy;
     }
 
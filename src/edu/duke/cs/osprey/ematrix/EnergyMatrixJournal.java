@@ -0,0 +1,273 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import edu.duke.cs.osprey.confspace.RCTuple;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static edu.duke.cs.osprey.tools.Log.log;
+
+
+/**
+ * An append-only log of finished energy matrix calculations, so a calculation that gets
+ * interrupted (eg, by a node failure or a cluster walltime limit) can pick up where it left off.
+ *
+ * Opening a journal replays all the entries that were completely written to the file,
+ * and drops everything after the first partially-written or invalid entry
+ * (eg, the zero-filled tail some filesystems leave after a crash).
+ *
+ * New entries are appended to the file and flushed to the operating system as soon as they're written,
+ * so they survive the process dying. Batches of entries, and the journal when it's closed, are also
+ * synced to the storage device, so they survive the machine dying too. Single entries written
+ * since the last sync may be lost if the machine dies, and are recomputed on the next run.
+ *
+ * The journal only checks that the conformation space has the same numbers of positions and RCs.
+ * If other design settings change, delete the journal file to start over.
+ *
+ * File layout (big-endian):
+ * <pre>
+ * int     magic number
+ * int     format version
+ * int     number of positions
+ * int[]   number of RCs at each position
+ * entries, each:
+ *     byte    kind
+ *     byte    tuple size
+ *     int[]   position, RC for each tuple member
+ *     double  energy
+ * </pre>
+ */
+public class EnergyMatrixJournal implements AutoCloseable {
+
+	/** "OEMJ" */
+	public static final int Magic = 0x4f454d4a;
+	public static final int Version = 1;
+
+	public static enum Kind {
+
+		/** a single or pair energy, or a tuple energy computed with the singles and pairs */
+		Energy,
+
+		/** a triple or quad correction, whether it's used or not */
+		Correction;
+
+		private static final Kind[] values = values();
+	}
+
+	public static interface Replayer {
+		void replay(Kind kind, RCTuple tuple, double energy);
+	}
+
+	public final File file;
+
+	private final FileOutputStream fileOut;
+	private final DataOutputStream out;
+	private int numReplayed = 0;
+
+	/**
+	 * Opens the journal file, or creates it if it doesn't exist, and replays all the existing entries.
+	 */
+	public EnergyMatrixJournal(File file, int[] numConfAtPos, Replayer replayer) {
+
+		this.file = file;
+
+		try {
+
+			long validLength = 0;
+			if (file.exists()) {
+				validLength = replay(numConfAtPos, replayer);
+			}
+
+			// drop anything after the last complete entry
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(validLength);
+			}
+
+			fileOut = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fileOut));
+
+			if (validLength == 0) {
+				out.writeInt(Magic);
+				out.writeInt(Version);
+				out.writeInt(numConfAtPos.length);
+				for (int numConfs : numConfAtPos) {
+					out.writeInt(numConfs);
+				}
+				sync();
+			}
+
+		} catch (IOException ex) {
+			throw new RuntimeException("can't open energy matrix journal " + file.getAbsolutePath(), ex);
+		}
+
+		if (numReplayed > 0) {
+			log("replayed %d entries from energy matrix journal %s", numReplayed, file.getAbsolutePath());
+		}
+	}
+
+	/** returns the length of the valid part of the file, or 0 if the file should be started over */
+	private long replay(int[] numConfAtPos, Replayer replayer)
+	throws IOException {
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+			// check the header
+			long pos = 0;
+			try {
+				int magic = in.readInt();
+				int version = in.readInt();
+				int numPos = in.readInt();
+				int[] fileNumConfAtPos = new int[Math.max(0, Math.min(numPos, numConfAtPos.length + 1))];
+				for (int i=0; i<fileNumConfAtPos.length; i++) {
+					fileNumConfAtPos[i] = in.readInt();
+				}
+				if (magic != Magic || version != Version || numPos != numConfAtPos.length || !Arrays.equals(fileNumConfAtPos, numConfAtPos)) {
+					log("WARNING: energy matrix journal %s doesn't match this conformation space, will start a new one", file.getAbsolutePath());
+					return 0;
+				}
+				pos = 4*3 + 4*numPos;
+			} catch (EOFException ex) {
+				// not even a complete header, start over
+				return 0;
+			}
+
+			// read the entries
+			while (true) {
+				try {
+
+					int kindOrdinal = in.readByte();
+					int size = in.readByte();
+					if (kindOrdinal < 0 || kindOrdinal >= Kind.values.length || size < 1 || size > numConfAtPos.length) {
+						return truncateAt(pos);
+					}
+					Kind kind = Kind.values[kindOrdinal];
+					RCTuple tuple = new RCTuple();
+					for (int i=0; i<size; i++) {
+						int tuplePos = in.readInt();
+						int tupleRC = in.readInt();
+						if (tuplePos < 0 || tuplePos >= numConfAtPos.length || tupleRC < 0 || tupleRC >= numConfAtPos[tuplePos]) {
+							return truncateAt(pos);
+						}
+						tuple.pos.add(tuplePos);
+						tuple.RCs.add(tupleRC);
+					}
+					double energy = in.readDouble();
+
+					replayer.replay(kind, tuple, energy);
+					numReplayed++;
+					pos += 2 + size*8 + 8;
+
+				} catch (EOFException ex) {
+					// the last entry was cut off, if there was one at all
+					return pos;
+				}
+			}
+		}
+	}
+
+	private long truncateAt(long pos) {
+		log("WARNING: energy matrix journal %s has an invalid entry at byte %d, dropping the rest of the journal", file.getAbsolutePath(), pos);
+		return pos;
+	}
+
+	public int getNumReplayed() {
+		return numReplayed;
+	}
+
+	/**
+	 * Appends the entry to the journal, and flushes it to the file.
+	 * The entry isn't synced to the storage device until the next batch write or {@link #close}.
+	 */
+	public synchronized void write(Kind kind, RCTuple tuple, double energy) {
+		try {
+			writeEntry(kind, tuple, energy);
+			out.flush();
+		} catch (IOException ex) {
+			throw new RuntimeException("can't write to energy matrix journal " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	/**
+	 * Appends all the entries to the journal, and syncs them to the storage device.
+	 */
+	public synchronized void write(Kind kind, List<RCTuple> tuples, List<Double> energies) {
+		try {
+			for (int i=0; i<tuples.size(); i++) {
+				writeEntry(kind, tuples.get(i), energies.get(i));
+			}
+			sync();
+		} catch (IOException ex) {
+			throw new RuntimeException("can't write to energy matrix journal " + file.getAbsolutePath(), ex);
+		}
+	}
+
+	private void sync()
+	throws IOException {
+		out.flush();
+		fileOut.getFD().sync();
+	}
+
+	private void writeEntry(Kind kind, RCTuple tuple, double energy)
+	throws IOException {
+		out.writeByte(kind.ordinal());
+		out.writeByte(tuple.size());
+		for (int i=0; i<tuple.size(); i++) {
+			out.writeInt(tuple.pos.get(i));
+			out.writeInt(tuple.RCs.get(i));
+		}
+		out.writeDouble(energy);
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			sync();
+			out.close();
+		} catch (IOException ex) {
+			throw new RuntimeException("can't close energy matrix journal " + file.getAbsolutePath(), ex);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.confspace.SimpleConfSpace;
+import edu.duke.cs.osprey.confspace.Strand;
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.PosInter;
+import edu.duke.cs.osprey.energy.ConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.ResidueInteractions;
+import edu.duke.cs.osprey.energy.compiled.ConfEnergyCalculatorAdapter;
+import edu.duke.cs.osprey.structure.Residue;
+import edu.duke.cs.osprey.structure.Residues;
+
+
+/**
+ * Estimates how long it takes to calculate the energy of an energy matrix fragment,
+ * so the energy matrix calculator can batch fragments by cost rather than by count.
+ *
+ * The estimated cost of a fragment is the number of atom pairs in its interactions,
+ * times one plus the number of continuous degrees of freedom (since minimization
+ * needs more forcefield evaluations for more DOFs).
+ *
+ * Estimated costs are converted into seconds using the times measured for fragments
+ * already calculated, separately for each fragment size, so the model gets better
+ * as the calculation goes on. This class is thread-safe.
+ */
+public class FragmentCostModel {
+
+	/** rough guess at the seconds per unit of cost, used until we've measured some fragments */
+	public static final double DefaultSecondsPerCost = 1e-7;
+
+	private static final int MaxSize = 4;
+
+	private interface Estimator {
+		double estimate(RCTuple frag);
+	}
+
+	private final Estimator estimator;
+
+	// indexed by fragment size
+	private final double[] measuredCost = new double[MaxSize + 1];
+	private final double[] measuredSeconds = new double[MaxSize + 1];
+
+	public FragmentCostModel(ConfEnergyCalculator confEcalc) {
+		if (confEcalc instanceof ConfEnergyCalculatorAdapter) {
+			estimator = new CompiledEstimator((ConfEnergyCalculatorAdapter)confEcalc);
+		} else if (confEcalc.confSpace != null) {
+			estimator = new SimpleEstimator(confEcalc);
+		} else {
+			// no atoms to count, so fall back to counting residue interactions
+			estimator = frag -> makeInters(confEcalc, frag).size();
+		}
+	}
+
+	/** returns the estimated cost of the fragment, in arbitrary units */
+	public double estimate(RCTuple frag) {
+		return estimator.estimate(frag);
+	}
+
+	/** returns the predicted time in seconds to calculate fragments of the given size with the given total estimated cost */
+	public synchronized double predictSeconds(int size, double cost) {
+		return cost*getSecondsPerCost(size);
+	}
+
+	public synchronized double getSecondsPerCost(int size) {
+
+		// use measurements for this fragment size if we have them
+		if (measuredCost[size] > 0) {
+			return measuredSeconds[size]/measuredCost[size];
+		}
+
+		// otherwise, measurements for any fragment size are better than a guess
+		double cost = 0;
+		double seconds = 0;
+		for (int i=1; i<=MaxSize; i++) {
+			cost += measuredCost[i];
+			seconds += measuredSeconds[i];
+		}
+		if (cost > 0) {
+			return seconds/cost;
+		}
+
+		return DefaultSecondsPerCost;
+	}
+
+	/** records how long it actually took to calculate a fragment with the given estimated cost */
+	public synchronized void observe(int size, double cost, double seconds) {
+		measuredCost[size] += cost;
+		measuredSeconds[size] += seconds;
+	}
+
+	public synchronized boolean isCalibrated(int size) {
+		return measuredCost[size] > 0;
+	}
+
+	private static ResidueInteractions makeInters(ConfEnergyCalculator confEcalc, RCTuple frag) {
+		switch (frag.size()) {
+			case 1: return confEcalc.makeSingleInters(frag.pos.get(0), frag.RCs.get(0));
+			case 2: return confEcalc.makePairInters(frag.pos.get(0), frag.RCs.get(0), frag.pos.get(1), frag.RCs.get(1));
+			default: return confEcalc.makeTupleInters(frag);
+		}
+	}
+
+	private static class SimpleEstimator implements Estimator {
+
+		final ConfEnergyCalculator confEcalc;
+		final SimpleConfSpace confSpace;
+		final Map<String,Integer> numAtomsByResNum = new HashMap<>();
+		final Map<String,Integer> posIndicesByResNum = new HashMap<>();
+
+		SimpleEstimator(ConfEnergyCalculator confEcalc) {
+
+			this.confEcalc = confEcalc;
+			this.confSpace = confEcalc.confSpace;
+
+			// count the atoms in the residues that don't change
+			for (Strand strand : confSpace.strands) {
+				for (Residue res : strand.mol.residues) {
+					numAtomsByResNum.put(Residues.normalizeResNum(res.getPDBResNumber()), res.atoms.size());
+				}
+			}
+
+			for (SimpleConfSpace.Position pos : confSpace.positions) {
+				posIndicesByResNum.put(Residues.normalizeResNum(pos.resNum), pos.index);
+			}
+		}
+
+		@Override
+		public double estimate(RCTuple frag) {
+
+			long numAtomPairs = 0;
+			for (ResidueInteractions.Pair pair : makeInters(confEcalc, frag)) {
+				long numAtoms1 = countAtoms(frag, pair.resNum1);
+				if (pair.resNum1.equals(pair.resNum2)) {
+					numAtomPairs += numAtoms1*(numAtoms1 - 1)/2;
+				} else {
+					numAtomPairs += numAtoms1*countAtoms(frag, pair.resNum2);
+				}
+			}
+
+			int numDofs = 0;
+			for (int i=0; i<frag.size(); i++) {
+				SimpleConfSpace.ResidueConf rc = getRC(frag, i);
+				for (double[] bounds : rc.dofBounds.values()) {
+					if (bounds[1] > bounds[0]) {
+						numDofs++;
+					}
+				}
+			}
+
+			return numAtomPairs*(1.0 + numDofs);
+		}
+
+		private SimpleConfSpace.ResidueConf getRC(RCTuple frag, int i) {
+			return confSpace.positions.get(frag.pos.get(i)).resConfs.get(frag.RCs.get(i));
+		}
+
+		private int countAtoms(RCTuple frag, String resNum) {
+			resNum = Residues.normalizeResNum(resNum);
+
+			// design positions get their atoms from the fragment's RC
+			Integer posi = posIndicesByResNum.get(resNum);
+			if (posi != null) {
+				int i = frag.pos.indexOf(posi);
+				if (i >= 0) {
+					return getRC(frag, i).template.templateRes.atoms.size();
+				}
+			}
+
+			return numAtomsByResNum.getOrDefault(resNum, 0);
+		}
+	}
+
+	private static class CompiledEstimator implements Estimator {
+
+		final ConfEnergyCalculatorAdapter confEcalc;
+		final ConfSpace confSpace;
+
+		CompiledEstimator(ConfEnergyCalculatorAdapter confEcalc) {
+			this.confEcalc = confEcalc;
+			this.confSpace = confEcalc.confEcalc.confSpace();
+		}
+
+		@Override
+		public double estimate(RCTuple frag) {
+
+			List<PosInter> inters;
+			switch (frag.size()) {
+				case 1:
+					inters = confEcalc.posInterGen.single(confSpace, frag.pos.get(0), frag.RCs.get(0));
+				break;
+				case 2:
+					inters = confEcalc.posInterGen.pair(confSpace, frag.pos.get(0), frag.RCs.get(0), frag.pos.get(1), frag.RCs.get(1));
+				break;
+				default:
+					throw new UnsupportedOperationException("only singles and pairs are supported for compiled conf spaces");
+			}
+
+			// the compiled conf space knows exactly which atom pairs are in each interaction
+			long numAtomPairs = 0;
+			for (int ffi=0; ffi<confSpace.forcefieldIds.length; ffi++) {
+				for (PosInter inter : inters) {
+					numAtomPairs += countAtomPairs(frag, ffi, inter);
+				}
+			}
+
+			int numDofs = 0;
+			if (confEcalc.minimize) {
+				for (int i=0; i<frag.size(); i++) {
+					numDofs += confSpace.positions[frag.pos.get(i)].confs[frag.RCs.get(i)].motions.length;
+				}
+			}
+
+			return numAtomPairs*(1.0 + numDofs);
+		}
+
+		private int countAtomPairs(RCTuple frag, int ffi, PosInter inter) {
+
+			if (inter.posi1 == PosInter.StaticPos && inter.posi2 == PosInter.StaticPos) {
+				return confSpace.indicesStatic(ffi).size();
+			} else if (inter.posi1 == PosInter.StaticPos) {
+				return confSpace.indicesSingles(ffi, inter.posi2, getConf(frag, inter.posi2)).sizeStatics();
+			} else if (inter.posi2 == PosInter.StaticPos) {
+				return confSpace.indicesSingles(ffi, inter.posi1, getConf(frag, inter.posi1)).sizeStatics();
+			} else if (inter.posi1 == inter.posi2) {
+				return confSpace.indicesSingles(ffi, inter.posi1, getConf(frag, inter.posi1)).sizeInternals();
+			} else {
+				int posi1 = Math.max(inter.posi1, inter.posi2);
+				int posi2 = Math.min(inter.posi1, inter.posi2);
+				return confSpace.indicesPairs(ffi, posi1, getConf(frag, posi1), posi2, getConf(frag, posi2)).size();
+			}
+		}
+
+		private int getConf(RCTuple frag, int posi) {
+			return frag.RCs.get(frag.pos.indexOf(posi));
+		}
+	}
+}
@@ -32,20 +32,59 @@
 
 package edu.duke.cs.osprey.ematrix;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleSupplier;
+
 import edu.duke.cs.osprey.confspace.ConfSpace;
+import edu.duke.cs.osprey.confspace.ParameterizedMoleculeCopy;
+import edu.duke.cs.osprey.confspace.ParameterizedMoleculePool;
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.parallelism.TaskExecutor;
+import edu.duke.cs.osprey.tools.ObjectPool.Checkout;
 
-public class LazyEnergyMatrix extends EnergyMatrix {
+/**
+ * An energy matrix that calculates its energies the first time they're asked for.
+ *
+ * Safe to share between threads: each missing energy is calculated only once,
+ * and any other threads asking for the same energy wait for that calculation to finish.
+ * Energies that have already been calculated are read without any locking.
+ *
+ * Optionally, calculations can be started early for the neighbors of a missing energy
+ * (ie, the other RCs at the same position), since conformation search tends to ask for those next.
+ * See {@link #setPrefetchTasks(TaskExecutor)}. Calculated energies can also be saved to a cache file,
+ * so they don't have to be calculated again next time. See {@link #setCacheFile(File)}.
+ */
+public class LazyEnergyMatrix extends EnergyMatrix implements AutoCloseable {
 
-	private static final long serialVersionUID = -6363593602037378135L;
+	private static final long serialVersionUID = 4101725863927403112L;
 	
 	private static final double DefaultNullVal = Double.NaN;
 	
+	private static interface Calculator {
+		double calc(ParameterizedMoleculeCopy pmol);
+	}
+	
 	private SimpleEnergyCalculator ecalc;
 	private double nullVal;
 	
+	/** calculations in progress, keyed by matrix index (singles are negative) */
+	private transient ConcurrentHashMap<Long,CompletableFuture<Double>> pending;
+	/** rows of neighbors with prefetches submitted but not finished, keyed like pending by the row's first energy */
+	private transient Set<Long> prefetching;
+	private transient ParameterizedMoleculePool pmols;
+	private transient TaskExecutor prefetchTasks;
+	private transient EnergyMatrixJournal cache;
+	
 	public LazyEnergyMatrix(LazyEnergyMatrix other) {
 		super(other);
 		init(other.ecalc, other.nullVal);
+		this.prefetchTasks = other.prefetchTasks;
 	}
 	
 	public LazyEnergyMatrix(EnergyMatrix emat, SimpleEnergyCalculator ecalc) {
@@ -70,6 +109,63 @@ public class LazyEnergyMatrix extends EnergyMatrix {
 	private void init(SimpleEnergyCalculator ecalc, double nullVal) {
 		this.ecalc = ecalc;
 		this.nullVal = nullVal;
+		initTransients();
+	}
+
+	private void initTransients() {
+		this.pending = new ConcurrentHashMap<>();
+		this.prefetching = ConcurrentHashMap.newKeySet();
+		this.pmols = new ParameterizedMoleculePool(ecalc.confSpace);
+		this.prefetchTasks = null;
+		this.cache = null;
+	}
+
+	private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		// prefetching and the cache file aren't saved, set them again after reading if needed
+		initTransients();
+	}
+	
+	/**
+	 * When a missing energy is asked for, also calculate the missing energies of its neighbors using these tasks.
+	 * Use a thread pool here, or the neighbors will be calculated synchronously by the asking thread.
+	 * Prefetching is skipped while all the task threads are busy.
+	 * Pass null to turn off prefetching.
+	 */
+	public void setPrefetchTasks(TaskExecutor tasks) {
+		this.prefetchTasks = tasks;
+	}
+	
+	/**
+	 * Reads any single and pair energies saved in the cache file into this matrix,
+	 * then saves all newly-calculated energies to the same file.
+	 * Creates the file if it doesn't exist.
+	 */
+	public void setCacheFile(File file) {
+		closeCacheFile();
+		cache = new EnergyMatrixJournal(file, getNumConfAtPos(), (kind, tuple, energy) -> {
+			if (kind != EnergyMatrixJournal.Kind.Energy) {
+				return;
+			}
+			switch (tuple.size()) {
+				case 1: super.setOneBody(tuple.pos.get(0), tuple.RCs.get(0), energy); break;
+				case 2: super.setPairwise(tuple.pos.get(0), tuple.RCs.get(0), tuple.pos.get(1), tuple.RCs.get(1), energy); break;
+			}
+		});
+	}
+	
+	public void closeCacheFile() {
+		if (cache != null) {
+			cache.close();
+			cache = null;
+		}
+	}
+	
+	@Override
+	public void close() {
+		closeCacheFile();
 	}
 	
     @Override
@@ -78,9 +174,8 @@ public class LazyEnergyMatrix extends EnergyMatrix {
     	if (hasVal(val)) {
     		return val;
     	}
-    	val = ecalc.calcSingle(res, conf).energy;
-    	super.setOneBody(res, conf, val);
-    	return val;
+    	prefetchOneBodies(res);
+    	return calcOneBody(res, conf);
     }
 
 	@Override
@@ -89,11 +184,133 @@ public class LazyEnergyMatrix extends EnergyMatrix {
     	if (hasVal(val)) {
     		return val;
     	}
-    	val = ecalc.calcPair(res1, conf1, res2, conf2).energy;
-    	super.setPairwise(res1, conf1, res2, conf2, val);
-    	return val;
+    	prefetchPairwises(res1, conf1, res2);
+    	return calcPairwise(res1, conf1, res2, conf2);
     }
 	
+	private double calcOneBody(int res, int conf) {
+		return getOrCalc(
+			-1L - getOneBodyIndex(res, conf),
+			() -> super.getOneBody(res, conf),
+			(pmol) -> ecalc.calcSingle(res, conf, pmol).energy,
+			(val) -> {
+				super.setOneBody(res, conf, val);
+				if (cache != null) {
+					cache.write(EnergyMatrixJournal.Kind.Energy, new RCTuple(res, conf), val);
+				}
+			}
+		);
+	}
+	
+	private double calcPairwise(int res1, int conf1, int res2, int conf2) {
+		return getOrCalc(
+			getPairwiseIndex(res1, conf1, res2, conf2),
+			() -> super.getPairwise(res1, conf1, res2, conf2),
+			(pmol) -> ecalc.calcPair(res1, conf1, res2, conf2, pmol).energy,
+			(val) -> {
+				super.setPairwise(res1, conf1, res2, conf2, val);
+				if (cache != null) {
+					cache.write(EnergyMatrixJournal.Kind.Energy, new RCTuple(res1, conf1, res2, conf2), val);
+				}
+			}
+		);
+	}
+	
+	private double getOrCalc(long key, DoubleSupplier getter, Calculator calculator, DoubleConsumer setter) {
+		
+		// is another thread already calculating this energy? if so, wait for it
+		CompletableFuture<Double> future = new CompletableFuture<>();
+		CompletableFuture<Double> otherFuture = pending.putIfAbsent(key, future);
+		if (otherFuture != null) {
+			return otherFuture.join();
+		}
+		
+		try {
+			
+			// check again, the other thread might have finished before we got here
+			// (putIfAbsent() locks the same map entry that remove() does, so we're guaranteed to see its value)
+			double val = getter.getAsDouble();
+			if (!hasVal(val)) {
+				try (Checkout<ParameterizedMoleculeCopy> pmol = pmols.autoCheckout()) {
+					val = calculator.calc(pmol.get());
+				}
+				setter.accept(val);
+			}
+			
+			future.complete(val);
+			return val;
+			
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+			throw t;
+		} finally {
+			pending.remove(key, future);
+		}
+	}
+	
+	private boolean canPrefetch() {
+		return prefetchTasks != null && !prefetchTasks.isBusy();
+	}
+	
+	private void prefetchOneBodies(int res) {
+		if (!canPrefetch()) {
+			return;
+		}
+		prefetch(
+			-1L - getOneBodyIndex(res, 0),
+			() -> {
+				for (int conf=0; conf<getNumConfAtPos(res); conf++) {
+					// don't wait on energies other threads are already calculating
+					if (!hasOneBody(res, conf) && !pending.containsKey(-1L - getOneBodyIndex(res, conf))) {
+						calcOneBody(res, conf);
+					}
+				}
+			}
+		);
+	}
+	
+	private void prefetchPairwises(int res1, int conf1, int res2) {
+		if (!canPrefetch()) {
+			return;
+		}
+		prefetch(
+			getPairwiseIndex(res1, conf1, res2, 0),
+			() -> {
+				for (int conf2=0; conf2<getNumConfAtPos(res2); conf2++) {
+					// don't wait on energies other threads are already calculating
+					if (!hasPairwise(res1, conf1, res2, conf2) && !pending.containsKey(getPairwiseIndex(res1, conf1, res2, conf2))) {
+						calcPairwise(res1, conf1, res2, conf2);
+					}
+				}
+			}
+		);
+	}
+
+	private void prefetch(long rowKey, Runnable task) {
+
+		// skip rows that are already being prefetched
+		if (!prefetching.add(rowKey)) {
+			return;
+		}
+
+		try {
+			prefetchTasks.submit(
+				() -> {
+					try {
+						task.run();
+					} finally {
+						prefetching.remove(rowKey);
+					}
+					return null;
+				},
+				(ignored) -> {}
+			);
+		} catch (Throwable t) {
+			prefetching.remove(rowKey);
+			throw t;
+		}
+	}
+	
 	public boolean hasOneBody(int res, int conf) {
 		return hasVal(super.getOneBody(res, conf));
 	}
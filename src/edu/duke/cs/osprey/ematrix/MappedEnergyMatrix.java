@@ -0,0 +1,449 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.tools.ObjectIO.BadFileException;
+import edu.duke.cs.osprey.tools.ObjectIO.CantWriteException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * An energy matrix whose single and pair energies live in a memory-mapped file,
+ * rather than on the JVM heap.
+ *
+ * Opening a mapped energy matrix only reads the file header, so even very large matrices load instantly.
+ * The operating system pages in the energies as they're used, and several JVMs on the same machine
+ * that map the same file share the same physical pages.
+ *
+ * If the file is writable, it's mapped copy-on-write, so changes to the matrix (eg, from reference energies)
+ * stay private to this JVM and never modify the file. Otherwise, the file is mapped read-only,
+ * and changing the single or pair energies throws a {@link java.nio.ReadOnlyBufferException}.
+ * The file is never modified either way.
+ *
+ * File layout (all values little-endian):
+ * <pre>
+ * int     magic number
+ * int     format version
+ * int     number of positions
+ * int     flags (bit 0: has higher-order tuples)
+ * double  constant term
+ * double  pruning interval
+ * int[]   number of conformations at each position
+ * ...     padding to 8 bytes
+ * double[] single energies, ordered by position, then conformation
+ * double[] pair energies, ordered by pos1 > pos2, then conf1, then conf2
+ * higher-order section, if flagged:
+ *     long  number of tuples
+ *     for each tuple: int size, int[size] positions, int[size] conformations, double energy
+ * </pre>
+ */
+public class MappedEnergyMatrix extends EnergyMatrix {
+
+	private static final long serialVersionUID = 2283049276539726719L;
+
+	/** "OEMX" */
+	public static final int Magic = 0x4f454d58;
+	public static final int Version = 1;
+
+	private static final int FlagHigherOrder = 1;
+
+	private static final int HeaderSize = 4*4 + 2*8;
+
+	/** map the pair energies in chunks of 2^27 doubles (1 GiB), since one mapping can't be bigger than 2 GiB */
+	private static final int ChunkShift = 27;
+
+	/**
+	 * Writes the energy matrix to the file in the mappable binary format.
+	 */
+	public static void write(EnergyMatrix emat, File file)
+	throws CantWriteException {
+
+		if (emat.hasHigherOrderTerms()) {
+			throw new IllegalArgumentException("energy matrices with HigherTupleFinder terms aren't supported, use higher-order tuples instead");
+		}
+
+		int numPos = emat.getNumPos();
+
+		// collect the higher-order tuples, if any
+		List<RCTuple> tuples = new ArrayList<>();
+		List<Double> tupleEnergies = new ArrayList<>();
+		emat.forEachHigherOrderTuple((tuple, energy) -> {
+			tuples.add(tuple);
+			tupleEnergies.add(energy);
+		});
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+			ByteBuffer buf = ByteBuffer.allocateDirect(1024*1024).order(ByteOrder.LITTLE_ENDIAN);
+
+			// write the header
+			buf.putInt(Magic);
+			buf.putInt(Version);
+			buf.putInt(numPos);
+			buf.putInt(tuples.isEmpty() ? 0 : FlagHigherOrder);
+			buf.putDouble(emat.getConstTerm());
+			buf.putDouble(emat.getPruningInterval());
+			for (int pos=0; pos<numPos; pos++) {
+				flushIfFull(channel, buf, Integer.BYTES);
+				buf.putInt(emat.getNumConfAtPos(pos));
+			}
+			while (buf.position() % Double.BYTES != 0) {
+				buf.put((byte)0);
+			}
+
+			// write the singles
+			for (int pos1=0; pos1<numPos; pos1++) {
+				for (int rc1=0; rc1<emat.getNumConfAtPos(pos1); rc1++) {
+					flushIfFull(channel, buf, Double.BYTES);
+					buf.putDouble(emat.getOneBody(pos1, rc1));
+				}
+			}
+
+			// write the pairs, in the same order as the pairwise index
+			for (int pos1=0; pos1<numPos; pos1++) {
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc1=0; rc1<emat.getNumConfAtPos(pos1); rc1++) {
+						for (int rc2=0; rc2<emat.getNumConfAtPos(pos2); rc2++) {
+							flushIfFull(channel, buf, Double.BYTES);
+							buf.putDouble(emat.getPairwise(pos1, rc1, pos2, rc2));
+						}
+					}
+				}
+			}
+
+			// write the higher-order tuples
+			if (!tuples.isEmpty()) {
+				flushIfFull(channel, buf, Long.BYTES);
+				buf.putLong(tuples.size());
+				for (int i=0; i<tuples.size(); i++) {
+					RCTuple tuple = tuples.get(i);
+					flushIfFull(channel, buf, Integer.BYTES*(1 + 2*tuple.size()) + Double.BYTES);
+					buf.putInt(tuple.size());
+					for (int pos : tuple.pos) {
+						buf.putInt(pos);
+					}
+					for (int rc : tuple.RCs) {
+						buf.putInt(rc);
+					}
+					buf.putDouble(tupleEnergies.get(i));
+				}
+			}
+
+			flush(channel, buf);
+
+		} catch (IOException ex) {
+			throw new CantWriteException(file, ex);
+		}
+	}
+
+	private static void flushIfFull(FileChannel channel, ByteBuffer buf, int numBytes)
+	throws IOException {
+		if (buf.remaining() < numBytes) {
+			flush(channel, buf);
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf)
+	throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * Maps the energy matrix in the file written by {@link #write(EnergyMatrix, File)}.
+	 */
+	public static MappedEnergyMatrix open(File file)
+	throws BadFileException {
+
+		// copy-on-write mappings need a writable channel, even though nothing is ever written to the file
+		boolean isWritable = file.canWrite();
+		FileChannel.MapMode mode = isWritable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+
+		try (FileChannel channel = isWritable
+			? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+			: FileChannel.open(file.toPath(), StandardOpenOption.READ)
+		) {
+
+			long fileSize = channel.size();
+			if (fileSize < HeaderSize) {
+				throw new BadFileException(file, "file is too small to be a mapped energy matrix");
+			}
+
+			// read the fixed-size header
+			ByteBuffer header = map(channel, mode, 0, HeaderSize);
+			if (header.getInt() != Magic) {
+				throw new BadFileException(file, "not a mapped energy matrix");
+			}
+			int version = header.getInt();
+			if (version != Version) {
+				throw new BadFileException(file, "unsupported mapped energy matrix version: " + version);
+			}
+			int numPos = header.getInt();
+			int flags = header.getInt();
+			double constTerm = header.getDouble();
+			double pruningInterval = header.getDouble();
+
+			// read the conf counts
+			long offset = HeaderSize;
+			if (numPos < 0 || offset + (long)numPos*Integer.BYTES > fileSize) {
+				throw new BadFileException(file, "file is truncated");
+			}
+			int[] numConfAtPos = new int[numPos];
+			if (numPos > 0) {
+				ByteBuffer confs = map(channel, mode, offset, numPos*Integer.BYTES);
+				for (int pos=0; pos<numPos; pos++) {
+					numConfAtPos[pos] = confs.getInt();
+				}
+			}
+			offset += (long)numPos*Integer.BYTES;
+			offset = (offset + Double.BYTES - 1)/Double.BYTES*Double.BYTES;
+
+			// count the singles and pairs
+			long numOneBody = 0;
+			long numPairwise = 0;
+			for (int pos1=0; pos1<numPos; pos1++) {
+				numOneBody += numConfAtPos[pos1];
+				for (int pos2=0; pos2<pos1; pos2++) {
+					numPairwise += (long)numConfAtPos[pos1]*numConfAtPos[pos2];
+				}
+			}
+			long oneBodyOffset = offset;
+			long pairwiseOffset = oneBodyOffset + numOneBody*Double.BYTES;
+			long higherOrderOffset = pairwiseOffset + numPairwise*Double.BYTES;
+			if (higherOrderOffset > fileSize) {
+				throw new BadFileException(file, "file is truncated");
+			}
+
+			MappedEnergyMatrix emat = new MappedEnergyMatrix(
+				file,
+				numPos,
+				numConfAtPos,
+				pruningInterval,
+				new MappedDoubles(channel, mode, oneBodyOffset, numOneBody),
+				new MappedDoubles(channel, mode, pairwiseOffset, numPairwise)
+			);
+			emat.setConstTerm(constTerm);
+
+			// read the higher-order tuples onto the heap, they're usually sparse
+			if ((flags & FlagHigherOrder) != 0) {
+				ByteBuffer buf = map(channel, mode, higherOrderOffset, fileSize - higherOrderOffset);
+				long numTuples = buf.getLong();
+				for (long i=0; i<numTuples; i++) {
+					int size = buf.getInt();
+					int[] pos = new int[size];
+					int[] rcs = new int[size];
+					for (int j=0; j<size; j++) {
+						pos[j] = buf.getInt();
+					}
+					for (int j=0; j<size; j++) {
+						rcs[j] = buf.getInt();
+					}
+					RCTuple tuple = new RCTuple();
+					for (int j=0; j<size; j++) {
+						tuple.pos.add(pos[j]);
+						tuple.RCs.add(rcs[j]);
+					}
+					emat.setTuple(tuple, buf.getDouble());
+				}
+			}
+
+			return emat;
+
+		} catch (IOException ex) {
+			throw new BadFileException(file, "can't map file", ex);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long size)
+	throws IOException {
+		return channel.map(mode, offset, size)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * A (possibly larger than 2 GiB) array of doubles in a memory-mapped file.
+	 */
+	private static class MappedDoubles {
+
+		final DoubleBuffer[] chunks;
+
+		MappedDoubles(FileChannel channel, FileChannel.MapMode mode, long offset, long size)
+		throws IOException {
+
+			int numChunks = (int)((size + (1L << ChunkShift) - 1) >>> ChunkShift);
+			chunks = new DoubleBuffer[numChunks];
+			for (int i=0; i<numChunks; i++) {
+				long start = (long)i << ChunkShift;
+				long chunkSize = Math.min(1L << ChunkShift, size - start);
+				chunks[i] = map(channel, mode, offset + start*Double.BYTES, chunkSize*Double.BYTES)
+					.asDoubleBuffer();
+			}
+		}
+
+		double get(int i) {
+			return chunks[i >>> ChunkShift].get(i & ((1 << ChunkShift) - 1));
+		}
+
+		void set(int i, double val) {
+			chunks[i >>> ChunkShift].put(i & ((1 << ChunkShift) - 1), val);
+		}
+	}
+
+
+	public final File file;
+
+	private final transient MappedDoubles oneBody;
+	private final transient MappedDoubles pairwise;
+
+	private MappedEnergyMatrix(File file, int numPos, int[] numConfAtPos, double pruningInterval, MappedDoubles oneBody, MappedDoubles pairwise) {
+		super(numPos, numConfAtPos, pruningInterval);
+		this.file = file;
+		this.oneBody = oneBody;
+		this.pairwise = pairwise;
+	}
+
+	@Override
+	protected void allocate(int numOneBody, int numPairwise) {
+		// don't allocate anything
+		// the energies are in the mapped file
+	}
+
+	@Override
+	public Double getOneBody(int res, int conf) {
+		return oneBody.get(getOneBodyIndex(res, conf));
+	}
+
+	@Override
+	public void setOneBody(int res, int conf, Double val) {
+		oneBody.set(getOneBodyIndex(res, conf), val);
+	}
+
+	@Override
+	public void setOneBody(int res, ArrayList<Double> val) {
+		int n = getNumConfAtPos(res);
+		for (int i=0; i<n; i++) {
+			setOneBody(res, i, val.get(i));
+		}
+	}
+
+	@Override
+	public Double getPairwise(int res1, int conf1, int res2, int conf2) {
+		return pairwise.get(getPairwiseIndex(res1, conf1, res2, conf2));
+	}
+
+	@Override
+	public void setPairwise(int res1, int conf1, int res2, int conf2, Double val) {
+		pairwise.set(getPairwiseIndex(res1, conf1, res2, conf2), val);
+	}
+
+	@Override
+	public void setPairwise(int res1, int res2, ArrayList<ArrayList<Double>> val) {
+		int n1 = getNumConfAtPos(res1);
+		int n2 = getNumConfAtPos(res2);
+		for (int i1=0; i1<n1; i1++) {
+			for (int i2=0; i2<n2; i2++) {
+				setPairwise(res1, i1, res2, i2, val.get(i1).get(i2));
+			}
+		}
+	}
+
+	@Override
+	public void negate() {
+		forEachEntry((pos1, rc1, pos2, rc2) -> {
+			if (pos2 < 0) {
+				setOneBody(pos1, rc1, -getOneBody(pos1, rc1));
+			} else {
+				setPairwise(pos1, rc1, pos2, rc2, -getPairwise(pos1, rc1, pos2, rc2));
+			}
+		});
+	}
+
+	@Override
+	public double sum() {
+		double[] sum = { 0.0 };
+		forEachEntry((pos1, rc1, pos2, rc2) -> {
+			if (pos2 < 0) {
+				sum[0] += getOneBody(pos1, rc1);
+			} else {
+				sum[0] += getPairwise(pos1, rc1, pos2, rc2);
+			}
+		});
+		return sum[0];
+	}
+
+	private interface EntryVisitor {
+		/** pos2 is -1 for singles */
+		void visit(int pos1, int rc1, int pos2, int rc2);
+	}
+
+	private void forEachEntry(EntryVisitor visitor) {
+		for (int pos1=0; pos1<getNumPos(); pos1++) {
+			for (int rc1=0; rc1<getNumConfAtPos(pos1); rc1++) {
+				visitor.visit(pos1, rc1, -1, -1);
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<getNumConfAtPos(pos2); rc2++) {
+						visitor.visit(pos1, rc1, pos2, rc2);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the energies into a regular energy matrix on the heap.
+	 */
+	public EnergyMatrix toHeap() {
+		EnergyMatrix emat = new EnergyMatrix(this);
+		forEachHigherOrderTuple(emat::setTuple);
+		return emat;
+	}
+
+	/** the mapping can't be serialized, so serialize a copy on the heap instead */
+	private Object writeReplace() {
+		return toHeap();
+	}
+}
@@ -33,12 +33,17 @@
 package edu.duke.cs.osprey.ematrix;
 
 import java.io.File;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import edu.duke.cs.osprey.confspace.ConfSpaceIteration;
 import edu.duke.cs.osprey.confspace.RCTuple;
 import edu.duke.cs.osprey.confspace.SimpleConfSpace;
+import edu.duke.cs.osprey.confspace.TupleMatrixBoolean;
 import edu.duke.cs.osprey.energy.ConfEnergyCalculator;
 import edu.duke.cs.osprey.energy.EnergyCalculator;
 import edu.duke.cs.osprey.energy.ResidueInteractions;
@@ -91,6 +96,19 @@ public class SimplerEnergyMatrixCalculator {
 		 * are below the given threshold. ie. ignore quads with clashes.
 		 */
 		private Double quadCorrectionThreshold = null;
+
+		/**
+		 * Path to file where finished energies are logged as soon as they're calculated.
+		 *
+		 * @note If the energy matrix calculation gets interrupted (eg, by a node failure or
+		 * a cluster walltime limit), running it again with the same journal file skips
+		 * all the energies in the journal, so the calculation can finish over several runs.
+		 * See {@link EnergyMatrixJournal}.
+		 *
+		 * @warning Like the cache file, the journal can't detect all design changes,
+		 * so delete the journal file after changing design settings.
+		 */
+		private File journalFile = null;
 		
 		public Builder(SimpleConfSpace confSpace, EnergyCalculator ecalc) {
 			this(new ConfEnergyCalculator.Builder(confSpace, ecalc).build());
@@ -114,9 +132,14 @@ public class SimplerEnergyMatrixCalculator {
 			quadCorrectionThreshold = val;
 			return this;
 		}
+
+		public Builder setJournalFile(File val) {
+			journalFile = val;
+			return this;
+		}
 		
 		public SimplerEnergyMatrixCalculator build() {
-			return new SimplerEnergyMatrixCalculator(confEcalc, cacheFile, tripleCorrectionThreshold, quadCorrectionThreshold);
+			return new SimplerEnergyMatrixCalculator(confEcalc, cacheFile, tripleCorrectionThreshold, quadCorrectionThreshold, journalFile);
 		}
 	}
 
@@ -124,13 +147,15 @@ public class SimplerEnergyMatrixCalculator {
 	public final File cacheFile;
 	public final Double tripleCorrectionThreshold;
 	public final Double quadCorrectionThreshold;
+	public final File journalFile;
 
-	private SimplerEnergyMatrixCalculator(ConfEnergyCalculator confEcalc, File cacheFile, Double tripleCorrectionThreshold, Double quadCorrectionThreshold) {
+	private SimplerEnergyMatrixCalculator(ConfEnergyCalculator confEcalc, File cacheFile, Double tripleCorrectionThreshold, Double quadCorrectionThreshold, File journalFile) {
 
 		this.confEcalc = confEcalc;
 		this.cacheFile = cacheFile;
 		this.tripleCorrectionThreshold = tripleCorrectionThreshold;
 		this.quadCorrectionThreshold = quadCorrectionThreshold;
+		this.journalFile = journalFile;
 	}
 	
 	/**
@@ -167,6 +192,88 @@ public class SimplerEnergyMatrixCalculator {
 		// allocate the new matrix
 		EnergyMatrix emat = new EnergyMatrix(confEcalc.confSpaceIteration());
 
+		if (journalFile == null) {
+			reallyCalcEnergyMatrix(emat, null, null);
+			return emat;
+		}
+
+		// pick up any energies we already calculated
+		Journaled journaled = new Journaled(emat);
+		try (EnergyMatrixJournal journal = new EnergyMatrixJournal(journalFile, emat.getNumConfAtPos(), (kind, tuple, energy) -> {
+			switch (kind) {
+				case Energy:
+					setEnergy(emat, tuple, energy);
+					journaled.addFragment(tuple);
+				break;
+				case Correction:
+					journaled.corrections.put(tuple, energy);
+				break;
+			}
+		})) {
+			reallyCalcEnergyMatrix(emat, journal, journaled);
+		}
+
+		return emat;
+	}
+
+	/** keeps track of which energies were replayed from the journal */
+	private static class Journaled {
+
+		final TupleMatrixBoolean fragments;
+		final Map<RCTuple,Double> corrections = new HashMap<>();
+		int numSingles = 0;
+		int numPairs = 0;
+
+		Journaled(EnergyMatrix emat) {
+			fragments = new TupleMatrixBoolean(emat.getNumPos(), emat.getNumConfAtPos(), Double.POSITIVE_INFINITY, false);
+		}
+
+		void addFragment(RCTuple frag) {
+			if (frag.size() == 1) {
+				fragments.setOneBody(frag.pos.get(0), frag.RCs.get(0), true);
+				numSingles++;
+			} else if (frag.size() == 2) {
+				fragments.setPairwise(frag.pos.get(0), frag.RCs.get(0), frag.pos.get(1), frag.RCs.get(1), true);
+				numPairs++;
+			}
+		}
+	}
+
+	private static void setEnergy(EnergyMatrix emat, RCTuple frag, double energy) {
+		if (frag.size() == 1) {
+			emat.setOneBody(frag.pos.get(0), frag.RCs.get(0), energy);
+		} else if (frag.size() == 2) {
+			emat.setPairwise(frag.pos.get(0), frag.RCs.get(0), frag.pos.get(1), frag.RCs.get(1), energy);
+		} else {
+			emat.setTuple(frag, energy);
+		}
+	}
+
+	/** visits all the singles and pairs that aren't already in the journal */
+	private static void forEachFragment(EnergyMatrix emat, Journaled journaled, Consumer<RCTuple> block) {
+		for (int pos1=0; pos1<emat.getNumPos(); pos1++) {
+			for (int rc1=0; rc1<emat.getNumConfAtPos(pos1); rc1++) {
+
+				// single
+				if (journaled == null || !journaled.fragments.getOneBody(pos1, rc1)) {
+					block.accept(new RCTuple(pos1, rc1));
+				}
+
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<emat.getNumConfAtPos(pos2); rc2++) {
+
+						// pair
+						if (journaled == null || !journaled.fragments.getPairwise(pos1, rc1, pos2, rc2)) {
+							block.accept(new RCTuple(pos1, rc1, pos2, rc2));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void reallyCalcEnergyMatrix(EnergyMatrix emat, EnergyMatrixJournal journal, Journaled journaled) {
+
 		// count how much work there is to do (roughly based on number of residue pairs)
 		final int singleCost;
 		if (emat.getNumPos() <= 0) {
@@ -184,65 +291,91 @@ public class SimplerEnergyMatrixCalculator {
 		final int numPairs = confEcalc.confSpaceIteration().countPairs();
 		Progress progress = new Progress(numSingles*singleCost + numPairs*pairCost);
 		
-		// some fragments can be big and some can be small
-		// try minimize thread sync overhead by not sending a bunch of small fragments in all separate tasks
-		// ie, try to batch fragments together
+		// some fragments can be big and some can be small, eg, a minimized pair with lots of atoms
+		// can take orders of magnitude longer than a small rigid single,
+		// so batch fragments together by estimated cost rather than by count
+		FragmentCostModel costs = new FragmentCostModel(confEcalc);
+
+		// count the estimated cost of all the fragments we still need to calculate
+		double[] remainingCost = new double[3];
+		forEachFragment(emat, journaled, frag -> remainingCost[frag.size()] += costs.estimate(frag));
+
 		class Batch {
 			
 			List<RCTuple> fragments = new ArrayList<>();
-			int cost = 0;
+			List<Double> fragmentCosts = new ArrayList<>();
+			double[] cost = new double[3];
+			int progressCost = 0;
 			
-			void addSingle(int pos, int rc) {
-				fragments.add(new RCTuple(pos, rc));
-				cost += singleCost;
+			void add(RCTuple frag, double fragCost) {
+				fragments.add(frag);
+				fragmentCosts.add(fragCost);
+				cost[frag.size()] += fragCost;
+				progressCost += frag.size() == 1 ? singleCost : pairCost;
 			}
-			
-			void addPair(int pos1, int rc1, int pos2, int rc2) {
-				fragments.add(new RCTuple(pos1, rc1, pos2, rc2));
-				cost += pairCost;
+
+			double predictSeconds() {
+				return costs.predictSeconds(1, cost[1]) + costs.predictSeconds(2, cost[2]);
 			}
 
 			void submitTask() {
 				confEcalc.tasks.submit(
 					new BatchTask(fragments),
-					(List<Double> energies) -> {
+					(BatchTask.Result result) -> {
+
+						// refine the cost model with the measured times
+						for (int i=0; i<fragments.size(); i++) {
+							costs.observe(fragments.get(i).size(), fragmentCosts.get(i), result.seconds[i]);
+						}
 						
 						// update the energy matrix
 						for (int i=0; i<fragments.size(); i++) {
-							RCTuple frag = fragments.get(i);
-							if (frag.size() == 1) {
-								emat.setOneBody(frag.pos.get(0), frag.RCs.get(0), energies.get(i));
-							} else if (frag.size() == 2) {
-								emat.setPairwise(frag.pos.get(0), frag.RCs.get(0), frag.pos.get(1), frag.RCs.get(1), energies.get(i));
-							} else {
-								emat.setTuple(frag, energies.get(i));
-							}
+							setEnergy(emat, fragments.get(i), result.energies.get(i));
+						}
+
+						// and the journal
+						if (journal != null) {
+							journal.write(EnergyMatrixJournal.Kind.Energy, fragments, result.energies);
 						}
 						
-						progress.incrementProgress(cost);
+						progress.incrementProgress(progressCost);
 					}
 				);
 			}
 		}
-		
-		final int CostThreshold = 100;
+
+		// aim for a few batches per worker over whatever work remains (ie, guided self-scheduling),
+		// so batches get smaller near the end of the pass and the workers all finish at about the same time
+		// but don't make batches so small that thread sync or network overhead dominates
+		final int BatchesPerWorker = 4;
+		final double MinBatchSeconds = 0.05;
+		final double MaxBatchSeconds = 10.0;
+		final int parallelism = Math.max(1, confEcalc.tasks.getParallelism());
 		
 		class Batcher {
 			
 			Batch batch = null;
-			
-			Batch getBatch() {
+
+			void add(RCTuple frag) {
+
+				double fragCost = costs.estimate(frag);
+				remainingCost[frag.size()] -= fragCost;
+
 				if (batch == null) {
 					batch = new Batch();
 				}
-				return batch;
-			}
-			
-			void submitIfFull() {
-				if (batch != null && batch.cost >= CostThreshold) {
+				batch.add(frag, fragCost);
+
+				if (batch.predictSeconds() >= getTargetSeconds()) {
 					submit();
 				}
 			}
+
+			double getTargetSeconds() {
+				double remainingSeconds = costs.predictSeconds(1, remainingCost[1]) + costs.predictSeconds(2, remainingCost[2]);
+				double targetSeconds = remainingSeconds/parallelism/BatchesPerWorker;
+				return Math.max(MinBatchSeconds, Math.min(MaxBatchSeconds, targetSeconds));
+			}
 			
 			void submit() {
 				if (batch != null) {
@@ -255,38 +388,52 @@ public class SimplerEnergyMatrixCalculator {
 		
 		// convert the workload into tasks for the task executor
 		log("Calculating energy matrix with %d entries", numSingles + numPairs);
-		for (int pos1=0; pos1<emat.getNumPos(); pos1++) {
-			for (int rc1=0; rc1<emat.getNumConfAtPos(pos1); rc1++) {
-				
-				// single
-				batcher.getBatch().addSingle(pos1, rc1);
-				batcher.submitIfFull();
-				
-				for (int pos2=0; pos2<pos1; pos2++) {
-					for (int rc2=0; rc2<emat.getNumConfAtPos(pos2); rc2++) {
-
-						// pair
-						batcher.getBatch().addPair(pos1, rc1, pos2, rc2);
-						batcher.submitIfFull();
-					}
-				}
-			}
+		if (journaled != null && journaled.numSingles + journaled.numPairs > 0) {
+			log("\tskipping %d energies already in the journal", journaled.numSingles + journaled.numPairs);
+			progress.incrementProgress(journaled.numSingles*singleCost + journaled.numPairs*pairCost);
 		}
+		forEachFragment(emat, journaled, batcher::add);
 		
 		batcher.submit();
 		confEcalc.tasks.waitForFinish();
 
 		// calc corrections if needed (but only use the highest-order corrections chosen)
 		if (quadCorrectionThreshold != null) {
-			calcQuadCorrections(emat);
+			calcQuadCorrections(emat, journal, journaled);
 		} else if (tripleCorrectionThreshold != null) {
-			calcTripleCorrections(emat);
+			calcTripleCorrections(emat, journal, journaled);
 		}
+	}
 
-		return emat;
+	/**
+	 * Applies all the journaled corrections for tuples of the given size.
+	 * Must be called before any correction tasks are submitted, so the replayed writes
+	 * can't race the task listeners.
+	 * Returns the number of useful corrections applied.
+	 */
+	private static int replayCorrections(EnergyMatrix emat, Journaled journaled, int tupleSize) {
+
+		if (journaled == null) {
+			return 0;
+		}
+
+		int numCorrections = 0;
+		for (Map.Entry<RCTuple,Double> entry : journaled.corrections.entrySet()) {
+			RCTuple tuple = entry.getKey();
+			double correction = entry.getValue();
+			if (tuple.size() == tupleSize && correction > 0) {
+				emat.setTuple(tuple, correction);
+				numCorrections++;
+			}
+		}
+		return numCorrections;
 	}
 
-	private static class BatchTask extends Cluster.Task<List<Double>,BatchTask.Context> {
+	private static boolean isJournaled(Journaled journaled, RCTuple tuple) {
+		return journaled != null && journaled.corrections.containsKey(tuple);
+	}
+
+	private static class BatchTask extends Cluster.Task<BatchTask.Result,BatchTask.Context> {
 
 		static class Context {
 
@@ -297,6 +444,19 @@ public class SimplerEnergyMatrixCalculator {
 			}
 		}
 
+		static class Result implements Serializable {
+
+			final List<Double> energies;
+
+			/** how long each fragment took to calculate */
+			final double[] seconds;
+
+			Result(List<Double> energies, double[] seconds) {
+				this.energies = energies;
+				this.seconds = seconds;
+			}
+		}
+
 		List<RCTuple> fragments;
 
 		BatchTask(List<RCTuple> fragments) {
@@ -305,11 +465,14 @@ public class SimplerEnergyMatrixCalculator {
 		}
 
 		@Override
-		public List<Double> run(Context ctx) {
+		public Result run(Context ctx) {
 
 			// calculate all the fragment energies
 			List<Double> energies = new ArrayList<>();
-			for (RCTuple frag : fragments) {
+			double[] seconds = new double[fragments.size()];
+			for (int i=0; i<fragments.size(); i++) {
+				RCTuple frag = fragments.get(i);
+				long startNs = System.nanoTime();
 
 				double energy;
 
@@ -336,19 +499,20 @@ public class SimplerEnergyMatrixCalculator {
 				}
 
 				energies.add(energy);
+				seconds[i] = (System.nanoTime() - startNs)/1e9;
 			}
 
-			return energies;
+			return new Result(energies, seconds);
 		}
 	}
 
 	// TODO: improve progress bar performance by pre-counting the tuples that pass the threshold
 
-	private void calcTripleCorrections(EnergyMatrix emat) {
+	private void calcTripleCorrections(EnergyMatrix emat, EnergyMatrixJournal journal, Journaled journaled) {
 
 		Progress progress = new Progress(confEcalc.confSpace.getNumResConfTriples());
 		log("calculating triple corrections for up to %d triples", progress.getTotalWork());
-		int[] numCorrections = { 0 };
+		int[] numCorrections = { replayCorrections(emat, journaled, 3) };
 
 		for (int pos1=0; pos1<emat.getNumPos(); pos1++) {
 			for (int rc1=0; rc1<emat.getNumConfAtPos(pos1); rc1++) {
@@ -381,6 +545,14 @@ public class SimplerEnergyMatrixCalculator {
 									continue;
 								}
 
+								// skip triples already in the journal (replayed above)
+								if (isJournaled(journaled, triple)) {
+									synchronized (progress) {
+										progress.incrementProgress();
+									}
+									continue;
+								}
+
 								ResidueInteractions inters = confEcalc.makeTripleCorrectionInters(pos1, rc1, pos2, rc2, pos3, rc3);
 								double tripleEnergyOffset = confEcalc.epart.offsetTripleEnergy(pos1, rc1, pos2, rc2, pos3, rc3, emat);
 
@@ -398,6 +570,10 @@ public class SimplerEnergyMatrixCalculator {
 											numCorrections[0]++;
 										}
 
+										if (journal != null) {
+											journal.write(EnergyMatrixJournal.Kind.Correction, triple, correction);
+										}
+
 										synchronized (progress) {
 											progress.incrementProgress();
 										}
@@ -415,11 +591,11 @@ public class SimplerEnergyMatrixCalculator {
 		log("calculated %d/%d useful triple corrections", numCorrections[0], progress.getTotalWork());
 	}
 
-	private void calcQuadCorrections(EnergyMatrix emat) {
+	private void calcQuadCorrections(EnergyMatrix emat, EnergyMatrixJournal journal, Journaled journaled) {
 
 		Progress progress = new Progress(confEcalc.confSpace.getNumResConfQuads());
 		log("calculating quad corrections for up to %d quads", progress.getTotalWork());
-		int[] numCorrections = { 0 };
+		int[] numCorrections = { replayCorrections(emat, journaled, 4) };
 
 		// TODO: this indentation is ridiculous...
 		for (int pos1=0; pos1<emat.getNumPos(); pos1++) {
@@ -460,6 +636,14 @@ public class SimplerEnergyMatrixCalculator {
 											continue;
 										}
 
+										// skip quads already in the journal (replayed above)
+										if (isJournaled(journaled, quad)) {
+											synchronized (progress) {
+												progress.incrementProgress();
+											}
+											continue;
+										}
+
 										ResidueInteractions inters = confEcalc.makeQuadCorrectionInters(pos1, rc1, pos2, rc2, pos3, rc3, pos4, rc4);
 										double quadEnergyOffset = confEcalc.epart.offsetQuadEnergy(pos1, rc1, pos2, rc2, pos3, rc3, pos4, rc4, emat);
 
@@ -477,6 +661,10 @@ public class SimplerEnergyMatrixCalculator {
 													numCorrections[0]++;
 												}
 
+												if (journal != null) {
+													journal.write(EnergyMatrixJournal.Kind.Correction, quad, correction);
+												}
+
 												synchronized (progress) {
 													progress.incrementProgress();
 												}
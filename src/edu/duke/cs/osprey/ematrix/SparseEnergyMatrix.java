@@ -0,0 +1,272 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import edu.duke.cs.osprey.confspace.ConfSpaceIteration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+
+
+/**
+ * An energy matrix that only stores pair energies between neighboring positions.
+ *
+ * For large conformation spaces, most pairs of positions are far enough apart
+ * that their pair energies are zero, or close enough to zero not to matter.
+ * Pair energies between positions that aren't neighbors are always zero here, and take no space.
+ * Use eg {@link edu.duke.cs.osprey.confspace.compiled.PosDistances} to choose the neighbors by distance.
+ *
+ * Pair energies between neighbors are stored in one dense block for each pair of positions.
+ */
+public class SparseEnergyMatrix extends EnergyMatrix {
+
+	private static final long serialVersionUID = -2720340431949215386L;
+
+	private boolean[][] neighbors; // indexed by pos1, pos2
+	private int[][] neighborLists; // indexed by pos
+	private double[] oneBody;
+	private double[][] pairwise; // indexed by pos1*(pos1 - 1)/2 + pos2 where pos1 > pos2, then conf1*numConfs2 + conf2, or null for non-neighbors
+
+	public SparseEnergyMatrix(ConfSpaceIteration confSpace, BiPredicate<Integer,Integer> isNeighbor) {
+		super(confSpace);
+		init(isNeighbor);
+	}
+
+	public SparseEnergyMatrix(int numPos, int[] numConfAtPos, double pruningInterval, BiPredicate<Integer,Integer> isNeighbor) {
+		super(numPos, numConfAtPos, pruningInterval);
+		init(isNeighbor);
+	}
+
+	public SparseEnergyMatrix(SparseEnergyMatrix other) {
+		super(other.getNumPos(), other.getNumConfAtPos(), other.getPruningInterval());
+		setConstTerm(other.getConstTerm());
+		init((pos1, pos2) -> other.isNeighbor(pos1, pos2));
+		System.arraycopy(other.oneBody, 0, this.oneBody, 0, oneBody.length);
+		for (int i=0; i<pairwise.length; i++) {
+			if (pairwise[i] != null) {
+				System.arraycopy(other.pairwise[i], 0, this.pairwise[i], 0, pairwise[i].length);
+			}
+		}
+	}
+
+	private void init(BiPredicate<Integer,Integer> isNeighbor) {
+
+		int numPos = getNumPos();
+
+		neighbors = new boolean[numPos][numPos];
+		neighborLists = new int[numPos][];
+		for (int pos1=0; pos1<numPos; pos1++) {
+			for (int pos2=0; pos2<pos1; pos2++) {
+				boolean val = isNeighbor.test(pos1, pos2);
+				neighbors[pos1][pos2] = val;
+				neighbors[pos2][pos1] = val;
+			}
+		}
+		for (int pos1=0; pos1<numPos; pos1++) {
+			int count = 0;
+			for (int pos2=0; pos2<numPos; pos2++) {
+				if (neighbors[pos1][pos2]) {
+					count++;
+				}
+			}
+			neighborLists[pos1] = new int[count];
+			count = 0;
+			for (int pos2=0; pos2<numPos; pos2++) {
+				if (neighbors[pos1][pos2]) {
+					neighborLists[pos1][count++] = pos2;
+				}
+			}
+		}
+
+		int numOneBody = 0;
+		for (int pos=0; pos<numPos; pos++) {
+			numOneBody += getNumConfAtPos(pos);
+		}
+		oneBody = new double[numOneBody];
+
+		pairwise = new double[numPos*(numPos - 1)/2][];
+		for (int pos1=0; pos1<numPos; pos1++) {
+			for (int pos2=0; pos2<pos1; pos2++) {
+				if (neighbors[pos1][pos2]) {
+					pairwise[blockIndex(pos1, pos2)] = new double[getNumConfAtPos(pos1)*getNumConfAtPos(pos2)];
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void allocate(int numOneBody, int numPairwise) {
+		// don't allocate the dense storage
+		// the sparse storage gets allocated once we know the neighbors
+	}
+
+	private static int blockIndex(int pos1, int pos2) {
+		return pos1*(pos1 - 1)/2 + pos2;
+	}
+
+	public boolean isNeighbor(int pos1, int pos2) {
+		return neighbors[pos1][pos2];
+	}
+
+	/** the positions that are neighbors of this position, in increasing order */
+	public int[] getNeighbors(int pos) {
+		return neighborLists[pos];
+	}
+
+	public int countNeighborPairs() {
+		int count = 0;
+		for (double[] block : pairwise) {
+			if (block != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** the number of pair energies stored */
+	public long countPairwiseEntries() {
+		long count = 0;
+		for (double[] block : pairwise) {
+			if (block != null) {
+				count += block.length;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public Double getOneBody(int res, int conf) {
+		return oneBody[getOneBodyIndex(res, conf)];
+	}
+
+	@Override
+	public void setOneBody(int res, int conf, Double val) {
+		oneBody[getOneBodyIndex(res, conf)] = val;
+	}
+
+	@Override
+	public void setOneBody(int res, ArrayList<Double> val) {
+		int n = getNumConfAtPos(res);
+		for (int i=0; i<n; i++) {
+			setOneBody(res, i, val.get(i));
+		}
+	}
+
+	@Override
+	public Double getPairwise(int res1, int conf1, int res2, int conf2) {
+		if (res1 < res2) {
+			return getPairwise(res2, conf2, res1, conf1);
+		}
+		double[] block = pairwise[blockIndex(res1, res2)];
+		if (block == null) {
+			return 0.0;
+		}
+		return block[conf1*getNumConfAtPos(res2) + conf2];
+	}
+
+	/**
+	 * Pair energies between positions that aren't neighbors can only be set to zero.
+	 */
+	@Override
+	public void setPairwise(int res1, int conf1, int res2, int conf2, Double val) {
+		if (res1 < res2) {
+			setPairwise(res2, conf2, res1, conf1, val);
+			return;
+		}
+		double[] block = pairwise[blockIndex(res1, res2)];
+		if (block == null) {
+			if (val != 0.0) {
+				throw new IllegalArgumentException(String.format("positions %d and %d aren't neighbors, can't set pair energy %f", res1, res2, val));
+			}
+			return;
+		}
+		block[conf1*getNumConfAtPos(res2) + conf2] = val;
+	}
+
+	@Override
+	public void setPairwise(int res1, int res2, ArrayList<ArrayList<Double>> val) {
+		int n1 = getNumConfAtPos(res1);
+		int n2 = getNumConfAtPos(res2);
+		for (int i1=0; i1<n1; i1++) {
+			for (int i2=0; i2<n2; i2++) {
+				setPairwise(res1, i1, res2, i2, val.get(i1).get(i2));
+			}
+		}
+	}
+
+	/**
+	 * Fills the single energies and the pair energies between neighbors.
+	 * The other pair energies stay zero.
+	 */
+	@Override
+	public void fill(Double val) {
+		Arrays.fill(oneBody, val);
+		for (double[] block : pairwise) {
+			if (block != null) {
+				Arrays.fill(block, val);
+			}
+		}
+	}
+
+	@Override
+	public void negate() {
+		for (int i=0; i<oneBody.length; i++) {
+			oneBody[i] = -oneBody[i];
+		}
+		for (double[] block : pairwise) {
+			if (block != null) {
+				for (int i=0; i<block.length; i++) {
+					block[i] = -block[i];
+				}
+			}
+		}
+	}
+
+	@Override
+	public double sum() {
+		double sum = 0.0;
+		for (double energy : oneBody) {
+			sum += energy;
+		}
+		for (double[] block : pairwise) {
+			if (block != null) {
+				for (double energy : block) {
+					sum += energy;
+				}
+			}
+		}
+		return sum;
+	}
+}
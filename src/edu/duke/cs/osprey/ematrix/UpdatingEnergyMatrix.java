@@ -36,15 +36,18 @@ import edu.duke.cs.osprey.confspace.RCTuple;
 import edu.duke.cs.osprey.confspace.SimpleConfSpace;
 import edu.duke.cs.osprey.energy.ConfEnergyCalculator;
 import edu.duke.cs.osprey.confspace.TupE;
+import edu.duke.cs.osprey.confspace.TupleKey;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 public class UpdatingEnergyMatrix extends ProxyEnergyMatrix {
     // Store the seen confs in a trie with wildcards.
     private static final boolean debug = false;
-    private TupleTrie corrections;
-    private int numPos;
+    private final TupleTrie corrections;
+    private final int numPos;
     
     //debug variable
     public final ConfEnergyCalculator sourceECalc;
@@ -67,7 +70,7 @@ public class UpdatingEnergyMatrix extends ProxyEnergyMatrix {
     /*Hack 1: Don't share residues*/
     @Override
     public boolean hasHigherOrderTerms() {
-        return corrections.size() > 0;
+        return !corrections.isEmpty();
     }
 
     @Override
@@ -200,31 +203,51 @@ public class UpdatingEnergyMatrix extends ProxyEnergyMatrix {
             System.err.println("Should not be trying to submit correction of lower-order term.");
             return;
         }
-        RCTuple orderedTup = tup.sorted();
+        RCTuple orderedTup = new TupleKey(tup).toTuple();
         corrections.insert(new TupE(orderedTup, val));
     }
 
+    /**
+     * Stores corrections in a trie with wildcards, so all the corrections that apply to a
+     * query tuple (ie, all stored sub-tuples) can be found in one pass.
+     *
+     * Safe for concurrent use: writers only ever add nodes and corrections, using concurrent
+     * collections, so readers never block and never see a partially-built node.
+     * Corrections are also indexed by {@link TupleKey} for exact lookups.
+     */
     public static class TupleTrie {
         public final static int WILDCARD_RC = -123;
-        TupleTrieNode root;
-        List<SimpleConfSpace.Position> positions;
-        private int numCorrections;
+        final TupleTrieNode root;
+        final List<SimpleConfSpace.Position> positions;
+        private final ConcurrentHashMap<TupleKey,TupE> correctionsByTuple = new ConcurrentHashMap<>();
+
         public TupleTrie(List<SimpleConfSpace.Position> positions)
         {
             this.positions = positions;
-            root = createTrie(positions);
-        }
-
-        private TupleTrieNode createTrie(List<SimpleConfSpace.Position> positions) {
-            root = new TupleTrieNode(positions, -1);
-            return root;
+            root = new TupleTrieNode(-1, WILDCARD_RC);
         }
 
+        /**
+         * Adds the correction to the trie. The correction tuple must be sorted by position.
+         * If there's already a correction for the same tuple, the larger correction is kept.
+         */
         public void insert(TupE correction) {
             if(debug)
                 checkRCTuple(correction.tup);
-            root.insert(correction, 0);
-            numCorrections++;
+            // compute() locks only the map bin for this tuple, so concurrent inserts of the same tuple
+            // are serialized, but inserts of other tuples (and all reads) proceed independently
+            correctionsByTuple.compute(new TupleKey(correction.tup), (key, existing) -> {
+                if(existing == null) {
+                    root.findOrMakeNode(correction.tup).corrections.add(correction);
+                    return correction;
+                }
+                if(correction.E > existing.E) {
+                    List<TupE> corrections = root.findOrMakeNode(correction.tup).corrections;
+                    corrections.set(corrections.indexOf(existing), correction);
+                    return correction;
+                }
+                return existing;
+            });
         }
 
         private void checkRCTuple(RCTuple tup) {
@@ -240,67 +263,49 @@ public class UpdatingEnergyMatrix extends ProxyEnergyMatrix {
 
         public List<TupE> getCorrections(RCTuple query) {
             List<TupE> corrections = new ArrayList<>();
-            root.populateCorrections(query.sorted(), corrections);
+            root.populateCorrections(sortedView(query), corrections, 0);
             return corrections;
         }
 
         public boolean contains(RCTuple query) {
-            return root.contains(query.sorted(), 0);
+            return correctionsByTuple.containsKey(new TupleKey(query));
+        }
 
+        public TupE get(RCTuple query) {
+            return correctionsByTuple.get(new TupleKey(query));
         }
 
         public int size() {
-            return numCorrections;
+            return correctionsByTuple.size();
+        }
+
+        public boolean isEmpty() {
+            return correctionsByTuple.isEmpty();
         }
 
+        private static RCTuple sortedView(RCTuple query) {
+            // don't sort the query in-place, other threads might be reading it
+            for(int i = 1; i < query.size(); i++) {
+                if(query.pos.get(i) < query.pos.get(i-1))
+                    return new TupleKey(query).toTuple();
+            }
+            return query;
+        }
 
         private class TupleTrieNode {
-            // Wildcard rc
-            int rc = WILDCARD_RC;
-            int positionIndex = -1;
-            int position = -1;
-            List<SimpleConfSpace.Position> positions;
-            List<TupE> corrections = new ArrayList<>();
-            Map<Integer, TupleTrieNode> children = new HashMap<>();
+            final int rc;
+            final int positionIndex;
+            final int position;
+            final List<TupE> corrections = new CopyOnWriteArrayList<>();
+            final ConcurrentHashMap<Integer, TupleTrieNode> children = new ConcurrentHashMap<>();
 
-            private TupleTrieNode(List<SimpleConfSpace.Position> positions, int positionIndex) {
-                this.positions = positions;
+            private TupleTrieNode(int positionIndex, int rc) {
                 this.positionIndex = positionIndex;
+                this.rc = rc;
                 if(positionIndex >= 0)
                     this.position = positions.get(positionIndex).index;
-                if(positionIndex+1 < positions.size())
-                    children.put(WILDCARD_RC, new TupleTrieNode(positions, positionIndex+1));
-            }
-
-            public boolean contains(RCTuple query, int tupleIndex) {
-                /*
-                if(query.size() != positions.size())
-                    System.err.println("Querying corrections for a partial conf. This is likely unintentional.");
-                    */
-                debugPrint("Currently at "+this);
-                if(tupleIndex >= query.size())
-                    return true;
-                int currentRC = query.RCs.get(tupleIndex);
-                int currentPos = query.pos.get(tupleIndex);
-                int indexedPos = -1;
-                int indexedRC = WILDCARD_RC;
-                if(tupleIndex > 0) {
-                    indexedRC = query.RCs.get(tupleIndex-1);
-                    indexedPos = query.pos.get(tupleIndex-1);
-                }
-                if(tupleIndex + 1 == positions.size())
-                    return true;
-                int nextIndex = tupleIndex + 1;
-                if(position + 1 < currentPos) {
-                    if(children.get(WILDCARD_RC) == null)
-                        return false;
-                    return children.get(WILDCARD_RC).contains(query, tupleIndex);
-                }
-                if(!children.containsKey(currentRC))
-                    return false;
-                if(children.get(currentRC) == null)
-                    return false;
-                return children.get(currentRC).contains(query, nextIndex);
+                else
+                    this.position = -1;
             }
 
             public String toString()
@@ -314,60 +319,31 @@ public class UpdatingEnergyMatrix extends ProxyEnergyMatrix {
             private void debugPrint(String s)
             {if(debug)System.out.println(s);}
 
-            public void insert(TupE correction, int tupIndex)
+            private TupleTrieNode getOrMakeChild(int childRC) {
+                return children.computeIfAbsent(childRC, (key) -> new TupleTrieNode(positionIndex+1, childRC));
+            }
+
+            public TupleTrieNode findOrMakeNode(RCTuple tup)
             {
-                for(TupleTrieNode child: children.values()) {
-                    debugPrint(this+"->"+child);
-                }
-                for(TupE corr: corrections)
-                {
-                   debugPrint(corr.tup.stringListing()+":"+corr.E);
-                }
-                RCTuple tup = correction.tup;
-                if(tupIndex >= tup.size()) {
-                    debugPrint("Reached end of tuple, inserting correction at "+this+".");
-                    corrections.add(correction);
-                    for(TupE corr: corrections)
-                    {
-                        debugPrint(corr.tup.stringListing()+":"+corr.E);
-                    }
-                    return;
-                }
-                int currentIndex = -1;
-                int nodeIndex = position;
-                int currentRC = WILDCARD_RC;
-                if(tupIndex > 0) {
-                    currentIndex = tup.pos.get(tupIndex - 1);
-                    currentRC = tup.pos.get(tupIndex - 1);
-                }
-                int childIndex = tup.pos.get(tupIndex);
-                int childRC = tup.RCs.get(tupIndex);
-                if(nodeIndex+1 != childIndex) {
-                   debugPrint((nodeIndex+1)+"!="+childIndex+", continuing...");
-                    children.get(WILDCARD_RC).insert(correction, tupIndex);
-                }
-                else
-                {
-                    if(!children.containsKey(childRC)) {
-                        TupleTrieNode newChild = new TupleTrieNode(positions, positionIndex+1);
-                        newChild.rc = childRC;
-                        children.put(childRC, newChild);
-                        debugPrint("Added child "+newChild+" to "+this);
+                TupleTrieNode node = this;
+                int tupIndex = 0;
+                while(tupIndex < tup.size()) {
+                    int childIndex = tup.pos.get(tupIndex);
+                    if(node.position+1 != childIndex) {
+                        debugPrint((node.position+1)+"!="+childIndex+", continuing...");
+                        node = node.getOrMakeChild(WILDCARD_RC);
+                    } else {
+                        node = node.getOrMakeChild(tup.RCs.get(tupIndex));
+                        tupIndex++;
                     }
-                    children.get(childRC).insert(correction, tupIndex+1);
                 }
-
-            }
-
-
-            public void populateCorrections (RCTuple query, List<TupE> output) {
-                debugPrint("Matching corrections for "+query.stringListing());
-                populateCorrections(query, output, 0);
+                debugPrint("Reached end of tuple, inserting correction at "+node+".");
+                return node;
             }
 
             private void populateCorrections(RCTuple query, List<TupE> output, int tupleIndex) {
                 debugPrint("Currently at "+this);
-                if(corrections.size() > 0)
+                if(!corrections.isEmpty())
                 {
                     output.addAll(corrections);
                     debugPrint("Adding corrections from "+this);
@@ -376,25 +352,18 @@ public class UpdatingEnergyMatrix extends ProxyEnergyMatrix {
                     return;
                 int currentRC = query.RCs.get(tupleIndex);
                 int currentPos = query.pos.get(tupleIndex);
-                int indexedPos = -1;
-                int indexedRC = WILDCARD_RC;
-                if(tupleIndex > 0) {
-                    indexedRC = query.RCs.get(tupleIndex-1);
-                    indexedPos = query.pos.get(tupleIndex-1);
-                }
-                if(indexedPos > position || (indexedPos == position && indexedRC!= rc && rc != WILDCARD_RC))
-                    System.err.println("Error in trie traversal.");
-                if(tupleIndex + 1 > positions.size())
-                    return;
                 int nextIndex = tupleIndex + 1;
                 if(position + 1 < currentPos)
                     nextIndex = tupleIndex;
-                if(position + 1 == currentPos && children.containsKey(currentRC))
-                    children.get(currentRC).populateCorrections(query, output, nextIndex);
+                if(position + 1 == currentPos) {
+                    TupleTrieNode child = children.get(currentRC);
+                    if(child != null)
+                        child.populateCorrections(query, output, nextIndex);
+                }
                 // Also branch on wildcard.
-                if(!children.containsKey(WILDCARD_RC))
-                    children.put(WILDCARD_RC, new TupleTrieNode(positions, positionIndex+1));
-                children.get(WILDCARD_RC).populateCorrections(query, output, nextIndex);
+                TupleTrieNode wildcard = children.get(WILDCARD_RC);
+                if(wildcard != null)
+                    wildcard.populateCorrections(query, output, nextIndex);
             }
         }
 
@@ -1,15 +1,21 @@
 package edu.duke.cs.osprey.ematrix.compiled;
 
 import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.PosDistances;
 import edu.duke.cs.osprey.confspace.compiled.PosInter;
 import edu.duke.cs.osprey.confspace.compiled.PosInterDist;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 import edu.duke.cs.osprey.ematrix.SimpleReferenceEnergies;
+import edu.duke.cs.osprey.ematrix.SparseEnergyMatrix;
 import edu.duke.cs.osprey.energy.compiled.ConfEnergyCalculator;
 import edu.duke.cs.osprey.energy.compiled.PosInterGen;
+import edu.duke.cs.osprey.parallelism.Cluster;
+import edu.duke.cs.osprey.parallelism.TaskExecutor;
 import edu.duke.cs.osprey.tools.Progress;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static edu.duke.cs.osprey.tools.Log.log;
@@ -39,21 +45,39 @@ public class EmatCalculator {
 		private boolean includeStaticStatic = false;
 
 		/**
-		 * Path to file where energy matrix should be saved between computations.
+		 * Path to file where fragment energies should be saved between computations.
 		 *
 		 * @note Energy matrix computation can take a long time, but often the results
 		 * can be reused between computations. Use a cache file to skip energy matrix
-		 * computation on the next Osprey run if the energy matrix has already been
+		 * computation on the next Osprey run if the energies have already been
 		 * computed once before.
 		 *
-		 * @warning If design settings are changed between runs, Osprey will make
-		 * some effort to detect that the energy matrix cache is out-of-date and compute a
-		 * new energy matrix instead of usng the cached, incorrect one. Osprey might not detect
-		 * all design changes though, and incorrectly reuse a cached energy matrix, so it
-		 * is best to manually delete the entry matrix cache file after changing design settings.
+		 * The cache stores each fragment energy under a hash of the fragment's contents
+		 * (see {@link FragmentEnergyCache}), so changing the design settings between runs
+		 * only recomputes the fragments that actually changed. The same cache file can be
+		 * shared by different designs, and by rigid and minimized energy matrices.
 		 */
 		private File cacheFile = null;
 
+		/**
+		 * The task executor used to calculate the energies in parallel.
+		 * If not set, the energies are calculated serially on the calling thread.
+		 */
+		private TaskExecutor tasks = null;
+
+		/**
+		 * If set, pair energies are only calculated between positions whose atoms
+		 * might come within this distance (in Angstroms) of each other, and the energy matrix
+		 * is a {@link SparseEnergyMatrix}. Pair energies between farther positions are zero.
+		 *
+		 * The distances come from {@link PosDistances}, which doesn't account for continuous motions,
+		 * so leave some room in the cutoff when minimizing.
+		 *
+		 * Only works with {@link PosInterDist#DesmetEtAl1992}, since other distributions
+		 * put more than just the pair interaction on the pair energies.
+		 */
+		private Double distanceCutoff = null;
+
 		public Builder(ConfEnergyCalculator confEcalc) {
 			this.confEcalc = confEcalc;
 		}
@@ -83,13 +107,31 @@ public class EmatCalculator {
 			return this;
 		}
 
+		public Builder setTasks(TaskExecutor val) {
+			tasks = val;
+			return this;
+		}
+
+		public Builder setDistanceCutoff(Double val) {
+			distanceCutoff = val;
+			return this;
+		}
+
 		public EmatCalculator build() {
+
+			if (distanceCutoff != null && posInterDist != PosInterDist.DesmetEtAl1992) {
+				throw new IllegalArgumentException("distance cutoffs only work with " + PosInterDist.DesmetEtAl1992
+					+ ", since " + posInterDist + " puts more than the pair interaction on pair energies");
+			}
+
 			return new EmatCalculator(
 				confEcalc,
 				new PosInterGen(posInterDist, eref),
 				minimize,
 				includeStaticStatic,
-				cacheFile
+				cacheFile,
+				tasks != null ? tasks : new TaskExecutor(),
+				distanceCutoff
 			);
 		}
 	}
@@ -100,91 +142,294 @@ public class EmatCalculator {
 	public final boolean minimize;
 	public final boolean includeStaticStatic;
 	public final File cacheFile;
+	public final TaskExecutor tasks;
+	public final Double distanceCutoff;
 
-	private EmatCalculator(ConfEnergyCalculator confEcalc, PosInterGen posInterGen, boolean minimize, boolean includeStaticStatic, File cacheFile) {
+	private EmatCalculator(ConfEnergyCalculator confEcalc, PosInterGen posInterGen, boolean minimize, boolean includeStaticStatic, File cacheFile, TaskExecutor tasks, Double distanceCutoff) {
 
 		this.confEcalc = confEcalc;
 		this.posInterGen = posInterGen;
 		this.minimize = minimize;
 		this.includeStaticStatic = includeStaticStatic;
 		this.cacheFile = cacheFile;
+		this.tasks = tasks;
+		this.distanceCutoff = distanceCutoff;
 	}
 
 	public EnergyMatrix calc() {
 
-		// first, check the cache file for any previously-calculator energy matrices
-		if (cacheFile != null) {
-			// TODO: implement caching, key off all the arguments to this calculator
-		}
+		// make a context group for the task executor
+		try (TaskExecutor.ContextGroup ctxGroup = tasks.contextGroup()) {
+			ctxGroup.putContext(0, BatchTask.class, new BatchTask.Context(confEcalc, posInterGen, minimize));
 
-		// not using cache, just calculate it
-		return reallyCalc();
+			// skip the calculation on member nodes
+			if (tasks instanceof Cluster.Member) {
+				return null;
+			}
+
+			// not using cache, just calculate it
+			if (cacheFile == null) {
+				return reallyCalc(null);
+			}
 
-		// TODO: update the cache after calculating
+			// otherwise, calculate only the fragments missing from the cache
+			try (FragmentEnergyCache cache = new FragmentEnergyCache(cacheFile)) {
+				return reallyCalc(cache);
+			}
+		}
 	}
 
-	private EnergyMatrix reallyCalc() {
+	/**
+	 * Estimates the relative cost of computing the energy of a fragment.
+	 *
+	 * Each position interaction costs about the same to evaluate, and minimizations
+	 * take roughly one more line search for each continuous motion in the fragment.
+	 */
+	private int cost(List<PosInter> inters, int ... posConfs) {
+		int cost = inters.size();
+		if (minimize) {
+			ConfSpace confSpace = confEcalc.confSpace();
+			int numMotions = 0;
+			for (int i=0; i<posConfs.length; i+=2) {
+				numMotions += confSpace.positions[posConfs[i]].confs[posConfs[i + 1]].motions.length;
+			}
+			cost *= 1 + numMotions;
+		}
+		return Math.max(1, cost);
+	}
 
-		// allocate the new matrix
-		EnergyMatrix emat = new EnergyMatrix(confEcalc.confSpace());
+	private EnergyMatrix reallyCalc(FragmentEnergyCache cache) {
 
 		ConfSpace confSpace = confEcalc.confSpace();
 
-		// count how much work there is to do
-		// estimate work based on number of position interactions and the conf space size
-		final int singleCost;
-		final int pairCost;
-		if (confSpace.numPos() > 0) {
-			singleCost = posInterGen.single(confSpace, 0, 0).size();
-			pairCost = posInterGen.pair(confSpace, 0, 0, 0, 0).size();
+		// allocate the new matrix
+		EnergyMatrix emat;
+		SparseEnergyMatrix sparseEmat = null;
+		if (distanceCutoff != null) {
+			PosDistances distances = new PosDistances(confSpace);
+			emat = sparseEmat = new SparseEnergyMatrix(confSpace, distances.neighbors(distanceCutoff));
 		} else {
-			singleCost = 0;
-			pairCost = 0;
+			emat = new EnergyMatrix(confSpace);
 		}
+
+		// count how much work there is to do
 		int numSingles = confSpace.countSingles();
-		int numPairs = confSpace.countPairs();
-		Progress progress = new Progress(1 + numSingles*singleCost + numPairs*pairCost);
+		long numPairs = sparseEmat != null ? sparseEmat.countPairwiseEntries() : confSpace.countPairs();
+		Progress progress = new Progress(1 + numSingles + numPairs);
 		log("Calculating energy matrix with %d entries", 1 + numSingles + numPairs);
+		if (sparseEmat != null) {
+			int numPos = confSpace.numPos();
+			log("\tskipping pairs farther than %.1f A: %d of %d position pairs are neighbors",
+				distanceCutoff, sparseEmat.countNeighborPairs(), numPos*(numPos - 1)/2
+			);
+		}
+
+		FragmentEnergyCache.Keys keys = null;
+		if (cache != null) {
+			keys = new FragmentEnergyCache.Keys(confEcalc, minimize);
+			log("\tusing fragment energy cache %s with %d energies", cache.file, cache.size());
+		}
+		int[] numCached = { 0 };
+
+		// writes a fragment energy into the energy matrix
+		class Setter {
+			void set(int[] frag, double energy) {
+				switch (frag.length) {
+					case 0: emat.setConstTerm(energy); break;
+					case 2: emat.setOneBody(frag[0], frag[1], energy); break;
+					case 4: emat.setPairwise(frag[0], frag[1], frag[2], frag[3], energy); break;
+					default: throw new Error("unexpected fragment size: " + frag.length);
+				}
+			}
+		}
+		Setter setter = new Setter();
+
+		// some fragments can be big and some can be small
+		// try minimize thread sync overhead by not sending a bunch of small fragments in all separate tasks
+		// ie, try to batch fragments together, weighted by how expensive we think each fragment is
+		class Batch {
+
+			final List<int[]> fragments = new ArrayList<>();
+			final List<byte[]> keys = new ArrayList<>();
+			int cost = 0;
+
+			void add(int cost, byte[] key, int ... posConfs) {
+				fragments.add(posConfs);
+				keys.add(key);
+				this.cost += cost;
+			}
+
+			void submitTask() {
+				tasks.submit(
+					new BatchTask(fragments),
+					(double[] energies) -> {
+
+						// update the energy matrix, and the cache
+						for (int i=0; i<fragments.size(); i++) {
+							setter.set(fragments.get(i), energies[i]);
+							byte[] key = keys.get(i);
+							if (key != null) {
+								cache.put(key, energies[i]);
+							}
+						}
+
+						progress.incrementProgress(fragments.size());
+					}
+				);
+			}
+		}
+
+		final int CostThreshold = 100;
 
-		// TODO: use any parallelism provided by the confEcalc
+		class Batcher {
+
+			Batch batch = null;
+
+			void add(List<PosInter> inters, byte[] key, int ... posConfs) {
+
+				// check the cache first
+				if (key != null) {
+					Double energy = cache.get(key);
+					if (energy != null) {
+						setter.set(posConfs, energy);
+						progress.incrementProgress();
+						numCached[0]++;
+						return;
+					}
+				}
+
+				if (batch == null) {
+					batch = new Batch();
+				}
+				batch.add(cost(inters, posConfs), key, posConfs);
+				if (batch.cost >= CostThreshold) {
+					submit();
+				}
+			}
+
+			void submit() {
+				if (batch != null) {
+					batch.submitTask();
+					batch = null;
+				}
+			}
+		}
+
+		Batcher batcher = new Batcher();
 
 		// static-static energy
 		if (includeStaticStatic) {
 			List<PosInter> inters = posInterGen.staticStatic(confSpace);
-			int[] conf = confSpace.assign();
-			double energy = confEcalc.calcOrMinimizeEnergy(conf, inters, minimize);
-			emat.setConstTerm(energy);
+			batcher.add(inters, keys != null ? keys.staticStatic(inters) : null);
+			batcher.submit();
+		} else {
+			progress.incrementProgress();
 		}
-		progress.incrementProgress();
 
+		// convert the workload into tasks for the task executor
 		for (int posi1=0; posi1<confSpace.numPos(); posi1++) {
 			for (int confi1=0; confi1<confSpace.numConf(posi1); confi1++) {
 
 				// singles
 				{
-					int[] assignments = confSpace.assign(posi1, confi1);
 					List<PosInter> inters = posInterGen.single(confSpace, posi1, confi1);
-					double energy = confEcalc.calcOrMinimizeEnergy(assignments, inters, minimize);
-					emat.setOneBody(posi1, confi1, energy);
-
-					progress.incrementProgress(inters.size());
+					batcher.add(
+						inters,
+						keys != null ? keys.single(posi1, confi1, inters) : null,
+						posi1, confi1
+					);
 				}
 
 				for (int posi2=0; posi2<posi1; posi2++) {
+
+					// skip pairs that are too far apart
+					if (sparseEmat != null && !sparseEmat.isNeighbor(posi1, posi2)) {
+						continue;
+					}
+
 					for (int confi2=0; confi2<confSpace.numConf(posi2); confi2++) {
 
 						// pairs
-						int[] assignments = confSpace.assign(posi1, confi1, posi2, confi2);
 						List<PosInter> inters = posInterGen.pair(confSpace, posi1, confi1, posi2, confi2);
-						double energy = confEcalc.calcOrMinimizeEnergy(assignments, inters, minimize);
-						emat.setPairwise(posi1, confi1, posi2, confi2, energy);
-
-						progress.incrementProgress(inters.size());
+						batcher.add(
+							inters,
+							keys != null ? keys.pair(posi1, confi1, posi2, confi2, inters) : null,
+							posi1, confi1, posi2, confi2
+						);
 					}
 				}
 			}
 		}
 
+		batcher.submit();
+		tasks.waitForFinish();
+
+		if (cache != null) {
+			log("\treused %d energies from the fragment energy cache", numCached[0]);
+		}
+
 		return emat;
 	}
+
+	private static class BatchTask extends Cluster.Task<double[],BatchTask.Context> {
+
+		static class Context {
+
+			final ConfEnergyCalculator confEcalc;
+			final PosInterGen posInterGen;
+			final boolean minimize;
+
+			Context(ConfEnergyCalculator confEcalc, PosInterGen posInterGen, boolean minimize) {
+				this.confEcalc = confEcalc;
+				this.posInterGen = posInterGen;
+				this.minimize = minimize;
+			}
+		}
+
+		/** pos,conf indices for each fragment: empty for the static-static energy, then singles, then pairs */
+		final List<int[]> fragments;
+
+		BatchTask(List<int[]> fragments) {
+			super(0);
+			this.fragments = fragments;
+		}
+
+		@Override
+		public double[] run(Context ctx) {
+
+			ConfSpace confSpace = ctx.confEcalc.confSpace();
+
+			// reuse one assignments buffer for the whole batch
+			// the calculators only keep the buffer as long as the energy calculation
+			int[] conf = confSpace.assign();
+
+			double[] energies = new double[fragments.size()];
+			for (int i=0; i<fragments.size(); i++) {
+				int[] frag = fragments.get(i);
+
+				List<PosInter> inters;
+				switch (frag.length) {
+					case 0:
+						inters = ctx.posInterGen.staticStatic(confSpace);
+					break;
+					case 2:
+						inters = ctx.posInterGen.single(confSpace, frag[0], frag[1]);
+					break;
+					case 4:
+						inters = ctx.posInterGen.pair(confSpace, frag[0], frag[1], frag[2], frag[3]);
+					break;
+					default: throw new Error("unexpected fragment size: " + frag.length);
+				}
+
+				Arrays.fill(conf, ConfSpace.NotAssigned);
+				for (int j=0; j<frag.length; j+=2) {
+					conf[frag[j]] = frag[j + 1];
+				}
+
+				energies[i] = ctx.confEcalc.calcOrMinimizeEnergy(conf, inters, ctx.minimize);
+			}
+
+			return energies;
+		}
+	}
 }
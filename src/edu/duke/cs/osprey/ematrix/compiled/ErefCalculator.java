@@ -4,6 +4,8 @@ import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
 import edu.duke.cs.osprey.confspace.compiled.PosInter;
 import edu.duke.cs.osprey.ematrix.SimpleReferenceEnergies;
 import edu.duke.cs.osprey.energy.compiled.ConfEnergyCalculator;
+import edu.duke.cs.osprey.parallelism.Cluster;
+import edu.duke.cs.osprey.parallelism.TaskExecutor;
 import edu.duke.cs.osprey.tools.Progress;
 
 import java.util.ArrayList;
@@ -28,6 +30,12 @@ public class ErefCalculator {
 		 */
 		private boolean minimize = true;
 
+		/**
+		 * The task executor used to calculate the energies in parallel.
+		 * If not set, the energies are calculated serially on the calling thread.
+		 */
+		private TaskExecutor tasks = null;
+
 		public Builder(ConfEnergyCalculator confEcalc) {
 			this.confEcalc = confEcalc;
 		}
@@ -37,10 +45,16 @@ public class ErefCalculator {
 			return this;
 		}
 
+		public Builder setTasks(TaskExecutor val) {
+			tasks = val;
+			return this;
+		}
+
 		public ErefCalculator build() {
 			return new ErefCalculator(
 				confEcalc,
-				minimize
+				minimize,
+				tasks != null ? tasks : new TaskExecutor()
 			);
 		}
 	}
@@ -48,15 +62,32 @@ public class ErefCalculator {
 
 	public final ConfEnergyCalculator confEcalc;
 	public final boolean minimize;
+	public final TaskExecutor tasks;
 
-	private ErefCalculator(ConfEnergyCalculator confEcalc, boolean minimize) {
+	private ErefCalculator(ConfEnergyCalculator confEcalc, boolean minimize, TaskExecutor tasks) {
 
 		this.confEcalc = confEcalc;
 		this.minimize = minimize;
+		this.tasks = tasks;
 	}
 
 	public SimpleReferenceEnergies calc() {
 
+		// make a context group for the task executor
+		try (TaskExecutor.ContextGroup ctxGroup = tasks.contextGroup()) {
+			ctxGroup.putContext(0, PosTask.class, new PosTask.Context(confEcalc, minimize));
+
+			// skip the calculation on member nodes
+			if (tasks instanceof Cluster.Member) {
+				return null;
+			}
+
+			return reallyCalc();
+		}
+	}
+
+	private SimpleReferenceEnergies reallyCalc() {
+
 		// allocate space
 		SimpleReferenceEnergies eref = new SimpleReferenceEnergies();
 
@@ -66,30 +97,73 @@ public class ErefCalculator {
 		Progress progress = new Progress(confSpace.countSingles());
 		log("Calculating reference energies for %s position confs...", progress.getTotalWork());
 
-		// TODO: use any parallelism provided by the confEcalc
-
+		// send each position to the task executor
+		// the single energies are cheap, so a whole position makes a reasonably-sized task
 		for (int posi=0; posi<confSpace.numPos(); posi++) {
-			for (int confi=0; confi<confSpace.numConf(posi); confi++) {
+			final int fposi = posi;
+			tasks.submit(
+				new PosTask(posi),
+				(double[] energies) -> {
+
+					for (int confi=0; confi<energies.length; confi++) {
+
+						// keep the min energy for each pos,resType
+						String resType = confSpace.confType(fposi, confi);
+						Double e = eref.get(fposi, resType);
+						if (e == null || energies[confi] < e) {
+							e = energies[confi];
+						}
+						eref.set(fposi, resType, e);
+					}
+
+					progress.incrementProgress(energies.length);
+				}
+			);
+		}
 
-				// use just the internal energy for the conformation
-				List<PosInter> inters = new ArrayList<>();
-				inters.add(new PosInter(posi, posi, 1.0, 0.0));
+		tasks.waitForFinish();
 
-				int[] assignments = confSpace.assign(posi, confi);
-				double energy = confEcalc.calcOrMinimizeEnergy(assignments, inters, minimize);
+		return eref;
+	}
 
-				// keep the min energy for each pos,resType
-				String resType = confSpace.confType(posi, confi);
-				Double e = eref.get(posi, resType);
-				if (e == null || energy < e) {
-					e = energy;
-				}
-				eref.set(posi, resType, e);
+	private static class PosTask extends Cluster.Task<double[],PosTask.Context> {
 
-				progress.incrementProgress();
+		static class Context {
+
+			final ConfEnergyCalculator confEcalc;
+			final boolean minimize;
+
+			Context(ConfEnergyCalculator confEcalc, boolean minimize) {
+				this.confEcalc = confEcalc;
+				this.minimize = minimize;
 			}
 		}
 
-		return eref;
+		final int posi;
+
+		PosTask(int posi) {
+			super(0);
+			this.posi = posi;
+		}
+
+		@Override
+		public double[] run(Context ctx) {
+
+			ConfSpace confSpace = ctx.confEcalc.confSpace();
+
+			// use just the internal energy for the conformation
+			List<PosInter> inters = new ArrayList<>();
+			inters.add(new PosInter(posi, posi, 1.0, 0.0));
+
+			// reuse one assignments buffer for the whole position
+			int[] assignments = confSpace.assign();
+
+			double[] energies = new double[confSpace.numConf(posi)];
+			for (int confi=0; confi<energies.length; confi++) {
+				assignments[posi] = confi;
+				energies[confi] = ctx.confEcalc.calcOrMinimizeEnergy(assignments, inters, ctx.minimize);
+			}
+			return energies;
+		}
 	}
 }
@@ -0,0 +1,526 @@
+package edu.duke.cs.osprey.ematrix.compiled;
+
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.ContinuousMotion;
+import edu.duke.cs.osprey.confspace.compiled.CoordsList;
+import edu.duke.cs.osprey.confspace.compiled.PosInter;
+import edu.duke.cs.osprey.confspace.compiled.motions.DihedralAngle;
+import edu.duke.cs.osprey.confspace.compiled.motions.TranslationRotation;
+import edu.duke.cs.osprey.energy.compiled.ConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.compiled.EnergyCalculator;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A persistent store of fragment energies, keyed by the contents of the fragments
+ * rather than by their position and conformation indices.
+ *
+ * Each key is a hash of everything that goes into a fragment energy: the atoms and coordinates
+ * of the conformations, the forcefield parameters and settings, the position interactions
+ * (which capture the {@link edu.duke.cs.osprey.confspace.compiled.PosInterDist} and any reference energies),
+ * the continuous motions, and whether or not the fragment is minimized.
+ *
+ * So when a design changes (eg, a new mutation at a position, or more flexibility at one position),
+ * only the fragments whose contents actually changed miss the cache. Everything else is reused.
+ */
+public class FragmentEnergyCache implements AutoCloseable {
+
+	/** Bump this whenever the key format changes, so old caches just miss instead of giving wrong answers */
+	private static final int KeyVersion = 2;
+
+	/** Number of bytes of the hash to keep for each key */
+	private static final int KeySize = 16;
+
+	public final File file;
+
+	private final DB db;
+	private final HTreeMap<byte[],Double> energies;
+
+	/**
+	 * Opens the cache from the given file, or creates a new one if the file doesn't exist.
+	 * If the file is null, the cache is kept only in memory.
+	 */
+	public FragmentEnergyCache(File file) {
+
+		this.file = file;
+
+		// open the DB
+		if (file != null) {
+			db = DBMaker.fileDB(file)
+				.fileMmapEnableIfSupported() // use memory-mapped files if possible (can be much faster)
+				.closeOnJvmShutdown()
+				.make();
+		} else {
+			db = DBMaker.memoryDB()
+				.make();
+		}
+
+		energies = db.hashMap("energies")
+			.keySerializer(Serializer.BYTE_ARRAY)
+			.valueSerializer(Serializer.DOUBLE)
+			.createOrOpen();
+	}
+
+	@Override
+	public void close() {
+		db.close();
+	}
+
+	/**
+	 * Returns the energy for the key, or null if the energy isn't in the cache.
+	 */
+	public Double get(byte[] key) {
+		return energies.get(key);
+	}
+
+	public void put(byte[] key, double energy) {
+		energies.put(key, energy);
+	}
+
+	public long size() {
+		return energies.sizeLong();
+	}
+
+
+	/**
+	 * Computes the cache keys for fragments of a conformation space.
+	 *
+	 * Not thread-safe. Keys should be computed by only one thread at a time.
+	 */
+	public static class Keys {
+
+		public final ConfEnergyCalculator confEcalc;
+		public final ConfSpace confSpace;
+		public final boolean minimize;
+
+		private final MessageDigest digest;
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(buf);
+
+		/** everything that applies to all fragments */
+		private final byte[] globalHash;
+
+		/** all the static atoms, lazily computed */
+		private byte[] staticHash = null;
+
+		/** the atoms and motions of each conformation, indexed by pos, conf, lazily computed */
+		private final byte[][][] confHashes;
+
+		/** the single and pos-static interactions of each conformation, indexed by pos, conf, lazily computed */
+		private final byte[][][] singleHashes;
+
+		/** molecule motions can move the static atoms, so all minimized fragments depend on all the static atoms */
+		private final boolean dependsOnStatic;
+
+		/** false for conformations with continuous motions we don't know how to hash */
+		private final boolean[][] isHashable;
+
+		/** false if any molecule has continuous motions we don't know how to hash */
+		private final boolean areMolMotionsHashable;
+
+		public Keys(ConfEnergyCalculator confEcalc, boolean minimize) {
+
+			this.confEcalc = confEcalc;
+			this.confSpace = confEcalc.confSpace();
+			this.minimize = minimize;
+
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new Error("SHA-256 should be available on every JVM", ex);
+			}
+
+			confHashes = new byte[confSpace.positions.length][][];
+			singleHashes = new byte[confSpace.positions.length][][];
+			isHashable = new boolean[confSpace.positions.length][];
+			for (ConfSpace.Pos pos : confSpace.positions) {
+				confHashes[pos.index] = new byte[pos.confs.length][];
+				singleHashes[pos.index] = new byte[pos.confs.length][];
+				isHashable[pos.index] = new boolean[pos.confs.length];
+				for (ConfSpace.Conf conf : pos.confs) {
+					isHashable[pos.index][conf.index] = !minimize || Arrays.stream(conf.motions)
+						.allMatch(motion -> motion instanceof DihedralAngle.Description);
+				}
+			}
+
+			boolean hasMolMotions = false;
+			for (ConfSpace.MolInfo molInfo : confSpace.molInfos) {
+				if (molInfo.motions.length > 0) {
+					hasMolMotions = true;
+				}
+			}
+			dependsOnStatic = minimize && hasMolMotions;
+
+			// hash the global settings
+			boolean areMolMotionsHashable = true;
+			try {
+				out.writeInt(KeyVersion);
+				out.writeBoolean(minimize);
+
+				// different implementations (eg CPU vs GPU) and minimizers can give different energies
+				out.writeUTF(confEcalc.getClass().getName());
+				if (minimize) {
+					confEcalc.writeSettings(out);
+				}
+				for (EnergyCalculator ecalc : confSpace.ecalcs) {
+					out.writeUTF(ecalc.id());
+					out.writeUTF(ecalc.getClass().getName());
+					ecalc.writeSettings(out);
+				}
+				if (minimize) {
+					for (ConfSpace.MolInfo molInfo : confSpace.molInfos) {
+						out.writeUTF(molInfo.name);
+						areMolMotionsHashable &= writeMolMotions(molInfo.motions);
+					}
+				}
+			} catch (IOException ex) {
+				throw new Error("can't hash conf space", ex);
+			}
+			globalHash = finish();
+			this.areMolMotionsHashable = areMolMotionsHashable;
+		}
+
+		/**
+		 * Returns true if the minimized conformation has continuous motions that
+		 * can be described in the key. Fragments with unknown motions can't be cached.
+		 */
+		public boolean isHashable(int posi, int confi) {
+			return areMolMotionsHashable && isHashable[posi][confi];
+		}
+
+		/**
+		 * Returns the key for the static-static energy, or null if it can't be cached.
+		 */
+		public byte[] staticStatic(List<PosInter> inters) {
+
+			if (!areMolMotionsHashable) {
+				return null;
+			}
+
+			try {
+				out.writeByte(0);
+				out.write(globalHash);
+				out.write(getStaticHash());
+				writeInters(inters);
+			} catch (IOException ex) {
+				throw new Error("can't hash fragment", ex);
+			}
+			return truncate(finish());
+		}
+
+		/**
+		 * Returns the key for the single, or null if the single can't be cached.
+		 */
+		public byte[] single(int posi, int confi, List<PosInter> inters) {
+
+			if (!isHashable(posi, confi)) {
+				return null;
+			}
+
+			try {
+				out.writeByte(1);
+				out.write(globalHash);
+				if (dependsOnStatic) {
+					out.write(getStaticHash());
+				}
+				out.write(getConfHash(posi, confi));
+				out.write(getSingleHash(posi, confi));
+				writeInters(inters, posi);
+			} catch (IOException ex) {
+				throw new Error("can't hash fragment", ex);
+			}
+			return truncate(finish());
+		}
+
+		/**
+		 * Returns the key for the pair, or null if the pair can't be cached.
+		 */
+		public byte[] pair(int posi1, int confi1, int posi2, int confi2, List<PosInter> inters) {
+
+			if (!isHashable(posi1, confi1) || !isHashable(posi2, confi2)) {
+				return null;
+			}
+
+			try {
+				out.writeByte(2);
+				out.write(globalHash);
+				if (dependsOnStatic) {
+					out.write(getStaticHash());
+				}
+				out.write(getConfHash(posi1, confi1));
+				out.write(getConfHash(posi2, confi2));
+
+				// some position interaction distributions put single energies on pairs too
+				if (hasSingleInters(inters)) {
+					out.write(getSingleHash(posi1, confi1));
+					out.write(getSingleHash(posi2, confi2));
+				}
+
+				// write the pair interactions
+				for (EnergyCalculator ecalc : confSpace.ecalcs) {
+					ConfSpace.IndicesPair indices = confSpace.indicesPairs(ecalc.ffi(), posi1, confi1, posi2, confi2);
+					out.writeInt(indices.size());
+					for (int i=0; i<indices.size(); i++) {
+						out.writeInt(indices.getConfAtom1Index(i));
+						out.writeInt(indices.getConfAtom2Index(i));
+						writeParams(ecalc.ffi(), indices.getParamsIndex(i));
+					}
+				}
+
+				writeInters(inters, posi1, posi2);
+			} catch (IOException ex) {
+				throw new Error("can't hash fragment", ex);
+			}
+			return truncate(finish());
+		}
+
+		private byte[] finish() {
+			byte[] hash = digest.digest(buf.toByteArray());
+			buf.reset();
+			return hash;
+		}
+
+		private static byte[] truncate(byte[] hash) {
+			return Arrays.copyOf(hash, KeySize);
+		}
+
+		private byte[] getStaticHash() {
+
+			if (staticHash == null) {
+
+				// the static hash is computed in the middle of other hashes, so use a separate buffer
+				ByteArrayOutputStream staticBuf = new ByteArrayOutputStream();
+				DataOutputStream staticOut = new DataOutputStream(staticBuf);
+				try {
+					staticOut.writeInt(confSpace.numStaticAtoms);
+					for (int i=0; i<confSpace.numStaticAtoms; i++) {
+						staticOut.writeUTF(confSpace.staticNames[i]);
+						staticOut.writeInt(confSpace.staticMolInfoIndices[i]);
+						writeCoords(staticOut, confSpace.staticCoords, i);
+					}
+					for (EnergyCalculator ecalc : confSpace.ecalcs) {
+						int ffi = ecalc.ffi();
+						staticOut.writeDouble(confSpace.staticEnergies[ffi]);
+						ConfSpace.IndicesStatic indices = confSpace.indicesStatic(ffi);
+						staticOut.writeInt(indices.size());
+						for (int i=0; i<indices.size(); i++) {
+							staticOut.writeInt(indices.getStaticAtom1Index(i));
+							staticOut.writeInt(indices.getStaticAtom2Index(i));
+							writeParams(staticOut, ffi, indices.getParamsIndex(i));
+						}
+					}
+				} catch (IOException ex) {
+					throw new Error("can't hash static atoms", ex);
+				}
+				staticHash = digest.digest(staticBuf.toByteArray());
+			}
+
+			return staticHash;
+		}
+
+		private byte[] getConfHash(int posi, int confi) {
+
+			byte[] hash = confHashes[posi][confi];
+			if (hash == null) {
+
+				// the conf hash is computed in the middle of other hashes, so use a separate buffer
+				ByteArrayOutputStream confBuf = new ByteArrayOutputStream();
+				DataOutputStream confOut = new DataOutputStream(confBuf);
+				ConfSpace.Conf conf = confSpace.positions[posi].confs[confi];
+				try {
+
+					// write the atoms
+					confOut.writeInt(conf.numAtoms);
+					for (int i=0; i<conf.numAtoms; i++) {
+						confOut.writeUTF(conf.atomNames[i]);
+						confOut.writeInt(conf.atomMolInfoIndices[i]);
+						writeCoords(confOut, conf.coords, i);
+					}
+
+					// write the continuous motions, if we're minimizing
+					if (minimize) {
+						confOut.writeInt(conf.motions.length);
+						for (ContinuousMotion.ConfDescription motion : conf.motions) {
+							DihedralAngle.Description dihedral = (DihedralAngle.Description)motion;
+							confOut.writeDouble(dihedral.minDegrees);
+							confOut.writeDouble(dihedral.maxDegrees);
+							writeConfAtom(confOut, dihedral.a);
+							writeConfAtom(confOut, dihedral.b);
+							writeConfAtom(confOut, dihedral.c);
+							writeConfAtom(confOut, dihedral.d);
+							confOut.writeInt(dihedral.rotated.length);
+							for (int atomi : dihedral.rotated) {
+								writeConfAtom(confOut, atomi);
+							}
+						}
+					}
+
+				} catch (IOException ex) {
+					throw new Error("can't hash conformation", ex);
+				}
+				hash = digest.digest(confBuf.toByteArray());
+				confHashes[posi][confi] = hash;
+			}
+
+			return hash;
+		}
+
+		private byte[] getSingleHash(int posi, int confi) {
+
+			// pairs don't depend on these interactions, so keep them out of the conf hash
+			byte[] hash = singleHashes[posi][confi];
+			if (hash == null) {
+
+				ByteArrayOutputStream singleBuf = new ByteArrayOutputStream();
+				DataOutputStream singleOut = new DataOutputStream(singleBuf);
+				ConfSpace.Conf conf = confSpace.positions[posi].confs[confi];
+				try {
+					for (EnergyCalculator ecalc : confSpace.ecalcs) {
+						int ffi = ecalc.ffi();
+						singleOut.writeDouble(conf.energies[ffi]);
+						ConfSpace.IndicesSingle indices = confSpace.indicesSingles(ffi, posi, confi);
+						singleOut.writeInt(indices.sizeInternals());
+						for (int i=0; i<indices.sizeInternals(); i++) {
+							singleOut.writeInt(indices.getInternalConfAtom1Index(i));
+							singleOut.writeInt(indices.getInternalConfAtom2Index(i));
+							writeParams(singleOut, ffi, indices.getInternalParamsIndex(i));
+						}
+
+						// refer to static atoms by their contents rather than their indices,
+						// since the indices change when the static atoms change
+						singleOut.writeInt(indices.sizeStatics());
+						for (int i=0; i<indices.sizeStatics(); i++) {
+							singleOut.writeInt(indices.getStaticConfAtomIndex(i));
+							writeStaticAtom(singleOut, indices.getStaticStaticAtomIndex(i));
+							writeParams(singleOut, ffi, indices.getStaticParamsIndex(i));
+						}
+					}
+				} catch (IOException ex) {
+					throw new Error("can't hash conformation", ex);
+				}
+				hash = digest.digest(singleBuf.toByteArray());
+				singleHashes[posi][confi] = hash;
+			}
+
+			return hash;
+		}
+
+		private void writeInters(List<PosInter> inters, int ... posis)
+		throws IOException {
+
+			// refer to positions by their place in the fragment rather than their indices,
+			// since the indices change when positions are added or removed
+			out.writeInt(inters.size());
+			for (PosInter inter : inters) {
+				out.writeInt(fragIndex(inter.posi1, posis));
+				out.writeInt(fragIndex(inter.posi2, posis));
+				out.writeDouble(inter.weight);
+				out.writeDouble(inter.offset);
+			}
+		}
+
+		private static boolean hasSingleInters(List<PosInter> inters) {
+			for (PosInter inter : inters) {
+				if (inter.posi1 == inter.posi2 || inter.posi1 == PosInter.StaticPos || inter.posi2 == PosInter.StaticPos) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static int fragIndex(int posi, int[] posis) {
+			if (posi == PosInter.StaticPos) {
+				return -1;
+			}
+			for (int i=0; i<posis.length; i++) {
+				if (posis[i] == posi) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("position interaction " + posi + " is not in the fragment " + Arrays.toString(posis));
+		}
+
+		private boolean writeMolMotions(ContinuousMotion.MolDescription[] motions)
+		throws IOException {
+			out.writeInt(motions.length);
+			for (ContinuousMotion.MolDescription motion : motions) {
+				out.writeUTF(motion.getClass().getName());
+				if (motion instanceof TranslationRotation.Description) {
+					TranslationRotation.Description desc = (TranslationRotation.Description)motion;
+					out.writeDouble(desc.maxDistance);
+					out.writeDouble(desc.maxRotationRadians);
+					out.writeDouble(desc.centroid.x);
+					out.writeDouble(desc.centroid.y);
+					out.writeDouble(desc.centroid.z);
+				} else if (motion instanceof DihedralAngle.Description) {
+					// molecule dihedrals refer to static atoms, which are all in the static hash
+					DihedralAngle.Description desc = (DihedralAngle.Description)motion;
+					out.writeDouble(desc.minDegrees);
+					out.writeDouble(desc.maxDegrees);
+					out.writeInt(desc.a);
+					out.writeInt(desc.b);
+					out.writeInt(desc.c);
+					out.writeInt(desc.d);
+					out.writeInt(desc.rotated.length);
+					for (int atomi : desc.rotated) {
+						out.writeInt(atomi);
+					}
+				} else {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void writeConfAtom(DataOutputStream out, int atomi)
+		throws IOException {
+			if (atomi >= 0) {
+				// positive indices encode conformation atoms
+				out.writeInt(atomi);
+			} else {
+				// negative indices encode static atoms
+				out.writeInt(-1);
+				writeStaticAtom(out, -atomi - 1);
+			}
+		}
+
+		private void writeStaticAtom(DataOutputStream out, int atomi)
+		throws IOException {
+			out.writeUTF(confSpace.staticNames[atomi]);
+			writeCoords(out, confSpace.staticCoords, atomi);
+		}
+
+		private static void writeCoords(DataOutputStream out, CoordsList coords, int i)
+		throws IOException {
+			out.writeDouble(coords.x(i));
+			out.writeDouble(coords.y(i));
+			out.writeDouble(coords.z(i));
+		}
+
+		private void writeParams(int ffi, int paramsi)
+		throws IOException {
+			writeParams(out, ffi, paramsi);
+		}
+
+		private void writeParams(DataOutputStream out, int ffi, int paramsi)
+		throws IOException {
+			double[] params = confSpace.ffparams(ffi, paramsi);
+			out.writeInt(params.length);
+			for (double param : params) {
+				out.writeDouble(param);
+			}
+		}
+	}
+}
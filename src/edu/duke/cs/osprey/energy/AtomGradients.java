@@ -0,0 +1,68 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.energy;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import edu.duke.cs.osprey.structure.Residue;
+
+/**
+ * Gradients of an energy with respect to atom coordinates, stored per residue
+ * in the same layout as {@link Residue#coords}.
+ *
+ * Residues that don't contribute to the energy don't have gradients, and {@link #get} returns null for them.
+ */
+public class AtomGradients {
+
+	private final Map<Residue,double[]> gradients = new IdentityHashMap<>();
+
+	/** returns the gradient for this residue, or null if the residue doesn't contribute to the energy */
+	public double[] get(Residue res) {
+		return gradients.get(res);
+	}
+
+	/** returns the gradient for this residue, making a zero gradient if needed */
+	public double[] getOrMake(Residue res) {
+		return gradients.computeIfAbsent(res, (r) -> new double[r.coords.length]);
+	}
+
+	/** sets all the gradients to zero, but keeps the storage for the next calculation */
+	public void clear() {
+		for (double[] gradient : gradients.values()) {
+			Arrays.fill(gradient, 0.0);
+		}
+	}
+}
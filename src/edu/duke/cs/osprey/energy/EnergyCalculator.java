@@ -112,6 +112,12 @@ public class EnergyCalculator implements AutoCleanable {
 		private AtomConnectivity.Builder atomConnectivityBuilder = new AtomConnectivity.Builder();
 		private ResPairCache resPairCache;
 
+		/**
+		 * The most residue pairs to keep precomputed forcefield parameters for.
+		 * Only used if no ResPairCache is given explicitly.
+		 */
+		private int resPairCacheMaxSize = ResPairCache.DefaultMaxSize;
+
 		/** True to minimize continuous degrees of freedom in conformations. False to use only rigid structures. */
 		private boolean isMinimizing = true;
 
@@ -206,6 +212,11 @@ public class EnergyCalculator implements AutoCleanable {
 			return this;
 		}
 
+		public Builder setResPairCacheMaxSize(int val) {
+			resPairCacheMaxSize = val;
+			return this;
+		}
+
 		public Builder setIsMinimizing(boolean val) {
 			this.isMinimizing = val;
 			return this;
@@ -234,7 +245,15 @@ public class EnergyCalculator implements AutoCleanable {
 			
 			// make a res pair cache if needed
 			if (resPairCache == null) {
-				resPairCache = new ResPairCache(ffparams, atomConnectivityBuilder.build());
+				resPairCache = new ResPairCache(ffparams, atomConnectivityBuilder.build(), resPairCacheMaxSize);
+			}
+
+			// don't silently ignore the pair cutoff
+			if (resPairCache.ffparams.pairCutoff < Double.POSITIVE_INFINITY && !type.supportsPairCutoff()) {
+				throw new IllegalArgumentException(String.format(
+					"energy calculator type %s doesn't support forcefield pair cutoffs (pairCutoff = %f), use %s or %s instead",
+					type, resPairCache.ffparams.pairCutoff, Type.Cpu, Type.CpuLBFGSB
+				));
 			}
 			
 			return new EnergyCalculator(parallelism, cluster, type, resPairCache, isMinimizing, infiniteWellEnergy, alwaysResolveClashesEnergy);
@@ -308,6 +327,34 @@ public class EnergyCalculator implements AutoCleanable {
 					minimizers = (f) -> new SimpleCCDMinimizer(f);
 				}};
 			}
+
+			@Override
+			public boolean supportsPairCutoff() {
+				return true;
+			}
+		},
+		CpuLBFGSB {
+			
+			@Override
+			public boolean isSupported() {
+				return true;
+			}
+			
+			@Override
+			public Context makeContext(Parallelism parallelism, ResPairCache resPairCache) {
+				
+				// same energy function as Cpu, but minimize with analytic gradients
+				return new Context() {{
+					numStreams = parallelism.numThreads;
+					efuncs = (interactions, mol) -> new ResidueForcefieldEnergy(resPairCache, interactions, mol);
+					minimizers = (f) -> new LBFGSBMinimizer(f);
+				}};
+			}
+
+			@Override
+			public boolean supportsPairCutoff() {
+				return true;
+			}
 		},
 		Cuda {
 			
@@ -501,6 +548,14 @@ public class EnergyCalculator implements AutoCleanable {
 		
 		public abstract boolean isSupported();
 		public abstract Context makeContext(Parallelism parallelism, ResPairCache resPairCache);
+
+		/**
+		 * True if this implementation honors {@link ForcefieldParams#pairCutoff}.
+		 * The GPU kernels (and the original CCD forcefield) evaluate every atom pair.
+		 */
+		public boolean supportsPairCutoff() {
+			return false;
+		}
 		
 		public static Type pickBest(DofTypes dofTypes) {
 			
@@ -61,6 +61,13 @@ public interface EnergyFunction extends Serializable, AutoCleanable {
     
     public static interface NeedsCleanup extends EnergyFunction, AutoCleanable {}
     
+    /** an energy function that can also compute analytic gradients with respect to the atom coordinates */
+    public static interface HasAtomGradients extends EnergyFunction {
+    	
+    	/** returns the energy, and adds its gradients with respect to the atom coordinates to gradients */
+    	double getEnergyAndGradients(AtomGradients gradients);
+    }
+    
     public static interface ExplicitChemicalChanges extends EnergyFunction {
     	int handleChemicalChanges();
     }
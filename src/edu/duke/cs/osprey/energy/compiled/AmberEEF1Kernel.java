@@ -0,0 +1,414 @@
+package edu.duke.cs.osprey.energy.compiled;
+
+
+import edu.duke.cs.osprey.confspace.compiled.AssignedCoords;
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.CoordsList;
+import edu.duke.cs.osprey.confspace.compiled.PosInter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
+
+/**
+ * Evaluates the Amber and EEF1 forcefields together, for conf spaces that use exactly those two forcefields.
+ *
+ * The generic {@link EnergyCalculator} methods walk each forcefield's atom pairs separately,
+ * copying coords into vectors and looking up a params array for every atom pair.
+ * Instead, this kernel merges the atom pairs of both forcefields into one list per interaction
+ * when the conf space is loaded, with the forcefield parameters copied into parallel primitive arrays,
+ * so both forcefields are evaluated in a single allocation-free loop.
+ *
+ * Energies match the sum of {@link AmberEnergyCalculator} and {@link EEF1EnergyCalculator}
+ * up to floating-point summation order.
+ */
+public class AmberEEF1Kernel {
+
+	/**
+	 * The atom pairs of one interaction and their parameters, as parallel arrays.
+	 *
+	 * Atom pairs are sorted into three runs: pairs with both Amber and EEF1 params,
+	 * then pairs with only Amber params, then pairs with only EEF1 params.
+	 */
+	private static class Block {
+
+		final int numBoth;
+		final int numAmber;
+		final int size;
+
+		final int[] atomi1;
+		final int[] atomi2;
+
+		// amber params
+		final double[] esQ;
+		final double[] vdwA;
+		final double[] vdwB;
+
+		// eef1 params
+		final double[] radius1;
+		final double[] lambda1;
+		final double[] radius2;
+		final double[] lambda2;
+		final double[] alpha1;
+		final double[] alpha2;
+
+		Block(ConfSpace confSpace, int amberFfi, int eef1Ffi, int[][] amber, int[][] eef1) {
+
+			// match up the eef1 pairs with the amber pairs
+			// NOTE: the same atom pair can appear more than once in a forcefield, so match them one-to-one
+			Map<Long,Deque<Integer>> amberIndices = new HashMap<>();
+			for (int i=0; i<amber[0].length; i++) {
+				amberIndices.computeIfAbsent(key(amber[0][i], amber[1][i]), k -> new ArrayDeque<>()).add(i);
+			}
+			int[] eef1ForAmber = new int[amber[0].length];
+			Arrays.fill(eef1ForAmber, -1);
+			boolean[] eef1Matched = new boolean[eef1[0].length];
+			int numBoth = 0;
+			for (int i=0; i<eef1[0].length; i++) {
+				Deque<Integer> amberis = amberIndices.get(key(eef1[0][i], eef1[1][i]));
+				if (amberis != null && !amberis.isEmpty()) {
+					eef1ForAmber[amberis.poll()] = i;
+					eef1Matched[i] = true;
+					numBoth++;
+				}
+			}
+			int numEEF1Only = eef1[0].length - numBoth;
+
+			this.numBoth = numBoth;
+			this.numAmber = amber[0].length;
+			this.size = amber[0].length + numEEF1Only;
+
+			atomi1 = new int[size];
+			atomi2 = new int[size];
+			esQ = new double[numAmber];
+			vdwA = new double[numAmber];
+			vdwB = new double[numAmber];
+			radius1 = new double[size];
+			lambda1 = new double[size];
+			radius2 = new double[size];
+			lambda2 = new double[size];
+			alpha1 = new double[size];
+			alpha2 = new double[size];
+
+			// copy the pairs into their runs
+			int bothi = 0;
+			int amberOnlyi = numBoth;
+			for (int i=0; i<amber[0].length; i++) {
+				int j = eef1ForAmber[i] >= 0 ? bothi++ : amberOnlyi++;
+				atomi1[j] = amber[0][i];
+				atomi2[j] = amber[1][i];
+				setAmber(j, confSpace.ffparams(amberFfi, amber[2][i]));
+				if (eef1ForAmber[i] >= 0) {
+					setEEF1(j, confSpace.ffparams(eef1Ffi, eef1[2][eef1ForAmber[i]]));
+				}
+			}
+			int eef1Onlyi = numAmber;
+			for (int i=0; i<eef1[0].length; i++) {
+				if (!eef1Matched[i]) {
+					int j = eef1Onlyi++;
+					atomi1[j] = eef1[0][i];
+					atomi2[j] = eef1[1][i];
+					setEEF1(j, confSpace.ffparams(eef1Ffi, eef1[2][i]));
+				}
+			}
+		}
+
+		private static long key(int atomi1, int atomi2) {
+			// NOTE: the atom indices can refer to different positions, so keep the order
+			return ((long)atomi1 << 32) | (atomi2 & 0xffffffffL);
+		}
+
+		private void setAmber(int i, double[] params) {
+			esQ[i] = params[0];
+			vdwA[i] = params[1];
+			vdwB[i] = params[2];
+		}
+
+		private void setEEF1(int i, double[] params) {
+			radius1[i] = params[0];
+			lambda1[i] = params[1];
+			radius2[i] = params[2];
+			lambda2[i] = params[3];
+			alpha1[i] = params[4];
+			alpha2[i] = params[5];
+		}
+	}
+
+	/** returns true if the kernel can evaluate the forcefields of this conf space */
+	public static boolean supports(ConfSpace confSpace) {
+		return confSpace.ecalcs.length == 2
+			&& findFfi(confSpace, AmberEnergyCalculator.class) >= 0
+			&& findFfi(confSpace, EEF1EnergyCalculator.class) >= 0;
+	}
+
+	private static int findFfi(ConfSpace confSpace, Class<? extends EnergyCalculator> type) {
+		for (EnergyCalculator ecalc : confSpace.ecalcs) {
+			if (type.isInstance(ecalc)) {
+				return ecalc.ffi();
+			}
+		}
+		return -1;
+	}
+
+	public final ConfSpace confSpace;
+
+	private final int amberFfi;
+	private final int eef1Ffi;
+	private final boolean distanceDependentDielectric;
+
+	private final Block staticBlock;
+	/** indexed by pos, frag */
+	private final Block[][] singleBlocks;
+	/** indexed by pos, frag */
+	private final Block[][] staticPosBlocks;
+	/** indexed by pos1, pos2 (where pos2 < pos1), frag1, frag2 */
+	private final Block[][][][] pairBlocks;
+
+	public AmberEEF1Kernel(ConfSpace confSpace) {
+
+		if (!supports(confSpace)) {
+			throw new IllegalArgumentException("conf space " + confSpace.name + " doesn't use just the Amber and EEF1 forcefields");
+		}
+
+		this.confSpace = confSpace;
+
+		amberFfi = findFfi(confSpace, AmberEnergyCalculator.class);
+		eef1Ffi = findFfi(confSpace, EEF1EnergyCalculator.class);
+		distanceDependentDielectric = ((AmberEnergyCalculator)confSpace.ecalcs[amberFfi]).distanceDependentDielectric();
+
+		// flatten the static atom pairs
+		staticBlock = new Block(confSpace, amberFfi, eef1Ffi,
+			columns(confSpace.indicesStatic(amberFfi)),
+			columns(confSpace.indicesStatic(eef1Ffi))
+		);
+
+		// flatten the single and pos-static atom pairs, for each fragment
+		int numPos = confSpace.positions.length;
+		singleBlocks = new Block[numPos][];
+		staticPosBlocks = new Block[numPos][];
+		for (ConfSpace.Pos pos : confSpace.positions) {
+			int[] confis = confsByFrag(pos);
+			singleBlocks[pos.index] = new Block[pos.numFrags];
+			staticPosBlocks[pos.index] = new Block[pos.numFrags];
+			for (int fragi=0; fragi<pos.numFrags; fragi++) {
+				if (confis[fragi] < 0) {
+					continue;
+				}
+				ConfSpace.IndicesSingle amber = confSpace.indicesSingles(amberFfi, pos.index, confis[fragi]);
+				ConfSpace.IndicesSingle eef1 = confSpace.indicesSingles(eef1Ffi, pos.index, confis[fragi]);
+				singleBlocks[pos.index][fragi] = new Block(confSpace, amberFfi, eef1Ffi,
+					columns(amber.sizeInternals(), amber::getInternalConfAtom1Index, amber::getInternalConfAtom2Index, amber::getInternalParamsIndex),
+					columns(eef1.sizeInternals(), eef1::getInternalConfAtom1Index, eef1::getInternalConfAtom2Index, eef1::getInternalParamsIndex)
+				);
+				staticPosBlocks[pos.index][fragi] = new Block(confSpace, amberFfi, eef1Ffi,
+					columns(amber.sizeStatics(), amber::getStaticConfAtomIndex, amber::getStaticStaticAtomIndex, amber::getStaticParamsIndex),
+					columns(eef1.sizeStatics(), eef1::getStaticConfAtomIndex, eef1::getStaticStaticAtomIndex, eef1::getStaticParamsIndex)
+				);
+			}
+		}
+
+		// flatten the pos-pos atom pairs, for each fragment pair
+		pairBlocks = new Block[numPos][][][];
+		for (ConfSpace.Pos pos1 : confSpace.positions) {
+			int[] confis1 = confsByFrag(pos1);
+			pairBlocks[pos1.index] = new Block[pos1.index][][];
+			for (int posi2=0; posi2<pos1.index; posi2++) {
+				ConfSpace.Pos pos2 = confSpace.positions[posi2];
+				int[] confis2 = confsByFrag(pos2);
+				pairBlocks[pos1.index][posi2] = new Block[pos1.numFrags][pos2.numFrags];
+				for (int fragi1=0; fragi1<pos1.numFrags; fragi1++) {
+					for (int fragi2=0; fragi2<pos2.numFrags; fragi2++) {
+						if (confis1[fragi1] < 0 || confis2[fragi2] < 0) {
+							continue;
+						}
+						pairBlocks[pos1.index][posi2][fragi1][fragi2] = new Block(confSpace, amberFfi, eef1Ffi,
+							columns(confSpace.indicesPairs(amberFfi, pos1.index, confis1[fragi1], posi2, confis2[fragi2])),
+							columns(confSpace.indicesPairs(eef1Ffi, pos1.index, confis1[fragi1], posi2, confis2[fragi2]))
+						);
+					}
+				}
+			}
+		}
+	}
+
+	/** find a representative conf for each fragment, since the conf space indexes atom pairs by conf */
+	private static int[] confsByFrag(ConfSpace.Pos pos) {
+		int[] confis = new int[pos.numFrags];
+		Arrays.fill(confis, -1);
+		for (ConfSpace.Conf conf : pos.confs) {
+			if (confis[conf.fragIndex] < 0) {
+				confis[conf.fragIndex] = conf.index;
+			}
+		}
+		return confis;
+	}
+
+	private static int[][] columns(ConfSpace.IndicesStatic indices) {
+		return columns(indices.size(), indices::getStaticAtom1Index, indices::getStaticAtom2Index, indices::getParamsIndex);
+	}
+
+	private static int[][] columns(ConfSpace.IndicesPair indices) {
+		return columns(indices.size(), indices::getConfAtom1Index, indices::getConfAtom2Index, indices::getParamsIndex);
+	}
+
+	private static int[][] columns(int size, IntUnaryOperator atomi1, IntUnaryOperator atomi2, IntUnaryOperator paramsi) {
+		int[][] columns = new int[3][size];
+		for (int i=0; i<size; i++) {
+			columns[0][i] = atomi1.applyAsInt(i);
+			columns[1][i] = atomi2.applyAsInt(i);
+			columns[2][i] = paramsi.applyAsInt(i);
+		}
+		return columns;
+	}
+
+	/** calculate the energy of just the given position interaction, for both forcefields */
+	public double calcEnergy(AssignedCoords coords, PosInter inter) {
+
+		CoordsList c = coords.coords;
+		double energy;
+
+		if (inter.posi1 == inter.posi2) {
+			if (inter.posi1 == PosInter.StaticPos) {
+
+				// static energy
+				energy = coords.getStaticEnergy(amberFfi) + coords.getStaticEnergy(eef1Ffi)
+					+ calc(staticBlock, c, 0, 0);
+
+			} else {
+
+				// pos single energy
+				int posi = inter.posi1;
+				Block block = getSingleBlock(singleBlocks, coords, posi);
+				if (block == null) {
+					energy = 0.0;
+				} else {
+					int offset = coords.getConfIndex(posi, 0);
+					energy = coords.getInternalEnergy(amberFfi, posi) + coords.getInternalEnergy(eef1Ffi, posi)
+						+ calc(block, c, offset, offset);
+				}
+			}
+
+		} else if (inter.posi1 == PosInter.StaticPos || inter.posi2 == PosInter.StaticPos) {
+
+			// pos-static energy
+			int posi = inter.posi1 == PosInter.StaticPos ? inter.posi2 : inter.posi1;
+			Block block = getSingleBlock(staticPosBlocks, coords, posi);
+			energy = block == null ? 0.0 : calc(block, c, coords.getConfIndex(posi, 0), coords.getStaticIndex(0));
+
+		} else {
+
+			// pos-pos pair energy
+			int posi1 = Math.max(inter.posi1, inter.posi2);
+			int posi2 = Math.min(inter.posi1, inter.posi2);
+			int confi1 = coords.assignments[posi1];
+			int confi2 = coords.assignments[posi2];
+			if (confi1 == ConfSpace.NotAssigned || confi2 == ConfSpace.NotAssigned) {
+				energy = 0.0;
+			} else {
+				Block block = pairBlocks[posi1][posi2]
+					[confSpace.positions[posi1].confs[confi1].fragIndex]
+					[confSpace.positions[posi2].confs[confi2].fragIndex];
+				energy = calc(block, c, coords.getConfIndex(posi1, 0), coords.getConfIndex(posi2, 0));
+			}
+		}
+
+		// apply weight and offset
+		// NOTE: each forcefield's EnergyCalculator adds the offset, so add it once per forcefield here too
+		return inter.weight*(energy + 2*inter.offset);
+	}
+
+	/** calculate the conformation energy using just the given position interactions, for both forcefields */
+	public double calcEnergy(AssignedCoords coords, List<PosInter> inters) {
+
+		double energy = 0.0;
+
+		for (PosInter inter : inters) {
+			energy += calcEnergy(coords, inter);
+		}
+
+		return energy;
+	}
+
+	/** calculate just the energy from the given positions using the given position interactions, for both forcefields */
+	public double calcSubEnergy(AssignedCoords coords, List<PosInter> inters, Set<Integer> posIndices) {
+
+		double energy = 0.0;
+
+		for (PosInter inter : inters) {
+			if (inter.isIncludedIn(posIndices)) {
+				energy += calcEnergy(coords, inter);
+			}
+		}
+
+		return energy;
+	}
+
+	private Block getSingleBlock(Block[][] blocks, AssignedCoords coords, int posi) {
+		int confi = coords.assignments[posi];
+		if (confi == ConfSpace.NotAssigned) {
+			return null;
+		}
+		return blocks[posi][confSpace.positions[posi].confs[confi].fragIndex];
+	}
+
+	private double calc(Block b, CoordsList coords, int offset1, int offset2) {
+
+		double energy = 0.0;
+
+		// pairs with both forcefields
+		for (int i=0; i<b.numBoth; i++) {
+			double dx = coords.x(offset1 + b.atomi1[i]) - coords.x(offset2 + b.atomi2[i]);
+			double dy = coords.y(offset1 + b.atomi1[i]) - coords.y(offset2 + b.atomi2[i]);
+			double dz = coords.z(offset1 + b.atomi1[i]) - coords.z(offset2 + b.atomi2[i]);
+			double r2 = dx*dx + dy*dy + dz*dz;
+			double r = Math.sqrt(r2);
+			energy += amber(b, i, r, r2) + eef1(b, i, r, r2);
+		}
+
+		// pairs with just amber
+		for (int i=b.numBoth; i<b.numAmber; i++) {
+			double dx = coords.x(offset1 + b.atomi1[i]) - coords.x(offset2 + b.atomi2[i]);
+			double dy = coords.y(offset1 + b.atomi1[i]) - coords.y(offset2 + b.atomi2[i]);
+			double dz = coords.z(offset1 + b.atomi1[i]) - coords.z(offset2 + b.atomi2[i]);
+			double r2 = dx*dx + dy*dy + dz*dz;
+			energy += amber(b, i, Math.sqrt(r2), r2);
+		}
+
+		// pairs with just eef1
+		for (int i=b.numAmber; i<b.size; i++) {
+			double dx = coords.x(offset1 + b.atomi1[i]) - coords.x(offset2 + b.atomi2[i]);
+			double dy = coords.y(offset1 + b.atomi1[i]) - coords.y(offset2 + b.atomi2[i]);
+			double dz = coords.z(offset1 + b.atomi1[i]) - coords.z(offset2 + b.atomi2[i]);
+			double r2 = dx*dx + dy*dy + dz*dz;
+			energy += eef1(b, i, Math.sqrt(r2), r2);
+		}
+
+		return energy;
+	}
+
+	private double amber(Block b, int i, double r, double r2) {
+
+		// see AmberEnergyCalculator.calcEnergy(), but with one division instead of three
+		double invR2 = 1.0/r2;
+		double es = distanceDependentDielectric ? b.esQ[i]*invR2 : b.esQ[i]/r;
+		double invR6 = invR2*invR2*invR2;
+		return es + (b.vdwA[i]*invR6 - b.vdwB[i])*invR6;
+	}
+
+	private static double eef1(Block b, int i, double r, double r2) {
+
+		// see EEF1EnergyCalculator.calcEnergy()
+		if (r > EEF1EnergyCalculator.cutoff) {
+			return 0.0;
+		}
+		double Xij = (r - b.radius1[i])/b.lambda1[i];
+		double Xji = (r - b.radius2[i])/b.lambda2[i];
+		return -(b.alpha1[i]*Math.exp(-Xij*Xij) + b.alpha2[i]*Math.exp(-Xji*Xji))/r2;
+	}
+}
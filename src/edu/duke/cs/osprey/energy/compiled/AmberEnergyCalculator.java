@@ -1,6 +1,7 @@
 package edu.duke.cs.osprey.energy.compiled;
 
 import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 
@@ -39,6 +40,18 @@ public class AmberEnergyCalculator implements EnergyCalculator {
 		hasSettings = true;
 	}
 
+	@Override
+	public void writeSettings(DataOutput out)
+	throws IOException {
+		checkSettings();
+		out.writeBoolean(distanceDependentDielectric);
+	}
+
+	public boolean distanceDependentDielectric() {
+		checkSettings();
+		return distanceDependentDielectric;
+	}
+
 	private void checkSettings() {
 		// make sure we've read settings, or throw
 		if (!hasSettings) {
@@ -71,4 +84,30 @@ public class AmberEnergyCalculator implements EnergyCalculator {
 
 		return es + vdw;
 	}
+
+	@Override
+	public double calcEnergyDerivative(double r, double r2, double[] params) {
+
+		// just in case ...
+		checkSettings();
+
+		double esQ = params[0];
+		double vdwA = params[1];
+		double vdwB = params[2];
+
+		// calculate the electrostatics derivative
+		double des;
+		if (distanceDependentDielectric) {
+			des = -2.0*esQ/(r2*r);
+		} else {
+			des = -esQ/r2;
+		}
+
+		// calculate the van der Waals derivative
+		double r6 = r2*r2*r2;
+		double r12 = r6*r6;
+		double dvdw = (6.0*vdwB/r6 - 12.0*vdwA/r12)/r;
+
+		return des + dvdw;
+	}
 }
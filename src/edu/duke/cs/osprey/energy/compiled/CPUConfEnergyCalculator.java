@@ -8,16 +8,55 @@ import edu.duke.cs.osprey.confspace.compiled.PosInter;
 import edu.duke.cs.osprey.minimization.Minimizer;
 import edu.duke.cs.osprey.minimization.ObjectiveFunction;
 import edu.duke.cs.osprey.minimization.SimpleCCDMinimizer;
+import edu.duke.cs.osprey.tools.Factory;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 public class CPUConfEnergyCalculator implements ConfEnergyCalculator {
 
 	public final ConfSpace confSpace;
 
+	/** identifies the minimizer made by the factory, so energies from different minimizers can be told apart */
+	public final String minimizerId;
+	public final Factory<Minimizer,ObjectiveFunction> minimizers;
+
+	/** evaluates Amber and EEF1 together when the conf space uses just those forcefields, otherwise null */
+	public final AmberEEF1Kernel kernel;
+
+	/**
+	 * coords buffers reused by the energy-only calculations, since those don't hand the coords back to the caller
+	 * (there are never more buffers than threads calculating at once, and they're collected with this calculator)
+	 */
+	private final ConcurrentLinkedQueue<AssignedCoords> coordsBuffers = new ConcurrentLinkedQueue<>();
+
 	public CPUConfEnergyCalculator(ConfSpace confSpace) {
+		this(confSpace, SimpleCCDMinimizer.class.getName(), (f) -> new SimpleCCDMinimizer(f));
+	}
+
+	/**
+	 * Identifies the minimizers by the factory's class name. Lambda class names aren't stable
+	 * between runs, so cached minimized energies usually can't be reused by the next run.
+	 * Use {@link #CPUConfEnergyCalculator(ConfSpace, String, Factory)} to give a stable id instead.
+	 */
+	public CPUConfEnergyCalculator(ConfSpace confSpace, Factory<Minimizer,ObjectiveFunction> minimizers) {
+		this(confSpace, minimizers.getClass().getName(), minimizers);
+	}
+
+	/**
+	 * @param minimizerId should be different for every minimizer (and minimizer settings) the factory might make,
+	 *                    eg the minimizer class name
+	 */
+	public CPUConfEnergyCalculator(ConfSpace confSpace, String minimizerId, Factory<Minimizer,ObjectiveFunction> minimizers) {
 		this.confSpace = confSpace;
+		this.minimizerId = minimizerId;
+		this.minimizers = minimizers;
+
+		kernel = AmberEEF1Kernel.supports(confSpace) ? new AmberEEF1Kernel(confSpace) : null;
 	}
 
 	@Override
@@ -30,21 +69,71 @@ public class CPUConfEnergyCalculator implements ConfEnergyCalculator {
 		return confSpace;
 	}
 
+	@Override
+	public void writeSettings(DataOutput out)
+	throws IOException {
+		out.writeUTF(minimizerId);
+	}
+
 	@Override
 	public EnergiedCoords calc(int[] conf, List<PosInter> inters) {
 
 		// build the conformation coords
 		AssignedCoords coords = confSpace.makeCoords(conf);
 
-		double energy = 0.0;
+		return new EnergiedCoords(coords, calcEnergy(coords, inters));
+	}
 
+	@Override
+	public double calcEnergy(int[] conf, List<PosInter> inters) {
+		AssignedCoords coords = borrowCoords(conf);
+		try {
+			return calcEnergy(coords, inters);
+		} finally {
+			coordsBuffers.add(coords);
+		}
+	}
+
+	/**
+	 * Gets a coords buffer from the pool, reassigned to the conformation, or makes a new one if the pool is empty.
+	 * Only the atoms that changed since the buffer's last conformation get copied again.
+	 * Return the buffer to the pool when finished with it.
+	 */
+	private AssignedCoords borrowCoords(int[] conf) {
+		AssignedCoords coords = coordsBuffers.poll();
+		if (coords == null) {
+			// the buffer owns its assignments, so don't share the caller's array
+			coords = confSpace.makeCoords(conf.clone());
+		} else {
+			coords.reassign(conf);
+		}
+		return coords;
+	}
+
+	private double calcEnergy(AssignedCoords coords, List<PosInter> inters) {
+
+		if (kernel != null) {
+			return kernel.calcEnergy(coords, inters);
+		}
+
+		double energy = 0.0;
 		for (EnergyCalculator ecalc : confSpace.ecalcs) {
-			for (PosInter inter : inters) {
-				energy += ecalc.calcEnergy(coords, inter);
-			}
+			energy += ecalc.calcEnergy(coords, inters);
+		}
+		return energy;
+	}
+
+	private double calcSubEnergy(AssignedCoords coords, List<PosInter> inters, Set<Integer> posIndices) {
+
+		if (kernel != null) {
+			return kernel.calcSubEnergy(coords, inters, posIndices);
 		}
 
-		return new EnergiedCoords(coords, energy);
+		double energy = 0.0;
+		for (EnergyCalculator ecalc : confSpace.ecalcs) {
+			energy += ecalc.calcSubEnergy(coords, inters, posIndices);
+		}
+		return energy;
 	}
 
 	@Override
@@ -53,6 +142,22 @@ public class CPUConfEnergyCalculator implements ConfEnergyCalculator {
 		// build the conformation coords
 		AssignedCoords coords = confSpace.makeCoords(conf);
 
+		Minimizer.Result result = minimize(coords, inters);
+		return new EnergiedCoords(coords, result.energy, result.dofValues);
+	}
+
+	@Override
+	public double minimizeEnergy(int[] conf, List<PosInter> inters) {
+		AssignedCoords coords = borrowCoords(conf);
+		try {
+			return minimize(coords, inters).energy;
+		} finally {
+			coordsBuffers.add(coords);
+		}
+	}
+
+	private Minimizer.Result minimize(AssignedCoords coords, List<PosInter> inters) {
+
 		// TODO: can optimize by not including molecule rotation,translation DoFs
 		//  unless interactions span across molecules
 
@@ -93,11 +198,30 @@ public class CPUConfEnergyCalculator implements ConfEnergyCalculator {
 			public double getValue(DoubleMatrix1D x) {
 
 				setDOFs(x);
+				return calcEnergy(coords, inters);
+			}
 
+			@Override
+			public double getValueAndGradient(DoubleMatrix1D x, DoubleMatrix1D gradient) {
+
+				setDOFs(x);
+
+				double[] coordsGradient = new double[coords.coords.size*3];
 				double energy = 0.0;
 				for (EnergyCalculator ecalc : confSpace.ecalcs) {
-					energy += ecalc.calcEnergy(coords, inters);
+					energy += ecalc.calcEnergyAndGradient(coords, inters, coordsGradient);
 				}
+
+				// chain rule the atom gradients onto the dofs
+				int n = coords.dofs.size();
+				for (int d=0; d<n; d++) {
+					double derivative = coords.dofs.get(d).calcDerivative(coordsGradient);
+					if (Double.isNaN(derivative)) {
+						derivative = getDerivativeForDOF(d, x.get(d));
+					}
+					gradient.set(d, derivative);
+				}
+
 				return energy;
 			}
 
@@ -105,12 +229,7 @@ public class CPUConfEnergyCalculator implements ConfEnergyCalculator {
 			public double getValForDOF(int dof, double val) {
 
 				setDOF(dof, val);
-
-				double energy = 0.0;
-				for (EnergyCalculator ecalc : confSpace.ecalcs) {
-					energy += ecalc.calcSubEnergy(coords, inters, coords.dofs.get(dof).modifiedPosIndices());
-				}
-				return energy;
+				return calcSubEnergy(coords, inters, coords.dofs.get(dof).modifiedPosIndices());
 			}
 
 			@Override
@@ -120,8 +239,8 @@ public class CPUConfEnergyCalculator implements ConfEnergyCalculator {
 		};
 
 		// minimize it!
-		Minimizer.Result result = new SimpleCCDMinimizer(f).minimizeFromCenter();
-
-		return new EnergiedCoords(coords, result.energy, result.dofValues);
+		try (Minimizer minimizer = minimizers.make(f)) {
+			return minimizer.minimizeFromCenter();
+		}
 	}
 }
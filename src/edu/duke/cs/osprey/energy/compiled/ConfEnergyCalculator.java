@@ -7,6 +7,8 @@ import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
 import edu.duke.cs.osprey.confspace.compiled.PosInter;
 import edu.duke.cs.osprey.parallelism.Parallelism;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 
 
@@ -37,6 +39,12 @@ public interface ConfEnergyCalculator extends AutoCloseable {
 
 	ConfSpace confSpace();
 
+	/**
+	 * Write the settings that change minimized energies (eg, the minimizer) to the stream,
+	 * so cached energies from differently-configured calculators don't get mixed up.
+	 */
+	default void writeSettings(DataOutput out) throws IOException {}
+
 	/**
 	 * Build the conformation and calculate its rigid (ie unminimized) energy, using the provided interactions.
 	 */
@@ -10,7 +10,7 @@ public class EEF1EnergyCalculator implements EnergyCalculator {
 
 	// Only need to count interactions with 9 A.
 	// Farther interactions are already counted in the pre-calculated internal energy.
-	private static final double cutoff = 9.0;
+	static final double cutoff = 9.0;
 
 	public final String id;
 	public final int ffi;
@@ -48,4 +48,25 @@ public class EEF1EnergyCalculator implements EnergyCalculator {
 			return 0.0;
 		}
 	}
+
+	@Override
+	public double calcEnergyDerivative(double r, double r2, double[] params) {
+
+		double vdwRadius1 = params[0];
+		double lambda1 = params[1];
+		double vdwRadius2 = params[2];
+		double lambda2 = params[3];
+		double alpha1 = params[4];
+		double alpha2 = params[5];
+
+		if (r <= cutoff) {
+			double Xij = (r - vdwRadius1)/lambda1;
+			double Xji = (r - vdwRadius2)/lambda2;
+			double e1 = alpha1*Math.exp(-Xij*Xij);
+			double e2 = alpha2*Math.exp(-Xji*Xji);
+			return 2.0*(e1*Xij/lambda1 + e2*Xji/lambda2)/r2 + 2.0*(e1 + e2)/(r2*r);
+		} else {
+			return 0.0;
+		}
+	}
 }
@@ -3,10 +3,12 @@ package edu.duke.cs.osprey.energy.compiled;
 
 import edu.duke.cs.osprey.confspace.compiled.AssignedCoords;
 import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.CoordsList;
 import edu.duke.cs.osprey.confspace.compiled.PosInter;
 import org.joml.Vector3d;
 
 import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.List;
 import java.util.Set;
@@ -26,9 +28,22 @@ public interface EnergyCalculator {
 	/** read runtime settings from the stream */
 	default void readSettings(DataInput in) throws IOException {}
 
+	/** write runtime settings to the stream, in the same format read by {@link #readSettings} */
+	default void writeSettings(DataOutput out) throws IOException {}
+
 	/** calculate position-pair energy */
 	double calcEnergy(double r, double r2, double[] params);
 
+	/** calculate the derivative of the position-pair energy with respect to r */
+	default double calcEnergyDerivative(double r, double r2, double[] params) {
+
+		// fall back to central differences for forcefields that don't have analytic derivatives
+		double h = 1e-6;
+		double rp = r + h;
+		double rm = r - h;
+		return (calcEnergy(rp, rp*rp, params) - calcEnergy(rm, rm*rm, params))/(2*h);
+	}
+
 	/** get the internal energy of the static atoms */
 	default double calcEnergyStatic(AssignedCoords coords) {
 
@@ -205,6 +220,124 @@ public interface EnergyCalculator {
 		return energy;
 	}
 
+	/**
+	 * Calculate the energy of just the given position interaction,
+	 * and add the weighted gradient of the energy with respect to the atom coordinates
+	 * into gradient, using the same layout as {@link CoordsList}.
+	 */
+	default double calcEnergyAndGradient(AssignedCoords coords, PosInter inter, double[] gradient) {
+
+		int ffi = ffi();
+		double energy = 0.0;
+
+		if (inter.posi1 == inter.posi2) {
+			if (inter.posi1 == PosInter.StaticPos) {
+
+				// static energy
+				energy += coords.getStaticEnergy(ffi);
+				ConfSpace.IndicesStatic indices = coords.getIndices(ffi);
+				for (int i=0; i<indices.size(); i++) {
+					energy += calcEnergyAndGradient(
+						coords.coords,
+						coords.getStaticIndex(indices.getStaticAtom1Index(i)),
+						coords.getStaticIndex(indices.getStaticAtom2Index(i)),
+						coords.getParams(ffi, indices.getParamsIndex(i)),
+						inter.weight,
+						gradient
+					);
+				}
+
+			} else {
+
+				// pos single energy
+				int posi = inter.posi1;
+				energy += coords.getInternalEnergy(ffi, posi);
+				ConfSpace.IndicesSingle indices = coords.getIndices(ffi, posi);
+				for (int i=0; i<indices.sizeInternals(); i++) {
+					energy += calcEnergyAndGradient(
+						coords.coords,
+						coords.getConfIndex(posi, indices.getInternalConfAtom1Index(i)),
+						coords.getConfIndex(posi, indices.getInternalConfAtom2Index(i)),
+						coords.getParams(ffi, indices.getInternalParamsIndex(i)),
+						inter.weight,
+						gradient
+					);
+				}
+			}
+		} else if (inter.posi1 == PosInter.StaticPos || inter.posi2 == PosInter.StaticPos) {
+
+			// pos-static energy
+			int posi = inter.posi1 == PosInter.StaticPos ? inter.posi2 : inter.posi1;
+			ConfSpace.IndicesSingle indices = coords.getIndices(ffi, posi);
+			for (int i=0; i<indices.sizeStatics(); i++) {
+				energy += calcEnergyAndGradient(
+					coords.coords,
+					coords.getConfIndex(posi, indices.getStaticConfAtomIndex(i)),
+					coords.getStaticIndex(indices.getStaticStaticAtomIndex(i)),
+					coords.getParams(ffi, indices.getStaticParamsIndex(i)),
+					inter.weight,
+					gradient
+				);
+			}
+
+		} else {
+
+			// pos-pos pair energy
+			ConfSpace.IndicesPair indices = coords.getIndices(ffi, inter.posi1, inter.posi2);
+			for (int i=0; i<indices.size(); i++) {
+				energy += calcEnergyAndGradient(
+					coords.coords,
+					coords.getConfIndex(inter.posi1, indices.getConfAtom1Index(i)),
+					coords.getConfIndex(inter.posi2, indices.getConfAtom2Index(i)),
+					coords.getParams(ffi, indices.getParamsIndex(i)),
+					inter.weight,
+					gradient
+				);
+			}
+		}
+
+		// apply weight and offset
+		return inter.weight*(energy + inter.offset);
+	}
+
+	/**
+	 * Calculate the conformation energy using just the given position interactions,
+	 * and add the gradient of the energy with respect to the atom coordinates into gradient.
+	 */
+	default double calcEnergyAndGradient(AssignedCoords coords, List<PosInter> inters, double[] gradient) {
+
+		double energy = 0.0;
+
+		for (PosInter inter : inters) {
+			energy += calcEnergyAndGradient(coords, inter, gradient);
+		}
+
+		return energy;
+	}
+
+	/** calculate one atom pair energy, and add its weighted gradient */
+	private double calcEnergyAndGradient(CoordsList coords, int atomi1, int atomi2, double[] params, double weight, double[] gradient) {
+
+		double dx = coords.x(atomi1) - coords.x(atomi2);
+		double dy = coords.y(atomi1) - coords.y(atomi2);
+		double dz = coords.z(atomi1) - coords.z(atomi2);
+		double r2 = dx*dx + dy*dy + dz*dz;
+		double r = Math.sqrt(r2);
+
+		// chain rule dE/dr onto the atom positions
+		double scale = weight*calcEnergyDerivative(r, r2, params)/r;
+		int i1 = atomi1*3;
+		int i2 = atomi2*3;
+		gradient[i1] += scale*dx;
+		gradient[i1 + 1] += scale*dy;
+		gradient[i1 + 2] += scale*dz;
+		gradient[i2] -= scale*dx;
+		gradient[i2 + 1] -= scale*dy;
+		gradient[i2 + 2] -= scale*dz;
+
+		return calcEnergy(r, r2, params);
+	}
+
 	/**
 	 * Calculate just the energy from the given positions using the given position interactions
 	 */
@@ -117,6 +117,21 @@ public class ForcefieldParams implements Serializable {
     @Deprecated
     public double shellDistCutoff = Double.POSITIVE_INFINITY; //distance cutoff for interactions (angstroms)
     public SolvationForcefield solvationForcefield = SolvationForcefield.EEF1;
+
+    /**
+     * Electrostatics and vdW atom pairs farther apart than this distance (in angstroms) are ignored
+     * by {@link ResidueForcefieldEnergy}, which then only evaluates atom pairs from neighbor lists.
+     * The default of infinity evaluates every atom pair.
+     * Energy calculators with other forcefield implementations (eg, the GPU ones) reject a finite cutoff,
+     * see {@link edu.duke.cs.osprey.energy.EnergyCalculator.Type#supportsPairCutoff}.
+     */
+    public double pairCutoff = Double.POSITIVE_INFINITY;
+
+    /** interactions are smoothly switched off between pairCutoff - pairSwitchWidth and pairCutoff (angstroms) */
+    public double pairSwitchWidth = 2.0;
+
+    /** extra distance (angstroms) included in neighbor lists, so they only need rebuilding after atoms move that far */
+    public double pairListSkin = 2.0;
     
     public enum Forcefield {
         
@@ -274,6 +289,9 @@ public class ForcefieldParams implements Serializable {
         hVDW = other.hVDW;
         shellDistCutoff = other.shellDistCutoff;
         solvationForcefield = other.solvationForcefield;
+        pairCutoff = other.pairCutoff;
+        pairSwitchWidth = other.pairSwitchWidth;
+        pairListSkin = other.pairListSkin;
     }
     
     
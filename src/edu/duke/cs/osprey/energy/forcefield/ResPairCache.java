@@ -33,8 +33,12 @@
 package edu.duke.cs.osprey.energy.forcefield;
 
 import java.util.Arrays;
-import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.duke.cs.osprey.energy.ResidueInteractions;
 import edu.duke.cs.osprey.energy.forcefield.ForcefieldParams.SolvationForcefield;
@@ -150,15 +154,106 @@ public class ResPairCache {
 		}
 	}
 	
+	/** hit/miss/eviction counts for the cache, so it can be sized */
+	public static class Stats {
+
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int size;
+
+		public Stats(long hits, long misses, long evictions, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		public double getHitRatio() {
+			long total = hits + misses;
+			return total > 0 ? (double)hits/total : 0.0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("ResPairCache[size=%d, hits=%d, misses=%d, hit ratio=%.1f%%, evictions=%d]",
+				size, hits, misses, getHitRatio()*100.0, evictions
+			);
+		}
+	}
+
+	private static class Entry {
+
+		/** completed by the thread that missed first, the others wait for it */
+		final CompletableFuture<AtomPairInfo> info = new CompletableFuture<>();
+
+		/** approximate time of the last use, for LRU eviction */
+		volatile long lastUsed = System.nanoTime();
+
+		void markUsed() {
+			// only write the shared field when it's noticeably stale,
+			// so hits from many threads don't all write to the same cache line
+			long now = System.nanoTime();
+			if (now - lastUsed > LastUsedResolutionNs) {
+				lastUsed = now;
+			}
+		}
+
+		AtomPairInfo getInfo() {
+			try {
+				return info.join();
+			} catch (CompletionException ex) {
+				if (ex.getCause() instanceof RuntimeException) {
+					throw (RuntimeException)ex.getCause();
+				}
+				throw ex;
+			}
+		}
+	}
+
+	/** entries used within this many nanoseconds of each other are the same age to the LRU eviction */
+	private static final long LastUsedResolutionNs = 1000L*1000L; // 1 ms
+
+	public static final int DefaultMaxSize = 10000;
+
 	public final ForcefieldParams ffparams;
 	public final AtomConnectivity connectivity;
+	public final int maxSize;
 	
-	private Map<AtomPairs,AtomPairInfo> infos;
+	// NOTE: AtomPairs instances come from the AtomConnectivity caches and don't override equals(),
+	// so this map compares keys by identity, like an IdentityHashMap
+	private final ConcurrentHashMap<AtomPairs,Entry> infos = new ConcurrentHashMap<>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
 	
 	public ResPairCache(ForcefieldParams ffparams, AtomConnectivity connectivity) {
+		this(ffparams, connectivity, DefaultMaxSize);
+	}
+
+	/**
+	 * Thread-safe, so one cache can be shared by all the threads of an energy calculator.
+	 * When the cache holds more than maxSize entries, the least recently used entries are evicted.
+	 */
+	public ResPairCache(ForcefieldParams ffparams, AtomConnectivity connectivity, int maxSize) {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("max size must be positive, not " + maxSize);
+		}
+
 		this.ffparams = ffparams;
 		this.connectivity = connectivity;
-		this.infos = new IdentityHashMap<>();
+		this.maxSize = maxSize;
+	}
+
+	public Stats getStats() {
+		return new Stats(hits.sum(), misses.sum(), evictions.sum(), infos.size());
+	}
+
+	public int size() {
+		return infos.size();
 	}
 	
 	public ResPair get(Residues residues, ResidueInteractions.Pair pair, SolvationForcefield.ResiduesInfo solvInfo) {
@@ -175,20 +270,42 @@ public class ResPairCache {
 					+ " Can't find atom pairs for residues: " + res1.fullName + ", " + res2.fullName);
 		}
 		
-		// look in the cache
-		AtomPairInfo info = infos.get(atomPairs);
-		if (info == null) {
-			
-			// cache miss!
-			info = new AtomPairInfo(
-				res1, res2,
-				ffparams,
-				atomPairs,
-				solvInfo
-			);
-			
-			infos.put(atomPairs, info);
+		// look in the cache, without locking
+		Entry entry = infos.get(atomPairs);
+		if (entry != null) {
+			hits.increment();
+			entry.markUsed();
+		} else {
+
+			// cache miss! compute the info only once, even if other threads miss at the same time,
+			// but compute it outside of the map, so other keys in the same bin aren't blocked meanwhile
+			Entry newEntry = new Entry();
+			entry = infos.putIfAbsent(atomPairs, newEntry);
+			if (entry != null) {
+				hits.increment();
+				entry.markUsed();
+			} else {
+				entry = newEntry;
+				misses.increment();
+				try {
+					entry.info.complete(new AtomPairInfo(
+						res1, res2,
+						ffparams,
+						atomPairs,
+						solvInfo
+					));
+				} catch (Throwable t) {
+					// don't cache the failure, but let any waiting threads see it
+					infos.remove(atomPairs, entry);
+					entry.info.completeExceptionally(t);
+					throw t;
+				}
+				if (infos.size() > maxSize) {
+					evict();
+				}
+			}
 		}
+		AtomPairInfo info = entry.getInfo();
 	
 		return new ResPair(
 			indxe1, index2,
@@ -199,4 +316,41 @@ public class ResPairCache {
 			ffparams.solvScale
 		);
 	}
+
+	private void evict() {
+
+		// only one thread needs to evict at a time, the others can skip it
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+
+			int size = infos.size();
+			if (size <= maxSize) {
+				return;
+			}
+
+			// evict the least recently used entries, down to 90% of the max size,
+			// so we don't have to evict again on the very next miss
+			int numToEvict = size - maxSize*9/10;
+			long[] lastUseds = infos.values().stream()
+				.mapToLong(entry -> entry.lastUsed)
+				.sorted()
+				.toArray();
+			long threshold = lastUseds[Math.min(numToEvict, lastUseds.length) - 1];
+
+			for (Map.Entry<AtomPairs,Entry> mapEntry : infos.entrySet()) {
+				if (numToEvict <= 0) {
+					break;
+				}
+				if (mapEntry.getValue().lastUsed <= threshold && infos.remove(mapEntry.getKey(), mapEntry.getValue())) {
+					evictions.increment();
+					numToEvict--;
+				}
+			}
+
+		} finally {
+			evictionLock.unlock();
+		}
+	}
 }
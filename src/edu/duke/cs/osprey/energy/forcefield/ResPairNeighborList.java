@@ -0,0 +1,173 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+package edu.duke.cs.osprey.energy.forcefield;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import edu.duke.cs.osprey.energy.forcefield.ResPairCache.ResPair;
+import edu.duke.cs.osprey.structure.Residue;
+
+/**
+ * Verlet neighbor list for the atom pairs of one residue pair.
+ *
+ * The list holds the indices of all atom pairs within the list cutoff (the interaction cutoff plus a skin distance).
+ * Atoms can move a combined distance of up to the skin before any pair outside the list can come within the
+ * interaction cutoff, so the list only needs to be rebuilt after the residues have moved that far.
+ */
+public class ResPairNeighborList implements Serializable {
+
+	private static final long serialVersionUID = 2387158230612378564L;
+
+	/**
+	 * Tracks how far the atoms of a residue have moved, so many neighbor lists can share the work.
+	 *
+	 * The tracker takes a new reference position whenever any atom moves more than a quarter of the skin from
+	 * the last one. So while a neighbor list sees the same reference positions for both its residues,
+	 * each residue has moved at most half the skin since the list was built, and the list is still valid.
+	 */
+	public static class ResidueTracker implements Serializable {
+
+		private static final long serialVersionUID = 6212857634019871237L;
+
+		public final Residue res;
+		public final double maxMove;
+
+		private double[] refCoords = null;
+		private int version = 0;
+		private long checkedStamp = -1;
+
+		public ResidueTracker(Residue res, double skin) {
+			this.res = res;
+			this.maxMove = skin/4;
+		}
+
+		/**
+		 * Returns the version of the reference position, after taking a new one if needed.
+		 * Residues are only checked once per stamp, so callers can check many times per energy evaluation.
+		 */
+		public int update(long stamp) {
+
+			if (stamp != checkedStamp) {
+				checkedStamp = stamp;
+				if (refCoords == null || maxMove2(res.coords, refCoords) > maxMove*maxMove) {
+					refCoords = res.coords.clone();
+					version++;
+				}
+			}
+
+			return version;
+		}
+
+		private static double maxMove2(double[] coords, double[] refCoords) {
+			double max2 = 0;
+			for (int i=0; i<coords.length; i+=3) {
+				double dx = coords[i] - refCoords[i];
+				double dy = coords[i + 1] - refCoords[i + 1];
+				double dz = coords[i + 2] - refCoords[i + 2];
+				max2 = Math.max(max2, dx*dx + dy*dy + dz*dz);
+			}
+			return max2;
+		}
+	}
+
+	public final ResPair pair;
+	public final ResidueTracker tracker1;
+	public final ResidueTracker tracker2;
+	public final double listCutoff;
+
+	private final double listCutoff2;
+
+	private int[] atomPairIndices = null;
+	private int version1;
+	private int version2;
+	private int numBuilds = 0;
+
+	public ResPairNeighborList(ResPair pair, ResidueTracker tracker1, ResidueTracker tracker2, double listCutoff) {
+		this.pair = pair;
+		this.tracker1 = tracker1;
+		this.tracker2 = tracker2;
+		this.listCutoff = listCutoff;
+		this.listCutoff2 = listCutoff*listCutoff;
+	}
+
+	/**
+	 * Returns the indices of the atom pairs that could be within the interaction cutoff,
+	 * rebuilding the list first if the atoms have moved too far.
+	 */
+	public int[] update(long stamp) {
+
+		int version1 = tracker1.update(stamp);
+		int version2 = tracker2.update(stamp);
+		if (atomPairIndices == null || version1 != this.version1 || version2 != this.version2) {
+			build();
+			this.version1 = version1;
+			this.version2 = version2;
+		}
+
+		return atomPairIndices;
+	}
+
+	/** how many times the list was built, including the first time */
+	public int getNumBuilds() {
+		return numBuilds;
+	}
+
+	private void build() {
+
+		double[] coords1 = pair.res1.coords;
+		double[] coords2 = pair.res2.coords;
+		long[] flags = pair.info.flags;
+
+		int[] indices = new int[pair.info.numAtomPairs];
+		int size = 0;
+		for (int j=0; j<pair.info.numAtomPairs; j++) {
+
+			// NOTE: see ResidueForcefieldEnergy.getEnergy() for the flags layout
+			long atomPairFlags = flags[j];
+			int atomOffset2 = (int)(atomPairFlags & 0xffff);
+			atomPairFlags >>= 16;
+			int atomOffset1 = (int)(atomPairFlags & 0xffff);
+
+			double dx = coords1[atomOffset1] - coords2[atomOffset2];
+			double dy = coords1[atomOffset1 + 1] - coords2[atomOffset2 + 1];
+			double dz = coords1[atomOffset1 + 2] - coords2[atomOffset2 + 2];
+			if (dx*dx + dy*dy + dz*dz <= listCutoff2) {
+				indices[size++] = j;
+			}
+		}
+
+		atomPairIndices = Arrays.copyOf(indices, size);
+		numBuilds++;
+	}
+}
@@ -33,12 +33,14 @@
 package edu.duke.cs.osprey.energy.forcefield;
 
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import edu.duke.cs.osprey.dof.DegreeOfFreedom;
+import edu.duke.cs.osprey.energy.AtomGradients;
 import edu.duke.cs.osprey.energy.EnergyFunction;
 import edu.duke.cs.osprey.energy.ResidueInteractions;
 import edu.duke.cs.osprey.energy.forcefield.ForcefieldParams.SolvationForcefield;
@@ -48,7 +50,7 @@ import edu.duke.cs.osprey.structure.Residue;
 import edu.duke.cs.osprey.structure.Residues;
 import edu.duke.cs.osprey.tools.Streams;
 
-public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof {
+public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof, EnergyFunction.HasAtomGradients {
 
 	private static final long serialVersionUID = -4768384219061898745L;
 	
@@ -62,6 +64,13 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 
 	private double coulombFactor;
 	private double scaledCoulombFactor;
+
+	/** parallel to resPairs, or null to evaluate all atom pairs */
+	protected ResPairNeighborList[] neighborLists = null;
+	private long neighborListStamp = 0;
+	private double switchOn2;
+	private double switchOff2;
+	private double invSwitchDenom;
 	
 	public ResidueForcefieldEnergy(ResPairCache resPairCache, ResidueInteractions inters, Molecule mol) {
 		this(resPairCache, inters, mol.residues);
@@ -102,6 +111,32 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 		// pre-compute some constants needed by getEnergy()
 		coulombFactor = ForcefieldParams.coulombConstant/resPairCache.ffparams.dielectric;
 		scaledCoulombFactor = coulombFactor*resPairCache.ffparams.forcefld.coulombScaling;
+
+		// use neighbor lists if there's a cutoff
+		ForcefieldParams ffparams = resPairCache.ffparams;
+		if (ffparams.pairCutoff < Double.POSITIVE_INFINITY) {
+
+			// EEF1 has its own cutoff, make sure the lists cover it too
+			double listCutoff = ffparams.pairCutoff;
+			if (ffparams.solvationForcefield == SolvationForcefield.EEF1) {
+				listCutoff = Math.max(listCutoff, ForcefieldParams.solvCutoff);
+			}
+			listCutoff += ffparams.pairListSkin;
+
+			Map<Residue,ResPairNeighborList.ResidueTracker> trackers = new IdentityHashMap<>();
+			Function<Residue,ResPairNeighborList.ResidueTracker> getTracker = (res) ->
+				trackers.computeIfAbsent(res, (r) -> new ResPairNeighborList.ResidueTracker(r, ffparams.pairListSkin));
+			neighborLists = new ResPairNeighborList[resPairs.length];
+			for (int i=0; i<resPairs.length; i++) {
+				ResPair pair = resPairs[i];
+				neighborLists[i] = new ResPairNeighborList(pair, getTracker.apply(pair.res1), getTracker.apply(pair.res2), listCutoff);
+			}
+
+			double switchOn = Math.max(0, ffparams.pairCutoff - ffparams.pairSwitchWidth);
+			switchOn2 = switchOn*switchOn;
+			switchOff2 = ffparams.pairCutoff*ffparams.pairCutoff;
+			invSwitchDenom = 1.0/Math.pow(switchOff2 - switchOn2, 3);
+		}
 	}
 
 	public ResidueForcefieldEnergy makeSubset(ResidueInteractions.Pair pair) {
@@ -114,9 +149,23 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 	
 	@Override
 	public double getEnergy() {
+		if (neighborLists != null) {
+			return getEnergy(resPairs, neighborLists);
+		}
 		return getEnergy(resPairs);
 	}
 
+	/** how many times the neighbor lists were built, or 0 if not using neighbor lists */
+	public int getNumNeighborListBuilds() {
+		int num = 0;
+		if (neighborLists != null) {
+			for (ResPairNeighborList list : neighborLists) {
+				num += list.getNumBuilds();
+			}
+		}
+		return num;
+	}
+
 	public List<ResPairEnergyContribution> getEnergyContributions(ResPair[] resPairs) {
 		var electrostaticContributions = getElectrostaticsEnergyContributions(resPairs);
 		var vdwContributions = getVanDerWaalsEnergyContributions(resPairs);
@@ -269,6 +318,263 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 		return energy;
 	}
 
+	/**
+	 * Same energy as getEnergy(ResPair[]), except only atom pairs in the neighbor lists are evaluated,
+	 * and electrostatics and vdW are smoothly switched off at the cutoff.
+	 */
+	private double getEnergy(ResPair[] resPairs, ResPairNeighborList[] neighborLists) {
+
+		if (isBroken) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// copy stuff to the stack/registers, to improve CPU cache performance
+		boolean useHEs = resPairCache.ffparams.hElect;
+		boolean useHvdW = resPairCache.ffparams.hVDW;
+		double coulombFactor = this.coulombFactor;
+		double scaledCoulombFactor = this.scaledCoulombFactor;
+		boolean distDepDielect = resPairCache.ffparams.distDepDielect;
+		boolean useEEF1 = resPairCache.ffparams.solvationForcefield == SolvationForcefield.EEF1;
+		double switchOn2 = this.switchOn2;
+		double switchOff2 = this.switchOff2;
+		double invSwitchDenom = this.invSwitchDenom;
+		long stamp = ++neighborListStamp;
+
+		double energy = 0;
+
+		for (int i=0; i<resPairs.length; i++) {
+			ResPair pair = resPairs[i];
+			int[] atomPairIndices = neighborLists[i].update(stamp);
+
+			double[] coords1 = pair.res1.coords;
+			double[] coords2 = pair.res2.coords;
+			long[] flags = pair.info.flags;
+			double[] precomputed = pair.info.precomputed;
+			int numPrecomputed = pair.info.numPrecomputedPerAtomPair;
+
+			double resPairEnergy = 0;
+
+			for (int j : atomPairIndices) {
+
+				long atomPairFlags = flags[j];
+				int atomOffset2 = (int)(atomPairFlags & 0xffff);
+				atomPairFlags >>= 16;
+				int atomOffset1 = (int)(atomPairFlags & 0xffff);
+				atomPairFlags >>= 46;
+				boolean isHeavyPair = (atomPairFlags & 0x1) == 0x1;
+				atomPairFlags >>= 1;
+				boolean is14Bonded = (atomPairFlags & 0x1) == 0x1;
+
+				double dx = coords1[atomOffset1] - coords2[atomOffset2];
+				double dy = coords1[atomOffset1 + 1] - coords2[atomOffset2 + 1];
+				double dz = coords1[atomOffset1 + 2] - coords2[atomOffset2 + 2];
+				double r2 = dx*dx + dy*dy + dz*dz;
+				double r = Math.sqrt(r2);
+
+				int pos = j*numPrecomputed;
+
+				if (r2 < switchOff2) {
+
+					double atomPairEnergy = 0;
+
+					// electrostatics
+					if (isHeavyPair || useHEs) {
+						double charge = precomputed[pos];
+						double factor = is14Bonded ? scaledCoulombFactor : coulombFactor;
+						if (distDepDielect) {
+							atomPairEnergy += factor*charge/r2;
+						} else {
+							atomPairEnergy += factor*charge/r;
+						}
+					}
+
+					// van der Waals
+					if (isHeavyPair || useHvdW) {
+						double Aij = precomputed[pos + 1];
+						double Bij = precomputed[pos + 2];
+						double r6 = r2*r2*r2;
+						double r12 = r6*r6;
+						atomPairEnergy += Aij/r12 - Bij/r6;
+					}
+
+					// switch off smoothly near the cutoff
+					if (r2 > switchOn2) {
+						double d = switchOff2 - r2;
+						atomPairEnergy *= d*d*(switchOff2 + 2*r2 - 3*switchOn2)*invSwitchDenom;
+					}
+
+					resPairEnergy += atomPairEnergy;
+				}
+
+				// solvation
+				if (useEEF1 && isHeavyPair && r2 < ForcefieldParams.solvCutoff2) {
+
+					double radius1 = precomputed[pos + 3];
+					double lambda1 = precomputed[pos + 4];
+					double alpha1 = precomputed[pos + 5];
+					double radius2 = precomputed[pos + 6];
+					double lambda2 = precomputed[pos + 7];
+					double alpha2 = precomputed[pos + 8];
+
+					double Xij = (r - radius1)/lambda1;
+					double Xji = (r - radius2)/lambda2;
+					resPairEnergy -= (alpha1*Math.exp(-Xij*Xij) + alpha2*Math.exp(-Xji*Xji))/r2;
+				}
+			}
+
+			// apply weights and offsets
+			energy += (resPairEnergy + pair.offset + pair.solvEnergy)*pair.weight;
+		}
+
+		return energy;
+	}
+
+	@Override
+	public double getEnergyAndGradients(AtomGradients gradients) {
+		return getEnergyAndGradients(resPairs, gradients, true, true, true, true);
+	}
+
+	/**
+	 * Same energy as getEnergy(), but also accumulates the analytic gradients of the energy
+	 * with respect to the atom coordinates. Not as heavily optimized as getEnergy(),
+	 * since minimizers that use gradients need far fewer energy evaluations.
+	 */
+	protected double getEnergyAndGradients(ResPair[] resPairs, AtomGradients gradients, boolean useElect, boolean useVdw, boolean useSolv, boolean useOffsets) {
+
+		if (isBroken) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		boolean useHEs = resPairCache.ffparams.hElect;
+		boolean useHvdW = resPairCache.ffparams.hVDW;
+		boolean distDepDielect = resPairCache.ffparams.distDepDielect;
+		boolean useEEF1 = resPairCache.ffparams.solvationForcefield == SolvationForcefield.EEF1;
+
+		// the neighbor lists are parallel to our own res pairs, so only use them for those
+		boolean useNeighborLists = neighborLists != null && resPairs == this.resPairs;
+		long stamp = ++neighborListStamp;
+
+		double energy = 0;
+
+		for (int i=0; i<resPairs.length; i++) {
+			ResPair pair = resPairs[i];
+
+			double[] coords1 = pair.res1.coords;
+			double[] coords2 = pair.res2.coords;
+			double[] gradients1 = gradients.getOrMake(pair.res1);
+			double[] gradients2 = gradients.getOrMake(pair.res2);
+			double[] precomputed = pair.info.precomputed;
+			int numPrecomputed = pair.info.numPrecomputedPerAtomPair;
+			double weight = pair.weight;
+
+			int[] atomPairIndices = useNeighborLists ? neighborLists[i].update(stamp) : null;
+			int numAtomPairs = useNeighborLists ? atomPairIndices.length : pair.info.numAtomPairs;
+
+			double resPairEnergy = 0;
+
+			for (int k=0; k<numAtomPairs; k++) {
+				int j = useNeighborLists ? atomPairIndices[k] : k;
+
+				long atomPairFlags = pair.info.flags[j];
+				int atomOffset2 = (int)(atomPairFlags & 0xffff);
+				atomPairFlags >>= 16;
+				int atomOffset1 = (int)(atomPairFlags & 0xffff);
+				atomPairFlags >>= 46;
+				boolean isHeavyPair = (atomPairFlags & 0x1) == 0x1;
+				atomPairFlags >>= 1;
+				boolean is14Bonded = (atomPairFlags & 0x1) == 0x1;
+
+				double dx = coords1[atomOffset1] - coords2[atomOffset2];
+				double dy = coords1[atomOffset1 + 1] - coords2[atomOffset2 + 1];
+				double dz = coords1[atomOffset1 + 2] - coords2[atomOffset2 + 2];
+				double r2 = dx*dx + dy*dy + dz*dz;
+				double r = Math.sqrt(r2);
+
+				int pos = j*numPrecomputed;
+
+				// accumulate the electrostatics and vdW energy and dE/dr for this atom pair
+				double atomPairEnergy = 0;
+				double dEdr = 0;
+
+				// electrostatics
+				if (useElect && (isHeavyPair || useHEs)) {
+					double charge = precomputed[pos];
+					double factor = is14Bonded ? scaledCoulombFactor : coulombFactor;
+					if (distDepDielect) {
+						atomPairEnergy += factor*charge/r2;
+						dEdr -= 2*factor*charge/(r2*r);
+					} else {
+						atomPairEnergy += factor*charge/r;
+						dEdr -= factor*charge/r2;
+					}
+				}
+
+				// van der Waals
+				if (useVdw && (isHeavyPair || useHvdW)) {
+					double Aij = precomputed[pos + 1];
+					double Bij = precomputed[pos + 2];
+					double r6 = r2*r2*r2;
+					double r12 = r6*r6;
+					atomPairEnergy += Aij/r12 - Bij/r6;
+					dEdr += (6*Bij/r6 - 12*Aij/r12)/r;
+				}
+
+				// switch off smoothly near the cutoff: d(S*E)/dr = S*dE/dr + E*dS/dr
+				if (useNeighborLists && r2 > switchOn2) {
+					if (r2 < switchOff2) {
+						double d = switchOff2 - r2;
+						double switchVal = d*d*(switchOff2 + 2*r2 - 3*switchOn2)*invSwitchDenom;
+						double switchDerivative = 12*r*d*(switchOn2 - r2)*invSwitchDenom;
+						dEdr = switchVal*dEdr + atomPairEnergy*switchDerivative;
+						atomPairEnergy *= switchVal;
+					} else {
+						atomPairEnergy = 0;
+						dEdr = 0;
+					}
+				}
+
+				resPairEnergy += atomPairEnergy;
+
+				// solvation
+				if (useEEF1 && useSolv && isHeavyPair && r2 < ForcefieldParams.solvCutoff2) {
+
+					double radius1 = precomputed[pos + 3];
+					double lambda1 = precomputed[pos + 4];
+					double alpha1 = precomputed[pos + 5];
+					double radius2 = precomputed[pos + 6];
+					double lambda2 = precomputed[pos + 7];
+					double alpha2 = precomputed[pos + 8];
+
+					double Xij = (r - radius1)/lambda1;
+					double Xji = (r - radius2)/lambda2;
+					double e1 = alpha1*Math.exp(-Xij*Xij);
+					double e2 = alpha2*Math.exp(-Xji*Xji);
+					resPairEnergy -= (e1 + e2)/r2;
+					dEdr += 2*(e1 + e2)/(r2*r) + 2*(e1*Xij/lambda1 + e2*Xji/lambda2)/r2;
+				}
+
+				// chain rule to the atom coords: dE/dx1 = dE/dr*(x1 - x2)/r
+				double scale = weight*dEdr/r;
+				gradients1[atomOffset1] += scale*dx;
+				gradients1[atomOffset1 + 1] += scale*dy;
+				gradients1[atomOffset1 + 2] += scale*dz;
+				gradients2[atomOffset2] -= scale*dx;
+				gradients2[atomOffset2 + 1] -= scale*dy;
+				gradients2[atomOffset2 + 2] -= scale*dz;
+			}
+
+			if (useOffsets) {
+				resPairEnergy += pair.offset;
+			}
+			if (useSolv) {
+				resPairEnergy += pair.solvEnergy;
+			}
+			energy += resPairEnergy*weight;
+		}
+
+		return energy;
+	}
+
 	public double getElectrostaticsEnergy() {
 		return getElectrostaticsEnergy(resPairs);
 	}
@@ -777,9 +1083,13 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 			private static final long serialVersionUID = 4664215035458391734L;
 			
 			private ResPair[] resPairs;
+			private ResPairNeighborList[] neighborLists;
 			
 			@Override
 			public double getEnergy() {
+				if (neighborLists != null) {
+					return ResidueForcefieldEnergy.this.getEnergy(resPairs, neighborLists);
+				}
 				return ResidueForcefieldEnergy.this.getEnergy(resPairs);
 			}
 		}
@@ -802,6 +1112,13 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 				if (subset == null) {
 					subset = new Subset();
 					subset.resPairs = makeResPairsSubset(res);
+					if (neighborLists != null) {
+						int[] indices = makeResPairIndicesSubset(res);
+						subset.neighborLists = new ResPairNeighborList[indices.length];
+						for (int i=0; i<indices.length; i++) {
+							subset.neighborLists[i] = neighborLists[indices[i]];
+						}
+					}
 					cache.put(res, subset);
 				}
 				efuncs.add(subset);
@@ -819,6 +1136,9 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 
 		public Vdw(ResPairCache resPairCache, ResidueInteractions inters, Residues residues) {
 			super(resPairCache, inters, residues);
+
+			// the vdW forcefield is only used to resolve clashes, so always use all the atom pairs
+			neighborLists = null;
 		}
 
 		public Vdw(ResidueForcefieldEnergy efunc) {
@@ -830,6 +1150,11 @@ public class ResidueForcefieldEnergy implements EnergyFunction.DecomposableByDof
 			return super.getVanDerWaalsEnergy();
 		}
 
+		@Override
+		public double getEnergyAndGradients(AtomGradients gradients) {
+			return getEnergyAndGradients(resPairs, gradients, false, true, false, false);
+		}
+
 		@Override
 		public List<EnergyFunction> decomposeByDof(Molecule mol, List<DegreeOfFreedom> dofs) {
 
@@ -58,7 +58,7 @@ public class EMConfAStarFactory implements ConfAStarFactory {
 		return new EMConfAStarNode(numPos);
 	}
 	
-	private static class NodeSerializer extends AssignmentsSerializer implements SerializingDoublePriorityQueue.Serializer<EMConfAStarNode> {
+	static class NodeSerializer extends AssignmentsSerializer implements SerializingDoublePriorityQueue.Serializer<EMConfAStarNode> {
 
 		public NodeSerializer(RCs rcs) {
 			super(rcs, Double.BYTES*2 + Integer.BYTES);
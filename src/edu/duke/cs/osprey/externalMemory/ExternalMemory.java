@@ -124,6 +124,17 @@ public class ExternalMemory {
 		TPIE.setTempDir(dir, subdir);
 	}
 	
+	/**
+	 * Return the temporary directory for external memory,
+	 * or the JVM default temporary directory if none has been set.
+	 */
+	public static File getTempDir() {
+		if (tempDir != null) {
+			return tempDir;
+		}
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+	
 	/**
 	 * Return true if the internal memory limit has been set by a call to {@link #setInternalLimit(int)}.
 	 * @return
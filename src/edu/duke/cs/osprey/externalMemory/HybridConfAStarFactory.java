@@ -0,0 +1,104 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.externalMemory;
+
+import java.io.File;
+
+import edu.duke.cs.osprey.astar.conf.ConfAStarFactory;
+import edu.duke.cs.osprey.astar.conf.ConfAStarNode;
+import edu.duke.cs.osprey.astar.conf.RCs;
+
+/**
+ * Makes A* queues that keep nodes in internal memory (eg, RAM) until a memory budget is reached,
+ * then spill the worst nodes to external memory (eg, disk, SSD).
+ *
+ * Small searches never touch external memory, and large searches don't run out of heap space.
+ * Doesn't need the external memory system to be initialized with {@link ExternalMemory#setInternalLimit}.
+ */
+public class HybridConfAStarFactory implements ConfAStarFactory {
+
+	/** approximate heap bytes for a node, not counting the assignments */
+	private static final int NodeOverheadBytes = 96;
+
+	public final long internalBytes;
+	public final File dir;
+
+	/**
+	 * @param internalMiB approximate amount of internal memory to use for nodes, in MiB
+	 */
+	public HybridConfAStarFactory(int internalMiB) {
+		this(internalMiB, ExternalMemory.getTempDir());
+	}
+
+	public HybridConfAStarFactory(int internalMiB, File dir) {
+
+		// just in case...
+		if (internalMiB <= 0) {
+			throw new IllegalArgumentException("internal memory budget must be positive");
+		}
+
+		this.internalBytes = internalMiB*1024L*1024L;
+		this.dir = dir;
+	}
+
+	/**
+	 * How many nodes can we keep in internal memory, for the given number of positions?
+	 */
+	public long getMaxNumNodesInMemory(int numPos) {
+		long nodeBytes = NodeOverheadBytes + Integer.BYTES*numPos;
+		return Math.max(2, internalBytes/nodeBytes);
+	}
+
+	@Override
+	public Queue<ConfAStarNode> makeQueue(RCs rcs) {
+
+		Queue<EMConfAStarNode> pq = Queue.SpillingPriorityFactory.of(
+			new EMConfAStarFactory.NodeSerializer(rcs),
+			EMConfAStarNode::getScore,
+			getMaxNumNodesInMemory(rcs.getNumPos()),
+			dir
+		);
+
+		// java's type system is dumb sometimes...
+		Queue<? extends ConfAStarNode> q2 = (Queue<? extends ConfAStarNode>)pq;
+		@SuppressWarnings("unchecked")
+		Queue<ConfAStarNode> q3 = (Queue<ConfAStarNode>)q2;
+		return q3;
+	}
+
+	@Override
+	public ConfAStarNode makeRootNode(int numPos) {
+		return new EMConfAStarNode(numPos);
+	}
+}
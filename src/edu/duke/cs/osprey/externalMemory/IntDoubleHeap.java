@@ -0,0 +1,223 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.externalMemory;
+
+import java.util.Arrays;
+
+/**
+ * A min-heap of int handles, keyed by primitive doubles.
+ *
+ * Keys and handles are stored in parallel primitive arrays, so heap operations
+ * never box values or make interface calls to compare them.
+ * The heap is 4-ary rather than binary, which makes it shallower
+ * and keeps the children of each node together in memory.
+ *
+ * Keys are ordered like {@link Double#compare}, the same as {@link edu.duke.cs.osprey.astar.conf.ConfAStarNode#compareTo},
+ * so NaN keys come after every other key (including positive infinity), rather than breaking the heap order.
+ */
+public class IntDoubleHeap {
+
+	private static final int Arity = 4;
+	private static final int MaxSize = Integer.MAX_VALUE - 8;
+
+	private double[] keys;
+	private int[] handles;
+	private int size;
+
+	public IntDoubleHeap() {
+		this(1024);
+	}
+
+	public IntDoubleHeap(int initialCapacity) {
+		initialCapacity = Math.max(initialCapacity, Arity);
+		keys = new double[initialCapacity];
+		handles = new int[initialCapacity];
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void push(double key, int handle) {
+
+		if (size == keys.length) {
+			if (size == MaxSize) {
+				throw new IllegalStateException("heap is full");
+			}
+			int capacity = (int)Math.min(MaxSize, keys.length*2L);
+			keys = Arrays.copyOf(keys, capacity);
+			handles = Arrays.copyOf(handles, capacity);
+		}
+
+		// sift up
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1)/Arity;
+			if (Double.compare(keys[parent], key) <= 0) {
+				break;
+			}
+			keys[i] = keys[parent];
+			handles[i] = handles[parent];
+			i = parent;
+		}
+		keys[i] = key;
+		handles[i] = handle;
+	}
+
+	/** the smallest key in the heap, the heap must not be empty */
+	public double peekKey() {
+		assert (size > 0);
+		return keys[0];
+	}
+
+	/** the handle with the smallest key in the heap, the heap must not be empty */
+	public int peekHandle() {
+		assert (size > 0);
+		return handles[0];
+	}
+
+	/**
+	 * The handle at index i of the heap array, for 0 <= i < size.
+	 * Handles are in heap order, not sorted order, unless the heap was just sorted by {@link #sort}.
+	 */
+	public int getHandle(int i) {
+		assert (i >= 0 && i < size);
+		return handles[i];
+	}
+
+	/** the key at index i of the heap array, see {@link #getHandle} */
+	public double getKey(int i) {
+		assert (i >= 0 && i < size);
+		return keys[i];
+	}
+
+	/** replaces the handle at index i of the heap array, without changing its key or its place in the heap */
+	public void setHandle(int i, int handle) {
+		assert (i >= 0 && i < size);
+		handles[i] = handle;
+	}
+
+	/**
+	 * Sorts the heap array in place, smallest key first, without allocating any memory.
+	 * A sorted array is still a valid heap, so the heap can be used normally afterwards.
+	 */
+	public void sort() {
+
+		// heapsort: move the smallest key to the end of the array, until the array is in descending order
+		for (int end=size - 1; end>0; end--) {
+			double key = keys[end];
+			int handle = handles[end];
+			keys[end] = keys[0];
+			handles[end] = handles[0];
+			siftDown(0, key, handle, end);
+		}
+
+		// then reverse for ascending order
+		for (int i=0, j=size - 1; i<j; i++, j--) {
+			double key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+			int handle = handles[i];
+			handles[i] = handles[j];
+			handles[j] = handle;
+		}
+	}
+
+	/**
+	 * Drops the entries at the end of the heap array, keeping only the first newSize entries.
+	 * Dropping entries from the end never breaks the heap order, and after {@link #sort},
+	 * it drops the entries with the largest keys.
+	 */
+	public void truncate(int newSize) {
+		assert (newSize >= 0 && newSize <= size);
+		size = newSize;
+	}
+
+	/** removes the handle with the smallest key and returns it, the heap must not be empty */
+	public int pop() {
+
+		assert (size > 0);
+
+		int top = handles[0];
+
+		size--;
+		if (size == 0) {
+			return top;
+		}
+
+		// move the last entry to the top and sift down
+		siftDown(0, keys[size], handles[size], size);
+
+		return top;
+	}
+
+	/** puts the entry at index i, or below it, in the heap array from 0 to size */
+	private void siftDown(int i, double key, int handle, int size) {
+		while (true) {
+
+			// find the smallest child, if any
+			int first = i*Arity + 1;
+			if (first >= size) {
+				break;
+			}
+			int last = Math.min(first + Arity, size);
+			int child = first;
+			double childKey = keys[first];
+			for (int c=first + 1; c<last; c++) {
+				if (Double.compare(keys[c], childKey) < 0) {
+					child = c;
+					childKey = keys[c];
+				}
+			}
+
+			if (Double.compare(key, childKey) <= 0) {
+				break;
+			}
+			keys[i] = childKey;
+			handles[i] = handles[child];
+			i = child;
+		}
+		keys[i] = key;
+		handles[i] = handle;
+	}
+}
@@ -32,8 +32,10 @@
 
 package edu.duke.cs.osprey.externalMemory;
 
+import java.io.File;
 import java.util.*;
 import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 import edu.duke.cs.tpie.serialization.SerializingDoublePriorityQueue;
 import edu.duke.cs.tpie.serialization.SerializingFIFOQueue;
@@ -41,13 +43,22 @@ import edu.duke.cs.tpie.serialization.SerializingFIFOQueue;
 /**
  * A queue that can only be iterated once.
  */
-public interface Queue<T> {
+public interface Queue<T> extends AutoCloseable {
 	
 	void push(T val);
 	T peek();
 	void pop();
 	long size();
 	boolean isEmpty();
+
+	/**
+	 * Releases anything the queue holds outside of the heap, eg files.
+	 * The queue can't be used afterwards. Does nothing by default.
+	 */
+	@Override
+	default void close() {
+		// nothing to release
+	}
 	
 	default void pushAll(Collection<T> vals) {
 		for (T val : vals) {
@@ -79,6 +90,16 @@ public interface Queue<T> {
 		return other;
 	}
 
+	/**
+	 * Returns an iterator over the values in the queue, in no particular order, that doesn't remove any values.
+	 * Returns null if the queue can't be read without removing values.
+	 *
+	 * The queue must not be changed while iterating.
+	 */
+	default Iterator<T> peekIterator() {
+		return null;
+	}
+
 	default Iterator<T> iterator() {
 		return new Iterator<T>() {
 
@@ -258,6 +279,11 @@ public interface Queue<T> {
 				public boolean isEmpty() {
 					return q.isEmpty();
 				}
+
+				@Override
+				public Iterator<T> peekIterator() {
+					return q.iterator();
+				}
 			};
 		}
 		
@@ -273,6 +299,150 @@ public interface Queue<T> {
 		}
 	}
 	
+	/**
+	 * A priority queue that orders values by a primitive double key,
+	 * computed once when each value is pushed.
+	 *
+	 * Faster than {@link PriorityFactory} for large queues, since comparisons
+	 * don't need to call back into the values, and the heap only moves primitives around.
+	 */
+	public static class DoublePriorityFactory<T> implements Factory<T> {
+
+		public static <T> Queue<T> of(ToDoubleFunction<T> keyFunc) {
+			return new Queue<T>() {
+
+				private final IntDoubleHeap heap = new IntDoubleHeap();
+
+				// values live in slots, so the heap only needs to track slot indices
+				private Object[] slots = new Object[1024];
+				private int[] freeSlots = new int[1024];
+				private int numFreeSlots = 0;
+				private int numSlots = 0;
+
+				private int addSlot(T val) {
+
+					// reuse a free slot if we can
+					if (numFreeSlots > 0) {
+						int slot = freeSlots[--numFreeSlots];
+						slots[slot] = val;
+						return slot;
+					}
+
+					if (numSlots == slots.length) {
+						slots = Arrays.copyOf(slots, (int)Math.min(Integer.MAX_VALUE - 8, slots.length*2L));
+					}
+					int slot = numSlots++;
+					slots[slot] = val;
+					return slot;
+				}
+
+				private void freeSlot(int slot) {
+					slots[slot] = null;
+					if (numFreeSlots == freeSlots.length) {
+						freeSlots = Arrays.copyOf(freeSlots, freeSlots.length*2);
+					}
+					freeSlots[numFreeSlots++] = slot;
+				}
+
+				@Override
+				public void push(T val) {
+					heap.push(keyFunc.applyAsDouble(val), addSlot(val));
+				}
+
+				@Override
+				public T peek() {
+					if (heap.isEmpty()) {
+						return null;
+					}
+					@SuppressWarnings("unchecked")
+					T val = (T)slots[heap.peekHandle()];
+					return val;
+				}
+
+				@Override
+				public void pop() {
+					if (!heap.isEmpty()) {
+						freeSlot(heap.pop());
+					}
+				}
+
+				@Override
+				public long size() {
+					return heap.size();
+				}
+
+				@Override
+				public boolean isEmpty() {
+					return heap.isEmpty();
+				}
+
+				@Override
+				public Iterator<T> peekIterator() {
+					return new Iterator<T>() {
+
+						int i = 0;
+
+						@Override
+						public boolean hasNext() {
+							return i < heap.size();
+						}
+
+						@Override
+						public T next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							@SuppressWarnings("unchecked")
+							T val = (T)slots[heap.getHandle(i++)];
+							return val;
+						}
+					};
+				}
+			};
+		}
+
+		private ToDoubleFunction<T> keyFunc;
+
+		public DoublePriorityFactory(ToDoubleFunction<T> keyFunc) {
+			this.keyFunc = keyFunc;
+		}
+
+		@Override
+		public Queue<T> make() {
+			return of(keyFunc);
+		}
+	}
+	
+	/**
+	 * A priority queue that keeps values in memory until a size limit is reached,
+	 * then spills the worst values to sorted runs on disk. See {@link SpillingPriorityQueue}.
+	 *
+	 * Unlike the external memory queues, this queue doesn't need the external memory system to be initialized.
+	 */
+	public static class SpillingPriorityFactory<T> implements Factory<T> {
+
+		public static <T> SpillingPriorityQueue<T> of(SerializingDoublePriorityQueue.Serializer<T> serializer, ToDoubleFunction<T> keyFunc, long maxNumInMemory, File dir) {
+			return new SpillingPriorityQueue<>(serializer, keyFunc, maxNumInMemory, dir);
+		}
+
+		private SerializingDoublePriorityQueue.Serializer<T> serializer;
+		private ToDoubleFunction<T> keyFunc;
+		private long maxNumInMemory;
+		private File dir;
+
+		public SpillingPriorityFactory(SerializingDoublePriorityQueue.Serializer<T> serializer, ToDoubleFunction<T> keyFunc, long maxNumInMemory, File dir) {
+			this.serializer = serializer;
+			this.keyFunc = keyFunc;
+			this.maxNumInMemory = maxNumInMemory;
+			this.dir = dir;
+		}
+
+		@Override
+		public Queue<T> make() {
+			return of(serializer, keyFunc, maxNumInMemory, dir);
+		}
+	}
+
 	public static class ExternalFIFOFactory<T> implements Factory.FIFO<T> {
 		
 		@SafeVarargs
@@ -0,0 +1,528 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.externalMemory;
+
+import edu.duke.cs.tpie.serialization.SerializingDoublePriorityQueue;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.ToDoubleFunction;
+
+
+/**
+ * A priority queue that keeps values in an in-memory heap until the heap reaches a size limit,
+ * then spills the worst-scoring half of the heap to a sorted run on disk.
+ *
+ * Spilled runs are read back lazily, one value at a time, only when the head of a run
+ * is the best value in the queue. So small queues never touch the disk at all,
+ * and large queues only need memory for the in-memory heap, plus one value and one read buffer per run.
+ *
+ * Runs are merged in tiers: each new run starts at level 0, and whenever a level collects
+ * {@link #MergeFanIn} runs, they're merged into one run at the next level. So each value is rewritten
+ * only once per level, and the number of runs (and open files) grows only logarithmically with the number of spills.
+ *
+ * Close the queue when finished with it, to delete the runs and close their files.
+ * Queues that are garbage collected without being closed delete their runs then.
+ */
+public class SpillingPriorityQueue<T> implements Queue<T> {
+
+	/** merge the runs at a level after there are this many of them */
+	public static final int MergeFanIn = 16;
+
+	private static final int BufferBytes = 64*1024;
+
+	public final SerializingDoublePriorityQueue.Serializer<T> serializer;
+	public final ToDoubleFunction<T> keyFunc;
+	public final long maxNumInMemory;
+	public final File dir;
+
+	private final IntDoubleHeap heap = new IntDoubleHeap();
+
+	// values live in slots, so the heap only needs to track slot indices
+	private Object[] slots = new Object[1024];
+	private int[] freeSlots = new int[1024];
+	private int numFreeSlots = 0;
+	private int numSlots = 0;
+
+	private final List<Run> runs = new ArrayList<>();
+	private final ByteBuffer buf;
+
+	private long numSpilled = 0;
+	private long numMerged = 0;
+
+	/**
+	 * @param keyFunc must return the same priority as the serializer
+	 * @param dir where to write the spilled runs
+	 */
+	public SpillingPriorityQueue(SerializingDoublePriorityQueue.Serializer<T> serializer, ToDoubleFunction<T> keyFunc, long maxNumInMemory, File dir) {
+
+		// just in case...
+		if (maxNumInMemory < 2) {
+			throw new IllegalArgumentException("need room for at least 2 values in memory");
+		}
+
+		this.serializer = serializer;
+		this.keyFunc = keyFunc;
+		this.maxNumInMemory = Math.min(maxNumInMemory, Integer.MAX_VALUE - 8);
+		this.dir = dir;
+
+		buf = ByteBuffer.allocate(serializer.getEntrySize().numBytes);
+	}
+
+	/** a sorted run of spilled values on disk */
+	private class Run {
+
+		final File file;
+		final int level;
+		final long totalSize;
+		final DataInputStream in;
+		long numRemaining;
+		double headKey;
+		T head;
+
+		Run(File file, int level, long size)
+		throws IOException {
+			this.file = file;
+			this.level = level;
+			this.totalSize = size;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BufferBytes));
+			this.numRemaining = size;
+			advance();
+		}
+
+		void advance()
+		throws IOException {
+			if (numRemaining <= 0) {
+				head = null;
+				return;
+			}
+			headKey = in.readDouble();
+			in.readFully(buf.array());
+			buf.clear();
+			head = serializer.deserialize(headKey, buf);
+			numRemaining--;
+		}
+
+		boolean isEmpty() {
+			return head == null;
+		}
+
+		long size() {
+			return numRemaining + (isEmpty() ? 0 : 1);
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException ex) {
+				// we're done with the file anyway, so don't care
+			}
+			file.delete();
+		}
+	}
+
+	/** writes sorted values to a new run */
+	private class RunWriter implements AutoCloseable {
+
+		final File file;
+		final DataOutputStream out;
+		long size = 0;
+
+		RunWriter()
+		throws IOException {
+			file = File.createTempFile("astar.", ".run", dir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BufferBytes));
+		}
+
+		void write(T val)
+		throws IOException {
+			buf.clear();
+			double key = serializer.serialize(val, buf);
+			out.writeDouble(key);
+			out.write(buf.array());
+			size++;
+		}
+
+		Run finish(int level)
+		throws IOException {
+			out.close();
+			return new Run(file, level, size);
+		}
+
+		@Override
+		public void close()
+		throws IOException {
+			out.close();
+		}
+	}
+
+	private int addSlot(T val) {
+
+		// reuse a free slot if we can
+		if (numFreeSlots > 0) {
+			int slot = freeSlots[--numFreeSlots];
+			slots[slot] = val;
+			return slot;
+		}
+
+		if (numSlots == slots.length) {
+			slots = Arrays.copyOf(slots, (int)Math.min(Integer.MAX_VALUE - 8, slots.length*2L));
+		}
+		int slot = numSlots++;
+		slots[slot] = val;
+		return slot;
+	}
+
+	private T freeSlot(int slot) {
+		@SuppressWarnings("unchecked")
+		T val = (T)slots[slot];
+		slots[slot] = null;
+		if (numFreeSlots == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length*2);
+		}
+		freeSlots[numFreeSlots++] = slot;
+		return val;
+	}
+
+	@Override
+	public void push(T val) {
+
+		// out of room in memory? spill some values to disk
+		if (heap.size() >= maxNumInMemory) {
+			try {
+				spill();
+			} catch (IOException ex) {
+				throw new RuntimeException("can't spill queue to " + dir, ex);
+			}
+		}
+
+		heap.push(keyFunc.applyAsDouble(val), addSlot(val));
+	}
+
+	private void spill()
+	throws IOException {
+
+		// sort the heap in place, so the worst half is at the end, in order
+		// (a sorted array is still a valid heap, so the best half can stay right where it is)
+		heap.sort();
+		int n = heap.size();
+		int numKeep = n/2;
+
+		// write the worst half to a sorted run, and drop it from the heap
+		try (RunWriter writer = new RunWriter()) {
+			for (int i=numKeep; i<n; i++) {
+				writer.write(freeSlot(heap.getHandle(i)));
+			}
+			runs.add(writer.finish(0));
+		}
+		heap.truncate(numKeep);
+		numSpilled += n - numKeep;
+
+		// release the memory of the slots table too
+		compactSlots();
+
+		mergeRuns();
+	}
+
+	private void compactSlots() {
+
+		// only bother if the table is mostly empty
+		if (numFreeSlots < numSlots/2) {
+			return;
+		}
+
+		// move the values into a smaller table, and point the heap entries at their new slots
+		// (the heap order doesn't depend on the slots, so nothing needs to be re-sorted)
+		int n = heap.size();
+		Object[] newSlots = new Object[Math.max(1024, n*2)];
+		for (int i=0; i<n; i++) {
+			newSlots[i] = slots[heap.getHandle(i)];
+			heap.setHandle(i, i);
+		}
+		slots = newSlots;
+		numSlots = n;
+		numFreeSlots = 0;
+		freeSlots = new int[1024];
+	}
+
+	private void mergeRuns()
+	throws IOException {
+
+		// merge full levels, from the bottom up, since each merge adds a run to the next level
+		for (int level=0; ; level++) {
+
+			List<Run> levelRuns = new ArrayList<>();
+			for (Run run : runs) {
+				if (run.level == level) {
+					levelRuns.add(run);
+				}
+			}
+			if (levelRuns.size() < MergeFanIn) {
+				break;
+			}
+
+			// k-way merge the runs at this level into one run at the next level
+			try (RunWriter writer = new RunWriter()) {
+				while (true) {
+					Run best = findBestRun(levelRuns);
+					if (best == null) {
+						break;
+					}
+					writer.write(best.head);
+					best.advance();
+					numMerged++;
+				}
+				for (Run run : levelRuns) {
+					run.close();
+				}
+				runs.removeAll(levelRuns);
+				runs.add(writer.finish(level + 1));
+			}
+		}
+	}
+
+	private Run findBestRun() {
+		return findBestRun(runs);
+	}
+
+	private Run findBestRun(List<Run> candidates) {
+		Run best = null;
+		for (Run run : candidates) {
+			if (!run.isEmpty() && (best == null || Double.compare(run.headKey, best.headKey) < 0)) {
+				best = run;
+			}
+		}
+		return best;
+	}
+
+	/** returns the run whose head is better than the top of the heap, if any */
+	private Run findBetterRun() {
+		Run best = findBestRun();
+		if (best == null) {
+			return null;
+		}
+		if (heap.isEmpty() || Double.compare(best.headKey, heap.peekKey()) < 0) {
+			return best;
+		}
+		return null;
+	}
+
+	@Override
+	public T peek() {
+		Run run = findBetterRun();
+		if (run != null) {
+			return run.head;
+		}
+		if (heap.isEmpty()) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		T val = (T)slots[heap.peekHandle()];
+		return val;
+	}
+
+	@Override
+	public void pop() {
+		Run run = findBetterRun();
+		if (run != null) {
+			try {
+				run.advance();
+			} catch (IOException ex) {
+				throw new RuntimeException("can't read spilled queue from " + run.file, ex);
+			}
+			if (run.isEmpty()) {
+				run.close();
+				runs.remove(run);
+			}
+		} else if (!heap.isEmpty()) {
+			freeSlot(heap.pop());
+		}
+	}
+
+	/**
+	 * Reads the values in memory first, then the unread values of each run, straight from the run files.
+	 */
+	@Override
+	public Iterator<T> peekIterator() {
+		return new Iterator<T>() {
+
+			int heapi = 0;
+			int runi = 0;
+			DataInputStream runIn = null;
+			long runNumRemaining = 0;
+			final ByteBuffer entryBuf = ByteBuffer.allocate(buf.capacity());
+			T next = advance();
+
+			private T advance() {
+
+				// values in memory first
+				if (heapi < heap.size()) {
+					@SuppressWarnings("unchecked")
+					T val = (T)slots[heap.getHandle(heapi++)];
+					return val;
+				}
+
+				try {
+					while (true) {
+
+						// read the rest of the current run
+						if (runIn != null) {
+							if (runNumRemaining > 0) {
+								runNumRemaining--;
+								double key = runIn.readDouble();
+								runIn.readFully(entryBuf.array());
+								entryBuf.clear();
+								return serializer.deserialize(key, entryBuf);
+							}
+							runIn.close();
+							runIn = null;
+						}
+
+						// go to the next run
+						if (runi >= runs.size()) {
+							return null;
+						}
+						Run run = runs.get(runi++);
+						if (run.isEmpty()) {
+							continue;
+						}
+
+						// the head is already in memory, then skip to the unread values
+						runIn = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BufferBytes));
+						long entryBytes = Double.BYTES + entryBuf.capacity();
+						long skipBytes = (run.totalSize - run.numRemaining)*entryBytes;
+						while (skipBytes > 0) {
+							long numSkipped = runIn.skip(skipBytes);
+							if (numSkipped <= 0) {
+								throw new EOFException("run is shorter than expected: " + run.file);
+							}
+							skipBytes -= numSkipped;
+						}
+						runNumRemaining = run.numRemaining;
+						return run.head;
+					}
+				} catch (IOException ex) {
+					throw new RuntimeException("can't read spilled queue from " + dir, ex);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public T next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				T val = next;
+				next = advance();
+				return val;
+			}
+		};
+	}
+
+	@Override
+	public long size() {
+		long size = heap.size();
+		for (Run run : runs) {
+			size += run.size();
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return heap.isEmpty() && runs.isEmpty();
+	}
+
+	/** the number of values in memory right now */
+	public long getNumInMemory() {
+		return heap.size();
+	}
+
+	/** the total number of values ever spilled to disk, not counting merges */
+	public long getNumSpilled() {
+		return numSpilled;
+	}
+
+	/** the total number of values ever rewritten to disk by merging runs */
+	public long getNumMerged() {
+		return numMerged;
+	}
+
+	public int getNumRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Deletes any runs still on disk. The queue is empty afterwards.
+	 */
+	public void clear() {
+		for (Run run : runs) {
+			run.close();
+		}
+		runs.clear();
+		while (!heap.isEmpty()) {
+			freeSlot(heap.pop());
+		}
+	}
+
+	/**
+	 * Deletes any runs still on disk and closes their files.
+	 */
+	@Override
+	public void close() {
+		clear();
+	}
+
+	@Override
+	protected void finalize()
+	throws Throwable {
+		try {
+			// don't leave runs on disk after an abandoned queue
+			for (Run run : runs) {
+				run.close();
+			}
+		} finally {
+			super.finalize();
+		}
+	}
+}
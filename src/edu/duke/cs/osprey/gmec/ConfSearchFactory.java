@@ -40,6 +40,7 @@ import edu.duke.cs.osprey.astar.conf.order.DynamicHMeanAStarOrder;
 import edu.duke.cs.osprey.astar.conf.order.StaticScoreHMeanAStarOrder;
 import edu.duke.cs.osprey.astar.conf.scoring.AStarScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.MPLPPairwiseHScorer;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
 import edu.duke.cs.osprey.astar.conf.scoring.PairwiseGScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.TraditionalPairwiseHScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.mplp.EdgeUpdater;
@@ -53,6 +54,7 @@ import edu.duke.cs.osprey.multistatekstar.MSSearchProblem;
 import edu.duke.cs.osprey.multistatekstar.MultiSequenceConfTree;
 import edu.duke.cs.osprey.parallelism.Parallelism;
 import edu.duke.cs.osprey.pruning.PruningMatrix;
+import edu.duke.cs.osprey.tools.MathTools;
 
 public interface ConfSearchFactory {
 	
@@ -93,7 +95,10 @@ public interface ConfSearchFactory {
 					if (numMPLPIters <= 0) {
 						
 						// zero MPLP iterations is exactly the traditional heuristic, so use the fast implementation
-						hscorer = new TraditionalPairwiseHScorer(emat, rcs);
+						// and let both scorers share one energy table
+						PairwiseEnergyTable table = new PairwiseEnergyTable(emat, rcs);
+						gscorer = new PairwiseGScorer(table, MathTools.Optimizer.Minimize);
+						hscorer = new TraditionalPairwiseHScorer(table, MathTools.Optimizer.Minimize);
 						order = new DynamicHMeanAStarOrder();
 						
 					} else {
@@ -193,7 +193,7 @@ public class SimpleGMECFinder {
 		} else {
 			scoredFifoFactory = new Queue.FIFOFactory<>();
 			energiedFifoFactory = new Queue.FIFOFactory<>();
-			energiedPriorityFactory = new Queue.PriorityFactory<>((a, b) -> Double.compare(a.getEnergy(), b.getEnergy()));
+			energiedPriorityFactory = new Queue.DoublePriorityFactory<>(EnergiedConf::getEnergy);
 		}
 	}
 
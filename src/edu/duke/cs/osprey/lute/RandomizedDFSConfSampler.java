@@ -175,8 +175,6 @@ public class RandomizedDFSConfSampler extends ConfSampler {
 		// check triples
 		if (pmat.hasHigherOrderTuples()) {
 
-			RCTuple tuple = new RCTuple(0, 0, 0, 0, 0, 0);
-
 			for (int i1=0; i1<confIndex.numDefined; i1++) {
 				int pos1 = confIndex.definedPos[i1];
 				int rc1 = confIndex.definedRCs[i1];
@@ -187,10 +185,7 @@ public class RandomizedDFSConfSampler extends ConfSampler {
 					int rc2 = confIndex.definedRCs[i2];
 					assert (pos2 != nextPos || rc2 != nextRc);
 
-					tuple.set(pos1, rc1, pos2, rc2, nextPos, nextRc);
-					tuple.sortPositions();
-
-					if (pmat.getTuple(tuple)) {
+					if (pmat.getTuple(pos1, rc1, pos2, rc2, nextPos, nextRc)) {
 						return true;
 					}
 				}
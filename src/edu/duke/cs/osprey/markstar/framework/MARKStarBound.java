@@ -67,6 +67,7 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.MathContext;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MARKStarBound implements PartitionFunction.WithConfDB {
 
@@ -328,7 +329,7 @@ public class MARKStarBound implements PartitionFunction.WithConfDB {
     BoltzmannCalculator bc = new BoltzmannCalculator(PartitionFunction.decimalPrecision);
     private boolean computedCorrections = false;
     private long loopPartialTime = 0;
-    private Set<String> correctedTuples = Collections.synchronizedSet(new HashSet<>());
+    private Set<TupleKey> correctedTuples = ConcurrentHashMap.newKeySet();
     private BigDecimal stabilityThreshold;
     private double leafTimeSum = 0;
     private double internalTimeSum = 0;
@@ -1056,9 +1057,8 @@ public class MARKStarBound implements PartitionFunction.WithConfDB {
 
     private void computeDifference(RCTuple tuple, ConfEnergyCalculator ecalc) {
         computedCorrections = true;
-        if(correctedTuples.contains(tuple.stringListing()))
+        if(!correctedTuples.add(new TupleKey(tuple)))
             return;
-        correctedTuples.add(tuple.stringListing());
         if(correctionMatrix.hasHigherOrderTermFor(tuple))
             return;
         minimizingEcalc.calcEnergyAsync(tuple, (minimizedTuple) -> {
@@ -1126,9 +1126,7 @@ public class MARKStarBound implements PartitionFunction.WithConfDB {
         double partiallyMinimizedLower = ecalc.calcEnergy(overlap).energy;
         progress.reportPartialMinimization(1, epsilonBound);
         if(partiallyMinimizedLower > pairwiseLower)
-        synchronized (correctionMatrix) {
             correctionMatrix.setHigherOrder(overlap, partiallyMinimizedLower - pairwiseLower);
-        }
         progress.reportPartialMinimization(1, epsilonBound);
     }
 
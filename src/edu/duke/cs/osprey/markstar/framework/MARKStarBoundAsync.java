@@ -47,6 +47,7 @@ import edu.duke.cs.osprey.confspace.ConfSearch;
 import edu.duke.cs.osprey.confspace.RCTuple;
 import edu.duke.cs.osprey.confspace.SimpleConfSpace;
 import edu.duke.cs.osprey.confspace.TupE;
+import edu.duke.cs.osprey.confspace.TupleKey;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 import edu.duke.cs.osprey.ematrix.NegatedEnergyMatrix;
 import edu.duke.cs.osprey.ematrix.UpdatingEnergyMatrix;
@@ -71,6 +72,7 @@ import java.math.BigInteger;
 import java.math.MathContext;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 
@@ -290,7 +292,7 @@ public class MARKStarBoundAsync implements PartitionFunction {
     BoltzmannCalculator bc = new BoltzmannCalculator(PartitionFunction.decimalPrecision);
     private boolean computedCorrections = false;
     private long loopPartialTime = 0;
-    private Set<String> correctedTuples = Collections.synchronizedSet(new HashSet<String>());
+    private Set<TupleKey> correctedTuples = ConcurrentHashMap.newKeySet();
     private State state;
     private BigDecimal stabilityThreshold;
     BlockingQueue<MARKStarNode> asyncQueue = new PriorityBlockingQueue<>();
@@ -1241,9 +1243,8 @@ public class MARKStarBoundAsync implements PartitionFunction {
 
     private void computeDifference(RCTuple tuple, ConfEnergyCalculator ecalc) {
         computedCorrections = true;
-        if(correctedTuples.contains(tuple.stringListing()))
+        if(!correctedTuples.add(new TupleKey(tuple)))
             return;
-        correctedTuples.add(tuple.stringListing());
         if(correctionMatrix.hasHigherOrderTermFor(tuple))
             return;
         synchronized (this) {
@@ -1278,9 +1279,7 @@ public class MARKStarBoundAsync implements PartitionFunction {
         System.out.println("Computing correction for " + overlap.stringListing() + " penalty of " + (partiallyMinimizedLower - pairwiseLower));
         progress.reportPartialMinimization(1, epsilonBound);
         if(partiallyMinimizedLower > pairwiseLower)
-        synchronized (correctionMatrix) {
             correctionMatrix.setHigherOrder(overlap, partiallyMinimizedLower - pairwiseLower);
-        }
         progress.reportPartialMinimization(1, epsilonBound);
     }
 
@@ -0,0 +1,272 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.minimization;
+
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+
+/**
+ * Bound-constrained limited-memory quasi-Newton minimizer (a projected L-BFGS, in the spirit of L-BFGS-B).
+ *
+ * Unlike the CCD minimizers, which only look at objective function values one DOF at a time,
+ * this minimizer moves all the DOFs at once using {@link ObjectiveFunction#getValueAndGradient},
+ * so it usually needs far fewer energy evaluations when the objective function has analytic gradients.
+ *
+ * DOFs sitting at a bound whose gradient points out of the box are held fixed for that iteration,
+ * and every trial point is projected back into the box.
+ */
+public class LBFGSBMinimizer implements Minimizer.Reusable {
+
+	private static final int MaxIterations = 100;
+	private static final int HistorySize = 8;
+	private static final int MaxBacktracks = 20;
+	private static final double SufficientDecrease = 1e-4;
+	private static final double ConvergenceThreshold = 1e-5; // energy improvement per iteration
+	private static final double GradientThreshold = 1e-4; // largest projected gradient, scaled by the DOF step size
+
+	private ObjectiveFunction f;
+	private int n;
+	private double[] xmin;
+	private double[] xmax;
+	private double[] stepSizes;
+
+	public LBFGSBMinimizer() {
+		// nothing to do
+	}
+
+	public LBFGSBMinimizer(ObjectiveFunction f) {
+		init(f);
+	}
+
+	@Override
+	public void init(ObjectiveFunction f) {
+
+		this.f = f;
+
+		n = f.getNumDOFs();
+		xmin = new double[n];
+		xmax = new double[n];
+		stepSizes = new double[n];
+		DoubleMatrix1D[] constraints = f.getConstraints();
+		for (int d=0; d<n; d++) {
+			xmin[d] = constraints[0].get(d);
+			xmax[d] = constraints[1].get(d);
+			stepSizes[d] = f.getInitStepSize(d);
+		}
+	}
+
+	@Override
+	public Minimizer.Result minimizeFromCenter() {
+		return minimizeFrom(f.getDOFsCenter());
+	}
+
+	@Override
+	public Minimizer.Result minimizeFrom(DoubleMatrix1D startx) {
+
+		DoubleMatrix1D x = startx.copy();
+		for (int d=0; d<n; d++) {
+			x.set(d, clamp(d, x.get(d)));
+		}
+		DoubleMatrix1D g = DoubleFactory1D.dense.make(n);
+		double fx = f.getValueAndGradient(x, g);
+
+		// nothing to minimize, or nowhere sensible to go
+		if (n == 0 || !Double.isFinite(fx)) {
+			f.setDOFs(x);
+			return new Minimizer.Result(x, fx);
+		}
+
+		// the L-BFGS history, as a ring buffer
+		double[][] s = new double[HistorySize][n];
+		double[][] y = new double[HistorySize][n];
+		double[] rho = new double[HistorySize];
+		double[] alpha = new double[HistorySize];
+		int numHistory = 0;
+		int newest = -1;
+
+		int numSmallImprovements = 0;
+		boolean[] free = new boolean[n];
+		double[] p = new double[n];
+		DoubleMatrix1D nextx = DoubleFactory1D.dense.make(n);
+		DoubleMatrix1D nextg = DoubleFactory1D.dense.make(n);
+
+		for (int iter=0; iter<MaxIterations; iter++) {
+
+			// pick the free DOFs, and check the projected gradient for convergence
+			double maxScaledGradient = 0.0;
+			for (int d=0; d<n; d++) {
+				double xd = x.get(d);
+				double gd = g.get(d);
+				free[d] = xmin[d] < xmax[d]
+					&& !(xd <= xmin[d] && gd > 0)
+					&& !(xd >= xmax[d] && gd < 0);
+				if (free[d]) {
+					maxScaledGradient = Math.max(maxScaledGradient, Math.abs(gd)*stepSizes[d]);
+				}
+			}
+			if (maxScaledGradient < GradientThreshold) {
+				break;
+			}
+
+			// DOFs have very different units (eg degrees vs angstroms),
+			// so do all the quasi-Newton math in units of the initial step sizes
+
+			// without any curvature info, take steepest descent, scaled so the biggest move is one initial step
+			double firstScale = 1.0/maxScaledGradient;
+
+			// two-loop recursion over the free DOFs to get the quasi-Newton direction
+			for (int d=0; d<n; d++) {
+				p[d] = free[d] ? g.get(d)*stepSizes[d] : 0.0;
+			}
+			for (int k=0; k<numHistory; k++) {
+				int i = Math.floorMod(newest - k, HistorySize);
+				alpha[i] = rho[i]*dot(s[i], p, free);
+				axpy(-alpha[i], y[i], p, free);
+			}
+			double gamma = firstScale;
+			if (numHistory > 0) {
+				gamma = dot(s[newest], y[newest], free)/dot(y[newest], y[newest], free);
+				if (!(gamma > 0) || !Double.isFinite(gamma)) {
+					gamma = firstScale;
+				}
+			}
+			for (int d=0; d<n; d++) {
+				p[d] *= gamma;
+			}
+			for (int k=numHistory - 1; k>=0; k--) {
+				int i = Math.floorMod(newest - k, HistorySize);
+				double beta = rho[i]*dot(y[i], p, free);
+				axpy(alpha[i] - beta, s[i], p, free);
+			}
+			for (int d=0; d<n; d++) {
+				p[d] = -p[d]*stepSizes[d];
+			}
+
+			// if that's not a descent direction, forget the history and go downhill
+			double slope = 0.0;
+			for (int d=0; d<n; d++) {
+				slope += p[d]*g.get(d);
+			}
+			if (!(slope < 0)) {
+				numHistory = 0;
+				for (int d=0; d<n; d++) {
+					p[d] = free[d] ? -g.get(d)*stepSizes[d]*stepSizes[d]*firstScale : 0.0;
+				}
+			}
+
+			// projected backtracking line search
+			double t = 1.0;
+			double nextfx = Double.NaN;
+			boolean accepted = false;
+			for (int b=0; b<MaxBacktracks; b++) {
+
+				double decrease = 0.0;
+				for (int d=0; d<n; d++) {
+					double xd = clamp(d, x.get(d) + t*p[d]);
+					nextx.set(d, xd);
+					decrease += g.get(d)*(xd - x.get(d));
+				}
+
+				nextfx = f.getValueAndGradient(nextx, nextg);
+				if (nextfx <= fx + SufficientDecrease*decrease) {
+					accepted = true;
+					break;
+				}
+
+				t /= 2;
+			}
+			if (!accepted && numHistory > 0) {
+				// the curvature info is probably stale, try again with steepest descent
+				numHistory = 0;
+				continue;
+			}
+			if (!accepted) {
+				break;
+			}
+
+			// update the history
+			int next = (newest + 1) % HistorySize;
+			double sy = 0.0;
+			for (int d=0; d<n; d++) {
+				s[next][d] = (nextx.get(d) - x.get(d))/stepSizes[d];
+				y[next][d] = (nextg.get(d) - g.get(d))*stepSizes[d];
+				sy += s[next][d]*y[next][d];
+			}
+			if (sy > 1e-10) {
+				rho[next] = 1.0/sy;
+				newest = next;
+				numHistory = Math.min(numHistory + 1, HistorySize);
+			}
+
+			// take the step
+			double improvement = fx - nextfx;
+			x.assign(nextx);
+			g.assign(nextg);
+			fx = nextfx;
+
+			// a single small step could just be a bad direction, so wait for two in a row
+			numSmallImprovements = improvement < ConvergenceThreshold ? numSmallImprovements + 1 : 0;
+			if (numSmallImprovements >= 2) {
+				break;
+			}
+		}
+
+		// update the protein conf, one last time
+		f.setDOFs(x);
+
+		return new Minimizer.Result(x, fx);
+	}
+
+	private double clamp(int d, double xd) {
+		return Math.max(xmin[d], Math.min(xmax[d], xd));
+	}
+
+	private static double dot(double[] a, double[] b, boolean[] free) {
+		double sum = 0.0;
+		for (int d=0; d<a.length; d++) {
+			if (free[d]) {
+				sum += a[d]*b[d];
+			}
+		}
+		return sum;
+	}
+
+	private static void axpy(double scale, double[] a, double[] out, boolean[] free) {
+		for (int d=0; d<a.length; d++) {
+			if (free[d]) {
+				out[d] += scale*a[d];
+			}
+		}
+	}
+}
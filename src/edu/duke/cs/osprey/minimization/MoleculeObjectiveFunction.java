@@ -38,6 +38,7 @@ import java.util.List;
 
 import cern.colt.matrix.DoubleMatrix1D;
 import edu.duke.cs.osprey.confspace.ParametricMolecule;
+import edu.duke.cs.osprey.energy.AtomGradients;
 import edu.duke.cs.osprey.energy.EnergyFunction;
 
 public class MoleculeObjectiveFunction implements ObjectiveFunction {
@@ -48,6 +49,8 @@ public class MoleculeObjectiveFunction implements ObjectiveFunction {
 	public final EnergyFunction efunc;
 	public final List<EnergyFunction> efuncsByDof;
 	public final DoubleMatrix1D curDOFVals;
+
+	private transient AtomGradients atomGradients = null;
 	
 	public MoleculeObjectiveFunction(ParametricMolecule pmol, EnergyFunction efunc) {
 		this.pmol = pmol;
@@ -125,6 +128,34 @@ public class MoleculeObjectiveFunction implements ObjectiveFunction {
 		return efunc.getEnergy();
 	}
 
+	@Override
+	public double getValueAndGradient(DoubleMatrix1D x, DoubleMatrix1D gradient) {
+
+		if (!(efunc instanceof EnergyFunction.HasAtomGradients)) {
+			return ObjectiveFunction.super.getValueAndGradient(x, gradient);
+		}
+
+		setDOFs(x);
+		if (atomGradients == null) {
+			atomGradients = new AtomGradients();
+		} else {
+			atomGradients.clear();
+		}
+		double energy = ((EnergyFunction.HasAtomGradients)efunc).getEnergyAndGradients(atomGradients);
+
+		// chain rule the atom gradients onto the dofs
+		for (int d=0; d<pmol.dofs.size(); d++) {
+			double derivative = pmol.dofs.get(d).calcDerivative(atomGradients);
+			if (Double.isNaN(derivative)) {
+				// no analytic derivative for this dof
+				derivative = getDerivativeForDOF(d, x.get(d));
+			}
+			gradient.set(d, derivative);
+		}
+
+		return energy;
+	}
+
 	@Override
 	public double getInitStepSize(int d) {
 		return MoleculeModifierAndScorer.getInitStepSize(pmol.dofs.get(d));
@@ -72,7 +72,31 @@ public interface ObjectiveFunction extends Serializable {
 
     //Value and gradient at a given point (specified as values for all DOFs)
     public double getValue(DoubleMatrix1D x);
-    //public DoubleMatrix1D getGradient(DoubleMatrix1D x);
+
+    //Value at x, also writing the gradient at x into gradient
+    //By default the gradient is estimated by central finite differences,
+    //so objective functions that can compute analytic gradients should override this
+    default public double getValueAndGradient(DoubleMatrix1D x, DoubleMatrix1D gradient) {
+        setDOFs(x);
+        for (int d=0; d<getNumDOFs(); d++) {
+            gradient.set(d, getDerivativeForDOF(d, x.get(d)));
+        }
+        return getValue(x);
+    }
+
+    //Finite-difference derivative with respect to one DOF at the given value (clamped to the DOF bounds)
+    //Other DOFs kept as they are currently set, and the DOF is set back to val afterwards
+    default public double getDerivativeForDOF(int d, double val) {
+        double h = getInitStepSize(d)*1e-3;
+        double lo = Math.max(getConstraints()[0].get(d), val - h);
+        double hi = Math.min(getConstraints()[1].get(d), val + h);
+        double derivative = 0;
+        if (hi > lo) {
+            derivative = (getValForDOF(d, hi) - getValForDOF(d, lo))/(hi - lo);
+        }
+        setDOF(d, val);
+        return derivative;
+    }
 
     //Value at a given value for a given DOF,
     //and, for efficiency, possibly omitting energy terms that don't depend on that DOF
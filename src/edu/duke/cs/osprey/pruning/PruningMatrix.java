@@ -89,6 +89,15 @@ public class PruningMatrix extends TupleMatrixBoolean {
 		return false;
 	}
 
+	@Override
+	public Boolean getTuple(int pos1, int rc1, int pos2, int rc2, int pos3, int rc3) {
+		Boolean val = super.getTuple(pos1, rc1, pos2, rc2, pos3, rc3);
+		if (val != null) {
+			return val;
+		}
+		return false;
+	}
+
 	public void unprunedRCsAtPos(ArrayList<Integer> out, int pos) {
     	out.clear();
     	int numRCs = getNumConfAtPos(pos);
@@ -224,35 +233,16 @@ public class PruningMatrix extends TupleMatrixBoolean {
             }
         }
 
-        // check triples if needed using tuple trees
+        // check triples if needed using the higher-order tuple index
 		if (hasHigherOrderTuples()) {
-
-        	// allocate just one tuple, but update it inside the loops
-        	RCTuple tuple = new RCTuple(0, 0, 0, 0, 0, 0);
-
 			for (int i1=2; i1<numTupPos; i1++) {
 				int pos1 = tuppos.get(i1);
 				int rc1 = tupRCs.get(i1);
-
-				// update tuple in reverse order, so positions are sorted
-				tuple.pos.set(2, pos1);
-				tuple.RCs.set(2, rc1);
-
 				for (int i2=1; i2<i1; i2++) {
 					int pos2 = tuppos.get(i2);
 					int rc2 = tupRCs.get(i2);
-
-					tuple.pos.set(1, pos2);
-					tuple.RCs.set(1, rc2);
-
 					for (int i3=0; i3<i2; i3++) {
-						int pos3 = tuppos.get(i3);
-						int rc3 = tupRCs.get(i3);
-
-						tuple.pos.set(0, pos3);
-						tuple.RCs.set(0, rc3);
-
-						if (getTuple(tuple)) {
+						if (getTuple(pos1, rc1, pos2, rc2, tuppos.get(i3), tupRCs.get(i3))) {
 							return true;
 						}
 					}
@@ -355,7 +345,7 @@ public class PruningMatrix extends TupleMatrixBoolean {
 			|| getPairwise(pos1, rc1, pos2, rc2)
 			|| getPairwise(pos1, rc1, pos3, rc3)
 			|| getPairwise(pos2, rc2, pos3, rc3)
-			|| getTuple(new RCTuple(pos1, rc1, pos2, rc2, pos3, rc3).sorted());
+			|| getTuple(pos1, rc1, pos2, rc2, pos3, rc3);
 	}
 
 	public boolean isQuadruplePruned(int pos1, int rc1, int pos2, int rc2, int pos3, int rc3, int pos4, int rc4) {
@@ -455,43 +445,13 @@ public class PruningMatrix extends TupleMatrixBoolean {
     }
 
 	public int countPrunedTriples() {
-
-		int numPos = getNumPos();
-		int count = 0;
-		RCTuple tuple = new RCTuple(0, 0, 0, 0, 0, 0);
-
-		for (int pos1=0; pos1<getNumPos(); pos1++) {
-			tuple.pos.set(0, pos1);
-			for (int rc1=0; rc1<getNumConfAtPos(pos1); rc1++) {
-				tuple.RCs.set(0, rc1);
-
-				for (int pos2=pos1+1; pos2<numPos; pos2++) {
-					tuple.pos.set(1, pos2);
-					for (int rc2=0; rc2<getNumConfAtPos(pos2); rc2++) {
-						tuple.RCs.set(1, rc2);
-
-						TupleTree<Boolean> tree = getHigherOrderTuples(pos1, rc1, pos2, rc2);
-						if (tree == null) {
-							continue;
-						}
-
-						for (int pos3=pos2+1; pos3<numPos; pos3++) {
-							tuple.pos.set(2, pos3);
-							for (int rc3=0; rc3<getNumConfAtPos(pos3); rc3++) {
-								tuple.RCs.set(2, rc3);
-
-								Boolean val = tree.get(tuple);
-								if (val != null && val == true) {
-									count++;
-								}
-							}
-						}
-					}
-				}
+		int[] count = { 0 };
+		forEachHigherOrderTuple((tuple, isPruned) -> {
+			if (tuple.size() == 3 && isPruned) {
+				count[0]++;
 			}
-		}
-
-		return count;
+		});
+		return count[0];
 	}
 
     /*boolean isPruned(RC rc){
@@ -33,10 +33,8 @@
 package edu.duke.cs.osprey.sofea;
 
 
-import edu.duke.cs.osprey.confspace.RCTuple;
 import edu.duke.cs.osprey.confspace.SimpleConfSpace;
 import edu.duke.cs.osprey.confspace.TupleMatrixGeneric;
-import edu.duke.cs.osprey.confspace.TupleTree;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 import edu.duke.cs.osprey.kstar.pfunc.BoltzmannCalculator;
 import edu.duke.cs.osprey.tools.BigExp;
@@ -80,27 +78,6 @@ public class ZMatrix extends TupleMatrixGeneric<BigExp> {
 		}
 
 		// convert higher-order tuples
-		if (emat.hasHigherOrderTuples()) {
-
-			// for each pair
-			for (int pos1=0; pos1<n; pos1++) {
-				int m1 = getNumConfAtPos(pos1);
-				for (int rc1=0; rc1<m1; rc1++) {
-					for (int pos2=0; pos2<pos1; pos2++) {
-						int m2 = getNumConfAtPos(pos2);
-						for (int rc2=0; rc2<m2; rc2++) {
-
-							// convert all the higher-order tuples for that pair
-							TupleTree<Double> tuples = emat.getHigherOrderTuples(pos1, rc1, pos2, rc2);
-							if (tuples != null) {
-								for (RCTuple tuple : tuples.makeTuplesList()) {
-									this.setTuple(tuple, calc(tuples.get(tuple)));
-								}
-							}
-						}
-					}
-				}
-			}
-		}
+		emat.forEachHigherOrderTuple((tuple, energy) -> this.setTuple(tuple, calc(energy)));
 	}
 }
@@ -47,11 +47,18 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import edu.duke.cs.osprey.astar.ConfTree;
+import edu.duke.cs.osprey.astar.conf.ConfAStarNode;
 import edu.duke.cs.osprey.astar.conf.ConfAStarTree;
+import edu.duke.cs.osprey.astar.conf.ConfIndex;
 import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.astar.conf.arena.ArenaConfAStarFactory;
+import edu.duke.cs.osprey.astar.conf.arena.NodeArena;
+import edu.duke.cs.osprey.astar.conf.linked.LinkedConfAStarFactory;
 import edu.duke.cs.osprey.astar.conf.order.DynamicHMeanAStarOrder;
 import edu.duke.cs.osprey.astar.conf.order.StaticScoreHMeanAStarOrder;
+import edu.duke.cs.osprey.astar.conf.scoring.DifferentialMPLPPairwiseHScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.MPLPPairwiseHScorer;
+import edu.duke.cs.osprey.astar.conf.scoring.NaiveTraditionalPairwiseHScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.PairwiseGScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.TraditionalPairwiseHScorer;
 import edu.duke.cs.osprey.astar.conf.scoring.mplp.EdgeUpdater;
@@ -60,9 +67,14 @@ import edu.duke.cs.osprey.confspace.ConfSearch;
 import edu.duke.cs.osprey.confspace.SearchProblem;
 import edu.duke.cs.osprey.ematrix.EnergyMatrix;
 import edu.duke.cs.osprey.externalMemory.ExternalMemory;
+import edu.duke.cs.osprey.externalMemory.HybridConfAStarFactory;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
 
 public class TestAStar extends TestBase {
 
@@ -227,6 +239,53 @@ public class TestAStar extends TestBase {
 	}
 	
 	
+	@Test
+	public void testDagkRigidStaticScoreOrderMPLPNode5IterWarmStart() {
+		SearchProblem search = makeSearchProblemDagkRigid();
+		
+		ConfAStarTree tree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setCustom(
+				new StaticScoreHMeanAStarOrder(),
+				new PairwiseGScorer(search.emat),
+				new DifferentialMPLPPairwiseHScorer(new NodeUpdater(), search.emat, 5, 0.0001)
+			).build();
+		
+		checkDagkRigid(tree, search);
+	}
+	
+	@Test
+	public void testDagkRigidStaticScoreOrderMPLPEdge1IterWarmStart() {
+		SearchProblem search = makeSearchProblemDagkRigid();
+		
+		ConfAStarTree tree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setMPLP(ConfAStarTree.MPLPBuilder()
+				.setUpdater(new EdgeUpdater())
+				.setNumIterations(1)
+				.setWarmStart(true)
+			).build();
+		
+		checkDagkRigid(tree, search);
+	}
+
+	@Test
+	public void testDagkRigidStaticScoreOrderMPLPWarmStartParallelBatches() {
+		SearchProblem search = makeSearchProblemDagkRigid();
+
+		// children of the same parent get scored by different scorers on different threads
+		ConfAStarTree tree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setCustom(
+				new StaticScoreHMeanAStarOrder(),
+				new PairwiseGScorer(search.emat),
+				new DifferentialMPLPPairwiseHScorer(new NodeUpdater(), search.emat, 5, 0.0001)
+			)
+			.setExpansionBatchSize(8)
+			.build();
+		tree.setParallelism(Parallelism.makeCpu(4));
+
+		checkDagkRigid(tree, search);
+	}
+	
+	
 	// RIGID TESTS (with pruning)
 	
 	private void setPruning(SearchProblem search, int[] partialConf) {
@@ -523,6 +582,21 @@ public class TestAStar extends TestBase {
 	}
 	
 	
+	@Test
+	public void testDagkContinuousStaticScoreOrderMPLPEdge5IterWarmStart() {
+		SearchProblem search = makeSearchProblemDagkContinuous();
+		
+		ConfAStarTree tree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setCustom(
+				new StaticScoreHMeanAStarOrder(),
+				new PairwiseGScorer(search.emat),
+				new DifferentialMPLPPairwiseHScorer(new EdgeUpdater(), search.emat, 5, 0.0001)
+			).build();
+		
+		checkDagkContinuous(tree, search);
+	}
+	
+	
 	// EXTERNAL MEMORY TESTS
 	
 	@Test
@@ -539,6 +613,217 @@ public class TestAStar extends TestBase {
 		});
 	}
 
+
+	// BATCH EXPANSION TESTS
+
+	private void checkBatchExpansion(int batchSize) {
+		SearchProblem search = makeSearchProblemDagkRigid();
+
+		final int numConfs = 100;
+
+		ConfAStarTree serialTree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setMPLP()
+			.build();
+
+		ConfAStarTree batchTree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setMPLP()
+			.setExpansionBatchSize(batchSize)
+			.build();
+		batchTree.setParallelism(Parallelism.makeCpu(4));
+
+		// confs must come out in exactly the same score order
+		for (int i=0; i<numConfs; i++) {
+			ConfSearch.ScoredConf serialConf = serialTree.nextConf();
+			ConfSearch.ScoredConf batchConf = batchTree.nextConf();
+			assertThat(batchConf.getScore(), isAbsolutely(serialConf.getScore(), 1e-9));
+		}
+	}
+
+	@Test
+	public void batchExpansion8() {
+		checkBatchExpansion(8);
+	}
+
+	@Test
+	public void batchExpansionAdaptive() {
+		checkBatchExpansion(ConfAStarTree.ExpansionBatchSizeAdaptive);
+	}
+
+
+	// INCREMENTAL HEURISTIC TESTS
+
+	@Test
+	public void traditionalHScorerIncremental() {
+		SearchProblem search = makeSearchProblemDagkRigid();
+		checkTraditionalHScorerIncremental(search.emat, new RCs(search.pruneMat));
+	}
+
+	@Test
+	public void traditionalHScorerIncrementalClash() {
+		SearchProblem search = makeSearchProblemDagkRigid();
+		RCs rcs = new RCs(search.pruneMat);
+
+		// add some clashes, so some pair energies are infinite
+		EnergyMatrix emat = new EnergyMatrix(search.emat);
+		emat.setPairwise(1, rcs.get(1)[0], 0, rcs.get(0)[0], Double.POSITIVE_INFINITY);
+		emat.setPairwise(3, rcs.get(3)[0], 2, rcs.get(2)[0], Double.POSITIVE_INFINITY);
+
+		checkTraditionalHScorerIncremental(emat, rcs);
+	}
+
+	private void checkTraditionalHScorerIncremental(EnergyMatrix emat, RCs rcs) {
+
+		TraditionalPairwiseHScorer hscorer = new TraditionalPairwiseHScorer(emat, rcs);
+		NaiveTraditionalPairwiseHScorer naiveHscorer = new NaiveTraditionalPairwiseHScorer(emat);
+
+		// jump around the tree like a best-first search would,
+		// so the scorer sees parents, children, siblings, and unrelated nodes
+		Random rand = new Random(12345);
+		ConfIndex confIndex = new ConfIndex(rcs.getNumPos());
+		List<ConfAStarNode> nodes = new ArrayList<>();
+		nodes.add(new LinkedConfAStarFactory().makeRootNode(rcs.getNumPos()));
+		for (int i=0; i<1000; i++) {
+
+			ConfAStarNode node = nodes.get(rand.nextInt(nodes.size()));
+			node.index(confIndex);
+			if (confIndex.numUndefined == 0) {
+				continue;
+			}
+
+			assertThat(hscorer.calc(confIndex, rcs), isAbsolutely(naiveHscorer.calc(confIndex, rcs), 1e-9));
+
+			int nextPos = confIndex.undefinedPos[rand.nextInt(confIndex.numUndefined)];
+			int[] nextRcs = rcs.get(nextPos);
+			for (int nextRc : nextRcs) {
+				assertThat(
+					hscorer.calcDifferential(confIndex, rcs, nextPos, nextRc),
+					isAbsolutely(naiveHscorer.calcDifferential(confIndex, rcs, nextPos, nextRc), 1e-9)
+				);
+			}
+
+			nodes.add(node.assign(nextPos, nextRcs[rand.nextInt(nextRcs.length)]));
+		}
+	}
+
+
+	// CHECKPOINT TESTS
+
+	private void checkCheckpoint(Function<SearchProblem,ConfAStarTree.Builder> builderFactory) {
+		SearchProblem search = makeSearchProblemDagkRigid();
+
+		ConfAStarTree tree = builderFactory.apply(search).build();
+		for (int i=0; i<20; i++) {
+			tree.nextConf();
+		}
+
+		try (TempFile file = new TempFile("astar.checkpoint")) {
+
+			// saving again should replace the old checkpoint, without leaving the temp file behind
+			tree.saveCheckpoint(file);
+			tree.saveCheckpoint(file);
+			assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+
+			ConfAStarTree resumedTree = builderFactory.apply(search)
+				.resumeFrom(file)
+				.build();
+
+			// the resumed search should pick up right where the original search left off
+			for (int i=0; i<100; i++) {
+				ConfSearch.ScoredConf conf = tree.nextConf();
+				ConfSearch.ScoredConf resumedConf = resumedTree.nextConf();
+				assertThat(resumedConf.getAssignments(), is(conf.getAssignments()));
+				assertThat(resumedConf.getScore(), isAbsolutely(conf.getScore(), 1e-9));
+			}
+		}
+	}
+
+	@Test
+	public void checkpointTraditional() {
+		checkCheckpoint((search) -> new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+		);
+	}
+
+	@Test
+	public void checkpointMPLP() {
+		checkCheckpoint((search) -> new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setMPLP()
+		);
+	}
+
+	@Test
+	public void checkpointHybrid() {
+		checkCheckpoint((search) -> new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+			.setFactory(new HybridConfAStarFactory(1))
+		);
+	}
+
+	@Test
+	public void checkpointArena() {
+		checkCheckpoint((search) -> new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+			.setFactory(new ArenaConfAStarFactory())
+		);
+	}
+
+
+	// ARENA NODE TESTS
+
+	private void checkArena(ArenaConfAStarFactory factory) {
+		SearchProblem search = makeSearchProblemDagkRigid();
+
+		final int numConfs = 100;
+
+		ConfAStarTree linkedTree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+			.build();
+
+		ConfAStarTree arenaTree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+			.setFactory(factory)
+			.build();
+
+		for (int i=0; i<numConfs; i++) {
+			ConfSearch.ScoredConf linkedConf = linkedTree.nextConf();
+			ConfSearch.ScoredConf arenaConf = arenaTree.nextConf();
+			assertThat(arenaConf.getScore(), isAbsolutely(linkedConf.getScore(), 1e-9));
+		}
+	}
+
+	@Test
+	public void arenaNodes() {
+		checkArena(new ArenaConfAStarFactory());
+	}
+
+	@Test
+	public void arenaNodesOffHeap() {
+		checkArena(new ArenaConfAStarFactory(NodeArena.Precision.Double, true));
+	}
+
+
+	// HYBRID MEMORY TESTS
+
+	@Test
+	public void hybridMemory() {
+		SearchProblem search = makeSearchProblemDagkRigid();
+
+		ConfAStarTree linkedTree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+			.build();
+
+		ConfAStarTree hybridTree = new ConfAStarTree.Builder(search.emat, search.pruneMat)
+			.setTraditional()
+			.useHybridMemory(1)
+			.build();
+
+		for (int i=0; i<100; i++) {
+			ConfSearch.ScoredConf linkedConf = linkedTree.nextConf();
+			ConfSearch.ScoredConf hybridConf = hybridTree.nextConf();
+			assertThat(hybridConf.getScore(), isAbsolutely(linkedConf.getScore(), 1e-9));
+		}
+	}
+
 	@Test
 	public void optimization() {
 
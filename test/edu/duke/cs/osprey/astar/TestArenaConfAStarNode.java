@@ -0,0 +1,129 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+package edu.duke.cs.osprey.astar;
+
+import static edu.duke.cs.osprey.astar.Matchers.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import edu.duke.cs.osprey.astar.conf.ConfIndex;
+import edu.duke.cs.osprey.astar.conf.arena.ArenaConfAStarFactory;
+import edu.duke.cs.osprey.astar.conf.arena.ArenaConfAStarNode;
+import edu.duke.cs.osprey.astar.conf.arena.ArenaNodeQueue;
+import edu.duke.cs.osprey.astar.conf.arena.NodeArena;
+
+public class TestArenaConfAStarNode {
+
+	private static ArenaConfAStarNode makeRoot() {
+		NodeArena arena = new NodeArena(NodeArena.Precision.Double, false);
+		return new ArenaConfAStarNode(arena, arena.addRoot());
+	}
+
+	@Test
+	public void indexRoot() {
+
+		ArenaConfAStarNode node = makeRoot();
+
+		ConfIndex confIndex = new ConfIndex(5);
+		node.index(confIndex);
+
+		assertThat(confIndex.node, is(node));
+		assertThat(confIndex.numDefined, is(0));
+		assertThat(confIndex.numUndefined, is(5));
+		assertThat(confIndex.undefinedPos, startsWith(new int[] { 0, 1, 2, 3, 4 }));
+	}
+
+	@Test
+	public void indexChild30() {
+
+		ArenaConfAStarNode node = makeRoot()
+			.assign(3, 6)
+			.assign(0, 5);
+
+		ConfIndex confIndex = new ConfIndex(5);
+		node.index(confIndex);
+
+		assertThat(node.getLevel(), is(2));
+		assertThat(confIndex.numDefined, is(2));
+		assertThat(confIndex.definedPos, startsWith(0, 3));
+		assertThat(confIndex.definedRCs, startsWith(5, 6));
+		assertThat(confIndex.numUndefined, is(3));
+		assertThat(confIndex.undefinedPos, startsWith(1, 2, 4));
+		assertThat(node.makeConf(5), is(new int[] { 5, -1, -1, 6, -1 }));
+	}
+
+	@Test
+	public void scores() {
+
+		for (NodeArena.Precision precision : NodeArena.Precision.values()) {
+			NodeArena arena = new NodeArena(precision, true);
+			ArenaConfAStarNode node = new ArenaConfAStarNode(arena, arena.addRoot());
+			node.setGScore(1.5);
+			node.setHScore(-4.25);
+			assertThat(node.getGScore(), is(1.5));
+			assertThat(node.getHScore(), is(-4.25));
+			assertThat(node.getScore(), is(-2.75));
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rcTooBig() {
+		makeRoot().assign(0, Short.MAX_VALUE + 1);
+	}
+
+	@Test
+	public void queueOrder() {
+
+		ArenaConfAStarFactory factory = new ArenaConfAStarFactory();
+		ArenaNodeQueue queue = (ArenaNodeQueue)factory.makeQueue(null);
+		ArenaConfAStarNode root = (ArenaConfAStarNode)factory.makeRootNode(queue, 5);
+
+		double[] scores = { 5, 3, 9, -1, 3, 7, 0 };
+		for (int i=0; i<scores.length; i++) {
+			ArenaConfAStarNode node = root.assign(0, i);
+			node.setGScore(scores[i]);
+			node.setHScore(0);
+			queue.push(node);
+		}
+
+		assertThat(queue.size(), is((long)scores.length));
+		double[] expected = { -1, 0, 3, 3, 5, 7, 9 };
+		for (double score : expected) {
+			assertThat(queue.poll().getScore(), is(score));
+		}
+		assertThat(queue.isEmpty(), is(true));
+		assertThat(queue.poll(), is(nullValue()));
+	}
+}
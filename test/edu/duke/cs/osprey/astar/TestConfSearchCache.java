@@ -50,6 +50,7 @@ import edu.duke.cs.osprey.structure.PDBIO;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 
@@ -129,6 +130,45 @@ public class TestConfSearchCache {
 		}
 	}
 
+	@Test
+	public void treeResumeFromCheckpoint() {
+
+		// get the full list of expected conformations
+		List<ConfSearch.ScoredConf> expectedConfs = new ConfAStarTree.Builder(emat, rcs)
+			.setTraditional()
+			.build()
+			.nextConfs(Double.POSITIVE_INFINITY);
+
+		// make a cache that checkpoints trees when they're exposed to GC
+		ConfSearchCache cache = new ConfSearchCache(1, new File(System.getProperty("java.io.tmpdir")));
+		ConfSearchCache.Entry tree1 = cache.make(() ->
+			new ConfAStarTree.Builder(emat, rcs)
+				.setTraditional()
+				.build()
+		);
+
+		for (int i=0; i<10; i++) {
+			assertThat(tree1.nextConf(), is(expectedConfs.get(i)));
+		}
+
+		// making another tree exposes the first one, and checkpoints it
+		ConfSearchCache.Entry tree2 = cache.make(() ->
+			new ConfAStarTree.Builder(emat, rcs)
+				.setTraditional()
+				.build()
+		);
+		assertThat(tree1.isProtected(), is(false));
+		assertThat(tree2.isProtected(), is(true));
+
+		// clear the tree and force it to resume from the checkpoint
+		tree1.clearRefs();
+
+		for (int i=10; i<27; i++) {
+			assertThat(tree1.nextConf(), is(expectedConfs.get(i)));
+		}
+		assertThat(tree1.nextConf(), is(nullValue()));
+	}
+
 	@Test
 	public void unrestrictedCapacity() {
 
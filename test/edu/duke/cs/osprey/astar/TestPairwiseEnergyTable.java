@@ -0,0 +1,181 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.astar.conf.scoring.PairwiseEnergyTable;
+import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.tools.MathTools;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TestPairwiseEnergyTable {
+
+	private static final int[] NumConfs = { 3, 1, 5, 4, 2 };
+
+	private static EnergyMatrix makeEmat(Random rand) {
+
+		EnergyMatrix emat = new EnergyMatrix(NumConfs.length, NumConfs, Double.POSITIVE_INFINITY);
+		emat.setConstTerm(rand.nextDouble());
+
+		for (int pos1=0; pos1<NumConfs.length; pos1++) {
+			for (int rc1=0; rc1<NumConfs[pos1]; rc1++) {
+				emat.setOneBody(pos1, rc1, rand.nextGaussian()*10);
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<NumConfs[pos2]; rc2++) {
+						emat.setPairwise(pos1, rc1, pos2, rc2, rand.nextGaussian()*10);
+					}
+				}
+			}
+		}
+
+		// throw in some infinities too
+		emat.setPairwise(2, 1, 0, 2, Double.POSITIVE_INFINITY);
+		emat.setOneBody(3, 3, Double.POSITIVE_INFINITY);
+
+		return emat;
+	}
+
+	private static RCs makeRCs() {
+		List<List<Integer>> rcs = new ArrayList<>();
+		for (int numConfs : NumConfs) {
+			List<Integer> rcsAtPos = new ArrayList<>();
+			for (int rc=0; rc<numConfs; rc++) {
+				rcsAtPos.add(rc);
+			}
+			rcs.add(rcsAtPos);
+		}
+		return new RCs(rcs);
+	}
+
+	private static RCs makeRCs(Random rand) {
+		return new RCs(makeRCs(), (pos, rc) -> rc == 0 || rand.nextBoolean());
+	}
+
+	private static void assertTable(PairwiseEnergyTable table, EnergyMatrix emat, RCs rcs, Energies check) {
+
+		assertThat(table.getNumPos(), is(emat.getNumPos()));
+		assertThat(table.constTerm, is(emat.getConstTerm()));
+
+		for (int pos1=0; pos1<emat.getNumPos(); pos1++) {
+
+			assertThat(table.getNum(pos1), is(rcs.getNum(pos1)));
+
+			for (int rc=0; rc<emat.getNumConfAtPos(pos1); rc++) {
+				if (!rcs.contains(pos1, rc)) {
+					assertThat(table.getIndex(pos1, rc), is(-1));
+				}
+			}
+
+			for (int i1=0; i1<rcs.getNum(pos1); i1++) {
+				int rc1 = rcs.get(pos1, i1);
+
+				assertThat(table.getIndex(pos1, rc1), is(i1));
+				assertThat(table.getOneBody(pos1, i1), is(emat.getOneBody(pos1, rc1)));
+
+				for (int pos2=0; pos2<emat.getNumPos(); pos2++) {
+					if (pos2 == pos1) {
+						continue;
+					}
+
+					int row = table.getRow(pos1, i1, pos2);
+					for (int i2=0; i2<rcs.getNum(pos2); i2++) {
+						int rc2 = rcs.get(pos2, i2);
+						double expected = emat.getPairwise(pos1, rc1, pos2, rc2);
+						check.check(table.getPairwise(pos1, row + i2), expected);
+						assertThat(table.getPairwise(pos1, i1, pos2, i2), is(table.getPairwise(pos1, row + i2)));
+					}
+				}
+			}
+		}
+	}
+
+	private static interface Energies {
+		void check(double observed, double expected);
+	}
+
+	@Test
+	public void float64() {
+
+		Random rand = new Random(12345);
+		EnergyMatrix emat = makeEmat(rand);
+
+		for (int i=0; i<10; i++) {
+			RCs rcs = makeRCs(rand);
+			PairwiseEnergyTable table = new PairwiseEnergyTable(emat, rcs);
+			assertThat(table.storage, is(PairwiseEnergyTable.Storage.Float64));
+			assertTable(table, emat, rcs, (observed, expected) -> assertThat(observed, is(expected)));
+		}
+	}
+
+	@Test
+	public void float32Minimize() {
+
+		Random rand = new Random(12345);
+		EnergyMatrix emat = makeEmat(rand);
+		RCs rcs = makeRCs();
+
+		PairwiseEnergyTable table = new PairwiseEnergyTable(emat, rcs, PairwiseEnergyTable.Storage.Float32, MathTools.Optimizer.Minimize);
+		assertTable(table, emat, rcs, (observed, expected) -> {
+			assertThat(observed, lessThanOrEqualTo(expected));
+			assertThat(observed, is((double)(float)observed));
+			if (Double.isFinite(expected)) {
+				assertThat(observed, closeTo(expected, 1e-5));
+			}
+		});
+	}
+
+	@Test
+	public void float32Maximize() {
+
+		Random rand = new Random(12345);
+		EnergyMatrix emat = makeEmat(rand);
+		RCs rcs = makeRCs();
+
+		PairwiseEnergyTable table = new PairwiseEnergyTable(emat, rcs, PairwiseEnergyTable.Storage.Float32, MathTools.Optimizer.Maximize);
+		assertTable(table, emat, rcs, (observed, expected) -> {
+			assertThat(observed, greaterThanOrEqualTo(expected));
+			assertThat(observed, is((double)(float)observed));
+			if (Double.isFinite(expected)) {
+				assertThat(observed, closeTo(expected, 1e-5));
+			}
+		});
+	}
+}
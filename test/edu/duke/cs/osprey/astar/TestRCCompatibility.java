@@ -0,0 +1,185 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.astar;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.astar.conf.ConfIndex;
+import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.astar.conf.pruning.RCCompatibility;
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.pruning.PruningMatrix;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TestRCCompatibility {
+
+	private static PruningMatrix makePmat(int[] numConfs, double pairChance, double tripleChance, Random rand) {
+
+		PruningMatrix pmat = new PruningMatrix(numConfs.length, numConfs, 0);
+
+		for (int pos1=0; pos1<numConfs.length; pos1++) {
+			for (int rc1=0; rc1<numConfs[pos1]; rc1++) {
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<numConfs[pos2]; rc2++) {
+
+						if (rand.nextDouble() < pairChance) {
+							pmat.prunePair(pos1, rc1, pos2, rc2);
+						}
+
+						for (int pos3=0; pos3<pos2; pos3++) {
+							for (int rc3=0; rc3<numConfs[pos3]; rc3++) {
+								if (rand.nextDouble() < tripleChance) {
+									pmat.pruneTriple(pos1, rc1, pos2, rc2, pos3, rc3);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		return pmat;
+	}
+
+	/** the straightforward way to filter children, by checking the pruning matrix directly */
+	private static int[] getCompatibleRCsDirectly(PruningMatrix pmat, RCs rcs, ConfIndex confIndex, int nextPos) {
+		List<Integer> out = new ArrayList<>();
+		for (int nextRc : rcs.get(nextPos)) {
+			boolean isPruned = false;
+			for (int i1=0; i1<confIndex.numDefined && !isPruned; i1++) {
+				int pos1 = confIndex.definedPos[i1];
+				int rc1 = confIndex.definedRCs[i1];
+				if (pmat.getPairwise(pos1, rc1, nextPos, nextRc)) {
+					isPruned = true;
+				}
+				for (int i2=0; i2<i1 && !isPruned; i2++) {
+					int pos2 = confIndex.definedPos[i2];
+					int rc2 = confIndex.definedRCs[i2];
+					if (pmat.getTuple(new RCTuple(pos1, rc1, pos2, rc2, nextPos, nextRc).sorted())) {
+						isPruned = true;
+					}
+				}
+			}
+			if (!isPruned) {
+				out.add(nextRc);
+			}
+		}
+		return out.stream().mapToInt(i -> i).toArray();
+	}
+
+	private static void check(int[] numConfs, double pairChance, double tripleChance) {
+
+		Random rand = new Random(12345);
+		PruningMatrix pmat = makePmat(numConfs, pairChance, tripleChance, rand);
+		RCs rcs = new RCs(pmat);
+		RCCompatibility compatibility = new RCCompatibility(rcs);
+
+		assertThat(compatibility.hasPrunedPairs(), is(pairChance > 0));
+		assertThat(compatibility.hasPrunedTriples(), is(tripleChance > 0));
+
+		int numPos = numConfs.length;
+		int[] out = new int[Arrays.stream(numConfs).max().getAsInt()];
+		for (int i=0; i<1000; i++) {
+
+			// make a random partial conf
+			ConfIndex confIndex = new ConfIndex(numPos);
+			confIndex.numUndefined = numPos;
+			for (int pos=0; pos<numPos; pos++) {
+				confIndex.undefinedPos[pos] = pos;
+			}
+			int numDefined = rand.nextInt(numPos);
+			for (int d=0; d<numDefined; d++) {
+				int pos = confIndex.undefinedPos[rand.nextInt(confIndex.numUndefined)];
+				int[] rcsAtPos = rcs.get(pos);
+				confIndex.assignInPlace(pos, rcsAtPos[rand.nextInt(rcsAtPos.length)]);
+			}
+			int nextPos = confIndex.undefinedPos[rand.nextInt(confIndex.numUndefined)];
+
+			int[] expected = getCompatibleRCsDirectly(pmat, rcs, confIndex, nextPos);
+			int numOut = compatibility.getCompatibleRCs(confIndex, nextPos, out);
+			assertThat(Arrays.copyOf(out, numOut), is(expected));
+		}
+	}
+
+	@Test
+	public void nothingPruned() {
+		check(new int[] { 3, 5, 2, 4 }, 0.0, 0.0);
+	}
+
+	@Test
+	public void prunedPairs() {
+		check(new int[] { 3, 5, 2, 4, 1, 6 }, 0.1, 0.0);
+	}
+
+	@Test
+	public void prunedPairsManyRCs() {
+		// spread the bitsets over several words
+		check(new int[] { 70, 130, 65, 3 }, 0.02, 0.0);
+	}
+
+	@Test
+	public void prunedTriples() {
+		check(new int[] { 3, 5, 2, 4, 1, 6 }, 0.0, 0.05);
+	}
+
+	@Test
+	public void prunedPairsAndTriples() {
+		check(new int[] { 3, 5, 2, 4, 1, 6 }, 0.05, 0.05);
+	}
+
+	@Test
+	public void pairAndTripleLookups() {
+
+		PruningMatrix pmat = new PruningMatrix(4, new int[] { 2, 2, 2, 2 }, 0);
+		pmat.prunePair(0, 1, 2, 0);
+		pmat.pruneTriple(0, 0, 1, 1, 3, 0);
+		RCCompatibility compatibility = new RCCompatibility(new RCs(pmat));
+
+		assertThat(compatibility.isPairPruned(0, 1, 2, 0), is(true));
+		assertThat(compatibility.isPairPruned(2, 0, 0, 1), is(true));
+		assertThat(compatibility.isPairPruned(0, 0, 2, 0), is(false));
+
+		assertThat(compatibility.isTriplePruned(0, 0, 1, 1, 3, 0), is(true));
+		assertThat(compatibility.isTriplePruned(3, 0, 0, 0, 1, 1), is(true));
+		assertThat(compatibility.isTriplePruned(1, 1, 3, 0, 0, 0), is(true));
+		assertThat(compatibility.isTriplePruned(0, 0, 1, 1, 3, 1), is(false));
+		assertThat(compatibility.isTriplePruned(0, 0, 1, 1, 2, 0), is(false));
+	}
+}
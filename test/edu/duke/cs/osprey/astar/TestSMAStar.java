@@ -147,6 +147,17 @@ public class TestSMAStar {
 			smastarStopwatch.stop();
 
 			checkConfs(rcs.getNumConformations().intValueExact(), astarConfs, smastarConfs);
+
+			// parallel SMA* should find exactly the same confs as serial SMA*
+			ConfAStarTree parallelSmastar = new ConfAStarTree.Builder(emat, rcs)
+				.setMaxNumNodes(maxNumNodes)
+				.setTraditionalOpt(optimizer)
+				.setShowProgress(true)
+				.build();
+			parallelSmastar.setParallelism(Parallelism.makeCpu(4));
+			List<ConfSearch.ScoredConf> parallelSmastarConfs = parallelSmastar.nextConfs(optimizer.initDouble());
+
+			checkConfs(rcs.getNumConformations().intValueExact(), smastarConfs, parallelSmastarConfs);
 		}
 	}
 
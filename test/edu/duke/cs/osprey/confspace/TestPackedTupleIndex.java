@@ -0,0 +1,223 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.confspace;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.pruning.PruningMatrix;
+import org.junit.Test;
+
+import java.util.*;
+
+
+public class TestPackedTupleIndex {
+
+	private static final int[] NumConfAtPos = { 3, 4, 2, 5, 3 };
+
+	@Test
+	public void emptyIndex() {
+
+		PackedTupleIndex index = new PackedTupleIndex(NumConfAtPos);
+
+		assertThat(index.size(), is(0));
+		assertThat(index.find(new RCTuple(0, 0, 1, 0, 2, 0)), is(PackedTupleIndex.NotFound));
+		assertThat(index.find(0, 0, 1, 0, 2, 0), is(PackedTupleIndex.NotFound));
+		assertThat(getEntriesIn(index, new int[] { 0, 0, 0, 0, 0 }), is(empty()));
+	}
+
+	@Test
+	public void addFind() {
+
+		PackedTupleIndex index = new PackedTupleIndex(NumConfAtPos);
+
+		int triple = index.add(new RCTuple(0, 2, 1, 3, 4, 1));
+		int quad = index.add(new RCTuple(0, 2, 1, 3, 2, 1, 4, 1));
+		assertThat(triple, is(0));
+		assertThat(quad, is(1));
+		assertThat(index.size(), is(2));
+
+		// adding again should find the same entry
+		assertThat(index.add(new RCTuple(0, 2, 1, 3, 4, 1)), is(triple));
+		assertThat(index.size(), is(2));
+
+		assertThat(index.find(new RCTuple(0, 2, 1, 3, 4, 1)), is(triple));
+		assertThat(index.find(new RCTuple(0, 2, 1, 3, 2, 1, 4, 1)), is(quad));
+		assertThat(index.find(new RCTuple(0, 2, 1, 3, 4, 0)), is(PackedTupleIndex.NotFound));
+		assertThat(index.find(new RCTuple(0, 2, 1, 3, 3, 1)), is(PackedTupleIndex.NotFound));
+		assertThat(index.find(new RCTuple(0, 2, 1, 3, 2, 1)), is(PackedTupleIndex.NotFound));
+
+		// triples can be found in any order
+		assertThat(index.find(0, 2, 1, 3, 4, 1), is(triple));
+		assertThat(index.find(4, 1, 0, 2, 1, 3), is(triple));
+		assertThat(index.find(1, 3, 4, 1, 0, 2), is(triple));
+		assertThat(index.find(1, 3, 4, 0, 0, 2), is(PackedTupleIndex.NotFound));
+
+		assertThat(index.getTuple(triple), is(new RCTuple(0, 2, 1, 3, 4, 1)));
+		assertThat(index.getTuple(quad), is(new RCTuple(0, 2, 1, 3, 2, 1, 4, 1)));
+		assertThat(index.contains(quad, 2), is(true));
+		assertThat(index.contains(triple, 2), is(false));
+	}
+
+	@Test
+	public void allTriples() {
+
+		// add every triple in the conf space, to exercise table growth
+		PackedTupleIndex index = new PackedTupleIndex(NumConfAtPos);
+		List<RCTuple> triples = makeAllTriples();
+		for (RCTuple triple : triples) {
+			index.add(triple);
+		}
+		assertThat(index.size(), is(triples.size()));
+
+		for (int i=0; i<triples.size(); i++) {
+			RCTuple triple = triples.get(i);
+			assertThat(index.find(triple), is(i));
+			assertThat(index.getTuple(i), is(triple));
+		}
+
+		// every conf should contain one triple per triple of positions
+		int[] conf = { 1, 2, 0, 4, 2 };
+		List<RCTuple> expected = new ArrayList<>();
+		for (RCTuple triple : triples) {
+			if (isIn(triple, conf)) {
+				expected.add(triple);
+			}
+		}
+		assertThat(expected.size(), is(10));
+		assertThat(getEntriesIn(index, conf), containsInAnyOrder(expected.toArray()));
+
+		// unassigned positions shouldn't match anything
+		conf[3] = Conf.Unassigned;
+		expected.removeIf(triple -> triple.pos.contains(3));
+		assertThat(expected.size(), is(4));
+		assertThat(getEntriesIn(index, conf), containsInAnyOrder(expected.toArray()));
+	}
+
+	@Test
+	public void energyMatrix() {
+
+		EnergyMatrix emat = new EnergyMatrix(NumConfAtPos.length, NumConfAtPos, Double.POSITIVE_INFINITY);
+		assertThat(emat.hasHigherOrderTuples(), is(false));
+		assertThat(emat.getTuple(new RCTuple(0, 0, 1, 0, 2, 0)), is(nullValue()));
+
+		emat.setTuple(new RCTuple(0, 1, 2, 1, 3, 4), 5.0);
+		emat.setTuple(new RCTuple(1, 2, 2, 0, 4, 2), -2.0);
+		emat.setTuple(new RCTuple(0, 1, 1, 2, 2, 1, 3, 4), 7.0);
+		emat.setTuple(new RCTuple(0, 1, 2, 1, 3, 4), 6.0);
+
+		assertThat(emat.hasHigherOrderTuples(), is(true));
+		assertThat(emat.getTuple(new RCTuple(0, 1, 2, 1, 3, 4)), is(6.0));
+		assertThat(emat.getTuple(3, 4, 0, 1, 2, 1), is(6.0));
+		assertThat(emat.getTuple(new RCTuple(1, 2, 2, 0, 4, 2)), is(-2.0));
+		assertThat(emat.getTuple(new RCTuple(0, 1, 1, 2, 2, 1, 3, 4)), is(7.0));
+		assertThat(emat.getTuple(new RCTuple(0, 1, 1, 2, 2, 1)), is(nullValue()));
+
+		Map<RCTuple,Double> tuples = new HashMap<>();
+		emat.forEachHigherOrderTuple(tuples::put);
+		assertThat(tuples.size(), is(3));
+		assertThat(tuples.get(new RCTuple(0, 1, 2, 1, 3, 4)), is(6.0));
+
+		Map<RCTuple,Double> tuplesIn = new HashMap<>();
+		emat.forEachHigherOrderTupleIn(new int[] { 1, 2, 1, 4, 0 }, tuplesIn::put);
+		assertThat(tuplesIn.keySet(), containsInAnyOrder(
+			new RCTuple(0, 1, 2, 1, 3, 4),
+			new RCTuple(0, 1, 1, 2, 2, 1, 3, 4)
+		));
+
+		tuplesIn.clear();
+		emat.forEachHigherOrderTupleIn(new int[] { 1, 2, 1, 4, 0 }, 1, tuplesIn::put);
+		assertThat(tuplesIn.keySet(), contains(new RCTuple(0, 1, 1, 2, 2, 1, 3, 4)));
+
+		// the old tuple tree view should still work
+		TupleTree<Double> tree = emat.getHigherOrderTuples(0, 1, 2, 1);
+		assertThat(tree.get(new RCTuple(0, 1, 2, 1, 3, 4)), is(6.0));
+		assertThat(emat.getHigherOrderTuples(0, 0, 2, 1), is(nullValue()));
+	}
+
+	@Test
+	public void pruningMatrix() {
+
+		PruningMatrix pmat = new PruningMatrix(NumConfAtPos.length, NumConfAtPos, 0.0);
+		pmat.fill(false);
+
+		pmat.setTuple(new RCTuple(0, 1, 2, 1, 3, 4), true);
+		pmat.setTuple(new RCTuple(1, 0, 2, 0, 4, 0), true);
+		pmat.setTuple(new RCTuple(1, 1, 2, 0, 4, 0), false);
+
+		assertThat(pmat.countPrunedTriples(), is(2));
+		assertThat(pmat.isTriplePruned(3, 4, 0, 1, 2, 1), is(true));
+		assertThat(pmat.isTriplePruned(1, 1, 2, 0, 4, 0), is(false));
+		assertThat(pmat.isTriplePruned(1, 2, 2, 0, 4, 0), is(false));
+
+		assertThat(pmat.isPruned(new RCTuple(new int[] { 1, 0, 1, 4, 2 })), is(true));
+		assertThat(pmat.isPruned(new RCTuple(new int[] { 1, 1, 0, 4, 0 })), is(false));
+		assertThat(pmat.isPruned(new RCTuple(new int[] { 2, 0, 0, 4, 0 })), is(true));
+	}
+
+	private static List<RCTuple> makeAllTriples() {
+		List<RCTuple> triples = new ArrayList<>();
+		int n = NumConfAtPos.length;
+		for (int pos1=0; pos1<n; pos1++) {
+			for (int pos2=pos1+1; pos2<n; pos2++) {
+				for (int pos3=pos2+1; pos3<n; pos3++) {
+					for (int rc1=0; rc1<NumConfAtPos[pos1]; rc1++) {
+						for (int rc2=0; rc2<NumConfAtPos[pos2]; rc2++) {
+							for (int rc3=0; rc3<NumConfAtPos[pos3]; rc3++) {
+								triples.add(new RCTuple(pos1, rc1, pos2, rc2, pos3, rc3));
+							}
+						}
+					}
+				}
+			}
+		}
+		return triples;
+	}
+
+	private static boolean isIn(RCTuple tuple, int[] conf) {
+		for (int i=0; i<tuple.size(); i++) {
+			if (conf[tuple.pos.get(i)] != tuple.RCs.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<RCTuple> getEntriesIn(PackedTupleIndex index, int[] conf) {
+		List<RCTuple> tuples = new ArrayList<>();
+		index.forEachIn(conf, (entry) -> tuples.add(index.getTuple(entry)));
+		return tuples;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.confspace;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.duke.cs.osprey.TestBase;
+import edu.duke.cs.osprey.astar.conf.ConfAStarTree;
+import edu.duke.cs.osprey.confspace.ConfSearch.ScoredConf;
+
+public class TestPrefetchingConfSearch extends TestBase {
+
+	private static SearchProblem search;
+
+	@BeforeClass
+	public static void before() {
+		initDefaultEnvironment();
+
+		// make any search problem, doesn't matter
+		EnergyMatrixConfig emConfig = new EnergyMatrixConfig();
+		emConfig.pdbPath = "examples/DAGK/2KDC.P.forOsprey.pdb";
+		emConfig.numFlexible = 2; // total confs in tree is 16
+		emConfig.addWtRots = true;
+		emConfig.doMinimize = false;
+		search = makeSearchProblem(emConfig);
+	}
+
+	private ConfSearch makeTree() {
+
+		// make any search tree, doesn't matter
+		return new ConfAStarTree.Builder(search.emat, search.pruneMat).build();
+	}
+
+	private void assertConfs(ConfSearch observed, ConfSearch expected, int numConfs) {
+		for (int i=0; i<numConfs; i++) {
+			ScoredConf expectedConf = expected.nextConf();
+			ScoredConf observedConf = observed.nextConf();
+			assertThat(observedConf.getAssignments(), is(expectedConf.getAssignments()));
+			assertThat(observedConf.getScore(), is(expectedConf.getScore()));
+		}
+	}
+
+	@Test
+	public void all() {
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(makeTree(), 4)) {
+			assertThat(prefetcher.getNumConformations(), is(BigInteger.valueOf(16)));
+			assertConfs(prefetcher, makeTree(), 16);
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+		}
+	}
+
+	@Test
+	public void bufferSizeOne() {
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(makeTree(), 1)) {
+			assertConfs(prefetcher, makeTree(), 16);
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+		}
+	}
+
+	@Test
+	public void batches() {
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(makeTree(), 3)) {
+			ConfSearch expected = makeTree();
+
+			for (int i=0; i<3; i++) {
+				List<ScoredConf> confs = prefetcher.nextConfs(5);
+				assertThat(confs.size(), is(5));
+				for (ScoredConf conf : confs) {
+					assertThat(conf.getAssignments(), is(expected.nextConf().getAssignments()));
+				}
+			}
+
+			// only one conf left
+			List<ScoredConf> confs = prefetcher.nextConfs(5);
+			assertThat(confs.size(), is(1));
+			assertThat(confs.get(0).getAssignments(), is(expected.nextConf().getAssignments()));
+
+			assertThat(prefetcher.nextConfs(5).isEmpty(), is(true));
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+		}
+	}
+
+	@Test
+	public void cancel() {
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(makeTree(), 4)) {
+			assertConfs(prefetcher, makeTree(), 3);
+
+			prefetcher.cancel();
+			assertThat(prefetcher.isCancelled(), is(true));
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+			assertThat(prefetcher.nextConfs(5).isEmpty(), is(true));
+		}
+	}
+
+	@Test
+	public void enumeratesAtMostBufferSizeAhead()
+	throws InterruptedException {
+
+		// an endless search that counts how many confs were asked for
+		int[] numEnumerated = { 0 };
+		ConfSearch counter = new ConfSearch() {
+
+			@Override
+			public ScoredConf nextConf() {
+				synchronized (numEnumerated) {
+					numEnumerated[0]++;
+					return new ScoredConf(new int[] { numEnumerated[0] }, numEnumerated[0]);
+				}
+			}
+
+			@Override
+			public BigInteger getNumConformations() {
+				return BigInteger.TEN;
+			}
+		};
+
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(counter, 3)) {
+
+			// wait for the buffer to fill, then give the search thread a chance to overrun it
+			while (prefetcher.getNumBuffered() < 3) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			synchronized (numEnumerated) {
+				assertThat(numEnumerated[0], is(3));
+			}
+
+			// taking a conf makes room for exactly one more
+			assertThat(prefetcher.nextConf().getAssignments(), is(new int[] { 1 }));
+			while (prefetcher.getNumBuffered() < 3) {
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			synchronized (numEnumerated) {
+				assertThat(numEnumerated[0], is(4));
+			}
+		}
+	}
+
+	/** makes a search that fails after the given number of confs */
+	private ConfSearch makeBroken(int numGoodConfs) {
+		return new ConfSearch() {
+
+			int numConfs = 0;
+
+			@Override
+			public ScoredConf nextConf() {
+				if (numConfs++ == numGoodConfs) {
+					throw new IllegalStateException("broken");
+				}
+				return new ScoredConf(new int[] { numConfs }, numConfs);
+			}
+
+			@Override
+			public BigInteger getNumConformations() {
+				return BigInteger.TEN;
+			}
+		};
+	}
+
+	@Test
+	public void failure() {
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(makeBroken(2), 4)) {
+			assertThat(prefetcher.nextConf().getAssignments(), is(new int[] { 1 }));
+			assertThat(prefetcher.nextConf().getAssignments(), is(new int[] { 2 }));
+			try {
+				prefetcher.nextConf();
+				fail("should have thrown");
+			} catch (PrefetchingConfSearch.SearchFailedException ex) {
+				assertThat(ex.getCause(), instanceOf(IllegalStateException.class));
+			}
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+		}
+	}
+
+	@Test
+	public void failureInBatch() {
+		try (PrefetchingConfSearch prefetcher = new PrefetchingConfSearch(makeBroken(3), 4)) {
+
+			// the confs before the failure should come back first
+			List<ScoredConf> confs = prefetcher.nextConfs(5);
+			assertThat(confs.size(), is(3));
+			for (int i=0; i<3; i++) {
+				assertThat(confs.get(i).getAssignments(), is(new int[] { i + 1 }));
+			}
+
+			// then the failure
+			try {
+				prefetcher.nextConfs(5);
+				fail("should have thrown");
+			} catch (PrefetchingConfSearch.SearchFailedException ex) {
+				assertThat(ex.getCause(), instanceOf(IllegalStateException.class));
+			}
+			assertThat(prefetcher.nextConfs(5).isEmpty(), is(true));
+			assertThat(prefetcher.nextConf(), is(nullValue()));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package edu.duke.cs.osprey.confspace.compiled;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.confspace.compiled.motions.TranslationRotation;
+import edu.duke.cs.osprey.energy.compiled.CPUConfEnergyCalculator;
+import org.joml.Vector3d;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+public class TestAssignedCoords {
+
+	private static final TestConfSpace.AffinityCompiled confSpaces = TestConfSpace.Design2RL0Interface7Mut.makeCompiled();
+
+	private static int[] randomConf(ConfSpace confSpace, Random rand) {
+		int[] conf = confSpace.assign();
+		for (ConfSpace.Pos pos : confSpace.positions) {
+			// leave some positions unassigned too
+			if (rand.nextInt(5) > 0) {
+				conf[pos.index] = rand.nextInt(pos.confs.length);
+			}
+		}
+		return conf;
+	}
+
+	private static void moveAtoms(AssignedCoords coords, Random rand) {
+
+		// the test conf spaces don't have any molecule motions, so add one to move the static atoms too
+		List<DegreeOfFreedom> dofs = new ArrayList<>(coords.dofs);
+		new TranslationRotation(
+			new TranslationRotation.Description(1.2, Math.toRadians(5), new Vector3d(coords.coords.x(0), coords.coords.y(0), coords.coords.z(0))),
+			coords,
+			0
+		).appendDofs(dofs);
+
+		for (DegreeOfFreedom dof : dofs) {
+			dof.set(dof.min() + rand.nextDouble()*(dof.max() - dof.min()));
+		}
+	}
+
+	private static void assertSameCoords(AssignedCoords observed, AssignedCoords expected) {
+
+		assertThat(observed.assignments, is(expected.assignments));
+
+		// check the static atoms
+		for (int atomi=0; atomi<observed.confSpace.numStaticAtoms; atomi++) {
+			assertSameCoord(observed, expected, observed.getStaticIndex(atomi));
+		}
+
+		// check the conformation atoms, including the unused slots and the unassigned positions
+		for (ConfSpace.Pos pos : observed.confSpace.positions) {
+			for (int atomi=0; atomi<pos.maxNumAtoms; atomi++) {
+				assertSameCoord(observed, expected, observed.getConfIndex(pos.index, atomi));
+			}
+		}
+
+		// check the degrees of freedom
+		assertThat(observed.dofs.size(), is(expected.dofs.size()));
+		for (int d=0; d<observed.dofs.size(); d++) {
+			assertThat(observed.dofs.get(d).name(), is(expected.dofs.get(d).name()));
+			assertThat(observed.dofs.get(d).get(), is(expected.dofs.get(d).get()));
+		}
+	}
+
+	private static void assertSameCoord(AssignedCoords observed, AssignedCoords expected, int i) {
+		assertThat(observed.coords.x(i), is(expected.coords.x(i)));
+		assertThat(observed.coords.y(i), is(expected.coords.y(i)));
+		assertThat(observed.coords.z(i), is(expected.coords.z(i)));
+	}
+
+	private static void assertReassign(ConfSpace confSpace) {
+
+		Random rand = new Random(12345);
+		AssignedCoords coords = confSpace.makeCoords(randomConf(confSpace, rand));
+
+		for (int i=0; i<20; i++) {
+
+			// move some atoms, but not every time
+			if (i % 3 != 0) {
+				moveAtoms(coords, rand);
+			}
+
+			// reassign, sometimes to the same conformation
+			int[] conf = i % 4 == 0 ? coords.assignments.clone() : randomConf(confSpace, rand);
+			coords.reassign(conf);
+
+			assertSameCoords(coords, confSpace.makeCoords(conf));
+		}
+	}
+
+	@Test public void reassignComplex() { assertReassign(confSpaces.complex); }
+	@Test public void reassignChainA() { assertReassign(confSpaces.chainA); }
+	@Test public void reassignChainB() { assertReassign(confSpaces.chainB); }
+
+	private static void assertPooledEnergies(ConfSpace confSpace) {
+
+		CPUConfEnergyCalculator confEcalc = new CPUConfEnergyCalculator(confSpace);
+
+		Random rand = new Random(12345);
+		for (int i=0; i<6; i++) {
+
+			int[] conf = confSpace.assign();
+			for (ConfSpace.Pos pos : confSpace.positions) {
+				conf[pos.index] = rand.nextInt(pos.confs.length);
+			}
+			List<PosInter> inters = PosInterDist.all(confSpace, null, conf);
+
+			// the pooled coords should give exactly the same energies as fresh coords
+			assertThat(confEcalc.calcEnergy(conf, inters), is(confEcalc.calc(conf, inters).energy));
+			assertThat(confEcalc.minimizeEnergy(conf, inters), is(confEcalc.minimize(conf, inters).energy));
+		}
+	}
+
+	@Test public void pooledEnergiesChainA() { assertPooledEnergies(confSpaces.chainA); }
+	@Test public void pooledEnergiesChainB() { assertPooledEnergies(confSpaces.chainB); }
+}
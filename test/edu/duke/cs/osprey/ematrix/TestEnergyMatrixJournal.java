@@ -0,0 +1,243 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.TestBase;
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.confspace.SimpleConfSpace;
+import edu.duke.cs.osprey.confspace.Strand;
+import edu.duke.cs.osprey.energy.ConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.EnergyCalculator;
+import edu.duke.cs.osprey.energy.EnergyPartition;
+import edu.duke.cs.osprey.energy.forcefield.ForcefieldParams;
+import edu.duke.cs.osprey.parallelism.Parallelism;
+import edu.duke.cs.osprey.structure.PDBIO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestEnergyMatrixJournal extends TestBase {
+
+	private static SimpleConfSpace confSpace;
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		Strand strand = new Strand.Builder(PDBIO.readResource("/1CC8.ss.pdb"))
+			.build();
+		for (String resNum : Arrays.asList("A45", "A46", "A47")) {
+			strand.flexibility.get(resNum)
+				.setLibraryRotamers(Strand.WildType, "ALA", "VAL")
+				.addWildTypeRotamers();
+		}
+
+		confSpace = new SimpleConfSpace.Builder()
+			.addStrand(strand)
+			.build();
+	}
+
+	private static EnergyMatrix calcEmat(File journalFile) {
+		try (EnergyCalculator ecalc = new EnergyCalculator.Builder(confSpace, new ForcefieldParams())
+			.setParallelism(Parallelism.makeCpu(2))
+			.build()) {
+
+			ConfEnergyCalculator confEcalc = new ConfEnergyCalculator.Builder(confSpace, ecalc)
+				.setEnergyPartition(EnergyPartition.AllOnPairs)
+				.build();
+			return new SimplerEnergyMatrixCalculator.Builder(confEcalc)
+				.setTripleCorrectionThreshold(Double.POSITIVE_INFINITY)
+				.setJournalFile(journalFile)
+				.build()
+				.calcEnergyMatrix();
+		}
+	}
+
+	private static Map<RCTuple,Double> getTuples(EnergyMatrix emat) {
+		Map<RCTuple,Double> tuples = new HashMap<>();
+		emat.forEachHigherOrderTuple((tuple, energy) -> tuples.put(tuple, energy));
+		return tuples;
+	}
+
+	private static void assertEmat(EnergyMatrix observed, EnergyMatrix expected) {
+		assertThat(observed, is(expected));
+		assertThat(getTuples(observed), is(getTuples(expected)));
+	}
+
+	private static void truncate(File file, long length)
+	throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		}
+	}
+
+	private static List<String> replay(File file, int[] numConfAtPos) {
+		List<String> entries = new ArrayList<>();
+		try (EnergyMatrixJournal journal = new EnergyMatrixJournal(file, numConfAtPos, (kind, tuple, energy) -> {
+			entries.add(kind + " " + tuple + " " + energy);
+		})) {
+			assertThat(journal.getNumReplayed(), is(entries.size()));
+		}
+		return entries;
+	}
+
+	@Test
+	public void entries()
+	throws IOException {
+
+		int[] numConfAtPos = { 2, 3 };
+
+		try (TempFile file = new TempFile("emat.journal")) {
+
+			// a new journal has nothing to replay
+			assertThat(replay(file, numConfAtPos), is(empty()));
+
+			try (EnergyMatrixJournal journal = new EnergyMatrixJournal(file, numConfAtPos, (kind, tuple, energy) -> fail())) {
+				journal.write(EnergyMatrixJournal.Kind.Energy, new RCTuple(0, 1), 1.5);
+				journal.write(
+					EnergyMatrixJournal.Kind.Energy,
+					Arrays.asList(new RCTuple(1, 2), new RCTuple(1, 0, 0, 1)),
+					Arrays.asList(2.5, Double.POSITIVE_INFINITY)
+				);
+			}
+			List<String> entries = replay(file, numConfAtPos);
+			assertThat(entries, contains(
+				"Energy " + new RCTuple(0, 1) + " 1.5",
+				"Energy " + new RCTuple(1, 2) + " 2.5",
+				"Energy " + new RCTuple(1, 0, 0, 1) + " Infinity"
+			));
+
+			// appending keeps the old entries
+			try (EnergyMatrixJournal journal = new EnergyMatrixJournal(file, numConfAtPos, (kind, tuple, energy) -> {})) {
+				journal.write(EnergyMatrixJournal.Kind.Correction, new RCTuple(1, 0, 0, 0), -0.5);
+			}
+			assertThat(replay(file, numConfAtPos).size(), is(4));
+
+			// a partially-written entry at the end gets dropped
+			truncate(file, file.length() - 3);
+			assertThat(replay(file, numConfAtPos), is(entries));
+
+			// and the journal is still good for appending
+			try (EnergyMatrixJournal journal = new EnergyMatrixJournal(file, numConfAtPos, (kind, tuple, energy) -> {})) {
+				journal.write(EnergyMatrixJournal.Kind.Correction, new RCTuple(1, 0, 0, 0), -0.5);
+			}
+			assertThat(replay(file, numConfAtPos).size(), is(4));
+
+			// a zero-filled tail (eg, after a crash) gets dropped too
+			long goodLength = file.length();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(goodLength + 64);
+			}
+			assertThat(replay(file, numConfAtPos).size(), is(4));
+			assertThat(file.length(), is(goodLength));
+
+			// and so is everything after an invalid entry
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(goodLength);
+				raf.writeByte(EnergyMatrixJournal.Kind.values().length);
+				raf.writeByte(1);
+				raf.writeInt(0);
+				raf.writeInt(0);
+				raf.writeDouble(1.0);
+				raf.writeByte(EnergyMatrixJournal.Kind.Energy.ordinal());
+				raf.writeByte(1);
+				raf.writeInt(1);
+				raf.writeInt(3);
+				raf.writeDouble(1.0);
+			}
+			assertThat(replay(file, numConfAtPos).size(), is(4));
+			assertThat(file.length(), is(goodLength));
+
+			// a journal for a different conf space starts over
+			assertThat(replay(file, new int[] { 2, 4 }), is(empty()));
+			assertThat(replay(file, numConfAtPos), is(empty()));
+		}
+	}
+
+	@Test
+	public void internalEnergyIncludesTuples() {
+
+		EnergyMatrix emat = calcEmat(null);
+		Map<RCTuple,Double> tuples = getTuples(emat);
+		assertThat(tuples.size(), greaterThan(0));
+
+		for (Map.Entry<RCTuple,Double> entry : tuples.entrySet()) {
+			RCTuple tuple = entry.getKey();
+			double expected = entry.getValue();
+			for (int i=0; i<tuple.size(); i++) {
+				expected += emat.getOneBody(tuple.pos.get(i), tuple.RCs.get(i));
+				for (int j=0; j<i; j++) {
+					expected += emat.getPairwise(tuple.pos.get(i), tuple.RCs.get(i), tuple.pos.get(j), tuple.RCs.get(j));
+				}
+			}
+			assertThat(emat.getInternalEnergy(tuple), isAbsolutely(expected, 1e-9));
+		}
+	}
+
+	@Test
+	public void resume()
+	throws IOException {
+
+		EnergyMatrix expected = calcEmat(null);
+		assertThat(getTuples(expected).size(), greaterThan(0));
+
+		try (TempFile file = new TempFile("emat.journal")) {
+
+			// a complete run
+			assertEmat(calcEmat(file), expected);
+			long completeLength = file.length();
+
+			// a run that gets all its energies from the journal
+			assertEmat(calcEmat(file), expected);
+			assertThat(file.length(), is(completeLength));
+
+			// runs that got interrupted at various points, including mid-entry
+			for (long length : Arrays.asList(completeLength/5 + 3, completeLength/2 + 1, completeLength - 7)) {
+				truncate(file, length);
+				assertEmat(calcEmat(file), expected);
+				assertThat(file.length(), is(completeLength));
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.confspace.SimpleConfSpace;
+import edu.duke.cs.osprey.confspace.Strand;
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.energy.ConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.EnergyCalculator;
+import edu.duke.cs.osprey.energy.compiled.CPUConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.compiled.ConfEnergyCalculatorAdapter;
+import edu.duke.cs.osprey.energy.forcefield.ForcefieldParams;
+import edu.duke.cs.osprey.parallelism.Parallelism;
+import edu.duke.cs.osprey.parallelism.TaskExecutor;
+import edu.duke.cs.osprey.structure.PDBIO;
+import edu.duke.cs.osprey.tools.FileTools;
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+
+public class TestFragmentCostModel {
+
+	private static SimpleConfSpace makeConfSpace(boolean continuous) {
+
+		Strand strand = new Strand.Builder(PDBIO.readResource("/1CC8.ss.pdb"))
+			.build();
+		for (String resNum : new String[] { "A45", "A46" }) {
+			Strand.ResidueFlex flex = strand.flexibility.get(resNum)
+				.setLibraryRotamers("ALA", "LYS");
+			if (continuous) {
+				flex.setContinuous();
+			}
+		}
+
+		return new SimpleConfSpace.Builder()
+			.addStrand(strand)
+			.build();
+	}
+
+	private static void withModel(SimpleConfSpace confSpace, Consumer<FragmentCostModel> block) {
+		try (EnergyCalculator ecalc = new EnergyCalculator.Builder(confSpace, new ForcefieldParams())
+			.setParallelism(Parallelism.makeCpu(1))
+			.build()) {
+
+			block.accept(new FragmentCostModel(new ConfEnergyCalculator.Builder(confSpace, ecalc).build()));
+		}
+	}
+
+	@Test
+	public void simpleConfSpace() {
+
+		SimpleConfSpace rigidConfSpace = makeConfSpace(false);
+		SimpleConfSpace continuousConfSpace = makeConfSpace(true);
+
+		// ALA is the first RC at each position, the LYS rotamers come after
+		RCTuple alaSingle = new RCTuple(0, 0);
+		RCTuple lysSingle = new RCTuple(0, 1);
+		RCTuple alaPair = new RCTuple(1, 0, 0, 0);
+		RCTuple lysPair = new RCTuple(1, 1, 0, 1);
+
+		double[] rigid = new double[4];
+		withModel(rigidConfSpace, model -> {
+			rigid[0] = model.estimate(alaSingle);
+			rigid[1] = model.estimate(lysSingle);
+			rigid[2] = model.estimate(alaPair);
+			rigid[3] = model.estimate(lysPair);
+		});
+
+		// bigger residues should cost more
+		assertThat(rigid[0], greaterThan(0.0));
+		assertThat(rigid[1], greaterThan(rigid[0]));
+		assertThat(rigid[2], greaterThan(0.0));
+		assertThat(rigid[3], greaterThan(rigid[2]));
+
+		// minimizing should cost more than not minimizing
+		withModel(continuousConfSpace, model -> {
+			assertThat(model.estimate(lysSingle), greaterThan(rigid[1]));
+			assertThat(model.estimate(lysPair), greaterThan(rigid[3]));
+		});
+	}
+
+	@Test
+	public void compiledConfSpace() {
+
+		ConfSpace confSpace = ConfSpace.fromBytes(FileTools.readResourceBytes("/confSpaces/dipeptide.5hydrophobic.ccsx"));
+		CPUConfEnergyCalculator confEcalc = new CPUConfEnergyCalculator(confSpace);
+
+		// pick conformations that have continuous motions
+		int confi0 = findMovingConf(confSpace.positions[0]);
+		int confi1 = findMovingConf(confSpace.positions[1]);
+		RCTuple single = new RCTuple(0, confi0);
+		RCTuple pair = new RCTuple(1, confi1, 0, confi0);
+
+		try (TaskExecutor tasks = new TaskExecutor()) {
+
+			@SuppressWarnings("deprecation")
+			FragmentCostModel rigid = new FragmentCostModel(new ConfEnergyCalculatorAdapter.Builder(confEcalc, tasks)
+				.setMinimize(false)
+				.build()
+			);
+			@SuppressWarnings("deprecation")
+			FragmentCostModel minimized = new FragmentCostModel(new ConfEnergyCalculatorAdapter.Builder(confEcalc, tasks)
+				.setMinimize(true)
+				.build()
+			);
+
+			assertThat(rigid.estimate(single), greaterThan(0.0));
+			assertThat(rigid.estimate(pair), greaterThan(0.0));
+			assertThat(minimized.estimate(single), greaterThan(rigid.estimate(single)));
+			assertThat(minimized.estimate(pair), greaterThan(rigid.estimate(pair)));
+		}
+	}
+
+	private static int findMovingConf(ConfSpace.Pos pos) {
+		for (ConfSpace.Conf conf : pos.confs) {
+			if (conf.motions.length > 0) {
+				return conf.index;
+			}
+		}
+		throw new NoSuchElementException("no conformations with motions at " + pos.name);
+	}
+
+	@Test
+	public void calibration() {
+		withModel(makeConfSpace(false), model -> {
+
+			// start with the default guess
+			assertThat(model.isCalibrated(1), is(false));
+			assertThat(model.predictSeconds(1, 100.0), is(100.0*FragmentCostModel.DefaultSecondsPerCost));
+			assertThat(model.predictSeconds(2, 100.0), is(100.0*FragmentCostModel.DefaultSecondsPerCost));
+
+			// measuring pairs should calibrate singles too, until singles are measured
+			model.observe(2, 100.0, 1.0);
+			model.observe(2, 300.0, 3.0);
+			assertThat(model.isCalibrated(1), is(false));
+			assertThat(model.isCalibrated(2), is(true));
+			assertThat(model.predictSeconds(2, 100.0), closeTo(1.0, 1e-12));
+			assertThat(model.predictSeconds(1, 100.0), closeTo(1.0, 1e-12));
+
+			model.observe(1, 100.0, 0.5);
+			assertThat(model.isCalibrated(1), is(true));
+			assertThat(model.predictSeconds(1, 100.0), closeTo(0.5, 1e-12));
+			assertThat(model.predictSeconds(2, 100.0), closeTo(1.0, 1e-12));
+		});
+	}
+}
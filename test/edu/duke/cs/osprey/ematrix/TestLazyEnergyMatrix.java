@@ -0,0 +1,158 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.duke.cs.osprey.TestBase;
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.confspace.SearchProblem;
+import edu.duke.cs.osprey.energy.forcefield.ForcefieldParams;
+import edu.duke.cs.osprey.parallelism.ThreadPoolTaskExecutor;
+
+public class TestLazyEnergyMatrix extends TestBase {
+
+	private static ForcefieldParams ffparams;
+	private static SearchProblem search;
+	private static List<RCTuple> tuples;
+
+	@BeforeClass
+	public static void before() {
+		initDefaultEnvironment();
+		ffparams = makeDefaultFFParams();
+
+		EnergyMatrixConfig emConfig = new EnergyMatrixConfig();
+		emConfig.pdbPath = "examples/DAGK/2KDC.P.forOsprey.pdb";
+		emConfig.numFlexible = 3;
+		emConfig.addWtRots = true;
+		emConfig.doMinimize = false;
+		search = makeSearchProblem(emConfig);
+
+		// ask for the singles and pairs in a shuffled order, so threads collide with each other and the prefetcher
+		tuples = new ArrayList<>();
+		for (int pos1=0; pos1<search.emat.getNumPos(); pos1++) {
+			for (int rc1=0; rc1<search.emat.getNumConfAtPos(pos1); rc1++) {
+				tuples.add(new RCTuple(pos1, rc1));
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<search.emat.getNumConfAtPos(pos2); rc2++) {
+						tuples.add(new RCTuple(pos1, rc1, pos2, rc2));
+					}
+				}
+			}
+		}
+		Collections.shuffle(tuples, new Random(12345));
+	}
+
+	private static LazyEnergyMatrix makeLazyEmat() {
+		SimpleEnergyCalculator ecalc = new SimpleEnergyCalculator.Cpu(ffparams, search.confSpace, search.shellResidues);
+		return new LazyEnergyMatrix(search.confSpace, search.emat.getPruningInterval(), ecalc);
+	}
+
+	private static double get(EnergyMatrix emat, RCTuple tuple) {
+		if (tuple.size() == 1) {
+			return emat.getOneBody(tuple.pos.get(0), tuple.RCs.get(0));
+		} else {
+			return emat.getPairwise(tuple.pos.get(0), tuple.RCs.get(0), tuple.pos.get(1), tuple.RCs.get(1));
+		}
+	}
+
+	private static void checkAll(LazyEnergyMatrix emat) {
+		for (RCTuple tuple : tuples) {
+			double exp = get(search.emat, tuple);
+			assertThat(get(emat, tuple), isAbsolutely(exp, 1e-12));
+		}
+	}
+
+	@Test
+	public void singleThread() {
+		LazyEnergyMatrix emat = makeLazyEmat();
+		assertThat(emat.hasOneBody(0, 0), is(false));
+		checkAll(emat);
+		assertThat(emat.hasOneBody(0, 0), is(true));
+	}
+
+	@Test
+	public void multipleThreadsWithPrefetch() {
+
+		LazyEnergyMatrix emat = makeLazyEmat();
+
+		ThreadPoolTaskExecutor prefetchTasks = new ThreadPoolTaskExecutor();
+		prefetchTasks.start(2);
+		try {
+			emat.setPrefetchTasks(prefetchTasks);
+
+			tuples.parallelStream().forEach((tuple) -> get(emat, tuple));
+
+			prefetchTasks.waitForFinish();
+		} finally {
+			prefetchTasks.clean();
+		}
+
+		checkAll(emat);
+	}
+
+	@Test
+	public void cacheFile() {
+
+		try (TempFile file = new TempFile("lazy.emat.cache")) {
+
+			try (LazyEnergyMatrix emat = makeLazyEmat()) {
+				emat.setCacheFile(file);
+				checkAll(emat);
+			}
+
+			// a new matrix should read everything from the cache
+			try (LazyEnergyMatrix emat = makeLazyEmat()) {
+				emat.setCacheFile(file);
+				for (RCTuple tuple : tuples) {
+					if (tuple.size() == 1) {
+						assertThat(emat.hasOneBody(tuple.pos.get(0), tuple.RCs.get(0)), is(true));
+					} else {
+						assertThat(emat.hasPairwise(tuple.pos.get(0), tuple.RCs.get(0), tuple.pos.get(1), tuple.RCs.get(1)), is(true));
+					}
+				}
+				checkAll(emat);
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.duke.cs.osprey.TestBase;
+import edu.duke.cs.osprey.confspace.RCTuple;
+import edu.duke.cs.osprey.tools.ObjectIO;
+
+public class TestMappedEnergyMatrix extends TestBase {
+
+	private static EnergyMatrix makeEmat(int[] numConfAtPos, boolean withTuples) {
+
+		EnergyMatrix emat = new EnergyMatrix(numConfAtPos.length, numConfAtPos, Double.POSITIVE_INFINITY);
+
+		Random rand = new Random(12345);
+		for (int pos1=0; pos1<emat.getNumPos(); pos1++) {
+			for (int rc1=0; rc1<emat.getNumConfAtPos(pos1); rc1++) {
+				emat.setOneBody(pos1, rc1, rand.nextDouble()*20 - 10);
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<emat.getNumConfAtPos(pos2); rc2++) {
+						emat.setPairwise(pos1, rc1, pos2, rc2, rand.nextDouble()*20 - 10);
+					}
+				}
+			}
+		}
+		emat.setConstTerm(-42.5);
+
+		// sprinkle in some special values
+		emat.setOneBody(0, 0, Double.POSITIVE_INFINITY);
+		emat.setPairwise(1, 0, 0, 1, Double.NEGATIVE_INFINITY);
+
+		if (withTuples) {
+			emat.setTuple(new RCTuple(0, 1, 1, 2, 2, 0), 1.5);
+			emat.setTuple(new RCTuple(0, 0, 2, 1, 3, 3), -2.5);
+			emat.setTuple(new RCTuple(0, 0, 1, 1, 2, 1, 3, 0), 3.5);
+		}
+
+		return emat;
+	}
+
+	private static void assertEmat(EnergyMatrix observed, EnergyMatrix expected) {
+		assertThat(observed, is(expected));
+		assertThat(observed.getConstTerm(), is(expected.getConstTerm()));
+		assertThat(observed.getPruningInterval(), is(expected.getPruningInterval()));
+		assertThat(observed.hasHigherOrderTuples(), is(expected.hasHigherOrderTuples()));
+		if (expected.hasHigherOrderTuples()) {
+			for (RCTuple tuple : new RCTuple[] {
+				new RCTuple(0, 1, 1, 2, 2, 0),
+				new RCTuple(0, 0, 2, 1, 3, 3),
+				new RCTuple(0, 0, 1, 1, 2, 1, 3, 0),
+				new RCTuple(0, 1, 1, 1, 2, 1)
+			}) {
+				assertThat(observed.getTuple(tuple), is(expected.getTuple(tuple)));
+			}
+		}
+	}
+
+	private void roundTrip(int[] numConfAtPos, boolean withTuples)
+	throws Exception {
+
+		EnergyMatrix expected = makeEmat(numConfAtPos, withTuples);
+
+		try (TempFile file = new TempFile("emat.mapped")) {
+			EnergyMatrix.writeMappable(expected, file);
+			MappedEnergyMatrix mapped = EnergyMatrix.map(file);
+			assertEmat(mapped, expected);
+			assertThat(mapped.sum(), is(expected.sum())); // NaN, since there are infinities of both signs
+			assertEmat(mapped.toHeap(), expected);
+
+			// conf energies should match too
+			int[] conf = new int[numConfAtPos.length];
+			assertThat(mapped.confE(conf), is(expected.confE(conf)));
+		}
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		roundTrip(new int[] { 3, 4, 2, 5 }, false);
+	}
+
+	@Test
+	public void roundTripTuples() throws Exception {
+		roundTrip(new int[] { 3, 4, 2, 5 }, true);
+	}
+
+	@Test
+	public void roundTripOddPositions() throws Exception {
+		// odd number of positions, so the header needs padding
+		roundTrip(new int[] { 3, 4, 2, 5, 7 }, false);
+	}
+
+	@Test
+	public void changesStayPrivate() throws Exception {
+
+		EnergyMatrix expected = makeEmat(new int[] { 3, 4, 2, 5 }, false);
+
+		try (TempFile file = new TempFile("emat.mapped")) {
+			EnergyMatrix.writeMappable(expected, file);
+
+			MappedEnergyMatrix mapped = EnergyMatrix.map(file);
+			mapped.setOneBody(1, 1, 7.0);
+			mapped.setPairwise(3, 4, 2, 1, 8.0);
+			mapped.negate();
+			assertThat(mapped.getOneBody(1, 1), is(-7.0));
+			assertThat(mapped.getPairwise(3, 4, 2, 1), is(-8.0));
+
+			// the file should be unchanged
+			assertEmat(EnergyMatrix.map(file), expected);
+		}
+	}
+
+	@Test
+	public void serialize() throws Exception {
+
+		EnergyMatrix expected = makeEmat(new int[] { 3, 4, 2, 5 }, true);
+
+		try (TempFile mappedFile = new TempFile("emat.mapped")) {
+			try (TempFile serializedFile = new TempFile("emat.dat")) {
+				EnergyMatrix.writeMappable(expected, mappedFile);
+				EnergyMatrix.write(EnergyMatrix.map(mappedFile), serializedFile);
+				EnergyMatrix emat = EnergyMatrix.read(serializedFile);
+				assertThat(emat, not(instanceOf(MappedEnergyMatrix.class)));
+				assertEmat(emat, expected);
+			}
+		}
+	}
+
+	@Test
+	public void badFiles() throws IOException {
+
+		try (TempFile file = new TempFile("emat.mapped")) {
+
+			// not an energy matrix
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				out.write(new byte[64]);
+			}
+			try {
+				EnergyMatrix.map(file);
+				fail("should have thrown");
+			} catch (ObjectIO.BadFileException ex) {
+				// expected
+			}
+
+			// truncated energy matrix
+			try {
+				EnergyMatrix.writeMappable(makeEmat(new int[] { 3, 4, 2, 5 }, false), file);
+			} catch (ObjectIO.CantWriteException ex) {
+				throw new Error(ex);
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(raf.length() - 8);
+			}
+			try {
+				EnergyMatrix.map(file);
+				fail("should have thrown");
+			} catch (ObjectIO.BadFileException ex) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.ematrix;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.astar.conf.ConfAStarTree;
+import edu.duke.cs.osprey.astar.conf.RCs;
+import edu.duke.cs.osprey.confspace.ConfSearch;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+public class TestSparseEnergyMatrix {
+
+	private static final int[] NumConfs = { 3, 4, 2, 5, 3, 4 };
+
+	// a chain of positions, where each position only neighbors the next one
+	private static final BiPredicate<Integer,Integer> IsNeighbor = (pos1, pos2) -> Math.abs(pos1 - pos2) == 1;
+
+	private static SparseEnergyMatrix makeSparse(Random rand) {
+		SparseEnergyMatrix emat = new SparseEnergyMatrix(NumConfs.length, NumConfs, Double.POSITIVE_INFINITY, IsNeighbor);
+		emat.setConstTerm(rand.nextDouble());
+		for (int pos1=0; pos1<NumConfs.length; pos1++) {
+			for (int rc1=0; rc1<NumConfs[pos1]; rc1++) {
+				emat.setOneBody(pos1, rc1, rand.nextGaussian()*10);
+				for (int pos2=0; pos2<pos1; pos2++) {
+					if (emat.isNeighbor(pos1, pos2)) {
+						for (int rc2=0; rc2<NumConfs[pos2]; rc2++) {
+							emat.setPairwise(pos1, rc1, pos2, rc2, rand.nextGaussian()*10);
+						}
+					}
+				}
+			}
+		}
+		return emat;
+	}
+
+	private static RCs makeRCs() {
+		List<List<Integer>> rcs = new ArrayList<>();
+		for (int numConfs : NumConfs) {
+			List<Integer> rcsAtPos = new ArrayList<>();
+			for (int rc=0; rc<numConfs; rc++) {
+				rcsAtPos.add(rc);
+			}
+			rcs.add(rcsAtPos);
+		}
+		return new RCs(rcs);
+	}
+
+	@Test
+	public void neighbors() {
+
+		SparseEnergyMatrix emat = makeSparse(new Random(12345));
+
+		assertThat(emat.countNeighborPairs(), is(NumConfs.length - 1));
+		assertThat(emat.getNeighbors(0), is(new int[] { 1 }));
+		assertThat(emat.getNeighbors(2), is(new int[] { 1, 3 }));
+		assertThat(emat.isNeighbor(2, 3), is(true));
+		assertThat(emat.isNeighbor(3, 2), is(true));
+		assertThat(emat.isNeighbor(1, 3), is(false));
+
+		long numEntries = 0;
+		for (int pos=1; pos<NumConfs.length; pos++) {
+			numEntries += NumConfs[pos]*NumConfs[pos - 1];
+		}
+		assertThat(emat.countPairwiseEntries(), is(numEntries));
+	}
+
+	@Test
+	public void matchesDense() {
+
+		SparseEnergyMatrix sparse = makeSparse(new Random(12345));
+		EnergyMatrix dense = new EnergyMatrix(sparse);
+
+		assertThat(dense, is(not(instanceOf(SparseEnergyMatrix.class))));
+		assertThat(dense.getConstTerm(), is(sparse.getConstTerm()));
+		for (int pos1=0; pos1<NumConfs.length; pos1++) {
+			for (int rc1=0; rc1<NumConfs[pos1]; rc1++) {
+				assertThat(dense.getOneBody(pos1, rc1), is(sparse.getOneBody(pos1, rc1)));
+				for (int pos2=0; pos2<pos1; pos2++) {
+					for (int rc2=0; rc2<NumConfs[pos2]; rc2++) {
+						double energy = sparse.getPairwise(pos1, rc1, pos2, rc2);
+						assertThat(sparse.getPairwise(pos2, rc2, pos1, rc1), is(energy));
+						assertThat(dense.getPairwise(pos1, rc1, pos2, rc2), is(energy));
+						if (!sparse.isNeighbor(pos1, pos2)) {
+							assertThat(energy, is(0.0));
+						}
+					}
+				}
+			}
+		}
+		assertThat(sparse.sum(), is(dense.sum()));
+
+		SparseEnergyMatrix copy = new SparseEnergyMatrix(sparse);
+		copy.negate();
+		assertThat(copy.sum(), is(-sparse.sum()));
+		assertThat(copy.getPairwise(1, 2, 0, 1), is(-sparse.getPairwise(1, 2, 0, 1)));
+		assertThat(copy.getPairwise(3, 2, 0, 1), is(0.0));
+	}
+
+	@Test
+	public void setNonNeighbors() {
+
+		SparseEnergyMatrix emat = makeSparse(new Random(12345));
+
+		// zero is fine
+		emat.setPairwise(3, 0, 0, 0, 0.0);
+
+		try {
+			emat.setPairwise(3, 0, 0, 0, 1.0);
+			fail("non-neighbor pair energy was set");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	private static void assertSameConfs(ConfSearch expected, ConfSearch observed) {
+		while (true) {
+			ConfSearch.ScoredConf expectedConf = expected.nextConf();
+			ConfSearch.ScoredConf observedConf = observed.nextConf();
+			if (expectedConf == null) {
+				assertThat(observedConf, is(nullValue()));
+				break;
+			}
+			assertThat(observedConf.getScore(), closeTo(expectedConf.getScore(), 1e-9));
+		}
+	}
+
+	@Test
+	public void astarTraditional() {
+
+		SparseEnergyMatrix sparse = makeSparse(new Random(12345));
+		EnergyMatrix dense = new EnergyMatrix(sparse);
+		RCs rcs = makeRCs();
+
+		assertSameConfs(
+			new ConfAStarTree.Builder(dense, rcs).setTraditional().build(),
+			new ConfAStarTree.Builder(sparse, rcs).setTraditional().build()
+		);
+	}
+
+	@Test
+	public void astarMPLP() {
+
+		SparseEnergyMatrix sparse = makeSparse(new Random(12345));
+		EnergyMatrix dense = new EnergyMatrix(sparse);
+		RCs rcs = makeRCs();
+
+		assertSameConfs(
+			new ConfAStarTree.Builder(dense, rcs).setMPLP().build(),
+			new ConfAStarTree.Builder(sparse, rcs).setMPLP().build()
+		);
+	}
+}
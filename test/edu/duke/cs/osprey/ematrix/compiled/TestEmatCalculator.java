@@ -0,0 +1,251 @@
+package edu.duke.cs.osprey.ematrix.compiled;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.TestBase.TempFile;
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.PosDistances;
+import edu.duke.cs.osprey.confspace.compiled.PosInter;
+import edu.duke.cs.osprey.confspace.compiled.PosInterDist;
+import edu.duke.cs.osprey.ematrix.EnergyMatrix;
+import edu.duke.cs.osprey.ematrix.SimpleReferenceEnergies;
+import edu.duke.cs.osprey.ematrix.SparseEnergyMatrix;
+import edu.duke.cs.osprey.energy.compiled.CPUConfEnergyCalculator;
+import edu.duke.cs.osprey.minimization.LBFGSBMinimizer;
+import edu.duke.cs.osprey.parallelism.Parallelism;
+import edu.duke.cs.osprey.parallelism.TaskExecutor;
+import edu.duke.cs.osprey.tools.FileTools;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+
+public class TestEmatCalculator {
+
+	private static ConfSpace confSpace = ConfSpace.fromBytes(FileTools.readResourceBytes("/confSpaces/dipeptide.5hydrophobic.ccsx"));
+
+	private static EnergyMatrix calcEmat(TaskExecutor tasks, PosInterDist posInterDist, SimpleReferenceEnergies eref, boolean minimize, boolean includeStaticStatic) {
+		return calcEmat(confSpace, tasks, posInterDist, eref, minimize, includeStaticStatic, null);
+	}
+
+	private static EnergyMatrix calcEmat(ConfSpace confSpace, TaskExecutor tasks, PosInterDist posInterDist, SimpleReferenceEnergies eref, boolean minimize, boolean includeStaticStatic, File cacheFile) {
+		return new EmatCalculator.Builder(new CPUConfEnergyCalculator(confSpace))
+			.setPosInterDist(posInterDist)
+			.setReferenceEnergies(eref)
+			.setMinimize(minimize)
+			.setIncludeStaticStatic(includeStaticStatic)
+			.setTasks(tasks)
+			.setCacheFile(cacheFile)
+			.build()
+			.calc();
+	}
+
+	private static long cacheSize(File cacheFile) {
+		try (FragmentEnergyCache cache = new FragmentEnergyCache(cacheFile)) {
+			return cache.size();
+		}
+	}
+
+	private static SimpleReferenceEnergies calcEref(TaskExecutor tasks, boolean minimize) {
+		return new ErefCalculator.Builder(new CPUConfEnergyCalculator(confSpace))
+			.setMinimize(minimize)
+			.setTasks(tasks)
+			.build()
+			.calc();
+	}
+
+	private void energyMatrix(Parallelism parallelism, PosInterDist posInterDist, boolean minimize, boolean includeStaticStatic) {
+
+		// the serial calculation is the reference
+		EnergyMatrix expected = calcEmat(null, posInterDist, null, minimize, includeStaticStatic);
+
+		try (TaskExecutor tasks = parallelism.makeTaskExecutor()) {
+			EnergyMatrix observed = calcEmat(tasks, posInterDist, null, minimize, includeStaticStatic);
+			assertThat(observed, is(expected));
+			assertThat(observed.getConstTerm(), is(expected.getConstTerm()));
+		}
+	}
+	@Test public void energyMatrixRigid_CPU2() { energyMatrix(Parallelism.makeCpu(2), PosInterDist.DesmetEtAl1992, false, false); }
+	@Test public void energyMatrixRigidStatic_CPU2() { energyMatrix(Parallelism.makeCpu(2), PosInterDist.DesmetEtAl1992, false, true); }
+	@Test public void energyMatrixMinimized_CPU4() { energyMatrix(Parallelism.makeCpu(4), PosInterDist.DesmetEtAl1992, true, false); }
+	@Test public void energyMatrixMinimizedTighter_CPU4() { energyMatrix(Parallelism.makeCpu(4), PosInterDist.TighterBounds, true, true); }
+
+	private void referenceEnergies(Parallelism parallelism, boolean minimize) {
+
+		SimpleReferenceEnergies expected = calcEref(null, minimize);
+
+		try (TaskExecutor tasks = parallelism.makeTaskExecutor()) {
+			SimpleReferenceEnergies observed = calcEref(tasks, minimize);
+			for (int posi=0; posi<confSpace.numPos(); posi++) {
+				for (int confi=0; confi<confSpace.numConf(posi); confi++) {
+					String resType = confSpace.confType(posi, confi);
+					assertThat(observed.get(posi, resType), is(expected.get(posi, resType)));
+				}
+			}
+
+			// the reference energies should give the same energy matrix too
+			assertThat(
+				calcEmat(tasks, PosInterDist.DesmetEtAl1992, observed, false, false),
+				is(calcEmat(null, PosInterDist.DesmetEtAl1992, expected, false, false))
+			);
+		}
+	}
+	@Test public void referenceEnergiesRigid_CPU2() { referenceEnergies(Parallelism.makeCpu(2), false); }
+	@Test public void referenceEnergiesMinimized_CPU4() { referenceEnergies(Parallelism.makeCpu(4), true); }
+
+	@Test
+	public void cacheReuse() {
+		try (TempFile cacheFile = new TempFile("emat.cache")) {
+
+			EnergyMatrix expected = calcEmat(null, PosInterDist.DesmetEtAl1992, null, true, true);
+			int numEntries = 1 + confSpace.countSingles() + confSpace.countPairs();
+
+			// the first calculation fills the cache
+			assertThat(calcEmat(confSpace, null, PosInterDist.DesmetEtAl1992, null, true, true, cacheFile), is(expected));
+			assertThat(cacheSize(cacheFile), is((long)numEntries));
+
+			// the second calculation should read everything from the cache
+			assertThat(calcEmat(confSpace, null, PosInterDist.DesmetEtAl1992, null, true, true, cacheFile), is(expected));
+			assertThat(cacheSize(cacheFile), is((long)numEntries));
+
+			// rigid energies are different fragments, even with the same cache
+			EnergyMatrix expectedRigid = calcEmat(null, PosInterDist.DesmetEtAl1992, null, false, true);
+			assertThat(calcEmat(confSpace, null, PosInterDist.DesmetEtAl1992, null, false, true, cacheFile), is(expectedRigid));
+			assertThat(cacheSize(cacheFile), is(2L*numEntries));
+		}
+	}
+
+	@Test
+	public void cacheKeys() {
+
+		SimpleReferenceEnergies eref = calcEref(null, false);
+
+		CPUConfEnergyCalculator confEcalc = new CPUConfEnergyCalculator(confSpace);
+		CPUConfEnergyCalculator lbfgsbConfEcalc = new CPUConfEnergyCalculator(confSpace, LBFGSBMinimizer.class.getName(), (f) -> new LBFGSBMinimizer(f));
+		FragmentEnergyCache.Keys keys = new FragmentEnergyCache.Keys(confEcalc, false);
+		FragmentEnergyCache.Keys otherKeys = new FragmentEnergyCache.Keys(confEcalc, false);
+		FragmentEnergyCache.Keys minimizedKeys = new FragmentEnergyCache.Keys(confEcalc, true);
+		FragmentEnergyCache.Keys lbfgsbKeys = new FragmentEnergyCache.Keys(lbfgsbConfEcalc, false);
+		FragmentEnergyCache.Keys lbfgsbMinimizedKeys = new FragmentEnergyCache.Keys(lbfgsbConfEcalc, true);
+
+		for (int posi1=0; posi1<confSpace.numPos(); posi1++) {
+			for (int confi1=0; confi1<confSpace.numConf(posi1); confi1++) {
+
+				// reference energies change the singles
+				List<PosInter> inters = PosInterDist.DesmetEtAl1992.single(confSpace, null, posi1, confi1);
+				List<PosInter> erefInters = PosInterDist.DesmetEtAl1992.single(confSpace, eref, posi1, confi1);
+				byte[] key = keys.single(posi1, confi1, inters);
+				assertThat(otherKeys.single(posi1, confi1, inters), is(key));
+				assertThat(keys.single(posi1, confi1, erefInters), is(not(key)));
+				assertThat(minimizedKeys.single(posi1, confi1, inters), is(not(key)));
+
+				// the minimizer only matters for minimized energies
+				assertThat(lbfgsbKeys.single(posi1, confi1, inters), is(key));
+				assertThat(lbfgsbMinimizedKeys.single(posi1, confi1, inters), is(not(minimizedKeys.single(posi1, confi1, inters))));
+
+				// but not the pairs
+				for (int posi2=0; posi2<posi1; posi2++) {
+					for (int confi2=0; confi2<confSpace.numConf(posi2); confi2++) {
+						List<PosInter> pairInters = PosInterDist.DesmetEtAl1992.pair(confSpace, eref, posi1, confi1, posi2, confi2);
+						byte[] pairKey = keys.pair(posi1, confi1, posi2, confi2, pairInters);
+						assertThat(otherKeys.pair(posi1, confi1, posi2, confi2, PosInterDist.DesmetEtAl1992.pair(confSpace, null, posi1, confi1, posi2, confi2)), is(pairKey));
+						assertThat(pairKey, is(not(key)));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void cacheSharedAcrossConfSpaces() {
+
+		// design chain A by itself first, then the complex
+		ConfSpace chainA = ConfSpace.fromBytes(FileTools.readResourceBytes("/confSpaces/2RL0.A.ccsx"));
+		ConfSpace complex = ConfSpace.fromBytes(FileTools.readResourceBytes("/confSpaces/2RL0.complex.ccsx"));
+
+		try (TempFile cacheFile = new TempFile("emat.cache")) {
+
+			calcEmat(chainA, null, PosInterDist.DesmetEtAl1992, null, false, false, cacheFile);
+			long chainASize = cacheSize(cacheFile);
+
+			// the complex energies should still be correct
+			EnergyMatrix expected = calcEmat(complex, null, PosInterDist.DesmetEtAl1992, null, false, false, null);
+			assertThat(calcEmat(complex, null, PosInterDist.DesmetEtAl1992, null, false, false, cacheFile), is(expected));
+
+			// but the pairs within chain A don't depend on the rest of the complex, so they should be reused
+			long numComplexEntries = complex.countSingles() + complex.countPairs();
+			assertThat(cacheSize(cacheFile), lessThan(chainASize + numComplexEntries));
+		}
+	}
+
+	@Test
+	public void distanceCutoff() {
+
+		ConfSpace complex = ConfSpace.fromBytes(FileTools.readResourceBytes("/confSpaces/2RL0.complex.ccsx"));
+		PosDistances distances = new PosDistances(complex);
+
+		// the distance bounds should never be bigger than the real distances
+		for (int posi1=0; posi1<complex.numPos(); posi1++) {
+			for (int posi2=0; posi2<posi1; posi2++) {
+				double minDist = Double.POSITIVE_INFINITY;
+				for (ConfSpace.Conf conf1 : complex.positions[posi1].confs) {
+					for (ConfSpace.Conf conf2 : complex.positions[posi2].confs) {
+						for (int a1=0; a1<conf1.coords.size; a1++) {
+							for (int a2=0; a2<conf2.coords.size; a2++) {
+								double dx = conf1.coords.x(a1) - conf2.coords.x(a2);
+								double dy = conf1.coords.y(a1) - conf2.coords.y(a2);
+								double dz = conf1.coords.z(a1) - conf2.coords.z(a2);
+								minDist = Math.min(minDist, Math.sqrt(dx*dx + dy*dy + dz*dz));
+							}
+						}
+					}
+				}
+				assertThat(distances.get(posi1, posi2), lessThanOrEqualTo(minDist));
+				assertThat(distances.get(posi2, posi1), is(distances.get(posi1, posi2)));
+			}
+		}
+
+		EnergyMatrix dense = calcEmat(complex, null, PosInterDist.DesmetEtAl1992, null, false, false, null);
+
+		// pick a cutoff that skips some pairs, but not all of them
+		double cutoff = 4.0;
+		int numPosPairs = complex.numPos()*(complex.numPos() - 1)/2;
+		assertThat(distances.countWithin(cutoff), greaterThan(0));
+		assertThat(distances.countWithin(cutoff), lessThan(numPosPairs));
+
+		EnergyMatrix emat = new EmatCalculator.Builder(new CPUConfEnergyCalculator(complex))
+			.setPosInterDist(PosInterDist.DesmetEtAl1992)
+			.setMinimize(false)
+			.setDistanceCutoff(cutoff)
+			.build()
+			.calc();
+		assertThat(emat, instanceOf(SparseEnergyMatrix.class));
+		SparseEnergyMatrix sparse = (SparseEnergyMatrix)emat;
+
+		for (int posi1=0; posi1<complex.numPos(); posi1++) {
+			for (int confi1=0; confi1<complex.numConf(posi1); confi1++) {
+				assertThat(sparse.getOneBody(posi1, confi1), is(dense.getOneBody(posi1, confi1)));
+				for (int posi2=0; posi2<posi1; posi2++) {
+					assertThat(sparse.isNeighbor(posi1, posi2), is(distances.isWithin(posi1, posi2, cutoff)));
+					for (int confi2=0; confi2<complex.numConf(posi2); confi2++) {
+						if (sparse.isNeighbor(posi1, posi2)) {
+							assertThat(sparse.getPairwise(posi1, confi1, posi2, confi2), is(dense.getPairwise(posi1, confi1, posi2, confi2)));
+						} else {
+							assertThat(sparse.getPairwise(posi1, confi1, posi2, confi2), is(0.0));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void distanceCutoffTighterBounds() {
+		new EmatCalculator.Builder(new CPUConfEnergyCalculator(confSpace))
+			.setPosInterDist(PosInterDist.TighterBounds)
+			.setDistanceCutoff(10.0)
+			.build();
+	}
+}
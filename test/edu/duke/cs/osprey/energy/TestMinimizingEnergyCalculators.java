@@ -130,6 +130,14 @@ public class TestMinimizingEnergyCalculators extends TestBase {
 			.setParallelism(Parallelism.makeCpu(2)));
 	}
 	
+	@Test
+	public void energyCpuLBFGSBOneThread() {
+		// a gradient-based minimizer won't always settle into the same local minima as CCD
+		assertEnergies(new EnergyCalculator.Builder(confSpace, ffparams)
+			.setType(EnergyCalculator.Type.CpuLBFGSB)
+			.setParallelism(Parallelism.makeCpu(1)), 0.2);
+	}
+	
 	@Test
 	public void energyOpenclOneStream() {
 		assertEnergies(new EnergyCalculator.Builder(confSpace, ffparams)
@@ -201,6 +209,10 @@ public class TestMinimizingEnergyCalculators extends TestBase {
 	}
 	
 	private void assertEnergies(EnergyCalculator.Builder builder) {
+		assertEnergies(builder, 1e-9);
+	}
+
+	private void assertEnergies(EnergyCalculator.Builder builder, double epsilon) {
 
 		// skip the test if the ecalc isn't supported on this platform
 		assumeTrue(builder.getType() == null || builder.getType().isSupported());
@@ -211,23 +223,23 @@ public class TestMinimizingEnergyCalculators extends TestBase {
 				ConfEnergyCalculator confEcalc = new ConfEnergyCalculator.Builder(confSpace, ecalc)
 					.setEnergyPartition(epart)
 					.build();
-				assertEnergies(confEcalc);
+				assertEnergies(confEcalc, epsilon);
 			});
 		}
 	}
 
-	private void assertEnergies(ConfEnergyCalculator confEcalc) {
+	private void assertEnergies(ConfEnergyCalculator confEcalc, double epsilon) {
 		
 		List<EnergiedConf> econfs = confEcalc.calcAllEnergies(confs);
 		
 		assertThat(econfs.size(), is(ExpectedEnergies.length));
 		
 		for (int i=0; i<econfs.size(); i++) {
-			assertEnergy(ExpectedEnergies[i], econfs.get(i).getEnergy(), "conf " + i);
+			assertEnergy(ExpectedEnergies[i], econfs.get(i).getEnergy(), epsilon, "conf " + i);
 		}
 	}
 	
-	private void assertEnergy(double exp, double obs, String desc) {
+	private void assertEnergy(double exp, double obs, double epsilon, String desc) {
 		
 		// for minimized energies, lower observed energy is ok,
 		// since improvements to minimizers over time could give us lower energies
@@ -235,7 +247,7 @@ public class TestMinimizingEnergyCalculators extends TestBase {
 			return;
 		}
 		
-		assertThat(desc, obs, isAbsolutely(exp, 1e-9));
+		assertThat(desc, obs, isAbsolutely(exp, epsilon));
 	}
 	
 	public static void main(String[] args) {
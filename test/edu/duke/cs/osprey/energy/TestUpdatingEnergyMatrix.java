@@ -45,6 +45,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
 
 public class TestUpdatingEnergyMatrix {
     public static final int NUM_FLEX = 10;
@@ -76,6 +81,63 @@ public class TestUpdatingEnergyMatrix {
         runManual(trie);
     }
 
+    @Test
+    public void testTupleTrieSubsets() {
+        SimpleConfSpace confSpace = make1GUASmall(4);
+        UpdatingEnergyMatrix.TupleTrie trie = new UpdatingEnergyMatrix.TupleTrie(confSpace.positions);
+        trie.insert(new TupE(new RCTuple(0, 1, 1, 2, 2, 3), 1.0));
+        trie.insert(new TupE(new RCTuple(1, 2, 2, 3, 3, 4), 2.0));
+        trie.insert(new TupE(new RCTuple(0, 2, 1, 2, 2, 3), 4.0));
+
+        assertThat(trie.size(), is(3));
+        assertThat(trie.contains(new RCTuple(0, 1, 1, 2, 2, 3)), is(true));
+        assertThat(trie.contains(new RCTuple(2, 3, 0, 1, 1, 2)), is(true));
+        assertThat(trie.contains(new RCTuple(0, 1, 1, 2, 3, 4)), is(false));
+
+        assertThat(energies(trie.getCorrections(new RCTuple(0, 1, 1, 2, 2, 3, 3, 4))), containsInAnyOrder(1.0, 2.0));
+        assertThat(energies(trie.getCorrections(new RCTuple(3, 4, 2, 3, 1, 2, 0, 2))), containsInAnyOrder(2.0, 4.0));
+        assertThat(energies(trie.getCorrections(new RCTuple(0, 1, 1, 2, 3, 4))), is(empty()));
+
+        // re-inserting a tuple keeps the larger correction
+        trie.insert(new TupE(new RCTuple(0, 1, 1, 2, 2, 3), 3.0));
+        trie.insert(new TupE(new RCTuple(0, 1, 1, 2, 2, 3), 0.5));
+        assertThat(trie.size(), is(3));
+        assertThat(trie.get(new RCTuple(0, 1, 1, 2, 2, 3)).E, is(3.0));
+        assertThat(energies(trie.getCorrections(new RCTuple(0, 1, 1, 2, 2, 3))), contains(3.0));
+    }
+
+    @Test
+    public void testTupleTrieConcurrent() {
+        SimpleConfSpace confSpace = make1GUASmall(4);
+        UpdatingEnergyMatrix.TupleTrie trie = new UpdatingEnergyMatrix.TupleTrie(confSpace.positions);
+
+        // every thread inserts every triple, while reading them back
+        int numRCs = 6;
+        List<RCTuple> triples = new ArrayList<>();
+        for(int rc1 = 0; rc1 < numRCs; rc1++)
+            for(int rc2 = 0; rc2 < numRCs; rc2++)
+                for(int rc3 = 0; rc3 < numRCs; rc3++)
+                    triples.add(new RCTuple(0, rc1, 2, rc2, 3, rc3));
+
+        IntStream.range(0, 8).parallel().forEach((thread) -> {
+            for(RCTuple triple : triples) {
+                trie.insert(new TupE(triple, 1.0 + thread));
+                assertThat(trie.contains(triple), is(true));
+                assertThat(trie.getCorrections(triple).size(), is(1));
+            }
+        });
+
+        assertThat(trie.size(), is(triples.size()));
+        for(RCTuple triple : triples)
+            assertThat(energies(trie.getCorrections(triple.addRC(1, 0))), contains(8.0));
+    }
+
+    private static List<Double> energies(List<TupE> corrections) {
+        return corrections.stream()
+            .map((correction) -> correction.E)
+            .collect(Collectors.toList());
+    }
+
     private void runManual(UpdatingEnergyMatrix.TupleTrie trie) {
         for(TupE tupE : makeManualTupE()) {
             System.out.println("Inserting "+tupE.tup.stringListing()+":"+tupE.E);
@@ -0,0 +1,129 @@
+package edu.duke.cs.osprey.energy.compiled;
+
+import static edu.duke.cs.osprey.TestBase.isAbsolutely;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.confspace.compiled.AssignedCoords;
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.DegreeOfFreedom;
+import edu.duke.cs.osprey.confspace.compiled.PosInter;
+import edu.duke.cs.osprey.confspace.compiled.PosInterDist;
+import edu.duke.cs.osprey.confspace.compiled.TestConfSpace;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+
+public class TestAmberEEF1Kernel {
+
+	private static final TestConfSpace.AffinityCompiled confSpaces = TestConfSpace.Design2RL0Interface7Mut.makeCompiled();
+
+	private static double calcEnergy(ConfSpace confSpace, AssignedCoords coords, List<PosInter> inters) {
+		double energy = 0.0;
+		for (EnergyCalculator ecalc : confSpace.ecalcs) {
+			energy += ecalc.calcEnergy(coords, inters);
+		}
+		return energy;
+	}
+
+	private static double calcSubEnergy(ConfSpace confSpace, AssignedCoords coords, List<PosInter> inters, Set<Integer> posIndices) {
+		double energy = 0.0;
+		for (EnergyCalculator ecalc : confSpace.ecalcs) {
+			energy += ecalc.calcSubEnergy(coords, inters, posIndices);
+		}
+		return energy;
+	}
+
+	private static int[] randomConf(ConfSpace confSpace, Random rand) {
+		int[] conf = confSpace.assign();
+		for (ConfSpace.Pos pos : confSpace.positions) {
+			conf[pos.index] = rand.nextInt(pos.confs.length);
+		}
+		return conf;
+	}
+
+	private static void assertEnergies(ConfSpace confSpace) {
+
+		assertThat(AmberEEF1Kernel.supports(confSpace), is(true));
+		AmberEEF1Kernel kernel = new AmberEEF1Kernel(confSpace);
+
+		Random rand = new Random(12345);
+		for (int i=0; i<10; i++) {
+
+			int[] conf = randomConf(confSpace, rand);
+			AssignedCoords coords = confSpace.makeCoords(conf);
+
+			// move the atoms off the fragment centers too
+			for (DegreeOfFreedom dof : coords.dofs) {
+				dof.set(dof.min() + rand.nextDouble()*(dof.max() - dof.min()));
+			}
+
+			// check the full conformation energy, with weights and offsets
+			List<PosInter> inters = PosInterDist.all(confSpace, null, conf).stream()
+				.map(inter -> new PosInter(inter.posi1, inter.posi2, 0.5 + rand.nextDouble(), rand.nextDouble()))
+				.collect(Collectors.toList());
+			double expected = calcEnergy(confSpace, coords, inters);
+			assertThat(kernel.calcEnergy(coords, inters), isAbsolutely(expected, 1e-9*Math.max(1.0, Math.abs(expected))));
+
+			// check each interaction individually
+			for (PosInter inter : inters) {
+				double expectedInter = calcEnergy(confSpace, coords, Arrays.asList(inter));
+				assertThat(inter.toString(), kernel.calcEnergy(coords, inter), isAbsolutely(expectedInter, 1e-9*Math.max(1.0, Math.abs(expectedInter))));
+			}
+
+			// check the sub-energies for each position
+			for (ConfSpace.Pos pos : confSpace.positions) {
+				Set<Integer> posIndices = Set.of(pos.index);
+				double expectedSub = calcSubEnergy(confSpace, coords, inters, posIndices);
+				assertThat(kernel.calcSubEnergy(coords, inters, posIndices), isAbsolutely(expectedSub, 1e-9*Math.max(1.0, Math.abs(expectedSub))));
+			}
+		}
+	}
+
+	@Test
+	public void complex() {
+		assertEnergies(confSpaces.complex);
+	}
+
+	@Test
+	public void chainA() {
+		assertEnergies(confSpaces.chainA);
+	}
+
+	@Test
+	public void chainB() {
+		assertEnergies(confSpaces.chainB);
+	}
+
+	@Test
+	public void partialAssignments() {
+
+		ConfSpace confSpace = confSpaces.complex;
+		AmberEEF1Kernel kernel = new AmberEEF1Kernel(confSpace);
+
+		// assign only the first position, and make sure the unassigned positions contribute nothing
+		int[] conf = confSpace.assign(0, 0);
+		AssignedCoords coords = confSpace.makeCoords(conf);
+
+		List<PosInter> inters = new ArrayList<>();
+		inters.add(new PosInter(PosInter.StaticPos, PosInter.StaticPos, 1.0, 0.0));
+		inters.add(new PosInter(0, 0, 1.0, 0.0));
+		inters.add(new PosInter(0, PosInter.StaticPos, 1.0, 0.0));
+		double expected = calcEnergy(confSpace, coords, inters);
+
+		IntStream.range(1, confSpace.positions.length).forEach(posi -> {
+			inters.add(new PosInter(posi, posi, 1.0, 0.0));
+			inters.add(new PosInter(posi, PosInter.StaticPos, 1.0, 0.0));
+			inters.add(new PosInter(0, posi, 1.0, 0.0));
+		});
+
+		assertThat(kernel.calcEnergy(coords, inters), isAbsolutely(expected, 1e-9*Math.abs(expected)));
+	}
+}
@@ -0,0 +1,142 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+package edu.duke.cs.osprey.energy.forcefield;
+
+import static edu.duke.cs.osprey.TestBase.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.energy.ResidueInteractions;
+import edu.duke.cs.osprey.structure.AtomConnectivity;
+import edu.duke.cs.osprey.structure.Residues;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestResPairCache {
+
+	private static Residues residues;
+	private static ResidueInteractions inters;
+
+	@BeforeClass
+	public static void before() {
+		TestForcefieldEnergy.before();
+
+		TestForcefieldEnergy.TestResidues r = new TestForcefieldEnergy.TestResidues();
+		residues = new Residues(
+			r.gly06, r.gly15, r.ser17, r.trp18, r.trp25, r.arg22, r.ala24, r.ile26, r.phe31, r.arg32, r.glu34, r.val36,
+			r.leu39, r.trp47, r.leu48, r.ile53, r.arg55, r.val56, r.leu57, r.ile59, r.val62, r.leu64, r.val65, r.met66
+		);
+		inters = new ResidueInteractions();
+		inters.addComplete(residues);
+	}
+
+	private static ResPairCache makeCache(int maxSize) {
+		return new ResPairCache(new ForcefieldParams(), new AtomConnectivity.Builder().build(), maxSize);
+	}
+
+	@Test
+	public void hitsAndMisses() {
+
+		ResPairCache cache = makeCache(ResPairCache.DefaultMaxSize);
+
+		// the first energy function should only miss
+		new ResidueForcefieldEnergy(cache, inters, residues);
+		ResPairCache.Stats stats1 = cache.getStats();
+		assertThat(stats1.misses, greaterThan(0L));
+		assertThat(stats1.hits + stats1.misses, is((long)inters.size()));
+		assertThat(stats1.size, is((int)stats1.misses));
+		assertThat(stats1.evictions, is(0L));
+
+		// the second energy function should only hit
+		new ResidueForcefieldEnergy(cache, inters, residues);
+		ResPairCache.Stats stats2 = cache.getStats();
+		assertThat(stats2.misses, is(stats1.misses));
+		assertThat(stats2.hits, is(stats1.hits + inters.size()));
+	}
+
+	@Test
+	public void computeOnceAcrossThreads() throws Exception {
+
+		ResPairCache cache = makeCache(ResPairCache.DefaultMaxSize);
+		int numThreads = 8;
+
+		ExecutorService threads = Executors.newFixedThreadPool(numThreads);
+		try {
+
+			List<Future<ResidueForcefieldEnergy>> futures = new ArrayList<>();
+			for (int i=0; i<numThreads; i++) {
+				futures.add(threads.submit(() -> new ResidueForcefieldEnergy(cache, inters, residues)));
+			}
+			List<ResidueForcefieldEnergy> efuncs = new ArrayList<>();
+			for (Future<ResidueForcefieldEnergy> future : futures) {
+				efuncs.add(future.get());
+			}
+
+			// every thread should see the same precomputed params
+			for (ResidueForcefieldEnergy efunc : efuncs) {
+				for (int i=0; i<efunc.resPairs.length; i++) {
+					assertThat(efunc.resPairs[i].info, sameInstance(efuncs.get(0).resPairs[i].info));
+				}
+			}
+
+			// and each one should have been computed exactly once
+			ResPairCache.Stats stats = cache.getStats();
+			assertThat(stats.misses, is((long)stats.size));
+			assertThat(stats.hits + stats.misses, is((long)inters.size()*numThreads));
+
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	@Test
+	public void eviction() {
+
+		double expected = new ResidueForcefieldEnergy(makeCache(ResPairCache.DefaultMaxSize), inters, residues).getEnergy();
+
+		ResPairCache cache = makeCache(10);
+		ResidueForcefieldEnergy efunc = new ResidueForcefieldEnergy(cache, inters, residues);
+
+		// the cache should stay bounded, but the energies shouldn't change
+		ResPairCache.Stats stats = cache.getStats();
+		assertThat(stats.size, lessThanOrEqualTo(10));
+		assertThat(stats.evictions, greaterThan(0L));
+		assertThat(efunc.getEnergy(), isAbsolutely(expected, 1e-12));
+	}
+}
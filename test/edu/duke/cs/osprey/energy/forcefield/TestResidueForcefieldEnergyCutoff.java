@@ -0,0 +1,165 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+package edu.duke.cs.osprey.energy.forcefield;
+
+import static edu.duke.cs.osprey.TestBase.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import edu.duke.cs.osprey.energy.AtomGradients;
+import edu.duke.cs.osprey.energy.ResidueInteractions;
+import edu.duke.cs.osprey.structure.AtomConnectivity;
+import edu.duke.cs.osprey.structure.Residue;
+import edu.duke.cs.osprey.structure.Residues;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestResidueForcefieldEnergyCutoff {
+
+	@BeforeClass
+	public static void before() {
+		TestForcefieldEnergy.before();
+	}
+
+	private static Residues makeResidues(TestForcefieldEnergy.TestResidues r) {
+		return new Residues(
+			r.gly06, r.gly15, r.ser17, r.trp18, r.trp25, r.arg22, r.ala24, r.ile26, r.phe31, r.arg32, r.glu34, r.val36,
+			r.leu39, r.trp47, r.leu48, r.ile53, r.arg55, r.val56, r.leu57, r.ile59, r.val62, r.leu64, r.val65, r.met66
+		);
+	}
+
+	private static ResidueForcefieldEnergy makeEfunc(Residues residues, double cutoff) {
+
+		ForcefieldParams ffparams = new ForcefieldParams();
+		ffparams.pairCutoff = cutoff;
+
+		ResPairCache resPairCache = new ResPairCache(ffparams, new AtomConnectivity.Builder().build());
+		ResidueInteractions inters = new ResidueInteractions();
+		inters.addComplete(residues);
+
+		return new ResidueForcefieldEnergy(resPairCache, inters, residues);
+	}
+
+	private static void translate(Residue res, double dx, double dy, double dz) {
+		for (int i=0; i<res.coords.length; i+=3) {
+			res.coords[i] += dx;
+			res.coords[i + 1] += dy;
+			res.coords[i + 2] += dz;
+		}
+	}
+
+	@Test
+	public void noCutoff() {
+
+		Residues residues = makeResidues(new TestForcefieldEnergy.TestResidues());
+		ResidueForcefieldEnergy efunc = makeEfunc(residues, Double.POSITIVE_INFINITY);
+
+		efunc.getEnergy();
+		assertThat(efunc.getNumNeighborListBuilds(), is(0));
+	}
+
+	@Test
+	public void hugeCutoffMatchesFull() {
+
+		Residues residues = makeResidues(new TestForcefieldEnergy.TestResidues());
+		double expected = makeEfunc(residues, Double.POSITIVE_INFINITY).getEnergy();
+
+		ResidueForcefieldEnergy efunc = makeEfunc(residues, 1000.0);
+		assertThat(efunc.getEnergy(), isAbsolutely(expected, 1e-9));
+		assertThat(efunc.getEnergyAndGradients(new AtomGradients()), isAbsolutely(expected, 1e-9));
+	}
+
+	@Test
+	public void cutoffIsClose() {
+
+		Residues residues = makeResidues(new TestForcefieldEnergy.TestResidues());
+		double expected = makeEfunc(residues, Double.POSITIVE_INFINITY).getEnergy();
+
+		ResidueForcefieldEnergy efunc = makeEfunc(residues, 16.0);
+		assertThat(efunc.getEnergy(), isAbsolutely(expected, 0.5));
+		assertThat(efunc.getEnergyAndGradients(new AtomGradients()), isAbsolutely(efunc.getEnergy(), 1e-9));
+	}
+
+	@Test
+	public void rebuildOnlyAfterMoving() {
+
+		TestForcefieldEnergy.TestResidues r = new TestForcefieldEnergy.TestResidues();
+		Residues residues = makeResidues(r);
+		ResidueForcefieldEnergy efunc = makeEfunc(residues, 8.0);
+
+		efunc.getEnergy();
+		int numBuilds = efunc.getNumNeighborListBuilds();
+		assertThat(numBuilds, is(efunc.resPairs.length));
+
+		// small moves shouldn't rebuild anything
+		translate(r.trp25, 0.1, 0.0, 0.0);
+		efunc.getEnergy();
+		assertThat(efunc.getNumNeighborListBuilds(), is(numBuilds));
+
+		// big moves should rebuild only the lists for the moved residue
+		translate(r.trp25, 3.0, 0.0, 0.0);
+		double energy = efunc.getEnergy();
+		int numMovedPairs = efunc.makeResPairsSubset(r.trp25).length;
+		assertThat(efunc.getNumNeighborListBuilds(), is(numBuilds + numMovedPairs));
+
+		// and the energy should match freshly-built lists
+		assertThat(energy, isAbsolutely(makeEfunc(residues, 8.0).getEnergy(), 1e-9));
+	}
+
+	@Test
+	public void gradientsInSwitchingRegion() {
+
+		TestForcefieldEnergy.TestResidues r = new TestForcefieldEnergy.TestResidues();
+		Residues residues = makeResidues(r);
+		ResidueForcefieldEnergy efunc = makeEfunc(residues, 8.0);
+
+		AtomGradients gradients = new AtomGradients();
+		efunc.getEnergyAndGradients(gradients);
+
+		// check the analytic gradients against finite differences, for a few atoms
+		double h = 1e-5;
+		for (Residue res : new Residue[] { r.trp25, r.arg22, r.met66 }) {
+			double[] analytic = gradients.get(res);
+			for (int i=0; i<res.coords.length; i+=7) {
+				double x = res.coords[i];
+				res.coords[i] = x + h;
+				double ep = efunc.getEnergy();
+				res.coords[i] = x - h;
+				double em = efunc.getEnergy();
+				res.coords[i] = x;
+				double numeric = (ep - em)/(2*h);
+				assertThat(analytic[i], isAbsolutely(numeric, 1e-4*Math.max(1.0, Math.abs(numeric))));
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+package edu.duke.cs.osprey.externalMemory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestIntDoubleHeap {
+
+	@Test
+	public void empty() {
+		IntDoubleHeap heap = new IntDoubleHeap();
+		assertThat(heap.isEmpty(), is(true));
+		assertThat(heap.size(), is(0));
+	}
+
+	@Test
+	public void matchesPriorityQueue() {
+
+		Random rand = new Random(12345);
+		IntDoubleHeap heap = new IntDoubleHeap(4);
+		PriorityQueue<Double> expected = new PriorityQueue<>();
+
+		// mix pushes and pops, so the heap grows and shrinks a few times
+		for (int i=0; i<100000; i++) {
+			if (expected.isEmpty() || rand.nextInt(3) > 0) {
+				double key = rand.nextGaussian();
+				heap.push(key, i);
+				expected.add(key);
+			} else {
+				assertThat(heap.peekKey(), is(expected.peek()));
+				heap.pop();
+				expected.poll();
+			}
+			assertThat(heap.size(), is(expected.size()));
+		}
+
+		// drain the rest
+		while (!expected.isEmpty()) {
+			assertThat(heap.peekKey(), is(expected.poll()));
+			heap.pop();
+		}
+		assertThat(heap.isEmpty(), is(true));
+	}
+
+	@Test
+	public void handlesFollowKeys() {
+
+		IntDoubleHeap heap = new IntDoubleHeap();
+		heap.push(3.0, 30);
+		heap.push(-1.0, 10);
+		heap.push(2.0, 20);
+
+		assertThat(heap.pop(), is(10));
+		assertThat(heap.pop(), is(20));
+		assertThat(heap.pop(), is(30));
+	}
+
+	@Test
+	public void nanKeysGoLast() {
+
+		IntDoubleHeap heap = new IntDoubleHeap();
+		heap.push(Double.NaN, 0);
+		heap.push(2.0, 2);
+		heap.push(Double.POSITIVE_INFINITY, 3);
+		heap.push(Double.NaN, 4);
+		heap.push(-1.0, 1);
+
+		assertThat(heap.pop(), is(1));
+		assertThat(heap.pop(), is(2));
+		assertThat(heap.pop(), is(3));
+		assertThat(Double.isNaN(heap.peekKey()), is(true));
+		heap.pop();
+		assertThat(Double.isNaN(heap.peekKey()), is(true));
+		heap.pop();
+		assertThat(heap.isEmpty(), is(true));
+	}
+
+	@Test
+	public void sortInPlace() {
+
+		Random rand = new Random(12345);
+		IntDoubleHeap heap = new IntDoubleHeap(4);
+		int n = 1000;
+		double[] keys = new double[n];
+		for (int i=0; i<n; i++) {
+			// lots of ties too
+			keys[i] = rand.nextInt(100);
+			heap.push(keys[i], i);
+		}
+
+		heap.sort();
+		Arrays.sort(keys);
+		for (int i=0; i<n; i++) {
+			assertThat(heap.getKey(i), is(keys[i]));
+			assertThat(heap.getHandle(i) >= 0 && heap.getHandle(i) < n, is(true));
+		}
+
+		// dropping the worst half leaves a valid heap of the best half
+		heap.truncate(n/2);
+		for (int i=0; i<n/2; i++) {
+			assertThat(heap.peekKey(), is(keys[i]));
+			heap.pop();
+		}
+		assertThat(heap.isEmpty(), is(true));
+	}
+
+	@Test
+	public void doublePriorityQueue() {
+
+		Queue<String> q = Queue.DoublePriorityFactory.of(String::length);
+		q.push("ccc");
+		q.push("a");
+		q.push("dddd");
+		q.push("bb");
+
+		assertThat(q.size(), is(4L));
+		assertThat(q.poll(), is("a"));
+		assertThat(q.poll(), is("bb"));
+
+		// reuse freed slots
+		q.push("e");
+		assertThat(q.poll(), is("e"));
+		assertThat(q.poll(), is("ccc"));
+		assertThat(q.poll(), is("dddd"));
+		assertThat(q.poll(), is(nullValue()));
+		assertThat(q.isEmpty(), is(true));
+	}
+}
@@ -0,0 +1,246 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.externalMemory;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import edu.duke.cs.tpie.EntrySize;
+import edu.duke.cs.tpie.serialization.SerializingDoublePriorityQueue;
+import org.junit.Test;
+
+public class TestSpillingPriorityQueue {
+
+	private static class Entry {
+
+		final double key;
+		final int id;
+
+		Entry(double key, int id) {
+			this.key = key;
+			this.id = id;
+		}
+	}
+
+	private static class EntrySerializer implements SerializingDoublePriorityQueue.Serializer<Entry> {
+
+		@Override
+		public EntrySize getEntrySize() {
+			return EntrySize.Bytes8;
+		}
+
+		@Override
+		public double serialize(Entry entry, ByteBuffer buf) {
+			buf.putInt(entry.id);
+			return entry.key;
+		}
+
+		@Override
+		public Entry deserialize(double key, ByteBuffer buf) {
+			return new Entry(key, buf.getInt());
+		}
+	}
+
+	private static SpillingPriorityQueue<Entry> makeQueue(long maxNumInMemory) {
+		return makeQueue(maxNumInMemory, new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	private static SpillingPriorityQueue<Entry> makeQueue(long maxNumInMemory, File dir) {
+		return new SpillingPriorityQueue<>(
+			new EntrySerializer(),
+			(entry) -> entry.key,
+			maxNumInMemory,
+			dir
+		);
+	}
+
+	@Test
+	public void empty() {
+		SpillingPriorityQueue<Entry> q = makeQueue(10);
+		assertThat(q.isEmpty(), is(true));
+		assertThat(q.size(), is(0L));
+		assertThat(q.peek(), is(nullValue()));
+	}
+
+	@Test
+	public void smallQueueDoesntSpill() {
+
+		SpillingPriorityQueue<Entry> q = makeQueue(100);
+		for (int i=0; i<100; i++) {
+			q.push(new Entry(100 - i, i));
+		}
+
+		assertThat(q.getNumSpilled(), is(0L));
+		assertThat(q.getNumRuns(), is(0));
+		for (int i=99; i>=0; i--) {
+			assertThat(q.poll().id, is(i));
+		}
+		assertThat(q.isEmpty(), is(true));
+	}
+
+	@Test
+	public void matchesPriorityQueue() {
+
+		Random rand = new Random(12345);
+		SpillingPriorityQueue<Entry> q = makeQueue(64);
+		PriorityQueue<Double> expected = new PriorityQueue<>();
+
+		// mix pushes and pops, so the queue spills and merges a few times
+		for (int i=0; i<100000; i++) {
+			if (expected.isEmpty() || rand.nextInt(3) > 0) {
+				double key = rand.nextGaussian();
+				q.push(new Entry(key, i));
+				expected.add(key);
+			} else {
+				assertThat(q.peek().key, is(expected.peek()));
+				q.pop();
+				expected.poll();
+			}
+			assertThat(q.size(), is((long)expected.size()));
+			assertThat(q.getNumInMemory(), lessThanOrEqualTo(64L));
+			// a few thousand spills only need a few levels of runs
+			assertThat(q.getNumRuns(), lessThanOrEqualTo(3*SpillingPriorityQueue.MergeFanIn));
+		}
+		assertThat(q.getNumSpilled(), greaterThan(0L));
+
+		// drain the rest
+		while (!expected.isEmpty()) {
+			assertThat(q.poll().key, is(expected.poll()));
+		}
+		assertThat(q.isEmpty(), is(true));
+		assertThat(q.getNumRuns(), is(0));
+	}
+
+	@Test
+	public void mergesAreLogarithmic() {
+
+		// spill about 2500 tiny runs, which would rewrite everything many times if we merged all the runs each time
+		SpillingPriorityQueue<Entry> q = makeQueue(4);
+		int n = 5000;
+		for (int i=0; i<n; i++) {
+			q.push(new Entry(n - i, i));
+		}
+
+		// each value should only get merged once per level (log base 16 of 2500 is < 3)
+		assertThat(q.getNumMerged(), lessThanOrEqualTo(3*q.getNumSpilled()));
+		assertThat(q.getNumRuns(), lessThanOrEqualTo(3*SpillingPriorityQueue.MergeFanIn));
+
+		for (int i=n - 1; i>=0; i--) {
+			assertThat(q.poll().id, is(i));
+		}
+		assertThat(q.isEmpty(), is(true));
+	}
+
+	@Test
+	public void peekIterator() {
+
+		SpillingPriorityQueue<Entry> q = makeQueue(8);
+		int n = 100;
+		for (int i=0; i<n; i++) {
+			q.push(new Entry(n - i, i));
+		}
+
+		// read some values, so some runs are partially consumed
+		for (int i=0; i<10; i++) {
+			q.pop();
+		}
+		assertThat(q.getNumRuns(), greaterThan(0));
+
+		// the iterator should see every value left, without removing any
+		boolean[] seen = new boolean[n];
+		Iterator<Entry> iter = q.peekIterator();
+		int numSeen = 0;
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			assertThat(seen[entry.id], is(false));
+			seen[entry.id] = true;
+			numSeen++;
+		}
+		assertThat(numSeen, is(n - 10));
+		assertThat(q.size(), is((long)(n - 10)));
+
+		for (int i=n - 11; i>=0; i--) {
+			assertThat(seen[i], is(true));
+			assertThat(q.poll().id, is(i));
+		}
+		assertThat(q.isEmpty(), is(true));
+	}
+
+	@Test
+	public void closeDeletesRuns()
+	throws IOException {
+
+		File dir = Files.createTempDirectory("spillingQueue").toFile();
+		try {
+
+			SpillingPriorityQueue<Entry> q = makeQueue(4, dir);
+			for (int i=0; i<100; i++) {
+				q.push(new Entry(i, i));
+			}
+			assertThat(q.getNumRuns(), greaterThan(0));
+			assertThat(dir.list().length, is(q.getNumRuns()));
+
+			q.close();
+			assertThat(q.isEmpty(), is(true));
+			assertThat(dir.list().length, is(0));
+
+		} finally {
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void spilledValuesRoundTrip() {
+
+		SpillingPriorityQueue<Entry> q = makeQueue(2);
+		for (int i=0; i<10; i++) {
+			q.push(new Entry(i, i*10));
+		}
+		assertThat(q.getNumSpilled(), greaterThan(0L));
+
+		for (int i=0; i<10; i++) {
+			Entry entry = q.poll();
+			assertThat(entry.key, is((double)i));
+			assertThat(entry.id, is(i*10));
+		}
+	}
+}
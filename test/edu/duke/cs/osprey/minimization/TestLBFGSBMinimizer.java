@@ -0,0 +1,331 @@
+/*
+** This file is part of OSPREY 3.0
+** 
+** OSPREY Protein Redesign Software Version 3.0
+** Copyright (C) 2001-2018 Bruce Donald Lab, Duke University
+** 
+** OSPREY is free software: you can redistribute it and/or modify
+** it under the terms of the GNU General Public License version 2
+** as published by the Free Software Foundation.
+** 
+** You should have received a copy of the GNU General Public License
+** along with OSPREY.  If not, see <http://www.gnu.org/licenses/>.
+** 
+** OSPREY relies on grants for its development, and since visibility
+** in the scientific literature is essential for our success, we
+** ask that users of OSPREY cite our papers. See the CITING_OSPREY
+** document in this distribution for more information.
+** 
+** Contact Info:
+**    Bruce Donald
+**    Duke University
+**    Department of Computer Science
+**    Levine Science Research Center (LSRC)
+**    Durham
+**    NC 27708-0129
+**    USA
+**    e-mail: www.cs.duke.edu/brd/
+** 
+** <signature of Bruce Donald>, Mar 1, 2018
+** Bruce Donald, Professor of Computer Science
+*/
+
+
+package edu.duke.cs.osprey.minimization;
+
+import static edu.duke.cs.osprey.TestBase.isAbsolutely;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import cern.colt.matrix.DoubleFactory1D;
+import cern.colt.matrix.DoubleMatrix1D;
+import edu.duke.cs.osprey.TestBase;
+import edu.duke.cs.osprey.confspace.ParametricMolecule;
+import edu.duke.cs.osprey.confspace.SimpleConfSpace;
+import edu.duke.cs.osprey.confspace.Strand;
+import edu.duke.cs.osprey.confspace.StrandFlex;
+import edu.duke.cs.osprey.confspace.compiled.AssignedCoords;
+import edu.duke.cs.osprey.confspace.compiled.ConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.DegreeOfFreedom;
+import edu.duke.cs.osprey.confspace.compiled.PosInter;
+import edu.duke.cs.osprey.confspace.compiled.PosInterDist;
+import edu.duke.cs.osprey.confspace.compiled.TestConfSpace;
+import edu.duke.cs.osprey.confspace.compiled.motions.TranslationRotation;
+import edu.duke.cs.osprey.energy.EnergyCalculator;
+import edu.duke.cs.osprey.energy.ResidueInteractions;
+import edu.duke.cs.osprey.energy.compiled.CPUConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.compiled.ConfEnergyCalculator;
+import edu.duke.cs.osprey.energy.forcefield.ForcefieldParams;
+import edu.duke.cs.osprey.structure.PDBIO;
+import org.joml.Vector3d;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class TestLBFGSBMinimizer {
+
+	private static SimpleConfSpace confSpace;
+	private static ForcefieldParams ffparams;
+	private static List<int[]> confs;
+
+	@BeforeClass
+	public static void beforeClass() {
+
+		// two strands, so the rigid-body motions actually change the energy
+		Strand protein = new Strand.Builder(PDBIO.readFile("examples/python.GMEC/1CC8.ss.pdb"))
+			.setResidues("A2", "A30")
+			.build();
+		protein.flexibility.get("A25").setLibraryRotamers(Strand.WildType, "LEU").setContinuous();
+		protein.flexibility.get("A26").setLibraryRotamers(Strand.WildType).setContinuous();
+		Strand ligand = new Strand.Builder(PDBIO.readFile("examples/python.GMEC/1CC8.ss.pdb"))
+			.setResidues("A34", "A73")
+			.build();
+		ligand.flexibility.get("A40").setLibraryRotamers(Strand.WildType).setContinuous();
+		ligand.flexibility.get("A41").setLibraryRotamers(Strand.WildType).setContinuous();
+		confSpace = new SimpleConfSpace.Builder()
+			.addStrand(protein)
+			.addStrand(ligand, new StrandFlex.TranslateRotate())
+			.build();
+
+		ffparams = new ForcefieldParams();
+
+		confs = Arrays.asList(
+			new int[] { 0, 0, 0, 0 },
+			new int[] { 1, 0, 0, 0 },
+			new int[] { 2, 0, 0, 0 },
+			new int[] { 3, 0, 0, 0 }
+		);
+	}
+
+	@Test
+	public void gradientClassic() {
+
+		try (EnergyCalculator ecalc = new EnergyCalculator.Builder(confSpace, ffparams)
+			.setType(EnergyCalculator.Type.Cpu)
+			.build()) {
+
+			for (int[] conf : confs) {
+
+				ParametricMolecule pmol = confSpace.makeMolecule(conf);
+				ResidueInteractions inters = new ResidueInteractions();
+				inters.addComplete(pmol.mol.residues);
+				MoleculeObjectiveFunction f = ecalc.makeEnergyObjFcn(pmol, inters);
+
+				// NOTE: the EEF1 pair cutoff makes the energy slightly discontinuous,
+				// so check at the voxel centers where we know finite differences don't cross the cutoff
+				assertGradient(f, f.getDOFsCenter(), 1e-4);
+			}
+		}
+	}
+
+	@Test
+	public void gradientCompiled() {
+
+		TestConfSpace.AffinityCompiled design = TestConfSpace.Design2RL0Interface7Mut.makeCompiled();
+		ConfSpace confSpace = design.complex;
+		int[] conf = design.makeConfComplexWt();
+		List<PosInter> inters = PosInterDist.all(confSpace, null, conf);
+
+		AssignedCoords coords = confSpace.makeCoords(conf);
+
+		// the test conf space doesn't have any molecule motions, so add some to the first molecule
+		// NOTE: TranslationRotation dofs apply from the original coords, so only move those
+		// and leave the dihedrals where they are
+		List<DegreeOfFreedom> dofs = new ArrayList<>(coords.dofs);
+		new TranslationRotation(
+			new TranslationRotation.Description(1.2, Math.toRadians(5), new Vector3d(coords.coords.x(0), coords.coords.y(0), coords.coords.z(0))),
+			coords,
+			0
+		).appendDofs(dofs);
+		for (DegreeOfFreedom dof : dofs) {
+			if (dof instanceof TranslationRotation.Dof) {
+				dof.set(dof.min() + (dof.max() - dof.min())*0.6);
+			}
+		}
+
+		double[] coordsGradient = new double[coords.coords.size*3];
+		double energy = 0.0;
+		for (edu.duke.cs.osprey.energy.compiled.EnergyCalculator ecalc : confSpace.ecalcs) {
+			energy += ecalc.calcEnergyAndGradient(coords, inters, coordsGradient);
+		}
+		assertThat(energy, isAbsolutely(calcEnergy(confSpace, coords, inters), 1e-6));
+
+		for (DegreeOfFreedom dof : dofs) {
+
+			double h = dof.initialStepSize()*1e-2;
+			double val = dof.get();
+			dof.set(val + h);
+			double up = calcEnergy(confSpace, coords, inters);
+			dof.set(val - h);
+			double down = calcEnergy(confSpace, coords, inters);
+			dof.set(val);
+			double expected = (up - down)/(2*h);
+
+			assertThat(dof.name(), dof.calcDerivative(coordsGradient), isAbsolutely(expected, 1e-3*Math.max(1, Math.abs(expected))));
+		}
+	}
+
+	@Test
+	public void minimizeClassic() {
+
+		try (EnergyCalculator ecalc = new EnergyCalculator.Builder(confSpace, ffparams)
+			.setType(EnergyCalculator.Type.Cpu)
+			.build()) {
+
+			for (int[] conf : confs) {
+
+				ParametricMolecule pmol = confSpace.makeMolecule(conf);
+				ResidueInteractions inters = new ResidueInteractions();
+				inters.addComplete(pmol.mol.residues);
+
+				CountingObjectiveFunction ccdf = new CountingObjectiveFunction(ecalc.makeEnergyObjFcn(pmol, inters));
+				Minimizer.Result ccd = new SimpleCCDMinimizer(ccdf).minimizeFromCenter();
+
+				CountingObjectiveFunction lbfgsf = new CountingObjectiveFunction(ecalc.makeEnergyObjFcn(pmol, inters));
+				Minimizer.Result lbfgs = new LBFGSBMinimizer(lbfgsf).minimizeFromCenter();
+
+				assertThat(lbfgs.energy, lessThanOrEqualTo(ccd.energy + 0.01));
+				assertThat(lbfgsf.numEvaluations, lessThan(ccdf.numEvaluations));
+
+				// the molecule should be left at the minimized conformation
+				assertThat(lbfgsf.getValue(lbfgs.dofValues), isAbsolutely(lbfgs.energy, 1e-9));
+			}
+		}
+	}
+
+	@Test
+	public void minimizeCompiled() {
+
+		TestConfSpace.AffinityCompiled design = TestConfSpace.Design2RL0Interface7Mut.makeCompiled();
+		ConfSpace confSpace = design.complex;
+		int[] conf = design.makeConfComplexWt();
+		List<PosInter> inters = PosInterDist.all(confSpace, null, conf);
+
+		double ccdEnergy = new CPUConfEnergyCalculator(confSpace)
+			.minimize(conf, inters)
+			.energy;
+		ConfEnergyCalculator.EnergiedCoords lbfgs = new CPUConfEnergyCalculator(confSpace, (f) -> new LBFGSBMinimizer(f))
+			.minimize(conf, inters);
+
+		assertThat(lbfgs.energy, lessThanOrEqualTo(ccdEnergy + 0.01));
+		assertThat(calcEnergy(confSpace, lbfgs.coords, inters), isAbsolutely(lbfgs.energy, 1e-6));
+	}
+
+	@Test
+	public void respectsBounds() {
+
+		// a bowl centered outside the box, so the minimum is on the boundary
+		ObjectiveFunction f = new QuadraticObjectiveFunction(new double[] { 2.0, -0.5, 0.3 }, new double[] { 1.0, 10.0, 0.1 });
+		Minimizer.Result result = new LBFGSBMinimizer(f).minimizeFromCenter();
+
+		assertThat(result.dofValues.get(0), isAbsolutely(1.0, 1e-6));
+		assertThat(result.dofValues.get(1), isAbsolutely(-0.5, 1e-3));
+		assertThat(result.dofValues.get(2), isAbsolutely(0.3, 1e-3));
+	}
+
+	private static double calcEnergy(ConfSpace confSpace, AssignedCoords coords, List<PosInter> inters) {
+		double energy = 0.0;
+		for (edu.duke.cs.osprey.energy.compiled.EnergyCalculator ecalc : confSpace.ecalcs) {
+			energy += ecalc.calcEnergy(coords, inters);
+		}
+		return energy;
+	}
+
+	private static void assertGradient(ObjectiveFunction f, DoubleMatrix1D x, double h) {
+
+		DoubleMatrix1D gradient = DoubleFactory1D.dense.make(f.getNumDOFs());
+		double energy = f.getValueAndGradient(x, gradient);
+		assertThat(energy, isAbsolutely(f.getValue(x), 1e-6));
+
+		for (int d=0; d<f.getNumDOFs(); d++) {
+			DoubleMatrix1D xd = x.copy();
+			xd.set(d, x.get(d) + h);
+			double up = f.getValue(xd);
+			xd.set(d, x.get(d) - h);
+			double down = f.getValue(xd);
+			double expected = (up - down)/(2*h);
+			assertThat("dof " + d, gradient.get(d), isAbsolutely(expected, 1e-3*Math.max(1, Math.abs(expected))));
+		}
+	}
+
+	private static class CountingObjectiveFunction implements ObjectiveFunction {
+
+		final ObjectiveFunction f;
+		int numEvaluations = 0;
+
+		CountingObjectiveFunction(ObjectiveFunction f) {
+			this.f = f;
+		}
+
+		@Override public int getNumDOFs() { return f.getNumDOFs(); }
+		@Override public DoubleMatrix1D[] getConstraints() { return f.getConstraints(); }
+		@Override public void setDOFs(DoubleMatrix1D x) { f.setDOFs(x); }
+		@Override public void setDOF(int dof, double val) { f.setDOF(dof, val); }
+		@Override public double getInitStepSize(int dof) { return f.getInitStepSize(dof); }
+
+		@Override
+		public double getValue(DoubleMatrix1D x) {
+			numEvaluations++;
+			return f.getValue(x);
+		}
+
+		@Override
+		public double getValueAndGradient(DoubleMatrix1D x, DoubleMatrix1D gradient) {
+			numEvaluations++;
+			return f.getValueAndGradient(x, gradient);
+		}
+
+		@Override
+		public double getValForDOF(int dof, double val) {
+			numEvaluations++;
+			return f.getValForDOF(dof, val);
+		}
+	}
+
+	private static class QuadraticObjectiveFunction implements ObjectiveFunction {
+
+		final double[] center;
+		final double[] curvature;
+		final DoubleMatrix1D x;
+
+		QuadraticObjectiveFunction(double[] center, double[] curvature) {
+			this.center = center;
+			this.curvature = curvature;
+			this.x = DoubleFactory1D.dense.make(center.length);
+		}
+
+		@Override public int getNumDOFs() { return center.length; }
+		@Override public void setDOFs(DoubleMatrix1D x) { this.x.assign(x); }
+		@Override public void setDOF(int dof, double val) { x.set(dof, val); }
+		@Override public double getInitStepSize(int dof) { return 0.1; }
+
+		@Override
+		public DoubleMatrix1D[] getConstraints() {
+			return new DoubleMatrix1D[] {
+				DoubleFactory1D.dense.make(center.length, -1.0),
+				DoubleFactory1D.dense.make(center.length, 1.0)
+			};
+		}
+
+		@Override
+		public double getValue(DoubleMatrix1D x) {
+			setDOFs(x);
+			double val = 0.0;
+			for (int d=0; d<center.length; d++) {
+				double dx = x.get(d) - center[d];
+				val += curvature[d]*dx*dx;
+			}
+			return val;
+		}
+
+		@Override
+		public double getValForDOF(int dof, double val) {
+			setDOF(dof, val);
+			return getValue(x.copy());
+		}
+	}
+}